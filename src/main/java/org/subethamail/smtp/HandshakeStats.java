@@ -0,0 +1,77 @@
+package org.subethamail.smtp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the TLS handshakes of the clients or server sessions sharing it,
+ * telling full handshakes apart from resumed sessions, which skip the
+ * certificate exchange and key agreement. A session is taken as resumed if it
+ * was created before the handshake started.
+ * <p>
+ * Instances are thread-safe.
+ */
+public final class HandshakeStats {
+
+    private final LongAdder full = new LongAdder();
+    private final LongAdder fullNanos = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder resumedNanos = new LongAdder();
+
+    /**
+     * Records a completed handshake.
+     *
+     * @param nanos
+     *            how long the handshake took
+     * @param wasResumed
+     *            whether it resumed an earlier session
+     */
+    public void record(long nanos, boolean wasResumed) {
+        if (wasResumed) {
+            resumed.increment();
+            resumedNanos.add(nanos);
+        } else {
+            full.increment();
+            fullNanos.add(nanos);
+        }
+    }
+
+    /** @return the number of handshakes which created a new session */
+    public long getFullHandshakes() {
+        return full.sum();
+    }
+
+    /** @return the number of handshakes which resumed a session */
+    public long getResumedHandshakes() {
+        return resumed.sum();
+    }
+
+    /** @return the share of handshakes which resumed a session, 0 if none */
+    public double getResumedRatio() {
+        long r = resumed.sum();
+        long total = r + full.sum();
+        return total == 0 ? 0 : (double) r / total;
+    }
+
+    /** @return the average duration of a full handshake, 0 if none */
+    public long getAverageFullHandshakeTime(TimeUnit unit) {
+        return average(fullNanos, full, unit);
+    }
+
+    /** @return the average duration of a resumed handshake, 0 if none */
+    public long getAverageResumedHandshakeTime(TimeUnit unit) {
+        return average(resumedNanos, resumed, unit);
+    }
+
+    private static long average(LongAdder nanos, LongAdder count, TimeUnit unit) {
+        long n = count.sum();
+        return n == 0 ? 0 : unit.convert(nanos.sum() / n, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "HandshakeStats[full=" + getFullHandshakes() + ", resumed=" + getResumedHandshakes()
+                + ", averageFullMicros=" + getAverageFullHandshakeTime(TimeUnit.MICROSECONDS)
+                + ", averageResumedMicros=" + getAverageResumedHandshakeTime(TimeUnit.MICROSECONDS) + "]";
+    }
+}
@@ -40,6 +40,28 @@ public interface MessageContext
 		throw new UnsupportedOperationException();
 	}
 	
+	/**
+	 * Returns the message size the client declared with the SIZE parameter
+	 * of MAIL FROM (RFC 1870), or 0 if it did not declare one. This is only a
+	 * hint, the message may turn out a little larger (by the Received header
+	 * the server adds, for one) or smaller.
+	 */
+	default long getDeclaredMessageSize() {
+		return 0;
+	}
+
+	/**
+	 * Returns the header section of the message being received, captured as
+	 * it was read if the server was built with
+	 * {@link SMTPServer.Builder#captureHeaders(int)}. It is available from
+	 * the moment {@link MessageHandler#data(java.io.InputStream)} is called,
+	 * before any data has been read, and includes the Received header the
+	 * server adds. Empty if capture is off or outside of DATA or BDAT.
+	 */
+	default Optional<MessageHeaders> getMessageHeaders() {
+		return Optional.empty();
+	}
+
 	/**
 	 * @return the handler instance that was used to authenticate.
 	 */
@@ -0,0 +1,253 @@
+package org.subethamail.smtp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * The header section of a message, held as the raw bytes it was received as
+ * and only decoded when asked for. Names are compared case-insensitively and
+ * a name may occur any number of times, as Received does. Folded values are
+ * unfolded and trimmed, but encoded words are left as they are. Values are
+ * decoded as UTF-8, which covers plain ASCII and RFC 6532 headers alike.
+ * <p>
+ * Looking up a single name scans the raw bytes without building anything
+ * else, {@link #asMap()} decodes every field once and keeps the result.
+ * <p>
+ * Instances are immutable and thread-safe.
+ */
+public final class MessageHeaders {
+
+    private static final MessageHeaders EMPTY = new MessageHeaders(ByteBuffer.allocate(0), false);
+
+    /** The header section, from a header field to the end or the empty line */
+    private final ByteBuffer raw;
+
+    private final boolean truncated;
+
+    private volatile Map<String, List<String>> map;
+
+    private MessageHeaders(ByteBuffer raw, boolean truncated) {
+        this.raw = raw;
+        this.truncated = truncated;
+    }
+
+    /**
+     * Returns the headers at the start of the given message data. The data is
+     * not copied, it must not change afterwards. Anything after the empty line
+     * ending the headers is ignored.
+     *
+     * @param data
+     *            the message, or just its header section; read from its
+     *            position to its limit, which are left unchanged
+     */
+    public static MessageHeaders of(ByteBuffer data) {
+        Preconditions.checkNotNull(data);
+        return of(data, false);
+    }
+
+    /**
+     * Like {@link #of(ByteBuffer)}.
+     *
+     * @param truncated
+     *            true if the data stops short of the end of the header section
+     */
+    public static MessageHeaders of(ByteBuffer data, boolean truncated) {
+        return new MessageHeaders(data.slice().asReadOnlyBuffer(), truncated);
+    }
+
+    /** @return headers without any fields */
+    public static MessageHeaders empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Returns the value of the first field with the given name, or null if
+     * there is none.
+     */
+    public String get(String name) {
+        List<String> values = scan(name, true);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Returns the values of all fields with the given name, in order, or an
+     * empty list.
+     */
+    public List<String> getAll(String name) {
+        Map<String, List<String>> m = this.map;
+        if (m != null) {
+            List<String> values = m.get(name);
+            return values == null ? Collections.emptyList() : values;
+        }
+        return Collections.unmodifiableList(scan(name, false));
+    }
+
+    /** @return the number of fields with the given name */
+    public int count(String name) {
+        return getAll(name).size();
+    }
+
+    /**
+     * Returns all fields by name, decoded on the first call. The map is
+     * unmodifiable, keyed case-insensitively and iterates names in sorted
+     * order.
+     */
+    public Map<String, List<String>> asMap() {
+        Map<String, List<String>> m = this.map;
+        if (m == null) {
+            m = decodeAll();
+            this.map = m;
+        }
+        return m;
+    }
+
+    /**
+     * Returns true if the header section was longer than the server was
+     * configured to capture. Fields beyond that are missing and the last
+     * field may be incomplete.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /** @return a read-only view of the raw bytes of the header section */
+    public ByteBuffer getRaw() {
+        return raw.duplicate();
+    }
+
+    @Override
+    public String toString() {
+        return "MessageHeaders[bytes=" + raw.remaining() + ", truncated=" + truncated + "]";
+    }
+
+    private List<String> scan(String name, boolean firstOnly) {
+        byte[] prefix = (name.toLowerCase(Locale.ROOT) + ":").getBytes(StandardCharsets.UTF_8);
+        List<String> values = new ArrayList<>(1);
+        ByteBuffer b = raw;
+        int limit = b.limit();
+        int i = 0;
+        while (i < limit) {
+            int end = lineEnd(b, i);
+            if (end == i) {
+                // the empty line ending the headers
+                break;
+            }
+            if (startsWithIgnoreCase(b, i, end, prefix)) {
+                StringBuilder value = new StringBuilder();
+                i = unfold(b, i + prefix.length, end, value);
+                values.add(value.toString().trim());
+                if (firstOnly) {
+                    break;
+                }
+            } else {
+                i = next(b, end);
+            }
+        }
+        return values;
+    }
+
+    private Map<String, List<String>> decodeAll() {
+        Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        ByteBuffer b = raw;
+        int limit = b.limit();
+        int i = 0;
+        while (i < limit) {
+            int end = lineEnd(b, i);
+            if (end == i) {
+                break;
+            }
+            int colon = indexOf(b, i, end, ':');
+            if (colon > i) {
+                String name = string(b, i, colon).trim();
+                StringBuilder value = new StringBuilder();
+                i = unfold(b, colon + 1, end, value);
+                headers.computeIfAbsent(name, k -> new ArrayList<>(1)).add(value.toString().trim());
+            } else {
+                // not a header field, skip it along with its continuation lines
+                i = unfold(b, end, end, new StringBuilder());
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * Appends the value starting at from, and the continuation lines after
+     * the line ending at end.
+     *
+     * @return the index of the line after the field
+     */
+    private static int unfold(ByteBuffer b, int from, int end, StringBuilder value) {
+        value.append(string(b, from, end));
+        int i = next(b, end);
+        while (i < b.limit() && (b.get(i) == ' ' || b.get(i) == '\t')) {
+            end = lineEnd(b, i);
+            value.append(string(b, i, end));
+            i = next(b, end);
+        }
+        return i;
+    }
+
+    private static String string(ByteBuffer b, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int j = 0; j < bytes.length; j++) {
+            bytes[j] = b.get(from + j);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(ByteBuffer b, int from, int to, char c) {
+        for (int i = from; i < to; i++) {
+            if (b.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** @return the index of the CR or LF ending the line starting at i */
+    private static int lineEnd(ByteBuffer b, int i) {
+        int limit = b.limit();
+        while (i < limit && b.get(i) != '\r' && b.get(i) != '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    /** @return the index of the line after the one ending at end */
+    private static int next(ByteBuffer b, int end) {
+        if (end < b.limit() && b.get(end) == '\r') {
+            end++;
+        }
+        if (end < b.limit() && b.get(end) == '\n') {
+            end++;
+        }
+        return end;
+    }
+
+    private static boolean startsWithIgnoreCase(ByteBuffer b, int from, int to, byte[] lowerCasePrefix) {
+        if (to - from < lowerCasePrefix.length) {
+            return false;
+        }
+        for (int j = 0; j < lowerCasePrefix.length; j++) {
+            int c = b.get(from + j);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != lowerCasePrefix[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
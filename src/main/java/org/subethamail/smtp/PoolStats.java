@@ -0,0 +1,21 @@
+package org.subethamail.smtp;
+
+/**
+ * Read-only counters of a pool of reusable resources, such as buffers or
+ * spill files, showing how well they are reused. The counts are live, each
+ * call returns the current value.
+ */
+public interface PoolStats {
+
+    /** @return the number of idle resources currently held by the pool */
+    int getIdleCount();
+
+    /** @return the number of requests served by an idle resource */
+    long getHits();
+
+    /** @return the number of requests which created a resource */
+    long getMisses();
+
+    /** @return the number of returned resources dropped instead of being kept */
+    long getDiscards();
+}
@@ -0,0 +1,11 @@
+package org.subethamail.smtp;
+
+/**
+ * Read-only counters of the files large messages are spilled to. A hit is a
+ * spill which reused an idle file, a miss one which created a file.
+ */
+public interface SpillStats extends PoolStats {
+
+    /** @return the number of bytes spilled to files which have been released */
+    long getSpilledBytes();
+}
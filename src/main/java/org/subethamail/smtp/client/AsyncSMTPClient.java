@@ -0,0 +1,208 @@
+package org.subethamail.smtp.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.client.SMTPClient.Response;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * A non-blocking SMTP client which drives many conversations at once from a
+ * few selector threads, where {@link SmartClient} needs a thread for each.
+ * Each conversation is an {@link AsyncSMTPSession} whose operations return
+ * {@link CompletionStage}s:
+ *
+ * <pre>
+ * AsyncSMTPClient client = AsyncSMTPClient.heloHost("me.example.com").build();
+ * client.connect("mx.example.com", 25)
+ *         .thenCompose(session -&gt; session.envelope(from, recipients)
+ *                 .thenCompose(envelope -&gt; session.data(message))
+ *                 .thenCompose(reply -&gt; session.quit()));
+ * </pre>
+ *
+ * Connections are plain text; STARTTLS is only supported by the blocking
+ * clients.
+ * <p>
+ * Instances are thread-safe.
+ */
+public final class AsyncSMTPClient implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncSMTPClient.class);
+
+    private final String heloHost;
+    private final long connectTimeoutNanos;
+    private final long replyTimeoutNanos;
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean closed;
+
+    private AsyncSMTPClient(Builder b) throws IOException {
+        this.heloHost = b.heloHost;
+        this.connectTimeoutNanos = b.connectTimeoutNanos;
+        this.replyTimeoutNanos = b.replyTimeoutNanos;
+        this.loops = new SelectorLoop[b.selectorThreads];
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new SelectorLoop(AsyncSMTPClient.class.getName() + "-" + i);
+            }
+        } catch (IOException e) {
+            for (SelectorLoop loop : loops) {
+                if (loop != null) {
+                    loop.shutdown();
+                }
+            }
+            throw e;
+        }
+        for (SelectorLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Starts building a client.
+     *
+     * @param heloHost
+     *            the host name sent with EHLO
+     */
+    public static Builder heloHost(String heloHost) {
+        return new Builder(heloHost);
+    }
+
+    /**
+     * Connects to the server, waits for its greeting and sends EHLO, or HELO
+     * if EHLO is not supported. The host name is resolved on the calling
+     * thread.
+     *
+     * @return a stage which completes with the session, or fails with an
+     *         {@link SMTPException} if the server refuses the session or with
+     *         an {@link IOException} if it cannot be reached
+     */
+    public CompletionStage<AsyncSMTPSession> connect(String host, int port) {
+        Preconditions.checkNotNull(host, "host cannot be null");
+        if (closed)
+            throw new IllegalStateException("Client is closed");
+        SelectorLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            return AsyncSMTPSession.failed(e);
+        }
+        log.debug("Connecting to {}:{}", host, port);
+        AsyncSMTPSession session = new AsyncSMTPSession(loop, channel, host + ":" + port, connectTimeoutNanos,
+                replyTimeoutNanos);
+        CompletableFuture<List<Response>> greeting = session.greeting();
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        loop.execute(() -> {
+            try {
+                session.register(channel.connect(address));
+            } catch (IOException e) {
+                session.fail(e);
+            }
+        });
+        return greeting.thenCompose(list -> AsyncSMTPSession.check(list.get(0))) //
+                .thenCompose(r -> session.command("EHLO " + heloHost)) //
+                .thenCompose(ehlo -> {
+                    if (ehlo.isSuccess()) {
+                        try {
+                            SmartClient.parseEhloResponse(ehlo, session.extensions());
+                        } catch (IOException e) {
+                            return AsyncSMTPSession.<Response> failed(e);
+                        }
+                        return AsyncSMTPSession.check(ehlo);
+                    } else if (ehlo.getCode() == 500 || ehlo.getCode() == 502) {
+                        return session.command("HELO " + heloHost).thenCompose(AsyncSMTPSession::check);
+                    } else {
+                        return AsyncSMTPSession.<Response> failed(new SMTPException(ehlo));
+                    }
+                }) //
+                .handle((r, e) -> {
+                    if (e != null) {
+                        // the session is of no use, do not leave it open
+                        session.close();
+                        return AsyncSMTPSession.<AsyncSMTPSession> failed(
+                                e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                    }
+                    return CompletableFuture.completedFuture(session);
+                }).thenCompose(f -> f);
+    }
+
+    /**
+     * Stops the selector threads. Sessions still open are closed and their
+     * outstanding stages fail.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    public static final class Builder {
+
+        private final String heloHost;
+        private int selectorThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        private long connectTimeoutNanos = TimeUnit.MINUTES.toNanos(5);
+        private long replyTimeoutNanos = TimeUnit.MINUTES.toNanos(10);
+
+        private Builder(String heloHost) {
+            Preconditions.checkNotNull(heloHost, "heloHost cannot be null");
+            this.heloHost = heloHost;
+        }
+
+        /**
+         * Sets the number of selector threads the sessions are spread over, by
+         * default half the processors, at most 4.
+         */
+        public Builder selectorThreads(int threads) {
+            Preconditions.checkArgument(threads > 0, "threads must be positive");
+            this.selectorThreads = threads;
+            return this;
+        }
+
+        /**
+         * Sets how long connecting and the greeting may take, 5 minutes by
+         * default as for {@link SMTPClient}.
+         */
+        public Builder connectTimeout(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration > 0, "duration must be positive");
+            this.connectTimeoutNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Sets how long the server may take to reply to an operation, 10
+         * minutes by default as for {@link SMTPClient}. The time counts from
+         * the last bytes of the operation written, and while it is written,
+         * from the last bytes the server took, so sending a large message
+         * only fails if the server stops reading it.
+         */
+        public Builder replyTimeout(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration > 0, "duration must be positive");
+            this.replyTimeoutNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * @throws IOException
+         *             if a selector cannot be opened
+         */
+        public AsyncSMTPClient build() throws IOException {
+            return new AsyncSMTPClient(this);
+        }
+    }
+}
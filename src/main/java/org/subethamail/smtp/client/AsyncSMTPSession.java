@@ -0,0 +1,513 @@
+package org.subethamail.smtp.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.client.SMTPClient.Response;
+import org.subethamail.smtp.internal.io.DotTerminatedOutputStream;
+import org.subethamail.smtp.internal.io.ExtraDotOutputStream;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * One SMTP conversation of an {@link AsyncSMTPClient}, established by
+ * {@link AsyncSMTPClient#connect(String, int)}: connected, greeted and past
+ * EHLO (or HELO).
+ * <p>
+ * Every operation returns a stage which completes when the server has
+ * answered. Operations may be started from any thread and are carried out
+ * one after the other in the order they were started, but a conversation
+ * normally waits for each stage before starting the next. Stages complete on
+ * the selector thread, dependent actions which block should use the async
+ * variants of {@link CompletionStage}. A stage fails with an
+ * {@link SMTPException} for a negative reply where the operation says so, and
+ * with an {@link IOException} if the connection fails, in which case every
+ * later operation fails too.
+ */
+public final class AsyncSMTPSession {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncSMTPSession.class);
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /** The most message content held stuffed at once, per session */
+    private static final int DATA_BUFFER_SIZE = 16 * 1024;
+
+    private final SelectorLoop loop;
+    private final SocketChannel channel;
+    private final String hostPort;
+    private final long replyTimeoutNanos;
+    private final ReplyReader replies = new ReplyReader();
+    private final Map<String, String> extensions = new HashMap<>();
+
+    // the fields below are only used on the loop thread
+
+    private SelectionKey key;
+
+    /** Refilled with message content as the channel takes it, see #data */
+    private ByteBuffer dataBuffer;
+
+    /** Operations started but not yet written */
+    private final Queue<Exchange> queue = new ArrayDeque<>();
+
+    /** The operation being written or waiting for its replies */
+    private Exchange active;
+
+    /**
+     * When the active operation times out, moved forward whenever some of it
+     * is written, so the reply timeout starts once all of it is
+     */
+    private long deadline;
+
+    private IOException failure;
+
+    private boolean serverClosingTransmissionChannel;
+
+    /** Set by stages, which may complete on other threads */
+    private volatile boolean dataInProgress;
+
+    AsyncSMTPSession(SelectorLoop loop, SocketChannel channel, String hostPort, long connectTimeoutNanos,
+            long replyTimeoutNanos) {
+        this.loop = loop;
+        this.channel = channel;
+        this.hostPort = hostPort;
+        this.replyTimeoutNanos = replyTimeoutNanos;
+        // the greeting is the reply to connecting
+        this.active = new Exchange(EMPTY, 1, null);
+        this.deadline = System.nanoTime() + connectTimeoutNanos;
+    }
+
+    /** @return the greeting, once connected */
+    CompletableFuture<List<Response>> greeting() {
+        return active.result;
+    }
+
+    /** Registers the channel, on the loop thread */
+    void register(boolean connected) throws IOException {
+        if (loop.isTerminated()) {
+            throw new IOException("Client shut down");
+        }
+        key = channel.register(loop.selector(), connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+    }
+
+    /**
+     * Returns the SMTP extensions the server advertised, keyed by the keyword
+     * in upper case.
+     */
+    public Map<String, String> getExtensions() {
+        return Collections.unmodifiableMap(extensions);
+    }
+
+    /** @return the extension map, filled in while connecting */
+    Map<String, String> extensions() {
+        return extensions;
+    }
+
+    /** @return true if the server advertised PIPELINING (RFC 2920) */
+    public boolean isPipelining() {
+        return extensions.containsKey("PIPELINING");
+    }
+
+    /** @return host:port of the server, for display */
+    public String getHostPort() {
+        return hostPort;
+    }
+
+    /** @return true until the connection is closed or fails */
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Sends a command and returns the reply, whatever its code.
+     *
+     * @param command
+     *            without a line break, for example {@code NOOP}
+     */
+    public CompletionStage<Response> command(String command) {
+        return exchange(Collections.singletonList(command)).thenApply(list -> list.get(0));
+    }
+
+    /**
+     * Authenticates with AUTH PLAIN, see {@link PlainAuthenticator}. Fails
+     * with {@link AuthenticationNotSupportedException} if the server does not
+     * offer PLAIN, or with {@link SMTPException} if it rejects the
+     * credentials.
+     */
+    public CompletionStage<Response> authPlain(String user, String password) {
+        try {
+            PlainAuthenticator.checkAuthPlainSupport(extensions);
+        } catch (AuthenticationNotSupportedException e) {
+            return failed(e);
+        }
+        return command(PlainAuthenticator.command(user, password)).thenCompose(AsyncSMTPSession::check);
+    }
+
+    /**
+     * Sends the envelope of a message: MAIL, RCPT for each recipient and, if
+     * any recipient was accepted, DATA. This behaves as
+     * {@link SmartClient#sendEnvelope(String, List)} does: the commands are
+     * pipelined in one write if the server supports it, a rejected recipient
+     * is reported in the result rather than failing it, and the stage fails
+     * with {@link SMTPException} if MAIL is rejected.
+     */
+    public CompletionStage<EnvelopeResponse> envelope(String from, List<String> recipients) {
+        Preconditions.checkNotNull(recipients, "recipients cannot be null");
+        Preconditions.checkArgument(!recipients.isEmpty(), "recipients cannot be empty");
+        List<String> rcpts = new ArrayList<>(recipients);
+        CompletionStage<EnvelopeResponse> result = isPipelining() ? pipelineEnvelope(from, rcpts)
+                : lockstepEnvelope(from, rcpts);
+        return result.thenApply(e -> {
+            dataInProgress = e.isDataStarted();
+            return e;
+        });
+    }
+
+    private CompletionStage<EnvelopeResponse> pipelineEnvelope(String from, List<String> recipients) {
+        List<String> commands = new ArrayList<>(recipients.size() + 2);
+        commands.add(SmartClient.mailCommand(from));
+        for (String to : recipients) {
+            commands.add(SmartClient.rcptCommand(to));
+        }
+        commands.add("DATA");
+        return exchange(commands).thenCompose(list -> {
+            Response mail = list.get(0);
+            if (!mail.isSuccess()) {
+                return failed(new SMTPException(mail));
+            }
+            List<Response> rcpts = new ArrayList<>(list.subList(1, list.size() - 1));
+            EnvelopeResponse e = new EnvelopeResponse(mail, recipients, rcpts,
+                    Optional.of(list.get(list.size() - 1)));
+            if (e.isDataStarted() && e.getAcceptedRecipients().isEmpty()) {
+                // DATA should have been refused, end the empty message
+                return send(ByteBuffer.wrap(new byte[] { '.', '\r', '\n' }), 1)
+                        .thenApply(x -> new EnvelopeResponse(mail, recipients, rcpts, Optional.empty()));
+            }
+            return CompletableFuture.completedFuture(e);
+        });
+    }
+
+    private CompletionStage<EnvelopeResponse> lockstepEnvelope(String from, List<String> recipients) {
+        return command(SmartClient.mailCommand(from)).thenCompose(AsyncSMTPSession::check).thenCompose(mail -> {
+            List<Response> rcpts = new ArrayList<>(recipients.size());
+            CompletionStage<Void> stage = CompletableFuture.completedFuture(null);
+            for (String to : recipients) {
+                stage = stage.thenCompose(x -> command(SmartClient.rcptCommand(to))).thenAccept(rcpts::add);
+            }
+            return stage.thenCompose(x -> {
+                boolean accepted = rcpts.stream().anyMatch(Response::isSuccess);
+                if (!accepted) {
+                    return CompletableFuture
+                            .completedFuture(new EnvelopeResponse(mail, recipients, rcpts, Optional.empty()));
+                }
+                return command("DATA").thenApply(
+                        data -> new EnvelopeResponse(mail, recipients, rcpts, Optional.of(data)));
+            });
+        });
+    }
+
+    /**
+     * Sends the message content after an envelope which started DATA, with
+     * dot-stuffing and line breaks made CRLF as for {@link SmartClient}, and
+     * returns the final reply. Fails with {@link SMTPException} if the
+     * message is rejected.
+     *
+     * <p>
+     * The message is not copied: it is stuffed a buffer at a time as the
+     * connection takes it, so it must not be changed until the stage
+     * completes.
+     *
+     * @param message
+     *            the message, read from its position to its limit
+     */
+    public CompletionStage<Response> data(ByteBuffer message) {
+        Exchange exchange = new Exchange(EMPTY, 1, new StuffedContent(message.duplicate()));
+        return send(exchange).thenCompose(list -> {
+            dataInProgress = false;
+            return check(list.get(0));
+        });
+    }
+
+    /** @see #data(ByteBuffer) */
+    public CompletionStage<Response> data(byte[] message) {
+        return data(ByteBuffer.wrap(message));
+    }
+
+    /**
+     * Sends QUIT, unless the server is already closing the connection, and
+     * closes the connection once it has replied. The stage does not fail.
+     */
+    public CompletionStage<Void> quit() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        loop.execute(() -> {
+            if (failure != null || serverClosingTransmissionChannel || dataInProgress) {
+                fail(new IOException("Session closed"));
+                done.complete(null);
+            } else {
+                // completes on the loop thread
+                command("QUIT").whenComplete((r, e) -> {
+                    fail(new IOException("Session closed"));
+                    done.complete(null);
+                });
+            }
+        });
+        return done;
+    }
+
+    /** Closes the connection at once, failing what is still outstanding */
+    public void close() {
+        loop.execute(() -> fail(new IOException("Session closed")));
+    }
+
+    private CompletableFuture<List<Response>> exchange(List<String> commands) {
+        StringBuilder b = new StringBuilder();
+        for (String command : commands) {
+            log.debug("Client: {}", command);
+            b.append(command).append("\r\n");
+        }
+        return send(ByteBuffer.wrap(b.toString().getBytes(StandardCharsets.UTF_8)), commands.size());
+    }
+
+    private CompletableFuture<List<Response>> send(ByteBuffer out, int replies) {
+        return send(new Exchange(out, replies, null));
+    }
+
+    private CompletableFuture<List<Response>> send(Exchange exchange) {
+        loop.execute(() -> {
+            if (failure != null) {
+                exchange.result.completeExceptionally(failure);
+            } else {
+                queue.add(exchange);
+                next();
+            }
+        });
+        return exchange.result;
+    }
+
+    /** Starts writing the next operation if the previous one is done */
+    private void next() {
+        if (active != null || queue.isEmpty() || failure != null) {
+            return;
+        }
+        active = queue.poll();
+        deadline = System.nanoTime() + replyTimeoutNanos;
+        write();
+    }
+
+    // called by the loop
+
+    void handle(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            if (key.isValid() && key.isWritable()) {
+                write();
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    void checkTimeout(long now) {
+        if (active != null && now - deadline > 0) {
+            fail(new SocketTimeoutException("No reply from " + hostPort + " in time"));
+        }
+    }
+
+    void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+            log.debug("Session to {} ended: {}", hostPort, e.toString());
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            log.debug("Could not close connection to {}: {}", hostPort, ex.toString());
+        }
+        if (active != null) {
+            active.result.completeExceptionally(failure);
+            active = null;
+        }
+        Exchange e2;
+        while ((e2 = queue.poll()) != null) {
+            e2.result.completeExceptionally(failure);
+        }
+    }
+
+    private void write() {
+        if (active == null) {
+            return;
+        }
+        long written = 0;
+        try {
+            do {
+                if (!active.out.hasRemaining() && active.content != null && !active.content.isTerminated()) {
+                    if (dataBuffer == null) {
+                        dataBuffer = ByteBuffer.allocate(DATA_BUFFER_SIZE);
+                    }
+                    active.out = active.content.fill(dataBuffer);
+                }
+                written += channel.write(active.out);
+            } while (!active.out.hasRemaining() && active.hasRemaining());
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        if (written > 0) {
+            deadline = System.nanoTime() + replyTimeoutNanos;
+        }
+        if (key.isValid()) {
+            key.interestOps(active.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                    : SelectionKey.OP_READ);
+        }
+    }
+
+    private void read() throws IOException {
+        ByteBuffer buffer = loop.readBuffer;
+        buffer.clear();
+        int n = channel.read(buffer);
+        if (n < 0) {
+            fail(new EOFException("Server " + hostPort + " closed the connection"));
+            return;
+        }
+        buffer.flip();
+        replies.receive(buffer);
+        Response resp;
+        while ((resp = replies.poll()) != null) {
+            if (resp.getCode() == 421) {
+                serverClosingTransmissionChannel = true;
+            }
+            if (active == null) {
+                log.debug("Unexpected reply from {}: {}", hostPort, resp);
+                continue;
+            }
+            active.received.add(resp);
+            if (active.received.size() == active.replies) {
+                Exchange done = active;
+                active = null;
+                done.result.complete(done.received);
+                next();
+            }
+        }
+    }
+
+    static CompletionStage<Response> check(Response resp) {
+        return resp.isSuccess() ? CompletableFuture.completedFuture(resp) : failed(new SMTPException(resp));
+    }
+
+    static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        f.completeExceptionally(e);
+        return f;
+    }
+
+    /** Bytes to write, and the replies they are answered with */
+    private static final class Exchange {
+        ByteBuffer out;
+        /** Written once out is, or null */
+        final StuffedContent content;
+        final int replies;
+        final List<Response> received;
+        final CompletableFuture<List<Response>> result = new CompletableFuture<>();
+
+        Exchange(ByteBuffer out, int replies, StuffedContent content) {
+            this.out = out;
+            this.content = content;
+            this.replies = replies;
+            this.received = new ArrayList<>(replies);
+        }
+
+        boolean hasRemaining() {
+            return out.hasRemaining() || content != null && !content.isTerminated();
+        }
+    }
+
+    /**
+     * Message content, dot-stuffed and terminated a buffer at a time. The
+     * streams doing it write into the buffer being filled.
+     */
+    private static final class StuffedContent extends OutputStream {
+        private final ByteBuffer message;
+        /** For content not backed by an array */
+        private byte[] chunk;
+        private final DotTerminatedOutputStream dotTerminated = new DotTerminatedOutputStream(this);
+        private final ExtraDotOutputStream stuffed = new ExtraDotOutputStream(dotTerminated);
+        private ByteBuffer target;
+        private boolean terminated;
+
+        StuffedContent(ByteBuffer message) {
+            this.message = message;
+        }
+
+        boolean isTerminated() {
+            return terminated;
+        }
+
+        /** Replaces the content of buffer with the next part to send */
+        ByteBuffer fill(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            target = buffer;
+            // a byte is stuffed into two at most, then five terminate
+            int n = Math.min(message.remaining(), (buffer.capacity() - 5) / 2);
+            if (message.hasArray()) {
+                stuffed.write(message.array(), message.arrayOffset() + message.position(), n);
+                message.position(message.position() + n);
+            } else {
+                if (chunk == null) {
+                    chunk = new byte[(buffer.capacity() - 5) / 2];
+                }
+                message.get(chunk, 0, n);
+                stuffed.write(chunk, 0, n);
+            }
+            stuffed.flush();
+            if (!message.hasRemaining()) {
+                dotTerminated.writeTerminatingSequence();
+                terminated = true;
+            }
+            target = null;
+            buffer.flip();
+            return buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            target.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            target.put(b, off, len);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " { " + hostPort + " }";
+    }
+}
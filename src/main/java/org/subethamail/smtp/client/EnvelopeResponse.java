@@ -0,0 +1,114 @@
+package org.subethamail.smtp.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.subethamail.smtp.client.SMTPClient.Response;
+
+/**
+ * The replies to the envelope of a message sent by
+ * {@link SmartClient#sendEnvelope(String, List)}: MAIL, one RCPT for each
+ * recipient in the order given, and DATA if it was sent. After
+ * {@link SmartClient#send(String, List, jakarta.mail.internet.MimeMessage)}
+ * the final reply to the message is included too.
+ */
+public final class EnvelopeResponse {
+
+    private final Response mailResponse;
+    private final List<String> recipients;
+    private final List<Response> recipientResponses;
+    private final Optional<Response> dataResponse;
+    private final Optional<Response> messageResponse;
+
+    EnvelopeResponse(Response mailResponse, List<String> recipients, List<Response> recipientResponses,
+            Optional<Response> dataResponse) {
+        this(mailResponse, recipients, recipientResponses, dataResponse, Optional.empty());
+    }
+
+    private EnvelopeResponse(Response mailResponse, List<String> recipients, List<Response> recipientResponses,
+            Optional<Response> dataResponse, Optional<Response> messageResponse) {
+        this.mailResponse = mailResponse;
+        this.recipients = Collections.unmodifiableList(recipients);
+        this.recipientResponses = Collections.unmodifiableList(recipientResponses);
+        this.dataResponse = dataResponse;
+        this.messageResponse = messageResponse;
+    }
+
+    EnvelopeResponse withMessageResponse(Response response) {
+        return new EnvelopeResponse(mailResponse, recipients, recipientResponses, dataResponse,
+                Optional.of(response));
+    }
+
+    /** @return the reply to MAIL, which is always a success */
+    public Response getMailResponse() {
+        return mailResponse;
+    }
+
+    /** @return the recipients, in the order their RCPT commands were sent */
+    public List<String> getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * @return the reply to each RCPT command, in the same order as
+     *         {@link #getRecipients()}
+     */
+    public List<Response> getRecipientResponses() {
+        return recipientResponses;
+    }
+
+    /** @return the recipients the server accepted */
+    public List<String> getAcceptedRecipients() {
+        return select(true);
+    }
+
+    /** @return the recipients the server rejected */
+    public List<String> getRejectedRecipients() {
+        return select(false);
+    }
+
+    /**
+     * Returns the reply to DATA, or empty if DATA was not sent because no
+     * recipient was accepted or the message went out with BDAT.
+     */
+    public Optional<Response> getDataResponse() {
+        return dataResponse;
+    }
+
+    /**
+     * Returns true if the server is waiting for the message content, which is
+     * then written with {@link SmartClient#dataWrite(byte[])} and
+     * {@link SmartClient#dataEnd()}. Otherwise the mail transaction is still
+     * open on the server and should be reset before the next one.
+     */
+    public boolean isDataStarted() {
+        return dataResponse.isPresent() && dataResponse.get().getCode() == 354;
+    }
+
+    /**
+     * Returns the final reply to the message content, when it was sent by
+     * {@link SmartClient#send(String, List, jakarta.mail.internet.MimeMessage)}.
+     */
+    public Optional<Response> getMessageResponse() {
+        return messageResponse;
+    }
+
+    private List<String> select(boolean success) {
+        List<String> list = new ArrayList<>();
+        for (int i = 0; i < recipients.size(); i++) {
+            if (recipientResponses.get(i).isSuccess() == success) {
+                list.add(recipients.get(i));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        return "EnvelopeResponse[mail=" + mailResponse + ", recipients=" + recipients + ", recipientResponses="
+                + recipientResponses + ", data=" + dataResponse.orElse(null) + ", message=" + messageResponse.orElse(null)
+                + "]";
+    }
+}
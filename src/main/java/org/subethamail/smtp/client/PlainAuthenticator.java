@@ -2,9 +2,11 @@ package org.subethamail.smtp.client;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -27,21 +29,22 @@ public final class PlainAuthenticator implements Authenticator {
 
     @Override
     public void authenticate() throws SMTPException, AuthenticationNotSupportedException, IOException {
-        checkAuthPlainSupport();
+        checkAuthPlainSupport(smartClient.getExtensions());
 
-        String initialClientResponse = constructInitialClientResponse();
-        smartClient.sendAndCheck("AUTH PLAIN " + initialClientResponse);
+        smartClient.sendAndCheck(command(user, password));
     }
 
     /**
      * Checks if the server supports this mechanism.
      * 
+     * @param extensions
+     *            the extensions the server advertised in reply to EHLO
      * @throws AuthenticationNotSupportedException
      *             if the server does not support this mechanism or
      *             authentication at all.
      */
-    private void checkAuthPlainSupport() throws AuthenticationNotSupportedException {
-        String mechanismsString = smartClient.getExtensions().get("AUTH");
+    static void checkAuthPlainSupport(Map<String, String> extensions) throws AuthenticationNotSupportedException {
+        String mechanismsString = extensions.get("AUTH");
         if (mechanismsString == null) {
             throw new AuthenticationNotSupportedException("Cannot authenticate, because the AUTH extension is "
                     + "not supported by the server. Maybe the server expects " + "TLS first");
@@ -58,20 +61,30 @@ public final class PlainAuthenticator implements Authenticator {
      * 
      * @return the set of SASL mechanism names
      */
-    private Set<String> parseMechanismsList(String authParameters) {
+    private static Set<String> parseMechanismsList(String authParameters) {
         String[] mechanisms = authParameters.split(" ");
         return new HashSet<>(Arrays.asList(mechanisms));
     }
 
+    /**
+     * Returns the AUTH PLAIN command with the initial response, which is all
+     * the mechanism sends.
+     */
+    static String command(String user, String password) {
+        return "AUTH PLAIN " + constructInitialClientResponse(user, password);
+    }
+
     /**
      * Creates the base64 encoded SASL PLAIN initial response.
      */
-    private String constructInitialClientResponse() throws IOException {
+    private static String constructInitialClientResponse(String user, String password) {
         ByteArrayOutputStream out = new ByteArrayOutputStream(512);
         out.write(0);
-        out.write(user.getBytes("UTF-8"));
+        byte[] u = user.getBytes(StandardCharsets.UTF_8);
+        out.write(u, 0, u.length);
         out.write(0);
-        out.write(password.getBytes("UTF-8"));
+        byte[] p = password.getBytes(StandardCharsets.UTF_8);
+        out.write(p, 0, p.length);
         return Base64.getEncoder().encodeToString(out.toByteArray());
     }
 }
@@ -0,0 +1,198 @@
+package org.subethamail.smtp.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.client.SMTPClient.Response;
+
+/**
+ * Reads SMTP replies from the server byte by byte out of its own buffer, so a
+ * reply split across several network reads, or several replies arriving in
+ * one read, are handled alike. Reading blocks only when the buffer holds no
+ * complete reply, and whatever arrives beyond the reply asked for is kept for
+ * the next one.
+ * <p>
+ * The reader either pulls from a stream with {@link #read()}, or is fed by a
+ * non-blocking channel with {@link #receive(ByteBuffer)} and asked with
+ * {@link #poll()}.
+ * <p>
+ * Lines may end with CRLF or a bare LF. Reply text is decoded as UTF-8.
+ */
+final class ReplyReader {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplyReader.class);
+
+    /** RFC 5321 allows 512 bytes a line, be lenient with servers going beyond */
+    static final int MAX_REPLY_LENGTH = 64 * 1024;
+
+    private final InputStream in;
+
+    private byte[] buffer = new byte[1024];
+
+    /** The next unread byte */
+    private int pos;
+
+    /** One past the last byte received */
+    private int limit;
+
+    ReplyReader(InputStream in) {
+        this.in = in;
+    }
+
+    /** Creates a reader which is fed with {@link #receive(ByteBuffer)} */
+    ReplyReader() {
+        this(null);
+    }
+
+    /**
+     * Reads one complete reply, which may span several lines.
+     *
+     * @throws EOFException
+     *             if the server closed the connection before the reply
+     *             started
+     * @throws IOException
+     *             if the reply is malformed or ends early
+     */
+    Response read() throws IOException {
+        while (true) {
+            Response resp = poll();
+            if (resp != null) {
+                return resp;
+            }
+            if (!fill()) {
+                if (pos == limit) {
+                    throw new EOFException("Server disconnected unexpectedly, no reply received");
+                } else {
+                    throw new IOException(
+                            "Malformed SMTP reply: " + new String(buffer, pos, limit - pos, StandardCharsets.UTF_8));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the next reply if it has been received in full, otherwise null.
+     *
+     * @throws IOException
+     *             if the reply is malformed
+     */
+    Response poll() throws IOException {
+        int i = pos;
+        while (true) {
+            int end = indexOfLf(i);
+            if (end < 0) {
+                return null;
+            }
+            int length = lineLength(i, end);
+            if (length < 3) {
+                throw new IOException("Malformed SMTP reply: " + new String(buffer, i, length, StandardCharsets.UTF_8));
+            }
+            if (length > 3 && buffer[i + 3] == '-') {
+                i = end + 1;
+            } else {
+                return parse(end + 1);
+            }
+        }
+    }
+
+    /**
+     * Appends bytes received from the server.
+     *
+     * @throws IOException
+     *             if a reply grows beyond {@link #MAX_REPLY_LENGTH}
+     */
+    void receive(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            makeRoom();
+            int n = Math.min(b.remaining(), buffer.length - limit);
+            b.get(buffer, limit, n);
+            limit += n;
+        }
+    }
+
+    /** Consumes the complete reply ending just before {@code to} */
+    private Response parse(int to) throws IOException {
+        StringBuilder text = new StringBuilder();
+        int code = -1;
+        int i = pos;
+        while (i < to) {
+            int end = indexOfLf(i);
+            String line = new String(buffer, i, lineLength(i, end), StandardCharsets.UTF_8);
+            log.debug("Server: {}", line);
+            int lineCode = parseCode(line);
+            if (code < 0) {
+                code = lineCode;
+            } else {
+                text.append('\n');
+            }
+            if (line.length() > 3) {
+                text.append(line, 4, line.length());
+            }
+            i = end + 1;
+        }
+        pos = to;
+        return new Response(code, text.toString());
+    }
+
+    private static int parseCode(String line) throws IOException {
+        int code = 0;
+        for (int i = 0; i < 3; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IOException("Malformed SMTP reply: " + line);
+            }
+            code = code * 10 + c - '0';
+        }
+        return code;
+    }
+
+    private int indexOfLf(int from) {
+        for (int i = from; i < limit; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** @return the length of the line without its CRLF or LF */
+    private int lineLength(int start, int lf) {
+        return lf > start && buffer[lf - 1] == '\r' ? lf - 1 - start : lf - start;
+    }
+
+    /**
+     * Reads at least one more byte into the buffer.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        makeRoom();
+        int n = in.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    /** Compacts or grows the buffer if it is full */
+    private void makeRoom() throws IOException {
+        if (limit == buffer.length) {
+            if (pos > 0) {
+                System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            } else if (buffer.length < MAX_REPLY_LENGTH) {
+                buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_REPLY_LENGTH));
+            } else {
+                throw new IOException("SMTP reply longer than " + MAX_REPLY_LENGTH + " bytes");
+            }
+        }
+    }
+}
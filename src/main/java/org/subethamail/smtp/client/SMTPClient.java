@@ -1,22 +1,23 @@
 package org.subethamail.smtp.client;
 
-import java.io.BufferedReader;
-import java.io.EOFException;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Optional;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.subethamail.smtp.internal.Constants;
+import org.subethamail.smtp.HandshakeStats;
 import org.subethamail.smtp.internal.io.DotTerminatedOutputStream;
 import org.subethamail.smtp.internal.io.ExtraDotOutputStream;
 
@@ -34,12 +35,6 @@ public class SMTPClient implements AutoCloseable {
 
     /** 10 minutes */
     private static final int REPLY_TIMEOUT = 600 * 1000;
-    
-    // TODO make this option in SMTPClient, SmartClient, use builder in SmartClient
-    /**
-     * This field is temporary only till SmartClient builder is created.
-     */
-    public static final long RECEIVE_AND_CHECK_PAUSE_MS = 50;
 
     private static Logger log = LoggerFactory.getLogger(SMTPClient.class);
 
@@ -59,12 +54,25 @@ public class SMTPClient implements AutoCloseable {
     /** Just for display purposes */
     private final Optional<String> hostPortName;
 
+    /**
+     * The host name given to {@link #connect(String, int)}, which identifies
+     * the server's TLS sessions for resumption.
+     */
+    private String host;
+
+    /** Where TLS handshakes are recorded, if anywhere */
+    Optional<HandshakeStats> handshakeStats = Optional.empty();
+
     /** The raw socket */
     Socket socket;
 
-    BufferedReader reader;
+    /** Reads replies, keeping anything received ahead for the next one */
+    ReplyReader replies;
 
-    /** Output streams used for data */
+    /**
+     * Output streams used for data, buffered so that message data goes out in
+     * full segments and only flushes put anything on the network
+     */
     OutputStream rawOutput;
 
     /**
@@ -79,9 +87,6 @@ public class SMTPClient implements AutoCloseable {
      */
     ExtraDotOutputStream dataOutput;
 
-    /** Note we bypass this during DATA */
-    PrintWriter writer;
-
     /**
      * Result of an SMTP exchange.
      */
@@ -185,7 +190,10 @@ public class SMTPClient implements AutoCloseable {
         this.socket = createSocket();
         this.socket.bind(this.bindpoint.orElse(null));
         this.socket.setSoTimeout(REPLY_TIMEOUT);
+        // writes are coalesced here, waiting for acks would only add latency
+        this.socket.setTcpNoDelay(true);
         this.socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        this.host = host;
         updateSocket();
         connected = true;
     }
@@ -201,13 +209,12 @@ public class SMTPClient implements AutoCloseable {
         try {
             this.localSocketAddress = this.socket.getLocalSocketAddress();
 
-            this.reader = new BufferedReader(
-                    new InputStreamReader(this.socket.getInputStream(), Constants.SMTP_CHARSET));
+            // a fresh reader, so that nothing received ahead of a TLS handshake
+            // is taken for a reply afterwards
+            this.replies = new ReplyReader(this.socket.getInputStream());
 
-            this.rawOutput = this.socket.getOutputStream();
-            this.dotTerminatedOutput = new DotTerminatedOutputStream(this.rawOutput);
-            this.dataOutput = new ExtraDotOutputStream(this.dotTerminatedOutput);
-            this.writer = new PrintWriter(this.rawOutput, true);
+            this.rawOutput = new BufferedOutputStream(this.socket.getOutputStream(), 8192);
+            newDataOutput();
         } catch (IOException e) {
             close();
             throw e;
@@ -215,7 +222,19 @@ public class SMTPClient implements AutoCloseable {
     }
 
     /**
-     * Returns a new unconnected socket.
+     * Replaces the DATA streams with fresh ones for a new message. Their line
+     * state must not carry over from the previous message: one which did not
+     * end with a line break would leave a leading dot of the next unstuffed.
+     */
+    void newDataOutput() {
+        this.dotTerminatedOutput = new DotTerminatedOutputStream(this.rawOutput);
+        this.dataOutput = new ExtraDotOutputStream(this.dotTerminatedOutput);
+    }
+
+    /**
+     * Returns a new unconnected socket. The default one belongs to a blocking
+     * {@link SocketChannel}, so that files can be sent with
+     * {@link java.nio.channels.FileChannel#transferTo}.
      * <p>
      * Implementation notice for subclasses: This function is called by the
      * constructors which open the connection immediately. In these cases the
@@ -223,7 +242,11 @@ public class SMTPClient implements AutoCloseable {
      * function shouldn't use those constructors.
      */
     protected Socket createSocket() {
-        return new Socket();
+        try {
+            return SocketChannel.open().socket();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
@@ -235,7 +258,9 @@ public class SMTPClient implements AutoCloseable {
 
     /**
      * Sends a message to the server, ie "HELO foo.example.com". A newline will
-     * be appended to the message.
+     * be appended to the message. The line is encoded as UTF-8, which leaves
+     * plain ASCII commands as they are and carries SMTPUTF8 addresses, and is
+     * written out in a single write.
      *
      * @param msg
      *            should not have any newlines
@@ -245,52 +270,39 @@ public class SMTPClient implements AutoCloseable {
         if (!connected)
             throw new IllegalStateException("Not connected");
 
-        // Force \r\n since println() behaves differently on different platforms
-        this.writer.print(msg + "\r\n");
-        this.writer.flush();
+        this.rawOutput.write((msg + "\r\n").getBytes(StandardCharsets.UTF_8));
+        this.rawOutput.flush();
     }
 
     /**
-     * Note that the response text comes back without trailing newlines.
+     * Sends several commands in a single write, for PIPELINING (RFC 2920). A
+     * newline is appended to each. The replies are then read one by one with
+     * {@link #receive()}.
+     *
+     * @param msgs
+     *            the commands, none of which should have newlines
      */
-    protected Response receive() throws IOException {
+    protected void sendBatch(List<String> msgs) throws IOException {
         if (!connected)
             throw new IllegalStateException("Not connected");
 
-        StringBuilder builder = new StringBuilder();
-        String line = null;
-
-        boolean done = false;
-        do {
-            line = this.reader.readLine();
-            if (line == null) {
-                if (builder.length() == 0)
-                    throw new EOFException("Server disconnected unexpectedly, no reply received");
-                else
-                    throw new IOException("Malformed SMTP reply: " + builder);
-            }
-
-            log.debug("Server: {}", line);
-
-            if (line.length() < 4)
-                throw new IOException("Malformed SMTP reply: " + line);
-            builder.append(line.substring(4));
-
-            if (line.charAt(3) == '-')
-                builder.append('\n');
-            else
-                done = true;
-        } while (!done);
-
-        int code;
-        String codeString = line.substring(0, 3);
-        try {
-            code = Integer.parseInt(codeString);
-        } catch (NumberFormatException e) {
-            throw new IOException("Malformed SMTP reply: " + line, e);
+        StringBuilder b = new StringBuilder();
+        for (String msg : msgs) {
+            log.debug("Client: {}", msg);
+            b.append(msg).append("\r\n");
         }
+        this.rawOutput.write(b.toString().getBytes(StandardCharsets.UTF_8));
+        this.rawOutput.flush();
+    }
 
-        return new Response(code, builder.toString());
+    /**
+     * Note that the response text comes back without trailing newlines.
+     */
+    protected Response receive() throws IOException {
+        if (!connected)
+            throw new IllegalStateException("Not connected");
+
+        return this.replies.read();
     }
 
     /**
@@ -308,14 +320,6 @@ public class SMTPClient implements AutoCloseable {
 
     /** If response is not success, throw an exception */
     public Response receiveAndCheck() throws IOException, SMTPException {
-        // without a pause here there is a race with operating system IO
-        // that can mean nothing is received. This was noticed by putting 
-        // a loop on BdatTest.testOneBdatCommand.
-        try {
-            Thread.sleep(RECEIVE_AND_CHECK_PAUSE_MS);
-        } catch (InterruptedException e) {
-            // do nothing
-        }
         Response resp = this.receive();
         if (!resp.isSuccess())
             throw new SMTPException(resp);
@@ -365,6 +369,9 @@ public class SMTPClient implements AutoCloseable {
 
     /**
      * Upgrades the existing socket to use an SSL connection in client mode.
+     * The host name and port connected to are passed on, so that a session
+     * cached by the socket factory's context for the same server is resumed
+     * rather than negotiated again.
      * @throws IOException
      */
     protected void performSSLHandshake() throws IOException {
@@ -373,9 +380,18 @@ public class SMTPClient implements AutoCloseable {
             throw new IllegalStateException("socket should be connected at this point");
         }
 
-        SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, remoteAddress.getHostName(), socket.getPort(), true);
+        // the name connected to rather than a reverse lookup of the address,
+        // it is what the session cache and the host name checks are keyed on
+        String peerHost = this.host != null ? this.host : remoteAddress.getHostString();
+        SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, peerHost, socket.getPort(), true);
         sslSocket.setUseClientMode(true);
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
         sslSocket.startHandshake();
+        if (handshakeStats.isPresent()) {
+            boolean resumed = sslSocket.getSession().getCreationTime() < startMillis;
+            handshakeStats.get().record(System.nanoTime() - start, resumed);
+        }
 
         this.socket = sslSocket;
         updateSocket();
@@ -0,0 +1,139 @@
+package org.subethamail.smtp.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One selector thread of an {@link AsyncSMTPClient}, driving the sessions
+ * registered with it. Everything a session does on its channel happens on
+ * this thread; other threads hand work over with {@link #execute(Runnable)}.
+ */
+final class SelectorLoop implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(SelectorLoop.class);
+
+    /** How often timeouts are checked when nothing else happens */
+    private static final long SWEEP_INTERVAL_MS = 250;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+
+    /** Reused for every read, only touched on the loop thread */
+    final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+
+    private volatile boolean running = true;
+
+    /**
+     * Set once the loop has stopped and failed its sessions, tasks are then
+     * run by whoever adds them so that their stages fail too
+     */
+    private volatile boolean terminated;
+
+    SelectorLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs the task on the loop thread, soon. Once the loop has stopped, the
+     * task runs at once on the calling thread, where it finds its session
+     * failed.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (terminated) {
+            runTasks();
+        } else if (!inLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    boolean isTerminated() {
+        return terminated;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Task failed in the client selector loop", e);
+            }
+        }
+    }
+
+    /** Stops the loop, closing the sessions still registered */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long nextSweep = System.nanoTime();
+        try {
+            while (running) {
+                if (tasks.isEmpty()) {
+                    selector.select(SWEEP_INTERVAL_MS);
+                } else {
+                    // tasks were added by the previous round, do not wait
+                    selector.selectNow();
+                }
+                runTasks();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    ((AsyncSMTPSession) key.attachment()).handle(key);
+                }
+                long now = System.nanoTime();
+                if (now - nextSweep >= 0) {
+                    nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MS);
+                    for (SelectionKey key : selector.keys()) {
+                        ((AsyncSMTPSession) key.attachment()).checkTimeout(now);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            log.error("Client selector loop failed", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((AsyncSMTPSession) key.attachment()).fail(new IOException("Client shut down"));
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.debug("Could not close selector: {}", e.toString());
+            }
+            // the tasks left, and any added later, fail the stages they were
+            // to complete
+            terminated = true;
+            runTasks();
+        }
+    }
+}
@@ -1,23 +1,39 @@
 package org.subethamail.smtp.client;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.HandshakeStats;
 import org.subethamail.smtp.client.SMTPClient.Response;
+import org.subethamail.smtp.internal.io.CRLFOutputStream;
 
 import com.github.davidmoten.guavamini.Preconditions;
 import com.github.davidmoten.guavamini.annotations.VisibleForTesting;
 
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
@@ -30,6 +46,15 @@ import javax.net.ssl.SSLSocketFactory;
 public class SmartClient {
 
     private static final Logger log = LoggerFactory.getLogger(SmartClient.class);
+
+    /** The most commands pipelined before their replies are read */
+    private static final int MAX_PIPELINED_COMMANDS = 200;
+
+    /** The size of the first chunk sent by the streaming BDAT methods */
+    private static final int MIN_CHUNK_SIZE = 16 * 1024;
+
+    /** The size the chunks of the streaming BDAT methods grow to */
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
     
     /** The host name which is sent in the HELO and EHLO commands */
     private final String heloHost;
@@ -62,6 +87,15 @@ public class SmartClient {
      */
     private boolean serverClosingTransmissionChannel = false;
 
+    /**
+     * True between the 354 reply to DATA and the end of the message, when
+     * anything sent is taken as message content.
+     */
+    private boolean dataInProgress;
+
+    /** The number of messages whose content was sent to the end */
+    private int messageCount;
+
     /**
      * Constructor.
      * 
@@ -169,7 +203,7 @@ public class SmartClient {
     protected Response sendEhlo() throws IOException {
         Response resp = client.sendReceive("EHLO " + heloHost);
         if (resp.isSuccess()) {
-            parseEhloResponse(resp);
+            parseEhloResponse(resp, extensions);
         }
 
         return resp;
@@ -177,9 +211,9 @@ public class SmartClient {
 
     /**
      * Extracts the list of SMTP extensions from the server's response to EHLO,
-     * and stores them in {@link #extensions}.
+     * and stores them in {@code extensions}.
      */
-    private void parseEhloResponse(Response resp) throws IOException {
+    static void parseEhloResponse(Response resp, Map<String, String> extensions) throws IOException {
         BufferedReader reader = new BufferedReader(new StringReader(resp.getMessage()));
         // first line contains server name and welcome message, skip it
         reader.readLine();
@@ -224,30 +258,197 @@ public class SmartClient {
         }
     }
 
+    /**
+     * Records the TLS handshake of {@link #startTLS()} in the given stats,
+     * which may be shared with other clients.
+     */
+    public void setHandshakeStats(HandshakeStats stats) {
+        Preconditions.checkNotNull(stats, "stats cannot be null");
+        client.handshakeStats = Optional.of(stats);
+    }
+
 
     public void from(String from) throws IOException, SMTPException {
-        client.sendAndCheck("MAIL FROM: <" + from + ">");
+        client.sendAndCheck(mailCommand(from));
+    }
+
+    /**
+     * Starts a mail transaction declaring the size of the message (RFC 1870),
+     * if the server advertised the SIZE extension. Otherwise the size is left
+     * out, as if {@link #from(String)} was called.
+     *
+     * @param from
+     *            the sender
+     * @param messageSize
+     *            the size of the message in bytes
+     */
+    public void from(String from, long messageSize) throws IOException, SMTPException {
+        client.sendAndCheck(mailCommand(from, messageSize));
     }
 
     public void to(String to) throws IOException, SMTPException {
-        client.sendAndCheck("RCPT TO: <" + to + ">");
+        client.sendAndCheck(rcptCommand(to));
         this.recipientCount++;
     }
 
+    /**
+     * Sends the envelope of a message: MAIL, RCPT for each recipient and, if
+     * any recipient was accepted, DATA. If the server advertised PIPELINING
+     * (RFC 2920) the commands go out together in a single write and the
+     * replies are matched to them in order afterwards, so the whole envelope
+     * costs one round trip however many recipients there are. Otherwise each
+     * command waits for its reply, as with {@link #from(String)},
+     * {@link #to(String)} and {@link #dataStart()}.
+     * <p>
+     * A rejected recipient does not fail the call, its reply is in the result.
+     * If {@link EnvelopeResponse#isDataStarted()} the message content follows
+     * with {@link #dataWrite(byte[])} and {@link #dataEnd()}.
+     *
+     * @param from
+     *            the sender
+     * @param recipients
+     *            the recipients, not empty
+     * @return the replies
+     * @throws SMTPException
+     *             if the server rejected MAIL
+     */
+    public EnvelopeResponse sendEnvelope(String from, List<String> recipients) throws IOException, SMTPException {
+        return envelope(mailCommand(from), recipients, true);
+    }
+
+    /**
+     * Like {@link #sendEnvelope(String, List)}, declaring the size of the
+     * message if the server advertised SIZE, see {@link #from(String, long)}.
+     */
+    public EnvelopeResponse sendEnvelope(String from, long messageSize, List<String> recipients)
+            throws IOException, SMTPException {
+        return envelope(mailCommand(from, messageSize), recipients, true);
+    }
+
+    private EnvelopeResponse envelope(String mailCommand, List<String> recipients, boolean data)
+            throws IOException, SMTPException {
+        Preconditions.checkNotNull(recipients, "recipients cannot be null");
+        Preconditions.checkArgument(!recipients.isEmpty(), "recipients cannot be empty");
+        if (data) {
+            client.newDataOutput();
+        }
+        List<String> rcpts = new ArrayList<>(recipients);
+        EnvelopeResponse result = isPipelining() ? pipelineEnvelope(mailCommand, rcpts, data)
+                : lockstepEnvelope(mailCommand, rcpts, data);
+        this.recipientCount += result.getAcceptedRecipients().size();
+        this.dataInProgress = result.isDataStarted();
+        return result;
+    }
+
+    private EnvelopeResponse pipelineEnvelope(String mailCommand, List<String> recipients, boolean sendData)
+            throws IOException, SMTPException {
+        // MAIL, the RCPTs and DATA are commands 0 to n + 1. Very long envelopes
+        // go out in groups, so that neither side fills its send buffer while
+        // the other is still writing rather than reading.
+        int n = recipients.size();
+        int total = sendData ? n + 2 : n + 1;
+        Response mail = null;
+        List<Response> rcptResponses = new ArrayList<>(n);
+        Response data = null;
+        List<String> batch = new ArrayList<>(Math.min(total, MAX_PIPELINED_COMMANDS));
+        for (int start = 0; start < total; start += MAX_PIPELINED_COMMANDS) {
+            int end = Math.min(total, start + MAX_PIPELINED_COMMANDS);
+            batch.clear();
+            for (int i = start; i < end; i++) {
+                batch.add(i == 0 ? mailCommand : i <= n ? rcptCommand(recipients.get(i - 1)) : "DATA");
+            }
+            client.sendBatch(batch);
+            for (int i = start; i < end; i++) {
+                Response resp = receive();
+                if (resp.getCode() == 421) {
+                    throw new SMTPException(resp);
+                }
+                if (i == 0) {
+                    mail = resp;
+                } else if (i <= n) {
+                    rcptResponses.add(resp);
+                } else {
+                    data = resp;
+                }
+            }
+        }
+        if (!mail.isSuccess()) {
+            throw new SMTPException(mail);
+        }
+        EnvelopeResponse result = new EnvelopeResponse(mail, recipients, rcptResponses, Optional.ofNullable(data));
+        if (result.isDataStarted() && result.getAcceptedRecipients().isEmpty()) {
+            // the server should have refused DATA without recipients, end the
+            // empty message rather than have it delivered nowhere (RFC 2920 3.1)
+            client.dotTerminatedOutput.writeTerminatingSequence();
+            client.dotTerminatedOutput.flush();
+            receive();
+            return new EnvelopeResponse(mail, recipients, rcptResponses, Optional.empty());
+        }
+        return result;
+    }
+
+    private EnvelopeResponse lockstepEnvelope(String mailCommand, List<String> recipients, boolean sendData)
+            throws IOException, SMTPException {
+        Response mail = client.sendAndCheck(mailCommand);
+        List<Response> rcptResponses = new ArrayList<>(recipients.size());
+        boolean accepted = false;
+        for (String to : recipients) {
+            client.send(rcptCommand(to));
+            Response resp = receive();
+            if (resp.getCode() == 421) {
+                throw new SMTPException(resp);
+            }
+            rcptResponses.add(resp);
+            accepted |= resp.isSuccess();
+        }
+        Optional<Response> data = Optional.empty();
+        if (accepted && sendData) {
+            client.send("DATA");
+            data = Optional.of(receive());
+        }
+        return new EnvelopeResponse(mail, recipients, rcptResponses, data);
+    }
+
+    private String mailCommand(String from, long messageSize) {
+        if (extensions.containsKey("SIZE")) {
+            return mailCommand(from) + " SIZE=" + messageSize;
+        } else {
+            return mailCommand(from);
+        }
+    }
+
+    static String mailCommand(String from) {
+        return "MAIL FROM: <" + from + ">";
+    }
+
+    static String rcptCommand(String to) {
+        return "RCPT TO: <" + to + ">";
+    }
+
     /**
      * Prelude to writing data
      */
     public void dataStart() throws IOException, SMTPException {
+        client.newDataOutput();
         client.sendAndCheck("DATA");
+        this.dataInProgress = true;
     }
     
+    /**
+     * Sends one BDAT chunk (RFC 3030) and waits for its reply. The chunk is
+     * sent as raw UTF-8 bytes: unlike DATA it is neither dot-stuffed nor line
+     * break normalized, so the size announced is exactly what the server
+     * reads.
+     */
     public void bdat(String text, boolean isLast) throws IOException {
-        client.send("BDAT " + text.length() + (isLast? " LAST": ""));
-        dataWrite(text.getBytes(StandardCharsets.UTF_8));
-        client.dataOutput.flush();
-        log.debug("receiving bdat response");
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        client.send("BDAT " + bytes.length + (isLast? " LAST": ""));
+        client.rawOutput.write(bytes);
+        client.rawOutput.flush();
+        if (isLast) {
+            messageCount++;
+        }
         client.receiveAndCheck();
-        log.debug("received bdat response");
     }
     
     public void bdat(String text) throws IOException {
@@ -258,6 +459,313 @@ public class SmartClient {
         bdat(text, true);
     }
 
+    /**
+     * Sends a whole message with BDAT (RFC 3030) and returns the reply to the
+     * last chunk. The bytes are sent as they are read, without dot-stuffing or
+     * line break normalization. Chunks start small and double up to
+     * {@value #MAX_CHUNK_SIZE} bytes while there is more to send, so small
+     * messages take one chunk and large ones few round trips. If the server
+     * supports pipelining, the next chunk is read and written before the
+     * reply to the previous one is read.
+     * <p>
+     * The stream is read to its end but not closed.
+     *
+     * @throws SMTPException
+     *             if the server rejects a chunk, after which the transaction
+     *             should be reset
+     */
+    public Response bdat(InputStream message) throws IOException, SMTPException {
+        Preconditions.checkNotNull(message, "message cannot be null");
+        ChunkWriter writer = new ChunkWriter();
+        byte[] chunk = new byte[MIN_CHUNK_SIZE];
+        byte[] spare = null;
+        int length = readFully(message, chunk);
+        while (length == chunk.length) {
+            // read ahead, so that the last chunk is known to be the last
+            int nextSize = Math.min(chunk.length * 2, MAX_CHUNK_SIZE);
+            byte[] next = spare != null && spare.length == nextSize ? spare : new byte[nextSize];
+            int nextLength = readFully(message, next);
+            if (nextLength == 0) {
+                break;
+            }
+            writer.start(length, false);
+            client.rawOutput.write(chunk, 0, length);
+            writer.end(false);
+            spare = chunk;
+            chunk = next;
+            length = nextLength;
+        }
+        writer.start(length, true);
+        client.rawOutput.write(chunk, 0, length);
+        return writer.end(true);
+    }
+
+    /**
+     * Sends a whole message with BDAT, see {@link #bdat(InputStream)}. The
+     * channel is read to its end but not closed.
+     */
+    public Response bdat(ReadableByteChannel message) throws IOException, SMTPException {
+        Preconditions.checkNotNull(message, "message cannot be null");
+        return bdat(Channels.newInputStream(message));
+    }
+
+    /**
+     * Sends a file as a whole message with BDAT, see
+     * {@link #bdat(InputStream)}. Unless the connection is encrypted, the file
+     * content goes to the socket with {@link FileChannel#transferTo} rather
+     * than through the heap.
+     */
+    public Response bdat(Path message) throws IOException, SMTPException {
+        Preconditions.checkNotNull(message, "message cannot be null");
+        try (FileChannel file = FileChannel.open(message, StandardOpenOption.READ)) {
+            // null once TLS is started
+            SocketChannel socket = client.socket.getChannel();
+            if (socket == null) {
+                return bdat(Channels.newInputStream(file));
+            }
+            ChunkWriter writer = new ChunkWriter();
+            long size = file.size();
+            long position = 0;
+            int chunkSize = MIN_CHUNK_SIZE;
+            while (true) {
+                long length = Math.min(chunkSize, size - position);
+                boolean last = position + length == size;
+                writer.start(length, last);
+                client.rawOutput.flush();
+                long end = position + length;
+                while (position < end) {
+                    long n = file.transferTo(position, end - position, socket);
+                    if (n == 0 && position >= file.size()) {
+                        // the size was announced, the connection is of no use
+                        client.close();
+                        throw new EOFException(message + " was truncated while it was sent");
+                    }
+                    position += n;
+                }
+                Response resp = writer.end(last);
+                if (last) {
+                    return resp;
+                }
+                chunkSize = Math.min(chunkSize * 2, MAX_CHUNK_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Sends the content of a message after its envelope and returns the final
+     * reply. If the server advertised CHUNKING the content is sent with
+     * {@link #bdat(InputStream)}. Otherwise, or if DATA was already started by
+     * {@link #dataStart()} or {@link #sendEnvelope(String, List)}, it is sent
+     * as DATA, dot-stuffed. The stream is not closed.
+     *
+     * @throws SMTPException
+     *             if the server rejects the message
+     */
+    public Response sendData(InputStream message) throws IOException, SMTPException {
+        Preconditions.checkNotNull(message, "message cannot be null");
+        if (!dataInProgress && isChunking()) {
+            return bdat(message);
+        }
+        if (!dataInProgress) {
+            dataStart();
+        }
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = message.read(buffer)) != -1) {
+            client.dataOutput.write(buffer, 0, n);
+        }
+        return finishData();
+    }
+
+    /** @see #sendData(InputStream) */
+    public Response sendData(ReadableByteChannel message) throws IOException, SMTPException {
+        Preconditions.checkNotNull(message, "message cannot be null");
+        return sendData(Channels.newInputStream(message));
+    }
+
+    /** @see #sendData(InputStream) */
+    public Response sendData(Path message) throws IOException, SMTPException {
+        Preconditions.checkNotNull(message, "message cannot be null");
+        if (!dataInProgress && isChunking()) {
+            return bdat(message);
+        }
+        try (InputStream in = Files.newInputStream(message)) {
+            return sendData(in);
+        }
+    }
+
+    /**
+     * Sends a whole message: the envelope as {@link #sendEnvelope(String, List)}
+     * does, then the content written by {@link MimeMessage#writeTo} straight
+     * to the connection, in BDAT chunks if the server advertised CHUNKING and
+     * as DATA otherwise. Line breaks are made CRLF on the way, and DATA is
+     * dot-stuffed. At most one chunk of the message is held in memory.
+     * <p>
+     * If no recipient is accepted, no content is sent and the mail
+     * transaction is left open, as after {@link #sendEnvelope(String, List)}.
+     *
+     * @return the replies to the envelope and, if the content was sent, the
+     *         final reply to it
+     * @throws SMTPException
+     *             if the server rejects MAIL or the message
+     * @throws MessagingException
+     *             if the message cannot be written
+     */
+    public EnvelopeResponse send(String from, List<String> recipients, MimeMessage message)
+            throws IOException, SMTPException, MessagingException {
+        Preconditions.checkNotNull(message, "message cannot be null");
+        boolean chunking = isChunking();
+        EnvelopeResponse envelope = envelope(mailCommand(from), recipients, !chunking);
+        if (chunking) {
+            if (envelope.getAcceptedRecipients().isEmpty()) {
+                return envelope;
+            }
+            ChunkOutputStream chunks = new ChunkOutputStream();
+            CRLFOutputStream out = new CRLFOutputStream(chunks);
+            message.writeTo(out);
+            out.flush();
+            return envelope.withMessageResponse(chunks.finish());
+        } else {
+            if (!envelope.isDataStarted()) {
+                return envelope;
+            }
+            message.writeTo(client.dataOutput);
+            return envelope.withMessageResponse(finishData());
+        }
+    }
+
+    private boolean isChunking() {
+        return extensions.containsKey("CHUNKING");
+    }
+
+    /** Reads until the buffer is full or the stream ends, returns the count */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int count = 0;
+        while (count < buffer.length) {
+            int n = in.read(buffer, count, buffer.length - count);
+            if (n == -1) {
+                break;
+            }
+            count += n;
+        }
+        return count;
+    }
+
+    /**
+     * Sends what is written to it in BDAT chunks, growing as those of
+     * {@link SmartClient#bdat(InputStream)} do. A full chunk is sent once more
+     * is written, so that {@link #finish()} can mark the last one LAST.
+     * Flushing does not end a chunk.
+     */
+    private final class ChunkOutputStream extends OutputStream {
+
+        private final ChunkWriter writer = new ChunkWriter();
+
+        private byte[] chunk = new byte[MIN_CHUNK_SIZE];
+
+        private int count;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == chunk.length) {
+                sendChunk();
+            }
+            chunk[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == chunk.length) {
+                    sendChunk();
+                }
+                int n = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void sendChunk() throws IOException {
+            writer.start(count, false);
+            client.rawOutput.write(chunk, 0, count);
+            writer.end(false);
+            if (chunk.length < MAX_CHUNK_SIZE) {
+                chunk = new byte[chunk.length * 2];
+            }
+            count = 0;
+        }
+
+        /** Sends the last chunk and returns the reply to the message */
+        Response finish() throws IOException {
+            writer.start(count, true);
+            client.rawOutput.write(chunk, 0, count);
+            return writer.end(true);
+        }
+    }
+
+    /**
+     * Writes the BDAT commands of one message and reads their replies. With
+     * pipelining the reply to a chunk is read after the next chunk is written.
+     */
+    private final class ChunkWriter {
+
+        private final boolean pipelining = isPipelining();
+
+        private boolean replyPending;
+
+        ChunkWriter() {
+            // the server takes anything but BDAT as a protocol error now
+            dataInProgress = true;
+        }
+
+        /** Writes the command, the caller writes the chunk */
+        void start(long size, boolean last) throws IOException {
+            String command = "BDAT " + size + (last ? " LAST" : "");
+            log.debug("Client: {}", command);
+            client.rawOutput.write((command + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+
+        /**
+         * Flushes the chunk and reads the replies due.
+         *
+         * @return the reply to the last chunk, null before
+         */
+        Response end(boolean last) throws IOException, SMTPException {
+            client.rawOutput.flush();
+            if (last) {
+                messageCount++;
+            }
+            if (replyPending) {
+                // the reply to the previous chunk
+                replyPending = false;
+                check(receive(), true);
+            }
+            if (pipelining && !last) {
+                replyPending = true;
+                return null;
+            }
+            Response resp = check(receive(), false);
+            if (last) {
+                dataInProgress = false;
+            }
+            return resp;
+        }
+
+        private Response check(Response resp, boolean another) throws IOException, SMTPException {
+            if (!resp.isSuccess()) {
+                if (another && resp.getCode() != 421) {
+                    // the chunk written since is answered too
+                    receive();
+                }
+                dataInProgress = false;
+                throw new SMTPException(resp);
+            }
+            return resp;
+        }
+    }
+
     /**
      * Actually write some data
      */
@@ -273,11 +781,17 @@ public class SmartClient {
      * Last step after writing data
      */
     public void dataEnd() throws IOException, SMTPException {
+        finishData();
+    }
+
+    private Response finishData() throws IOException, SMTPException {
         client.dataOutput.flush();
         client.dotTerminatedOutput.writeTerminatingSequence();
         client.dotTerminatedOutput.flush();
+        this.dataInProgress = false;
+        this.messageCount++;
 
-        client.receiveAndCheck();
+        return client.receiveAndCheck();
     }
 
     /**
@@ -285,14 +799,15 @@ public class SmartClient {
      * <p>
      * It still closes the connection, but it does not send the QUIT command if
      * a 421 Service closing transmission channel is received previously. In
-     * these cases QUIT would fail anyway.
+     * these cases QUIT would fail anyway. Nor is it sent in the middle of
+     * message data, where the server would take it as content.
      * 
      * @see <a href="http://tools.ietf.org/html/rfc5321#section-3.8">RFC 5321
      *      Terminating Sessions and Connections</a>
      */
     public void quit() {
         try {
-            if (client.isConnected() && !this.serverClosingTransmissionChannel)
+            if (client.isConnected() && !this.serverClosingTransmissionChannel && !this.dataInProgress)
                 client.sendAndCheck("QUIT");
         } catch (IOException ex) {
             log.warn("Failed to issue QUIT to " + client.getHostPort());
@@ -301,6 +816,24 @@ public class SmartClient {
         client.close();
     }
 
+    /**
+     * Returns true if the connection can carry another mail transaction: it is
+     * open, the server did not announce it is closing it, and no message data
+     * was left unfinished.
+     */
+    boolean isReusable() {
+        return client.isConnected() && !this.serverClosingTransmissionChannel && !this.dataInProgress;
+    }
+
+    /**
+     * Returns the number of messages sent over this session, whether or not
+     * the server accepted them. A transaction abandoned before the end of its
+     * content is not counted.
+     */
+    int getMessageCount() {
+        return this.messageCount;
+    }
+
     /**
      * @return the number of recipients that have been accepted by the server
      */
@@ -308,6 +841,33 @@ public class SmartClient {
         return this.recipientCount;
     }
 
+    /**
+     * Returns the maximum message size the server advertised with the SIZE
+     * extension.
+     *
+     * @return the size in bytes, 0 if the server did not advertise a fixed
+     *         limit
+     */
+    public long getMaxMessageSize() {
+        String value = extensions.get("SIZE");
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns true if the server advertised PIPELINING (RFC 2920), so that
+     * {@link #sendEnvelope(String, List)} sends the envelope in one write.
+     */
+    public boolean isPipelining() {
+        return extensions.containsKey("PIPELINING");
+    }
+
     /**
      * Returns the SMTP extensions supported by the server.
      * 
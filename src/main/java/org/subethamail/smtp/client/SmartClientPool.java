@@ -0,0 +1,590 @@
+package org.subethamail.smtp.client;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.HandshakeStats;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Keeps {@link SmartClient} sessions open between messages, so that relaying
+ * many messages to the same server pays for the connection, greeting, EHLO,
+ * STARTTLS and AUTH once rather than for every message.
+ * <p>
+ * Sessions are kept per {@link Destination}, which is the host, port,
+ * whether to use STARTTLS and the credentials. Each {@link Lease} is one mail
+ * transaction:
+ *
+ * <pre>
+ * try (SmartClientPool.Lease lease = pool.acquire(destination)) {
+ *     SmartClient client = lease.getClient();
+ *     if (client.sendEnvelope(from, recipients).isDataStarted()) {
+ *         client.dataWrite(message);
+ *         client.dataEnd();
+ *     }
+ * }
+ * </pre>
+ *
+ * When a lease is closed the session is reset with RSET and kept for the
+ * next one, unless it has sent the most messages allowed, the connection
+ * failed or was left in the middle of message data. A session idle longer
+ * than the health check interval is checked with NOOP before it is handed out
+ * again, one idle longer than the idle timeout is closed with QUIT.
+ * <p>
+ * Instances are thread-safe, leases are not.
+ */
+public final class SmartClientPool implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(SmartClientPool.class);
+
+    private final String heloHost;
+    private final Optional<SSLSocketFactory> sslSocketFactory;
+    private final int maxConnectionsPerDestination;
+    private final int maxMessagesPerConnection;
+    private final long maxIdleNanos;
+    private final long healthCheckNanos;
+    private final long acquireTimeoutNanos;
+    private final HandshakeStats handshakeStats = new HandshakeStats();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Destination, Slots> slots = new HashMap<>();
+    private final ScheduledExecutorService evictor;
+    private boolean closed;
+
+    private SmartClientPool(Builder b) {
+        this.heloHost = b.heloHost;
+        this.sslSocketFactory = b.socketFactory();
+        this.maxConnectionsPerDestination = b.maxConnectionsPerDestination;
+        this.maxMessagesPerConnection = b.maxMessagesPerConnection;
+        this.maxIdleNanos = b.maxIdleNanos;
+        this.healthCheckNanos = b.healthCheckNanos;
+        this.acquireTimeoutNanos = b.acquireTimeoutNanos;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, SmartClientPool.class.getName() + " evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(TimeUnit.SECONDS.toNanos(1), maxIdleNanos / 2);
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Starts building a pool.
+     *
+     * @param heloHost
+     *            the host name the sessions send with EHLO
+     */
+    public static Builder heloHost(String heloHost) {
+        return new Builder(heloHost);
+    }
+
+    /**
+     * Returns a session to the destination, an idle one if there is one, or
+     * else a new one if fewer than the maximum are open. Otherwise waits for
+     * one to be released.
+     *
+     * @throws TimeoutException
+     *             if the maximum number of sessions were busy for longer than
+     *             the acquire timeout
+     * @throws IOException
+     *             if a new session could not be established
+     */
+    public Lease acquire(Destination destination) throws IOException, InterruptedException, TimeoutException {
+        Preconditions.checkNotNull(destination, "destination cannot be null");
+        long deadline = System.nanoTime() + acquireTimeoutNanos;
+        while (true) {
+            Pooled idle = null;
+            lock.lock();
+            try {
+                checkOpen();
+                Slots s = slots.computeIfAbsent(destination, d -> new Slots(lock.newCondition()));
+                while (s.idle.isEmpty() && s.open >= maxConnectionsPerDestination) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new TimeoutException("no session to " + destination + " was released in time");
+                    }
+                    s.released.awaitNanos(remaining);
+                    checkOpen();
+                }
+                idle = s.idle.pollFirst();
+                if (idle == null) {
+                    // reserve the slot, connecting is done without the lock
+                    s.open++;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (idle == null) {
+                return new Lease(connect(destination));
+            }
+            if (isHealthy(idle)) {
+                return new Lease(idle);
+            }
+            discard(idle);
+        }
+    }
+
+    /**
+     * @return the number of open sessions to the destination, leased or idle
+     */
+    public int getOpenCount(Destination destination) {
+        lock.lock();
+        try {
+            Slots s = slots.get(destination);
+            return s == null ? 0 : s.open;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the number of idle sessions to the destination */
+    public int getIdleCount(Destination destination) {
+        lock.lock();
+        try {
+            Slots s = slots.get(destination);
+            return s == null ? 0 : s.idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Quits the idle sessions and stops pooling. Leased sessions are quit when
+     * their lease is closed.
+     */
+    @Override
+    public void close() {
+        List<Pooled> quitting = new ArrayList<>();
+        lock.lock();
+        try {
+            closed = true;
+            for (Slots s : slots.values()) {
+                s.open -= s.idle.size();
+                quitting.addAll(s.idle);
+                s.idle.clear();
+                s.released.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        evictor.shutdownNow();
+        for (Pooled p : quitting) {
+            p.client.quit();
+        }
+    }
+
+    /** Quits the sessions which have been idle for too long */
+    void evictIdle() {
+        List<Pooled> expired = new ArrayList<>();
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            for (Slots s : slots.values()) {
+                // the least recently used are at the end
+                Iterator<Pooled> it = s.idle.descendingIterator();
+                while (it.hasNext()) {
+                    Pooled p = it.next();
+                    if (now - p.lastUsed < maxIdleNanos) {
+                        break;
+                    }
+                    it.remove();
+                    s.open--;
+                    expired.add(p);
+                    s.released.signal();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Pooled p : expired) {
+            log.debug("Closing idle session to {}", p.destination);
+            p.client.quit();
+        }
+    }
+
+    /**
+     * Returns the TLS handshakes made by the pool's sessions, telling
+     * resumed sessions from full handshakes.
+     */
+    public HandshakeStats getHandshakeStats() {
+        return handshakeStats;
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("Pool is closed");
+    }
+
+    private Pooled connect(Destination destination) throws IOException {
+        SmartClient client = null;
+        try {
+            client = SmartClient.createAndConnect(destination.host, destination.port, Optional.empty(), heloHost,
+                    Optional.empty(), sslSocketFactory);
+            client.setHandshakeStats(handshakeStats);
+            if (destination.startTls) {
+                client.startTLS();
+            }
+            if (destination.user.isPresent()) {
+                new PlainAuthenticator(client, destination.user.get(), destination.password.get()).authenticate();
+            }
+            return new Pooled(destination, client);
+        } catch (IOException | RuntimeException e) {
+            if (client != null) {
+                client.quit();
+            }
+            release(destination, null);
+            throw e;
+        }
+    }
+
+    private boolean isHealthy(Pooled p) {
+        if (!p.client.isReusable()) {
+            return false;
+        }
+        if (System.nanoTime() - p.lastUsed < healthCheckNanos) {
+            return true;
+        }
+        try {
+            p.client.sendAndCheck("NOOP");
+            return true;
+        } catch (IOException e) {
+            log.debug("Session to {} failed its health check: {}", p.destination, e.toString());
+            return false;
+        }
+    }
+
+    private void discard(Pooled p) {
+        p.client.quit();
+        release(p.destination, null);
+    }
+
+    /**
+     * Frees the slot of a session, keeping the session as idle if it is given.
+     */
+    private void release(Destination destination, Pooled keep) {
+        boolean quit = false;
+        lock.lock();
+        try {
+            Slots s = slots.get(destination);
+            if (keep != null && !closed) {
+                s.idle.addFirst(keep);
+            } else {
+                s.open--;
+                quit = keep != null;
+            }
+            s.released.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (quit) {
+            keep.client.quit();
+        }
+    }
+
+    private void returnToPool(Pooled p) {
+        boolean reuse = p.client.getMessageCount() < maxMessagesPerConnection && p.client.isReusable();
+        if (reuse) {
+            try {
+                p.client.sendAndCheck("RSET");
+            } catch (IOException e) {
+                log.debug("Could not reset session to {}: {}", p.destination, e.toString());
+                reuse = false;
+            }
+        }
+        if (reuse) {
+            p.lastUsed = System.nanoTime();
+            release(p.destination, p);
+        } else {
+            discard(p);
+        }
+    }
+
+    /**
+     * A session borrowed from the pool for one mail transaction. Closing it
+     * gives the session back.
+     */
+    public final class Lease implements AutoCloseable {
+
+        private final Pooled pooled;
+        private boolean closed;
+
+        private Lease(Pooled pooled) {
+            this.pooled = pooled;
+        }
+
+        /** @return the session, connected, past EHLO, STARTTLS and AUTH */
+        public SmartClient getClient() {
+            return pooled.client;
+        }
+
+        /**
+         * Returns the session to the pool, or quits it if it cannot be
+         * reused. Calling this more than once has no effect.
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                returnToPool(pooled);
+            }
+        }
+    }
+
+    /**
+     * The server a session is for, along with what the session does before
+     * it is used: STARTTLS and AUTH PLAIN. Sessions are only shared between
+     * equal destinations.
+     */
+    public static final class Destination {
+
+        private final String host;
+        private final int port;
+        private final boolean startTls;
+        private final Optional<String> user;
+        private final Optional<String> password;
+
+        private Destination(String host, int port, boolean startTls, Optional<String> user,
+                Optional<String> password) {
+            this.host = host;
+            this.port = port;
+            this.startTls = startTls;
+            this.user = user;
+            this.password = password;
+        }
+
+        public static Destination of(String host, int port) {
+            Preconditions.checkNotNull(host, "host cannot be null");
+            Preconditions.checkArgument(port > 0 && port <= 65535, "port out of range");
+            return new Destination(host, port, false, Optional.empty(), Optional.empty());
+        }
+
+        /** @return this destination, upgrading sessions with STARTTLS first */
+        public Destination withStartTls() {
+            return new Destination(host, port, true, user, password);
+        }
+
+        /** @return this destination, authenticating sessions with AUTH PLAIN */
+        public Destination withCredentials(String user, String password) {
+            Preconditions.checkNotNull(user, "user cannot be null");
+            Preconditions.checkNotNull(password, "password cannot be null");
+            return new Destination(host, port, startTls, Optional.of(user), Optional.of(password));
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public boolean isStartTls() {
+            return startTls;
+        }
+
+        public Optional<String> getUser() {
+            return user;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Destination)) {
+                return false;
+            }
+            Destination d = (Destination) o;
+            return port == d.port && startTls == d.startTls && host.equalsIgnoreCase(d.host) && user.equals(d.user)
+                    && password.equals(d.password);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(host.toLowerCase(Locale.ENGLISH), port, startTls, user, password);
+        }
+
+        @Override
+        public String toString() {
+            // never the password
+            return (user.isPresent() ? user.get() + "@" : "") + host + ":" + port + (startTls ? " (STARTTLS)" : "");
+        }
+    }
+
+    private static final class Pooled {
+        final Destination destination;
+        final SmartClient client;
+        long lastUsed = System.nanoTime();
+
+        Pooled(Destination destination, SmartClient client) {
+            this.destination = destination;
+            this.client = client;
+        }
+    }
+
+    /** The sessions to one destination */
+    private static final class Slots {
+        /** Idle sessions, the most recently used first */
+        final Deque<Pooled> idle = new ArrayDeque<>();
+        final Condition released;
+        /** Sessions open or being opened, leased or idle */
+        int open;
+
+        Slots(Condition released) {
+            this.released = released;
+        }
+    }
+
+    public static final class Builder {
+
+        private final String heloHost;
+        private Optional<SSLSocketFactory> sslSocketFactory = Optional.empty();
+        private Optional<SSLContext> sslContext = Optional.empty();
+        private int tlsSessionCacheSize = -1;
+        private int tlsSessionTimeoutSeconds;
+        private int maxConnectionsPerDestination = 4;
+        private int maxMessagesPerConnection = 100;
+        private long maxIdleNanos = TimeUnit.SECONDS.toNanos(30);
+        private long healthCheckNanos = TimeUnit.SECONDS.toNanos(5);
+        private long acquireTimeoutNanos = TimeUnit.MINUTES.toNanos(1);
+
+        private Builder(String heloHost) {
+            Preconditions.checkNotNull(heloHost, "heloHost cannot be null");
+            this.heloHost = heloHost;
+        }
+
+        /** Sets the factory used for STARTTLS, the system default otherwise */
+        public Builder sslSocketFactory(SSLSocketFactory sslSocketFactory) {
+            Preconditions.checkNotNull(sslSocketFactory, "sslSocketFactory cannot be null");
+            this.sslSocketFactory = Optional.of(sslSocketFactory);
+            this.sslContext = Optional.empty();
+            return this;
+        }
+
+        /**
+         * Sets the context used for STARTTLS. Its client session cache lets a
+         * new session to a server resume the TLS session of an earlier one.
+         */
+        public Builder sslContext(SSLContext sslContext) {
+            Preconditions.checkNotNull(sslContext, "sslContext cannot be null");
+            this.sslContext = Optional.of(sslContext);
+            this.sslSocketFactory = Optional.empty();
+            return this;
+        }
+
+        /**
+         * Sets how many TLS sessions are cached for resumption and for how
+         * long, on the context set with {@link #sslContext(SSLContext)} or
+         * else on a context of the pool's own with the default key and trust
+         * managers. Cannot be combined with
+         * {@link #sslSocketFactory(SSLSocketFactory)}. Whether TLS 1.3 and
+         * RFC 5077 session tickets are used is decided for the whole JVM by
+         * the {@code jdk.tls.client.enableSessionTicketExtension} system
+         * property.
+         *
+         * @param size
+         *            the most sessions cached, 0 for no limit
+         */
+        public Builder tlsSessionCache(int size, long timeout, TimeUnit unit) {
+            Preconditions.checkArgument(size >= 0, "size cannot be negative");
+            Preconditions.checkArgument(timeout > 0, "timeout must be positive");
+            this.tlsSessionCacheSize = size;
+            this.tlsSessionTimeoutSeconds = (int) Math.min(Integer.MAX_VALUE, Math.max(1, unit.toSeconds(timeout)));
+            return this;
+        }
+
+        /** Sets the most sessions open to one destination, 4 by default */
+        public Builder maxConnectionsPerDestination(int max) {
+            Preconditions.checkArgument(max > 0, "max must be positive");
+            this.maxConnectionsPerDestination = max;
+            return this;
+        }
+
+        /**
+         * Sets the most messages sent over one session before it is quit, 100
+         * by default.
+         */
+        public Builder maxMessagesPerConnection(int max) {
+            Preconditions.checkArgument(max > 0, "max must be positive");
+            this.maxMessagesPerConnection = max;
+            return this;
+        }
+
+        /** Sets how long a session may stay idle before it is quit, 30 s by default */
+        public Builder maxIdleTime(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration > 0, "duration must be positive");
+            this.maxIdleNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Sets how long a session may stay idle before it is checked with NOOP
+         * when it is acquired, 5 s by default. 0 checks every time.
+         */
+        public Builder healthCheckAfterIdle(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "duration cannot be negative");
+            this.healthCheckNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Sets how long {@link SmartClientPool#acquire(Destination)} waits for
+         * a session when the maximum are busy, 1 minute by default.
+         */
+        public Builder acquireTimeout(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "duration cannot be negative");
+            this.acquireTimeoutNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public SmartClientPool build() {
+            Preconditions.checkArgument(tlsSessionCacheSize < 0 || !sslSocketFactory.isPresent(),
+                    "the session cache of an sslSocketFactory cannot be configured, set an sslContext");
+            return new SmartClientPool(this);
+        }
+
+        private Optional<SSLSocketFactory> socketFactory() {
+            if (tlsSessionCacheSize < 0) {
+                return sslContext.isPresent() ? Optional.of(sslContext.get().getSocketFactory()) : sslSocketFactory;
+            }
+            SSLContext context = sslContext.orElseGet(Builder::defaultContext);
+            SSLSessionContext sessions = context.getClientSessionContext();
+            sessions.setSessionCacheSize(tlsSessionCacheSize);
+            sessions.setSessionTimeout(tlsSessionTimeoutSeconds);
+            return Optional.of(context.getSocketFactory());
+        }
+
+        private static SSLContext defaultContext() {
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+                return context;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Cannot create a TLS context", e);
+            }
+        }
+    }
+}
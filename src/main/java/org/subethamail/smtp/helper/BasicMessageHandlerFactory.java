@@ -1,30 +1,117 @@
 package org.subethamail.smtp.helper;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
 
 import org.subethamail.smtp.MessageContext;
 import org.subethamail.smtp.MessageHandler;
 import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.PoolStats;
 import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.internal.io.BufferPool;
+import org.subethamail.smtp.internal.io.SegmentedByteArrayOutputStream;
 
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Reads each message into memory and hands it to a listener once it has
+ * arrived. The message is read into a list of chunks rather than a doubling
+ * array; when the client declared the message size (RFC 1870) and it is
+ * within the limit, the first chunk is sized to hold the whole message.
+ */
 public class BasicMessageHandlerFactory implements MessageHandlerFactory {
 
+    /** Largest message that fits in the byte array handed to the listener */
+    private static final int MAX_BUFFERED_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * Largest buffer allocated up front for a declared message size, so a
+     * client cannot make the server allocate much memory just by declaring a
+     * large size. Larger messages grow further segments as data arrives.
+     */
+    private static final int MAX_PRESIZED_SIZE = 1024 * 1024;
+
+    /** Room left in a presized buffer for the Received header */
+    private static final int RECEIVED_HEADER_ALLOWANCE = 1024;
+
+    /** Default size of the pooled chunks */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
     private final BasicMessageListener listener;
-    private final int maxMessageSize;
+    private final ChunkedMessageListener chunkedListener;
+    private final long maxMessageSize;
+
+    /** The pool of chunks of a pooled factory, or null */
+    private final BufferPool chunkPool;
 
-    public BasicMessageHandlerFactory(BasicMessageListener listener, int maxMessageSize) {
+    public BasicMessageHandlerFactory(BasicMessageListener listener, long maxMessageSize) {
+        this(listener, null, maxMessageSize, null);
+    }
+
+    private BasicMessageHandlerFactory(BasicMessageListener listener, ChunkedMessageListener chunkedListener,
+            long maxMessageSize, BufferPool chunkPool) {
         this.listener = listener;
+        this.chunkedListener = chunkedListener;
         this.maxMessageSize = maxMessageSize;
+        this.chunkPool = chunkPool;
+    }
+
+    /**
+     * Returns a factory which hands the listener the chunks the message was
+     * read into, without copying them into one array. The chunks belong to
+     * the listener once it is called.
+     *
+     * @param maxMessageSize
+     *            the largest message accepted, 0 for no limit
+     */
+    public static BasicMessageHandlerFactory chunked(ChunkedMessageListener listener, long maxMessageSize) {
+        Preconditions.checkNotNull(listener);
+        return new BasicMessageHandlerFactory(null, listener, maxMessageSize, null);
+    }
+
+    /**
+     * Returns a factory which reads messages into fixed size chunks borrowed
+     * from a pool, and hands them back to the pool when the listener returns,
+     * so a busy server reuses the same memory for every message.
+     *
+     * @param maxMessageSize
+     *            the largest message accepted, 0 for no limit
+     * @param chunkSize
+     *            size of each chunk in bytes
+     * @param poolCapacity
+     *            maximum number of idle chunks retained
+     */
+    public static BasicMessageHandlerFactory pooled(ChunkedMessageListener listener, long maxMessageSize,
+            int chunkSize, int poolCapacity) {
+        Preconditions.checkNotNull(listener);
+        return new BasicMessageHandlerFactory(null, listener, maxMessageSize,
+                BufferPool.heap(chunkSize, poolCapacity));
     }
 
     @Override
     public MessageHandler create(MessageContext context) {
+        if (chunkedListener != null) {
+            return new ChunkedMessageHandler(context, chunkedListener, maxMessageSize, chunkPool);
+        }
         return new BasicMessageHandler(context, listener, maxMessageSize);
     }
 
+    /**
+     * @return the counters of the pool of chunks of a {@link #pooled}
+     *         factory, which show how well chunks are reused, or empty for
+     *         another factory
+     */
+    public Optional<PoolStats> getChunkStats() {
+        return Optional.ofNullable(chunkPool);
+    }
+
     public static class BasicMessageHandler implements MessageHandler {
 
         private final BasicMessageListener listener;
@@ -33,10 +120,10 @@ public class BasicMessageHandlerFactory implements MessageHandlerFactory {
         private String recipient;
 
         private final MessageContext context;
-        private final int maxMessageSize;
+        private final long maxMessageSize;
 
 
-        public BasicMessageHandler(MessageContext context, BasicMessageListener listener, int maxMessageSize) {
+        public BasicMessageHandler(MessageContext context, BasicMessageListener listener, long maxMessageSize) {
             this.context = context;
             this.listener = listener;
             this.maxMessageSize = maxMessageSize;
@@ -74,30 +161,150 @@ public class BasicMessageHandlerFactory implements MessageHandlerFactory {
             }
         }
 
-        private static byte[] readAndClose(InputStream is, int maxMessageSize)
-                throws IOException, TooMuchDataException {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-            byte[] buffer = new byte[8192];
-            int n;
+        private byte[] readAndClose(InputStream is, long maxMessageSize) throws IOException, TooMuchDataException {
+            return read(is, context, maxMessageSize).toByteArray();
+        }
+
+        @Override
+        public void done() {
+            // do nothing
+        }
+
+    }
+
+    /**
+     * Reads and closes the stream, presizing the first chunk from the
+     * declared message size when a size limit is set and the declared size is
+     * within it. Without a limit the declared size is not trusted.
+     */
+    static SegmentedByteArrayOutputStream read(InputStream is, MessageContext context, long maxMessageSize)
+            throws IOException, TooMuchDataException {
+        long declared = context == null ? 0 : context.getDeclaredMessageSize();
+        int firstChunkSize = SegmentedByteArrayOutputStream.DEFAULT_FIRST_SEGMENT_SIZE;
+        if (declared > 0 && maxMessageSize > 0 && declared <= maxMessageSize) {
+            firstChunkSize = (int) Math.min(declared + RECEIVED_HEADER_ALLOWANCE, MAX_PRESIZED_SIZE);
+        }
+        SegmentedByteArrayOutputStream bytes = new SegmentedByteArrayOutputStream(firstChunkSize);
+        try {
+            while (bytes.readFrom(is, SegmentedByteArrayOutputStream.DEFAULT_FIRST_SEGMENT_SIZE) != -1) {
+                checkSize(bytes.size(), maxMessageSize);
+            }
+        } finally {
+            // TODO creator of stream should close it, not this method
+            is.close();
+        }
+        return bytes;
+    }
+
+    private static void checkSize(long size, long maxMessageSize) throws TooMuchDataException {
+        if (maxMessageSize > 0 && size > maxMessageSize) {
+            throw new TooMuchDataException("message size exceeded maximum of " + maxMessageSize + "bytes");
+        }
+        if (size > MAX_BUFFERED_SIZE) {
+            // the listener takes a byte array, larger messages
+            // need a MessageHandlerFactory which streams
+            throw new TooMuchDataException(
+                    "message size exceeded maximum of " + MAX_BUFFERED_SIZE + " bytes for in-memory delivery");
+        }
+    }
+
+    static final class ChunkedMessageHandler implements MessageHandler {
+
+        private final ChunkedMessageListener listener;
+        private final MessageContext context;
+        private final long maxMessageSize;
+        private final BufferPool pool;
+
+        private String from;
+        private String recipient;
+
+        ChunkedMessageHandler(MessageContext context, ChunkedMessageListener listener, long maxMessageSize,
+                BufferPool pool) {
+            this.context = context;
+            this.listener = listener;
+            this.maxMessageSize = maxMessageSize;
+            this.pool = pool;
+        }
+
+        @Override
+        public void from(String from) throws RejectException {
+            this.from = from;
+        }
+
+        @Override
+        public void recipient(String recipient) throws RejectException {
+            this.recipient = recipient;
+        }
+
+        @Override
+        public String data(InputStream is) throws RejectException, TooMuchDataException, IOException {
+            if (pool == null) {
+                ByteBuffer[] chunks = read(is, context, maxMessageSize).toByteBuffers();
+                deliver(Collections.unmodifiableList(Arrays.asList(chunks)));
+                return null;
+            }
+            List<ByteBuffer> chunks = new ArrayList<>();
+            try {
+                readPooled(is, chunks);
+                List<ByteBuffer> views = new ArrayList<>(chunks.size());
+                for (ByteBuffer chunk : chunks) {
+                    ByteBuffer view = chunk.duplicate();
+                    view.flip();
+                    if (view.hasRemaining()) {
+                        views.add(view.asReadOnlyBuffer());
+                    }
+                }
+                deliver(Collections.unmodifiableList(views));
+                return null;
+            } finally {
+                for (ByteBuffer chunk : chunks) {
+                    pool.release(chunk);
+                }
+            }
+        }
+
+        private void readPooled(InputStream is, List<ByteBuffer> chunks) throws IOException {
             try {
-                while ((n = is.read(buffer)) != -1) {
-                    bytes.write(buffer, 0, n);
-                    if (maxMessageSize > 0 && bytes.size() > maxMessageSize) {
-                        throw new TooMuchDataException("message size exceeded maximum of " + maxMessageSize + "bytes");
+                long size = 0;
+                ByteBuffer chunk = null;
+                while (true) {
+                    if (chunk == null || !chunk.hasRemaining()) {
+                        chunk = pool.acquire();
+                        chunks.add(chunk);
+                    }
+                    int n = is.read(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                    if (n == -1) {
+                        return;
                     }
+                    chunk.position(chunk.position() + n);
+                    size += n;
+                    checkSize(size, maxMessageSize);
                 }
             } finally {
                 // TODO creator of stream should close it, not this method
                 is.close();
             }
-            return bytes.toByteArray();
+        }
+
+        private void deliver(List<ByteBuffer> data) throws RejectException {
+            try {
+                // must call listener here because if called from done() then
+                // a 250 ok response has already been sent
+                if (from == null) {
+                    throw new RejectException("from not set");
+                }
+                if (recipient == null) {
+                    throw new RejectException("recipient not set");
+                }
+                listener.messageArrived(context, from, recipient, data);
+            } catch (RuntimeException e) {
+                throw new RejectException("message could not be accepted: " + e.getMessage());
+            }
         }
 
         @Override
         public void done() {
             // do nothing
         }
-
     }
-
 }
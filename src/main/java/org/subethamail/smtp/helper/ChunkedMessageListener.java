@@ -0,0 +1,35 @@
+package org.subethamail.smtp.helper;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.RejectException;
+
+/**
+ * Like {@link BasicMessageListener} but the message is handed over as the
+ * chunks it was read into, so it is never copied into one array. Used with
+ * {@link BasicMessageHandlerFactory#chunked} or
+ * {@link BasicMessageHandlerFactory#pooled}.
+ */
+public interface ChunkedMessageListener {
+
+    /**
+     * Process a message that has just arrived. If you throw and you want the caller
+     * to be given the SMTP error response then throw a {@link RejectException}.
+     *
+     * @param from
+     *            source of message
+     * @param to
+     *            destination of message
+     * @param data
+     *            message content, read-only buffers in order. With a pooled
+     *            factory the buffers go back to the pool when this method
+     *            returns, so they must not be used afterwards
+     * @throws RejectException
+     *             when caller to be given an SMTP error response
+     */
+    void messageArrived(MessageContext context, String from, String to, List<ByteBuffer> data)
+            throws RejectException;
+
+}
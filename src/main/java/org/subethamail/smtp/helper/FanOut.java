@@ -0,0 +1,198 @@
+package org.subethamail.smtp.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.internal.io.DeferredFileOutputStream;
+import org.subethamail.smtp.internal.io.SpillFilePool;
+import org.subethamail.smtp.internal.util.SMTPResponseHelper;
+
+/**
+ * Delivers one message to several recipients for the listener adapters. The
+ * message is received once, in bulk, into a {@link DeferredFileOutputStream}
+ * and every delivery reads it in place through its own stream, possibly in
+ * parallel on an {@link Executor}. All deliveries are attempted whatever the
+ * outcome of the others, and their outcomes are combined into the reply.
+ * <p>
+ * There is only one reply to DATA, so a message is accepted only if every
+ * delivery succeeded. Otherwise the client retries or bounces it for every
+ * recipient, and those whose delivery succeeded may receive it twice; a 250
+ * would lose it for the others.
+ */
+final class FanOut {
+
+    private static final Logger log = LoggerFactory.getLogger(FanOut.class);
+
+    /** Runs each delivery in the calling thread, one after the other */
+    static final Executor SEQUENTIAL = Runnable::run;
+
+    private FanOut() {
+        // prevent instantiation
+    }
+
+    /** One recipient of the message. */
+    interface Delivery {
+
+        String getRecipient();
+
+        void deliver(InputStream data) throws TooMuchDataException, IOException;
+    }
+
+    /**
+     * Delivers the message to every recipient.
+     *
+     * @param dataDeferredSize
+     *            the size above which the message is spilled to a file
+     * @param spillFilePool
+     *            provides the file
+     * @param executor
+     *            runs the deliveries, delivering in the calling thread if it
+     *            rejects one
+     * @param perRecipientResponses
+     *            if true and only some deliveries failed, the reply carries
+     *            the most severe of their codes and lists the failed
+     *            recipients, rather than being the first failure
+     * @throws IOException
+     *             (or whatever else a listener threw) the first failure, if
+     *             every delivery failed, or without per recipient responses if
+     *             any delivery failed
+     */
+    static void deliver(InputStream data, List<? extends Delivery> deliveries, long dataDeferredSize,
+            SpillFilePool spillFilePool, Executor executor, boolean perRecipientResponses)
+            throws RejectException, IOException {
+        if (deliveries.size() == 1) {
+            deliveries.get(0).deliver(data);
+            return;
+        }
+        Throwable[] failures = new Throwable[deliveries.size()];
+        try (DeferredFileOutputStream dfos = new DeferredFileOutputStream(dataDeferredSize, spillFilePool)) {
+            dfos.transferFrom(data);
+
+            InputStream[] streams = new InputStream[deliveries.size()];
+            for (int i = 0; i < streams.length; i++) {
+                streams[i] = dfos.getInputStream();
+            }
+            CountDownLatch latch = new CountDownLatch(deliveries.size());
+            for (int i = 0; i < streams.length; i++) {
+                Runnable task = task(deliveries.get(i), streams[i], failures, i, latch);
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    task.run();
+                }
+            }
+            // the temp file must outlive the deliveries reading it
+            awaitUninterruptibly(latch);
+        }
+        combine(deliveries, failures, perRecipientResponses);
+    }
+
+    private static Runnable task(Delivery delivery, InputStream in, Throwable[] failures, int index,
+            CountDownLatch latch) {
+        return () -> {
+            try (InputStream stream = in) {
+                delivery.deliver(stream);
+            } catch (Throwable e) {
+                failures[index] = e;
+            } finally {
+                latch.countDown();
+            }
+        };
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void combine(List<? extends Delivery> deliveries, Throwable[] failures,
+            boolean perRecipientResponses) throws RejectException, IOException {
+        Throwable first = null;
+        int failed = 0;
+        for (int i = 0; i < failures.length; i++) {
+            if (failures[i] != null) {
+                log.debug("Delivery to <{}> failed", deliveries.get(i).getRecipient(), failures[i]);
+                if (first == null) {
+                    first = failures[i];
+                }
+                failed++;
+            }
+        }
+        if (first == null) {
+            return;
+        }
+        if (!perRecipientResponses || failed == failures.length) {
+            rethrow(first);
+        }
+        int code = 0;
+        StringBuilder b = new StringBuilder();
+        b.append("Delivery failed for ").append(failed).append(" of ").append(failures.length)
+                .append(" recipients");
+        for (int i = 0; i < failures.length; i++) {
+            if (failures[i] != null) {
+                RejectException e = describe(failures[i]);
+                // a permanent failure outranks a transient one
+                code = Math.max(code, e.getCode());
+                b.append('\n').append('<').append(deliveries.get(i).getRecipient()).append("> ")
+                        .append(e.getErrorResponse());
+            }
+        }
+        throw new MultilineRejectException(code, b.toString());
+    }
+
+    private static RejectException describe(Throwable e) {
+        if (e instanceof RejectException) {
+            return (RejectException) e;
+        } else if (e instanceof TooMuchDataException) {
+            return new RejectException(552, "Too much mail data");
+        } else {
+            return new RejectException(451, "Requested action aborted: local error in processing");
+        }
+    }
+
+    /** A rejection whose message spans several reply lines */
+    @SuppressWarnings("serial")
+    private static final class MultilineRejectException extends RejectException {
+
+        MultilineRejectException(int code, String message) {
+            super(code, message);
+        }
+
+        @Override
+        public String getErrorResponse() {
+            return SMTPResponseHelper.buildResponse(getCode(), getMessage());
+        }
+    }
+
+    private static void rethrow(Throwable e) throws RejectException, IOException {
+        if (e instanceof RejectException) {
+            throw (RejectException) e;
+        } else if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else {
+            throw new IOException(e);
+        }
+    }
+}
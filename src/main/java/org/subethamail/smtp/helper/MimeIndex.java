@@ -0,0 +1,262 @@
+package org.subethamail.smtp.helper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.subethamail.smtp.MessageHeaders;
+
+/**
+ * The MIME structure of a message as recorded by a
+ * {@link MimeIndexingInputStream}: every part with its header fields and the
+ * offsets of its header block and body in the message. Offsets count from the
+ * first byte of the stream that was indexed, so if the message was also
+ * written to a file or kept in a buffer the body of any part can be read from
+ * there directly, without parsing the message again.
+ * <p>
+ * Parts are listed in the order they start in the message, the message itself
+ * first. Bodies are kept in their transfer encoding.
+ */
+public final class MimeIndex {
+
+    private final List<Part> parts;
+    private final boolean truncated;
+
+    MimeIndex(List<Part> parts, boolean truncated) {
+        this.parts = Collections.unmodifiableList(parts);
+        this.truncated = truncated;
+    }
+
+    /** @return all parts, the message itself first */
+    public List<Part> getParts() {
+        return parts;
+    }
+
+    /** @return the message itself */
+    public Part getRoot() {
+        return parts.get(0);
+    }
+
+    /**
+     * Returns the parts which are not multiparts, the ones holding content.
+     */
+    public List<Part> getLeaves() {
+        List<Part> leaves = new ArrayList<>();
+        for (Part p : parts) {
+            if (!p.isMultipart()) {
+                leaves.add(p);
+            }
+        }
+        return leaves;
+    }
+
+    /**
+     * Returns true if the message had more parts than the indexer records, so
+     * some parts are missing from the index.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public String toString() {
+        return "MimeIndex[parts=" + parts + ", truncated=" + truncated + "]";
+    }
+
+    /**
+     * One part of the message.
+     */
+    public static final class Part {
+        private final int index;
+        private final int parent;
+        private final int depth;
+        private final MessageHeaders headers;
+        private final long headerOffset;
+        private final long bodyOffset;
+        private final long endOffset;
+        private final String defaultMediaType;
+
+        Part(int index, int parent, int depth, MessageHeaders headers, long headerOffset, long bodyOffset,
+                long endOffset, String defaultMediaType) {
+            this.index = index;
+            this.parent = parent;
+            this.depth = depth;
+            this.headers = headers;
+            this.headerOffset = headerOffset;
+            this.bodyOffset = bodyOffset;
+            this.endOffset = endOffset;
+            this.defaultMediaType = defaultMediaType;
+        }
+
+        /** @return the position of this part in {@link MimeIndex#getParts()} */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the index of the multipart this part belongs to, or -1 for
+         *         the message itself
+         */
+        public int getParent() {
+            return parent;
+        }
+
+        /** @return the nesting depth, 0 for the message itself */
+        public int getDepth() {
+            return depth;
+        }
+
+        /** @return the header fields of this part */
+        public MessageHeaders getHeaders() {
+            return headers;
+        }
+
+        /** @return the offset of the first header field */
+        public long getHeaderOffset() {
+            return headerOffset;
+        }
+
+        /** @return the offset of the body, just after the empty line */
+        public long getBodyOffset() {
+            return bodyOffset;
+        }
+
+        /**
+         * @return the offset just past the body, which excludes the line break
+         *         before the next boundary
+         */
+        public long getEndOffset() {
+            return endOffset;
+        }
+
+        /** @return the size of the body in bytes */
+        public long getBodySize() {
+            return endOffset - bodyOffset;
+        }
+
+        /**
+         * Returns the media type in lower case, without parameters. Defaults
+         * to text/plain, or to message/rfc822 within a multipart/digest.
+         */
+        public String getMediaType() {
+            String contentType = headers.get("Content-Type");
+            if (contentType != null) {
+                int semicolon = contentType.indexOf(';');
+                String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim();
+                if (type.indexOf('/') > 0) {
+                    return type.toLowerCase(Locale.ROOT);
+                }
+            }
+            return defaultMediaType;
+        }
+
+        /**
+         * @return the Content-Transfer-Encoding in lower case, 7bit if there
+         *         is none
+         */
+        public String getTransferEncoding() {
+            String encoding = headers.get("Content-Transfer-Encoding");
+            return encoding == null || encoding.isEmpty() ? "7bit" : encoding.toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * Returns the file name from the Content-Disposition filename parameter
+         * or else the Content-Type name parameter, or null.
+         */
+        public String getFilename() {
+            String name = parameter(headers.get("Content-Disposition"), "filename");
+            return name != null ? name : parameter(headers.get("Content-Type"), "name");
+        }
+
+        /** @return true for multipart types, whose body holds other parts */
+        public boolean isMultipart() {
+            return getMediaType().startsWith("multipart/");
+        }
+
+        /**
+         * Returns a read-only view of the body within the whole message. A
+         * buffer holds at most 2 GB, so a part ending beyond that can only be
+         * read with {@link #map(FileChannel)}.
+         *
+         * @param message
+         *            the message, from its first byte at position 0
+         * @throws ArithmeticException
+         *             if the part ends beyond {@code Integer.MAX_VALUE}
+         */
+        public ByteBuffer slice(ByteBuffer message) {
+            ByteBuffer b = message.duplicate();
+            b.limit(Math.toIntExact(endOffset));
+            b.position(Math.toIntExact(bodyOffset));
+            return b.slice().asReadOnlyBuffer();
+        }
+
+        /**
+         * Maps the body from a file holding the message.
+         *
+         * @param channel
+         *            the file, whose first byte is the first byte of the
+         *            message
+         */
+        public MappedByteBuffer map(FileChannel channel) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, bodyOffset, getBodySize());
+        }
+
+        @Override
+        public String toString() {
+            return "Part[index=" + index + ", parent=" + parent + ", type=" + getMediaType() + ", encoding="
+                    + getTransferEncoding() + ", headerOffset=" + headerOffset + ", bodyOffset=" + bodyOffset
+                    + ", endOffset=" + endOffset + "]";
+        }
+    }
+
+    /**
+     * Returns the value of a parameter of a structured header field like
+     * Content-Type, without quotes, or null.
+     */
+    static String parameter(String value, String name) {
+        if (value == null) {
+            return null;
+        }
+        int i = value.indexOf(';');
+        while (i >= 0 && i < value.length()) {
+            int start = i + 1;
+            int eq = value.indexOf('=', start);
+            if (eq < 0) {
+                return null;
+            }
+            String key = value.substring(start, eq).trim();
+            int j = eq + 1;
+            while (j < value.length() && Character.isWhitespace(value.charAt(j))) {
+                j++;
+            }
+            String v;
+            if (j < value.length() && value.charAt(j) == '"') {
+                StringBuilder s = new StringBuilder();
+                j++;
+                while (j < value.length() && value.charAt(j) != '"') {
+                    char c = value.charAt(j);
+                    if (c == '\\' && j + 1 < value.length()) {
+                        c = value.charAt(++j);
+                    }
+                    s.append(c);
+                    j++;
+                }
+                v = s.toString();
+                i = value.indexOf(';', j);
+            } else {
+                int end = value.indexOf(';', j);
+                v = (end < 0 ? value.substring(j) : value.substring(j, end)).trim();
+                i = end;
+            }
+            if (key.equalsIgnoreCase(name)) {
+                return v;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,349 @@
+package org.subethamail.smtp.helper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.subethamail.smtp.MessageHeaders;
+
+/**
+ * Passes a message through unchanged while recording its MIME structure,
+ * so that a handler storing the message gets a {@link MimeIndex} of it for
+ * free, without a second parse. For example, a handler spooling the data to
+ * a file can wrap the stream it is given:
+ *
+ * <pre>
+ * MimeIndexingInputStream in = new MimeIndexingInputStream(data);
+ * Files.copy(in, file);
+ * MimeIndex index = in.getIndex();
+ * </pre>
+ *
+ * and later map any attachment straight from the file with
+ * {@link MimeIndex.Part#map}.
+ * <p>
+ * The scan works line by line on the bytes as they are read. It follows
+ * nested multiparts by their boundaries, RFC 2046 style, but does not look
+ * inside message/rfc822 parts. Header blocks larger than
+ * {@link #MAX_PART_HEADER_SIZE} are truncated, multiparts nested deeper than
+ * {@link #MAX_DEPTH} are not looked into, and parts after the first
+ * {@link #MAX_PARTS} are not recorded.
+ */
+public final class MimeIndexingInputStream extends FilterInputStream {
+
+    public static final int MAX_PART_HEADER_SIZE = 16 * 1024;
+
+    public static final int MAX_DEPTH = 32;
+
+    public static final int MAX_PARTS = 10_000;
+
+    /** Longer lines can be neither boundaries nor kept in full as headers */
+    private static final int MAX_LINE_LENGTH = 1000;
+
+    private final List<MimeIndex.Part> parts = new ArrayList<>();
+
+    /** The parts whose end has not been seen, the innermost last */
+    private final List<OpenPart> open = new ArrayList<>();
+
+    private int partCount;
+    private boolean truncated;
+
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private int lineLength;
+    private boolean lineOverflow;
+    private boolean pendingCr;
+
+    /** Offset of the next byte read */
+    private long offset;
+
+    /** Offset of the start of the current line */
+    private long lineStart;
+
+    /** Length of the line break ending the previous line */
+    private int previousBreak;
+
+    private MimeIndex index;
+
+    public MimeIndexingInputStream(InputStream in) {
+        super(in);
+        open.add(new OpenPart(partCount++, -1, 0, 0, "text/plain"));
+    }
+
+    /**
+     * Returns the index, once the stream has been read to its end.
+     *
+     * @throws IllegalStateException
+     *             if the end of the stream has not been reached
+     */
+    public MimeIndex getIndex() {
+        if (index == null) {
+            throw new IllegalStateException("the stream has not been read to its end");
+        }
+        return index;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b < 0) {
+            finish();
+        } else {
+            scan((byte) b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n < 0) {
+            finish();
+        } else {
+            for (int i = off; i < off + n; i++) {
+                scan(b[i]);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // every byte has to be scanned
+        byte[] buf = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int k = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+            if (k < 0) {
+                break;
+            }
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        // not supported
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    private void scan(byte b) {
+        offset++;
+        if (b == '\n') {
+            endLine(pendingCr ? 2 : 1);
+            return;
+        }
+        if (pendingCr) {
+            // a bare CR is kept as part of the line
+            append((byte) '\r');
+            pendingCr = false;
+        }
+        if (b == '\r') {
+            pendingCr = true;
+        } else {
+            append(b);
+        }
+    }
+
+    private void append(byte b) {
+        if (lineLength < line.length) {
+            line[lineLength++] = b;
+        } else {
+            lineOverflow = true;
+        }
+    }
+
+    private void endLine(int breakLength) {
+        line(breakLength);
+        lineStart = offset;
+        lineLength = 0;
+        lineOverflow = false;
+        pendingCr = false;
+        previousBreak = breakLength;
+    }
+
+    private void line(int breakLength) {
+        OpenPart current = open.get(open.size() - 1);
+        if (!current.inBody) {
+            if (lineLength == 0 && !lineOverflow) {
+                current.endHeaders(offset, open.size() - 1);
+            } else {
+                current.appendHeader(line, lineLength, breakLength);
+            }
+            return;
+        }
+        if (lineOverflow || lineLength < 3 || line[0] != '-' || line[1] != '-') {
+            return;
+        }
+        for (int k = open.size() - 1; k >= 0; k--) {
+            OpenPart p = open.get(k);
+            if (p.boundary == null) {
+                continue;
+            }
+            int match = matchBoundary(p.boundary);
+            if (match == NO_MATCH) {
+                continue;
+            }
+            // the line break before the boundary belongs to the boundary
+            long end = lineStart - previousBreak;
+            while (open.size() > k + 1) {
+                close(open.remove(open.size() - 1), end);
+            }
+            if (match == CLOSE_DELIMITER) {
+                // what follows is the epilogue of the multipart
+                p.boundary = null;
+            } else if (partCount < MAX_PARTS) {
+                open.add(new OpenPart(partCount++, p.index, p.depth + 1, offset,
+                        p.mediaType.equals("multipart/digest") ? "message/rfc822" : "text/plain"));
+            } else {
+                truncated = true;
+                // the part is not recorded, its content becomes part of the multipart
+            }
+            return;
+        }
+    }
+
+    private static final int NO_MATCH = 0;
+    private static final int DELIMITER = 1;
+    private static final int CLOSE_DELIMITER = 2;
+
+    private int matchBoundary(byte[] boundary) {
+        int n = 2 + boundary.length;
+        if (lineLength < n) {
+            return NO_MATCH;
+        }
+        for (int i = 0; i < boundary.length; i++) {
+            if (line[2 + i] != boundary[i]) {
+                return NO_MATCH;
+            }
+        }
+        int result = DELIMITER;
+        if (lineLength >= n + 2 && line[n] == '-' && line[n + 1] == '-') {
+            result = CLOSE_DELIMITER;
+            n += 2;
+        }
+        // transport padding
+        for (int i = n; i < lineLength; i++) {
+            if (line[i] != ' ' && line[i] != '\t') {
+                return NO_MATCH;
+            }
+        }
+        return result;
+    }
+
+    private void close(OpenPart p, long end) {
+        if (!p.inBody) {
+            // the header block never ended
+            p.endHeaders(end, -1);
+        }
+        p.bodyEnd = Math.max(p.bodyOffset, end);
+        parts.add(p.toPart());
+    }
+
+    private void finish() {
+        if (index != null) {
+            return;
+        }
+        if (lineLength > 0 || pendingCr) {
+            // a last line without a line break
+            if (pendingCr) {
+                append((byte) '\r');
+                pendingCr = false;
+            }
+            line(0);
+        }
+        while (!open.isEmpty()) {
+            close(open.remove(open.size() - 1), offset);
+        }
+        parts.sort((a, b) -> Integer.compare(a.getIndex(), b.getIndex()));
+        index = new MimeIndex(new ArrayList<>(parts), truncated);
+    }
+
+    private static final class OpenPart {
+        final int index;
+        final int parent;
+        final int depth;
+        final long headerOffset;
+        final String defaultMediaType;
+
+        byte[] header = new byte[256];
+        int headerLength;
+        boolean headerTruncated;
+
+        boolean inBody;
+        long bodyOffset;
+        long bodyEnd;
+        MessageHeaders headers;
+        String mediaType = "";
+
+        /** Set while the part is a multipart whose closing delimiter is to come */
+        byte[] boundary;
+
+        OpenPart(int index, int parent, int depth, long headerOffset, String defaultMediaType) {
+            this.index = index;
+            this.parent = parent;
+            this.depth = depth;
+            this.headerOffset = headerOffset;
+            this.defaultMediaType = defaultMediaType;
+        }
+
+        void appendHeader(byte[] line, int length, int breakLength) {
+            int n = length + breakLength;
+            if (headerTruncated || headerLength + n > MAX_PART_HEADER_SIZE) {
+                headerTruncated = true;
+                return;
+            }
+            if (headerLength + n > header.length) {
+                header = Arrays.copyOf(header, Math.min(MAX_PART_HEADER_SIZE, Math.max(header.length * 2,
+                        headerLength + n)));
+            }
+            System.arraycopy(line, 0, header, headerLength, length);
+            headerLength += length;
+            if (breakLength == 2) {
+                header[headerLength++] = '\r';
+            }
+            if (breakLength >= 1) {
+                header[headerLength++] = '\n';
+            }
+        }
+
+        /**
+         * @param openDepth
+         *            the position of this part among the open parts, -1 if it
+         *            is being closed
+         */
+        void endHeaders(long bodyOffset, int openDepth) {
+            this.inBody = true;
+            this.bodyOffset = bodyOffset;
+            this.headers = MessageHeaders.of(ByteBuffer.wrap(Arrays.copyOf(header, headerLength)),
+                    headerTruncated);
+            this.header = null;
+            MimeIndex.Part p = toPart();
+            this.mediaType = p.getMediaType();
+            if (openDepth >= 0 && openDepth < MAX_DEPTH && p.isMultipart()) {
+                String b = MimeIndex.parameter(headers.get("Content-Type"), "boundary");
+                if (b != null && !b.isEmpty() && b.length() <= MAX_LINE_LENGTH - 4) {
+                    this.boundary = b.getBytes(StandardCharsets.US_ASCII);
+                }
+            }
+        }
+
+        MimeIndex.Part toPart() {
+            return new MimeIndex.Part(index, parent, depth, headers, headerOffset, bodyOffset, bodyEnd,
+                    defaultMediaType);
+        }
+    }
+}
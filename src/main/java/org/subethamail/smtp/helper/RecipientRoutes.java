@@ -0,0 +1,346 @@
+package org.subethamail.smtp.helper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * An immutable table which narrows the listeners of
+ * {@link SimpleMessageListenerAdapter} and {@link SmarterMessageListenerAdapter}
+ * down to those that may want a recipient, so that a RCPT does not have to ask
+ * every listener.
+ * <p>
+ * Listeners are registered for
+ * <ul>
+ * <li>an exact address, {@code postmaster@example.com},</li>
+ * <li>a domain, {@code example.com},</li>
+ * <li>the subdomains of a domain, {@code *.example.com} (which does not match
+ * {@code example.com} itself), or every domain, {@code *},</li>
+ * <li>or as a fallback, for listeners which cannot be indexed and are offered
+ * every recipient.</li>
+ * </ul>
+ * Domains are kept in a trie of their labels, rightmost label first, so a
+ * lookup walks the labels of the recipient domain once and costs O(number of
+ * labels) regardless of how many domains are routed. The candidate list of
+ * every trie node is computed when the table is built, so a lookup does not
+ * allocate unless exact addresses are routed and the recipient domain has
+ * upper case letters.
+ * <p>
+ * The candidates are ordered most specific first: exact address, domain,
+ * subdomain wildcards from the longest to the shortest, fallback. A listener
+ * appears at most once. The adapters still call {@code accept} on every
+ * candidate, the table only saves the calls that could not succeed.
+ * <p>
+ * Domains and the domain part of addresses are compared case insensitively,
+ * the local part of addresses case sensitively (RFC 5321 section 2.4). To
+ * change the routes at runtime build a new table and hand it to the adapter,
+ * which swaps it atomically.
+ *
+ * @param <T>
+ *            the listener type
+ */
+public final class RecipientRoutes<T> {
+
+    private final Node<T> root;
+    private final Map<String, List<T>> byAddress;
+
+    private RecipientRoutes(Node<T> root, Map<String, List<T>> byAddress) {
+        this.root = root;
+        this.byAddress = byAddress;
+    }
+
+    /**
+     * Returns a table which offers every recipient to all the listeners, in
+     * iteration order, which is how the adapters behaved before routing.
+     */
+    public static <T> RecipientRoutes<T> of(Collection<? extends T> listeners) {
+        Builder<T> b = builder();
+        for (T listener : listeners) {
+            b.fallback(listener);
+        }
+        return b.build();
+    }
+
+    public static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * Returns the listeners which may accept the recipient.
+     *
+     * @param recipient
+     *            the forward-path mailbox, e.g. {@code john@example.com}
+     * @return the candidates, most specific first, never null
+     */
+    public List<T> candidates(String recipient) {
+        if (!byAddress.isEmpty()) {
+            List<T> list = byAddress.get(normalizeAddress(recipient));
+            if (list != null) {
+                return list;
+            }
+        }
+        int at = recipient.lastIndexOf('@');
+        if (at < 0) {
+            // no domain to route on, e.g. the special "postmaster"
+            return root.below;
+        }
+        return root.lookup(recipient, at + 1, domainEnd(recipient, at + 1));
+    }
+
+    /** @return the end of the domain without a trailing root dot */
+    private static int domainEnd(String s, int start) {
+        int end = s.length();
+        if (end > start && s.charAt(end - 1) == '.') {
+            end--;
+        }
+        return end;
+    }
+
+    /** Lower cases the domain part, allocating only if it is not already. */
+    private static String normalizeAddress(String address) {
+        int at = address.lastIndexOf('@');
+        if (at < 0) {
+            return address;
+        }
+        int end = domainEnd(address, at + 1);
+        for (int i = at + 1; i < end; i++) {
+            char c = address.charAt(i);
+            if (fold(c) != c) {
+                return address.substring(0, at + 1) + address.substring(at + 1, end).toLowerCase(Locale.ROOT);
+            }
+        }
+        return end == address.length() ? address : address.substring(0, end);
+    }
+
+    /**
+     * Folds a character the way {@link String#regionMatches(boolean, int,
+     * String, int, int)} compares it when ignoring case, so equal labels hash
+     * alike.
+     */
+    private static char fold(char c) {
+        if (c < 0x80) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + fold(s.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    public static final class Builder<T> {
+
+        private final Map<String, List<T>> addresses = new LinkedHashMap<>();
+        private final MutableNode<T> root = new MutableNode<>();
+        private final List<T> fallback = new ArrayList<>();
+
+        Builder() {
+        }
+
+        /**
+         * Routes an exact recipient address to the listener.
+         */
+        public Builder<T> address(String address, T listener) {
+            Preconditions.checkNotNull(address);
+            Preconditions.checkNotNull(listener);
+            Preconditions.checkArgument(address.indexOf('@') > 0, "address must contain a local part and a domain");
+            addresses.computeIfAbsent(normalizeAddress(address), k -> new ArrayList<>()).add(listener);
+            return this;
+        }
+
+        /**
+         * Routes a domain to the listener.
+         *
+         * @param pattern
+         *            a domain ({@code example.com}), the subdomains of a domain
+         *            ({@code *.example.com}) or any domain ({@code *})
+         */
+        public Builder<T> domain(String pattern, T listener) {
+            Preconditions.checkNotNull(pattern);
+            Preconditions.checkNotNull(listener);
+            if (pattern.equals("*")) {
+                root.wildcard.add(listener);
+                return this;
+            }
+            boolean wildcard = pattern.startsWith("*.");
+            String domain = wildcard ? pattern.substring(2) : pattern;
+            if (domain.endsWith(".")) {
+                domain = domain.substring(0, domain.length() - 1);
+            }
+            Preconditions.checkArgument(!domain.isEmpty() && domain.indexOf('*') < 0 && domain.indexOf('@') < 0,
+                    "invalid domain pattern: " + pattern);
+            MutableNode<T> node = root;
+            int end = domain.length();
+            while (true) {
+                int start = domain.lastIndexOf('.', end - 1) + 1;
+                Preconditions.checkArgument(start < end, "empty label in domain pattern: " + pattern);
+                node = node.children.computeIfAbsent(domain.substring(start, end).toLowerCase(Locale.ROOT),
+                        k -> new MutableNode<>());
+                if (start == 0) {
+                    break;
+                }
+                end = start - 1;
+            }
+            (wildcard ? node.wildcard : node.exact).add(listener);
+            return this;
+        }
+
+        /**
+         * Offers every recipient to the listener, after the listeners routed
+         * by address or domain.
+         */
+        public Builder<T> fallback(T listener) {
+            Preconditions.checkNotNull(listener);
+            fallback.add(listener);
+            return this;
+        }
+
+        public RecipientRoutes<T> build() {
+            Node<T> node = root.freeze(Collections.emptyList(), fallback);
+            Map<String, List<T>> byAddress = new HashMap<>();
+            for (Map.Entry<String, List<T>> e : addresses.entrySet()) {
+                String address = e.getKey();
+                int at = address.lastIndexOf('@');
+                byAddress.put(address,
+                        merge(e.getValue(), node.lookup(address, at + 1, address.length()), Collections.emptyList()));
+            }
+            return new RecipientRoutes<>(node, byAddress);
+        }
+    }
+
+    /** @return the distinct listeners of the lists, in order, unmodifiable */
+    @SafeVarargs
+    private static <T> List<T> merge(List<? extends T>... lists) {
+        List<T> result = new ArrayList<>();
+        for (List<? extends T> list : lists) {
+            for (T t : list) {
+                if (!containsIdentical(result, t)) {
+                    result.add(t);
+                }
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static boolean containsIdentical(List<?> list, Object o) {
+        for (Object x : list) {
+            if (x == o) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class MutableNode<T> {
+        final Map<String, MutableNode<T>> children = new HashMap<>();
+        final List<T> exact = new ArrayList<>();
+        final List<T> wildcard = new ArrayList<>();
+
+        /**
+         * @param inherited
+         *            the wildcard listeners of the ancestors, most specific
+         *            first
+         */
+        Node<T> freeze(List<T> inherited, List<T> fallback) {
+            List<T> wildcards = merge(wildcard, inherited);
+            Node<T> node = new Node<>(merge(exact, inherited, fallback), merge(wildcards, fallback),
+                    children.size());
+            for (Map.Entry<String, MutableNode<T>> e : children.entrySet()) {
+                node.put(e.getKey(), e.getValue().freeze(wildcards, fallback));
+            }
+            return node;
+        }
+    }
+
+    /**
+     * A trie node, its children are kept in an open addressing table keyed by
+     * label so a label of the recipient can be looked up without copying it
+     * out of the string.
+     */
+    private static final class Node<T> {
+
+        /** The candidates for a domain ending at this node */
+        final List<T> exact;
+
+        /**
+         * The candidates for a strict subdomain of this node which has no node
+         * of its own
+         */
+        final List<T> below;
+
+        private final String[] labels;
+        private final int[] hashes;
+        private final Object[] children;
+        private final int mask;
+
+        Node(List<T> exact, List<T> below, int childCount) {
+            this.exact = exact;
+            this.below = below;
+            int size = childCount == 0 ? 0 : Integer.highestOneBit(childCount * 2 - 1) << 1;
+            this.labels = new String[size];
+            this.hashes = new int[size];
+            this.children = new Object[size];
+            this.mask = size - 1;
+        }
+
+        void put(String label, Node<T> child) {
+            int h = hash(label, 0, label.length());
+            int i = h & mask;
+            while (labels[i] != null) {
+                i = (i + 1) & mask;
+            }
+            labels[i] = label;
+            hashes[i] = h;
+            children[i] = child;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Node<T> child(String s, int start, int end) {
+            if (labels.length == 0 || start == end) {
+                return null;
+            }
+            int h = hash(s, start, end);
+            int len = end - start;
+            int i = h & mask;
+            String label;
+            while ((label = labels[i]) != null) {
+                if (hashes[i] == h && label.length() == len && s.regionMatches(true, start, label, 0, len)) {
+                    return (Node<T>) children[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        /** Walks the labels of {@code s[start, end)} from the right. */
+        List<T> lookup(String s, int start, int end) {
+            Node<T> node = this;
+            while (true) {
+                int labelStart = s.lastIndexOf('.', end - 1) + 1;
+                if (labelStart < start) {
+                    labelStart = start;
+                }
+                Node<T> child = node.child(s, labelStart, end);
+                if (child == null) {
+                    return node.below;
+                }
+                if (labelStart == start) {
+                    return child.exact;
+                }
+                node = child;
+                end = labelStart - 1;
+            }
+        }
+    }
+}
@@ -6,18 +6,24 @@ package org.subethamail.smtp.helper;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.subethamail.smtp.MessageContext;
 import org.subethamail.smtp.MessageHandler;
 import org.subethamail.smtp.MessageHandlerFactory;
 import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.SpillStats;
 import org.subethamail.smtp.TooMuchDataException;
 import org.subethamail.smtp.helper.SmarterMessageListener.Receiver;
-import org.subethamail.smtp.internal.io.DeferredFileOutputStream;
+import org.subethamail.smtp.internal.io.SpillFilePool;
+
+import com.github.davidmoten.guavamini.Preconditions;
 
 /**
  * MessageHandlerFactory implementation which adapts to a collection of
@@ -34,10 +40,13 @@ public class SmarterMessageListenerAdapter implements MessageHandlerFactory {
      * 5 megs by default. The server will buffer incoming messages to disk when
      * they hit this limit in the DATA received.
      */
-    private static final int DEFAULT_DATA_DEFERRED_SIZE = 1024 * 1024 * 5;
+    public static final int DEFAULT_DATA_DEFERRED_SIZE = 1024 * 1024 * 5;
 
-    private final Collection<SmarterMessageListener> listeners;
-    private final int dataDeferredSize;
+    private final AtomicReference<RecipientRoutes<SmarterMessageListener>> routes;
+    private volatile long dataDeferredSize;
+    private volatile SpillFilePool spillFilePool = SpillFilePool.defaultPool();
+    private volatile Executor deliveryExecutor = FanOut.SEQUENTIAL;
+    private volatile boolean perRecipientResponses;
 
     /**
      * Initializes this factory with a single listener.
@@ -64,11 +73,108 @@ public class SmarterMessageListenerAdapter implements MessageHandlerFactory {
      *            The server will buffer incoming messages to disk when they hit
      *            this limit in the DATA received.
      */
-    public SmarterMessageListenerAdapter(Collection<SmarterMessageListener> listeners, int dataDeferredSize) {
-        this.listeners = listeners;
+    public SmarterMessageListenerAdapter(Collection<SmarterMessageListener> listeners, long dataDeferredSize) {
+        this(RecipientRoutes.of(listeners), dataDeferredSize);
+    }
+
+    /**
+     * Initializes this factory with a routing table, so that each recipient is
+     * only offered to the listeners routed to its address or domain.
+     *
+     * Default data deferred size is 5 megs.
+     */
+    public SmarterMessageListenerAdapter(RecipientRoutes<SmarterMessageListener> routes) {
+        this(routes, DEFAULT_DATA_DEFERRED_SIZE);
+    }
+
+    /**
+     * Initializes this factory with a routing table, so that each recipient is
+     * only offered to the listeners routed to its address or domain.
+     *
+     * @param dataDeferredSize
+     *            The server will buffer incoming messages to disk when they hit
+     *            this limit in the DATA received.
+     */
+    public SmarterMessageListenerAdapter(RecipientRoutes<SmarterMessageListener> routes, long dataDeferredSize) {
+        Preconditions.checkNotNull(routes);
+        this.routes = new AtomicReference<>(routes);
         this.dataDeferredSize = dataDeferredSize;
     }
 
+    /**
+     * Replaces the routing table. Recipients arriving after this call are
+     * routed with the new table, sessions never see a partly updated one.
+     */
+    public void setRoutes(RecipientRoutes<SmarterMessageListener> routes) {
+        Preconditions.checkNotNull(routes);
+        this.routes.set(routes);
+    }
+
+    public RecipientRoutes<SmarterMessageListener> getRoutes() {
+        return this.routes.get();
+    }
+
+    /**
+     * Sets the size above which a message accepted for several recipients is
+     * spilled to a file rather than kept in memory.
+     */
+    public void setDataDeferredSize(long dataDeferredSize) {
+        Preconditions.checkArgument(dataDeferredSize >= 0, "dataDeferredSize cannot be negative");
+        this.dataDeferredSize = dataDeferredSize;
+    }
+
+    public long getDataDeferredSize() {
+        return this.dataDeferredSize;
+    }
+
+    /**
+     * Sets the directory messages are spilled to, for instance a tmpfs mount,
+     * and how many idle spill files are kept open there for reuse by later
+     * messages. By default the files are created in {@code java.io.tmpdir}.
+     *
+     * @param directory
+     *            an existing directory
+     * @param spillFilePoolCapacity
+     *            maximum number of idle files, 0 disables pooling
+     */
+    public void setSpool(Path directory, int spillFilePoolCapacity) {
+        Preconditions.checkNotNull(directory, "directory cannot be null");
+        this.spillFilePool = SpillFilePool.create(directory, spillFilePoolCapacity);
+    }
+
+    /**
+     * Returns the counters of the files messages are spilled to: spills which
+     * reused an idle file or created one, and the bytes spilled. Without
+     * {@link #setSpool}, they are shared by everything spilling to
+     * {@code java.io.tmpdir}.
+     */
+    public SpillStats getSpillStats() {
+        return this.spillFilePool;
+    }
+
+    /**
+     * Sets the executor which delivers a message accepted for several
+     * recipients. Each delivery reads the message from its own stream over a
+     * single shared copy, so they may run in parallel. By default the
+     * deliveries run one after the other in the session thread.
+     */
+    public void setDeliveryExecutor(Executor deliveryExecutor) {
+        Preconditions.checkNotNull(deliveryExecutor);
+        this.deliveryExecutor = deliveryExecutor;
+    }
+
+    /**
+     * If true, a message which could be delivered to some of its recipients
+     * only is rejected with the most severe of their failures, the reply
+     * listing each failed recipient. Otherwise, the default, the first failure
+     * is reported. Either way every delivery is attempted, and the message is
+     * only accepted if all of them succeeded: a single reply to DATA cannot
+     * accept it for some recipients only without losing it for the others.
+     */
+    public void setPerRecipientResponses(boolean perRecipientResponses) {
+        this.perRecipientResponses = perRecipientResponses;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -81,12 +187,35 @@ public class SmarterMessageListenerAdapter implements MessageHandlerFactory {
         return new Handler();
     }
 
+    /**
+     * An accepted recipient and the receiver its listener returned.
+     */
+    static final class Delivery implements FanOut.Delivery {
+        private final String recipient;
+        private final Receiver receiver;
+
+        Delivery(String recipient, Receiver receiver) {
+            this.recipient = recipient;
+            this.receiver = receiver;
+        }
+
+        @Override
+        public String getRecipient() {
+            return this.recipient;
+        }
+
+        @Override
+        public void deliver(InputStream data) throws TooMuchDataException, IOException {
+            this.receiver.deliver(data);
+        }
+    }
+
     /**
      * Class which implements the actual handler interface.
      */
     class Handler implements MessageHandler {
         String from;
-        List<Receiver> deliveries = new ArrayList<>();
+        List<Delivery> deliveries = new ArrayList<>();
 
         Handler() {
         }
@@ -98,11 +227,13 @@ public class SmarterMessageListenerAdapter implements MessageHandlerFactory {
 
         @Override
         public void recipient(String recipient) throws RejectException {
-            for (SmarterMessageListener listener : SmarterMessageListenerAdapter.this.listeners) {
+            List<SmarterMessageListener> candidates = SmarterMessageListenerAdapter.this.routes.get()
+                    .candidates(recipient);
+            for (SmarterMessageListener listener : candidates) {
                 Receiver rec = listener.accept(this.from, recipient);
 
                 if (rec != null)
-                    this.deliveries.add(rec);
+                    this.deliveries.add(new Delivery(recipient, rec));
             }
 
             if (this.deliveries.isEmpty())
@@ -110,32 +241,17 @@ public class SmarterMessageListenerAdapter implements MessageHandlerFactory {
         }
 
         @Override
-        public String data(InputStream data) throws TooMuchDataException, IOException {
-            if (this.deliveries.size() == 1) {
-                this.deliveries.get(0).deliver(data);
-            } else {
-
-                try (DeferredFileOutputStream dfos = new DeferredFileOutputStream(
-                        SmarterMessageListenerAdapter.this.dataDeferredSize)) {
-                    int value;
-                    while ((value = data.read()) >= 0) {
-                        dfos.write(value);
-                    }
-
-                    for (Receiver rec : this.deliveries) {
-                        try (InputStream in = dfos.getInputStream()) {
-                            rec.deliver(in);
-                        }
-                    }
-                }
-            }
+        public String data(InputStream data) throws RejectException, TooMuchDataException, IOException {
+            SmarterMessageListenerAdapter adapter = SmarterMessageListenerAdapter.this;
+            FanOut.deliver(data, this.deliveries, adapter.dataDeferredSize, adapter.spillFilePool,
+                    adapter.deliveryExecutor, adapter.perRecipientResponses);
             return null;
         }
 
         @Override
         public void done() {
-            for (Receiver rec : this.deliveries) {
-                rec.done();
+            for (Delivery delivery : this.deliveries) {
+                delivery.receiver.done();
             }
         }
     }
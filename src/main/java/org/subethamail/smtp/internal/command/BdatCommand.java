@@ -2,10 +2,13 @@ package org.subethamail.smtp.internal.command;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Optional;
 
 import org.subethamail.smtp.DropConnectionException;
 import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.internal.io.BdatInputStream;
+import org.subethamail.smtp.internal.io.EncodedResponse;
+import org.subethamail.smtp.internal.io.HeaderCaptureInputStream;
 import org.subethamail.smtp.internal.server.BaseCommand;
 import org.subethamail.smtp.internal.util.SMTPResponseHelper;
 import org.subethamail.smtp.server.Session;
@@ -37,6 +40,12 @@ public final class BdatCommand extends BaseCommand {
         }
 
         InputStream stream = new BdatInputStream(sess.getRawInput(), sess, bdat.size, bdat.isLast);
+        if (sess.getServer().getHeaderCaptureSize() > 0) {
+            HeaderCaptureInputStream capture = HeaderCaptureInputStream.capture(stream,
+                    sess.getServer().getHeaderCaptureSize());
+            sess.setMessageHeaders(Optional.of(capture.getHeaders()));
+            stream = capture;
+        }
 
         String dataMessage = null;
         try {
@@ -59,7 +68,7 @@ public final class BdatCommand extends BaseCommand {
         if (dataMessage != null) {
             sess.sendResponse(SMTPResponseHelper.buildResponse("250", dataMessage));
         } else {
-            sess.sendResponse("250 Ok");
+            sess.sendResponse(EncodedResponse.OK);
         }
         sess.resetMailTransaction();
     }
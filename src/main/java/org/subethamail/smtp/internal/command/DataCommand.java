@@ -8,6 +8,8 @@ import org.subethamail.smtp.DropConnectionException;
 import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.internal.io.DotTerminatedInputStream;
 import org.subethamail.smtp.internal.io.DotUnstuffingInputStream;
+import org.subethamail.smtp.internal.io.EncodedResponse;
+import org.subethamail.smtp.internal.io.HeaderCaptureInputStream;
 import org.subethamail.smtp.internal.io.ReceivedHeaderStream;
 import org.subethamail.smtp.internal.util.SMTPResponseHelper;
 import org.subethamail.smtp.internal.server.BaseCommand;
@@ -21,6 +23,9 @@ import org.subethamail.smtp.server.Session;
  */
 public final class DataCommand extends BaseCommand {
 
+    private static final EncodedResponse START_MAIL_INPUT = EncodedResponse
+            .of("354 End data with <CR><LF>.<CR><LF>");
+
     public DataCommand() {
         super("DATA", "Following text is collected as the message.\n"
                 + "End data with <CR><LF>.<CR><LF>");
@@ -37,7 +42,7 @@ public final class DataCommand extends BaseCommand {
             return;
         }
 
-        sess.sendResponse("354 End data with <CR><LF>.<CR><LF>");
+        sess.sendResponse(START_MAIL_INPUT);
 
         InputStream stream = sess.getRawInput();
         stream = new DotTerminatedInputStream(stream);
@@ -49,6 +54,12 @@ public final class DataCommand extends BaseCommand {
                     Optional.of(server.getSoftwareName()), sess.getSessionId(),
                     sess.getSingleRecipient());
         }
+        if (server.getHeaderCaptureSize() > 0) {
+            HeaderCaptureInputStream capture = HeaderCaptureInputStream.capture(stream,
+                    server.getHeaderCaptureSize());
+            sess.setMessageHeaders(Optional.of(capture.getHeaders()));
+            stream = capture;
+        }
 
         String dataMessage = null;
         try {
@@ -71,7 +82,7 @@ public final class DataCommand extends BaseCommand {
         if (dataMessage!= null) {
             sess.sendResponse(SMTPResponseHelper.buildResponse("250", dataMessage));
         } else {
-            sess.sendResponse("250 Ok");
+            sess.sendResponse(EncodedResponse.OK);
         }
         sess.resetMailTransaction();
     }
@@ -1,13 +1,14 @@
 package org.subethamail.smtp.internal.command;
 
 import java.io.IOException;
-import java.util.Locale;
 import java.util.function.Predicate;
 
 import org.subethamail.smtp.DropConnectionException;
 import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.internal.io.EncodedResponse;
 import org.subethamail.smtp.internal.server.BaseCommand;
 import org.subethamail.smtp.internal.util.EmailUtils;
+import org.subethamail.smtp.internal.util.MailPath;
 import org.subethamail.smtp.server.Session;
 
 import com.github.davidmoten.guavamini.Preconditions;
@@ -49,6 +50,13 @@ public final class MailCommand extends BaseCommand
 	@Override
 	public void execute(String commandString, Session sess) throws IOException,
 			DropConnectionException
+	{
+		execute(commandString, Math.min(commandString.length(), 4), sess);
+	}
+
+	@Override
+	public void execute(String commandString, int argumentOffset, Session sess) throws IOException,
+			DropConnectionException
 	{
 		if (sess.isMailTransactionInProgress())
 		{
@@ -56,46 +64,52 @@ public final class MailCommand extends BaseCommand
 			return;
 		}
 		
-		if (commandString.trim().equals("MAIL FROM:"))
+		int lineStart = skipWhitespace(commandString, 0);
+		int argsEnd = trimmedLength(commandString);
+		if (argsEnd - lineStart == 10 && commandString.startsWith("MAIL FROM:", lineStart))
 		{
 			sess.sendResponse("501 Syntax: MAIL FROM: <address>");
 			return;
 		}
 
-		String args = this.getArgPredicate(commandString);
-		if (!args.toUpperCase(Locale.ENGLISH).startsWith("FROM:"))
+		int argsStart = Math.min(skipWhitespace(commandString, argumentOffset), argsEnd);
+		if (!commandString.regionMatches(true, argsStart, "FROM:", 0, 5) || argsEnd - argsStart < 5)
 		{
 			sess.sendResponse(
 					"501 Syntax: MAIL FROM: <address>  Error in parameters: \"" +
-					this.getArgPredicate(commandString) + "\"");
+					commandString.substring(argsStart, argsEnd) + "\"");
 			return;
 		}
 
-		String emailAddress = EmailUtils.extractEmailAddress(args, 5);
-		if (!fromAddressValidator.test(emailAddress))
+		MailPath path = MailPath.parse(commandString, argsStart + 5, argsEnd);
+		String emailAddress;
+		boolean valid;
+		if (path != null)
+		{
+			emailAddress = path.getMailbox();
+			// a well formed RFC 5321 path is all the default validator asks for
+			valid = fromAddressValidator == DEFAULT_EMAIL_ADDRESS_VALIDATOR
+					|| fromAddressValidator.test(emailAddress);
+		}
+		else
+		{
+			// not strictly RFC 5321, be as lenient as we always were
+			emailAddress = EmailUtils.extractEmailAddress(commandString, argsStart + 5, argsEnd);
+			valid = fromAddressValidator.test(emailAddress);
+		}
+		if (!valid)
 		{
 			sess.sendResponse("553 <" + emailAddress + "> Invalid email address.");
 			return;
 		}
 		
-		// extract SIZE argument from MAIL FROM command.
 		// disregard unknown parameters. TODO: reject unknown
 		// parameters.
-		int size = 0;
-		String largs = args.toLowerCase(Locale.ENGLISH);
-		int sizec = largs.indexOf(" size=");
-		if (sizec > -1)
-		{
-			// disregard non-numeric values.
-			String ssize = largs.substring(sizec + 6).trim();
-			if (ssize.length() > 0 && ssize.matches("[0-9]+"))
-			{
-				size = Integer.parseInt(ssize);
-			}
-		}
+		long size = getDeclaredSize(commandString, argsStart, argsEnd, path);
 		// Reject the message if the size supplied by the client
 		// is larger than what we advertised in EHLO answer.
-		if (size > sess.getServer().getMaxMessageSize())
+		long maxSize = sess.getServer().getMaxMessageSize();
+		if (maxSize > 0 && size > maxSize)
 		{
 			sess.sendResponse("552 5.3.4 Message size exceeds fixed limit");
 			return;
@@ -122,7 +136,45 @@ public final class MailCommand extends BaseCommand
 			return;
 		}
 		
-		sess.sendResponse("250 Ok");
+		sess.sendResponse(EncodedResponse.OK);
 	}
 
+	/**
+	 * Extracts the SIZE parameter (RFC 1870) from the arguments, 0 if it is
+	 * absent or not numeric.
+	 */
+	private static long getDeclaredSize(String commandString, int argsStart, int argsEnd, MailPath path)
+	{
+		String ssize = null;
+		if (path != null)
+		{
+			ssize = path.getParameter("SIZE").orElse(null);
+		}
+		else
+		{
+			for (int i = argsStart; i <= argsEnd - 6; i++)
+			{
+				if (commandString.regionMatches(true, i, " size=", 0, 6))
+				{
+					ssize = commandString.substring(i + 6, argsEnd).trim();
+					break;
+				}
+			}
+		}
+		// disregard non-numeric values.
+		if (ssize == null || ssize.isEmpty())
+			return 0;
+		long size = 0;
+		for (int i = 0; i < ssize.length(); i++)
+		{
+			char c = ssize.charAt(i);
+			if (c < '0' || c > '9')
+				return 0;
+			if (size > (Long.MAX_VALUE - (c - '0')) / 10)
+				// more than anyone can send, certainly above the limit
+				return Long.MAX_VALUE;
+			size = size * 10 + (c - '0');
+		}
+		return size;
+	}
 }
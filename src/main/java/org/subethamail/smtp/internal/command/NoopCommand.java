@@ -2,6 +2,7 @@ package org.subethamail.smtp.internal.command;
 
 import java.io.IOException;
 
+import org.subethamail.smtp.internal.io.EncodedResponse;
 import org.subethamail.smtp.internal.server.BaseCommand;
 import org.subethamail.smtp.server.Session;
 
@@ -21,6 +22,6 @@ public final class NoopCommand extends BaseCommand
 	@Override
 	public void execute(String commandString, Session sess) throws IOException
 	{
-		sess.sendResponse("250 Ok");
+		sess.sendResponse(EncodedResponse.OK);
 	}
 }
@@ -2,6 +2,7 @@ package org.subethamail.smtp.internal.command;
 
 import java.io.IOException;
 
+import org.subethamail.smtp.internal.io.EncodedResponse;
 import org.subethamail.smtp.internal.server.BaseCommand;
 import org.subethamail.smtp.server.Session;
 
@@ -12,6 +13,7 @@ import org.subethamail.smtp.server.Session;
  */
 public final class QuitCommand extends BaseCommand
 {
+	private static final EncodedResponse BYE = EncodedResponse.of("221 Bye");
 
 	public QuitCommand()
 	{
@@ -21,7 +23,10 @@ public final class QuitCommand extends BaseCommand
 	@Override
 	public void execute(String commandString, Session sess) throws IOException
 	{
-		sess.sendResponse("221 Bye");
+		sess.endSession();
+		sess.sendResponse(BYE);
+		// nothing will be read after this, so push the reply out now
+		sess.flush();
 		sess.quit();
 	}
 }
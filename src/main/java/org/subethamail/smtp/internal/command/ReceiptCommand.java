@@ -1,12 +1,13 @@
 package org.subethamail.smtp.internal.command;
 
 import java.io.IOException;
-import java.util.Locale;
 
 import org.subethamail.smtp.DropConnectionException;
 import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.internal.io.EncodedResponse;
 import org.subethamail.smtp.internal.server.BaseCommand;
 import org.subethamail.smtp.internal.util.EmailUtils;
+import org.subethamail.smtp.internal.util.MailPath;
 import org.subethamail.smtp.server.Session;
 
 /**
@@ -27,6 +28,13 @@ public final class ReceiptCommand extends BaseCommand
 	@Override
 	public void execute(String commandString, Session sess) 
 			throws IOException, DropConnectionException
+	{
+		execute(commandString, Math.min(commandString.length(), 4), sess);
+	}
+
+	@Override
+	public void execute(String commandString, int argumentOffset, Session sess) 
+			throws IOException, DropConnectionException
 	{
 		if (!sess.isMailTransactionInProgress())
 		{
@@ -40,21 +48,24 @@ public final class ReceiptCommand extends BaseCommand
 			return;
 		}
 
-		String args = this.getArgPredicate(commandString);
-		if (!args.toUpperCase(Locale.ENGLISH).startsWith("TO:"))
+		int argsEnd = trimmedLength(commandString);
+		int argsStart = Math.min(skipWhitespace(commandString, argumentOffset), argsEnd);
+		if (!commandString.regionMatches(true, argsStart, "TO:", 0, 3) || argsEnd - argsStart < 3)
 		{
 			sess.sendResponse(
 					"501 Syntax: RCPT TO: <address>  Error in parameters: \""
-					+ args + "\"");
+					+ commandString.substring(argsStart, argsEnd) + "\"");
         }
 		else
 		{
-			String recipientAddress = EmailUtils.extractEmailAddress(args, 3);
+			MailPath path = MailPath.parse(commandString, argsStart + 3, argsEnd);
+			String recipientAddress = path != null ? path.getMailbox()
+					: EmailUtils.extractEmailAddress(commandString, argsStart + 3, argsEnd);
 			try
 			{
 				sess.getMessageHandler().recipient(recipientAddress);
 				sess.addRecipient(recipientAddress);
-				sess.sendResponse("250 Ok");
+				sess.sendResponse(EncodedResponse.OK);
 			}
 			catch (DropConnectionException ex)
 			{
@@ -2,6 +2,7 @@ package org.subethamail.smtp.internal.command;
 
 import java.io.IOException;
 
+import org.subethamail.smtp.internal.io.EncodedResponse;
 import org.subethamail.smtp.internal.server.BaseCommand;
 import org.subethamail.smtp.server.Session;
 
@@ -23,6 +24,6 @@ public final class ResetCommand extends BaseCommand
 	{
 		sess.resetMailTransaction();
 
-		sess.sendResponse("250 Ok");
+		sess.sendResponse(EncodedResponse.OK);
 	}
 }
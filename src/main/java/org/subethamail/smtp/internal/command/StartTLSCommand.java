@@ -3,7 +3,9 @@ package org.subethamail.smtp.internal.command;
 import java.io.IOException;
 import java.net.Socket;
 import java.security.cert.Certificate;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLPeerUnverifiedException;
@@ -13,6 +15,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.subethamail.smtp.internal.server.BaseCommand;
 import org.subethamail.smtp.server.Session;
+import org.subethamail.smtp.server.TlsHandshakeLimiter;
 
 /**
  * @author Michael Wildpaner &lt;mike@wildpaner.com&gt;
@@ -42,6 +45,9 @@ public final class StartTLSCommand extends BaseCommand
 			return;
 		}
 
+		List<TlsHandshakeLimiter> limiters = sess.getServer().getTlsHandshakeLimiters();
+		int acquired = 0;
+		boolean handshaking = false;
 		try
 		{
 			Socket socket = sess.getSocket();
@@ -51,11 +57,48 @@ public final class StartTLSCommand extends BaseCommand
 				return;
 			}
 
+			// wait for our turn before the 220, a client cannot be turned away
+			// once its handshake has begun. The wait is that of the most patient
+			// limiter, not the sum of them all.
+			long maxWait = 0;
+			for (TlsHandshakeLimiter limiter : limiters)
+			{
+				maxWait = Math.max(maxWait, limiter.getMaxWait(TimeUnit.NANOSECONDS));
+			}
+			long deadline = System.nanoTime() + maxWait;
+			for (; acquired < limiters.size(); acquired++)
+			{
+				if (!limiters.get(acquired).tryAcquireBefore(deadline))
+				{
+					sess.sendResponse("454 4.7.0 TLS not available due to temporary reason: too many handshakes in progress");
+					return;
+				}
+			}
+
 			sess.sendResponse("220 Ready to start TLS");
+			// the handshake takes over the socket, nothing may be left buffered
+			sess.flush();
+			handshaking = true;
 
 			SSLSocket s = sess.getServer().createSSLSocket(socket);
-			s.startHandshake();
-			log.debug("Cipher suite: " + s.getSession().getCipherSuite());
+			long startMillis = System.currentTimeMillis();
+			long start = System.nanoTime();
+			// a client stalling its handshake must not hold a permit for the
+			// whole connection timeout
+			int timeout = socket.getSoTimeout();
+			socket.setSoTimeout(sess.getServer().getTlsHandshakeTimeout());
+			try
+			{
+				s.startHandshake();
+			}
+			finally
+			{
+				socket.setSoTimeout(timeout);
+			}
+			// a resumed session keeps the creation time of the original one
+			boolean resumed = s.getSession().getCreationTime() < startMillis;
+			sess.getServer().getHandshakeStats().record(System.nanoTime() - start, resumed);
+			log.debug("Cipher suite: " + s.getSession().getCipherSuite() + (resumed ? ", resumed" : ""));
 
 			sess.setSocket(s);
 			sess.resetSmtpProtocol(); // clean state
@@ -81,10 +124,23 @@ public final class StartTLSCommand extends BaseCommand
 			// Unfortunately it might catch some other types of SSLHandshakeException (if
 			// in fact other types exist), but oh well.
 			log.warn("startTLS() failed: " + ex);
+			if (handshaking)
+				sess.quit();
 		}
 		catch (IOException ex)
 		{
 			log.warn("startTLS() failed: " + ex.getMessage(), ex);
+			// the socket is in the middle of a handshake, no command can be
+			// read from it any more
+			if (handshaking)
+				sess.quit();
+		}
+		finally
+		{
+			for (int i = 0; i < acquired; i++)
+			{
+				limiters.get(i).release();
+			}
 		}
 	}
 }
@@ -16,8 +16,13 @@ public final class BdatInputStream extends InputStream {
     private final Session session;
 
     
-    // mutable fields
+    /**
+     * The session's reader, which reads from the same unbuffered position of
+     * {@code in} as this stream does.
+     */
     private final CRLFTerminatedReader reader;
+
+    // mutable fields
     private long remainingSize;
 
     private long size;
@@ -27,7 +32,7 @@ public final class BdatInputStream extends InputStream {
     public BdatInputStream(InputStream in, Session session, long size, boolean isLast) {
         this.in = in;
         this.session = session;
-        this.reader = new CRLFTerminatedReader(in);
+        this.reader = session.getReader();
         this.remainingSize = size;
         this.size = size;
         this.isLast = isLast;
@@ -0,0 +1,159 @@
+package org.subethamail.smtp.internal.io;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.subethamail.smtp.PoolStats;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * A bounded, lock-free pool of fixed size {@link ByteBuffer}s. Buffers are
+ * borrowed with {@link #acquire()} and handed back with {@link #release}. When
+ * the pool is empty a new buffer is allocated (a miss), and when more than
+ * {@code capacity} buffers are returned the surplus is left to the garbage
+ * collector, so the pool never holds more than {@code capacity} idle buffers.
+ * <p>
+ * Instances are thread-safe.
+ */
+public final class BufferPool implements PoolStats {
+
+    /** Default size of a pooled buffer in bytes. */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /** Default maximum number of idle buffers kept by the pool. */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final int bufferSize;
+    private final int capacity;
+    private final boolean direct;
+
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of buffers in {@link #free}. Maintained separately because
+     * {@link ConcurrentLinkedQueue#size()} is O(n).
+     */
+    private final AtomicInteger freeCount = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder discards = new LongAdder();
+
+    private BufferPool(int bufferSize, int capacity, boolean direct) {
+        Preconditions.checkArgument(bufferSize > 0, "bufferSize must be positive");
+        Preconditions.checkArgument(capacity >= 0, "capacity cannot be negative");
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.direct = direct;
+    }
+
+    /**
+     * Returns a pool of heap buffers.
+     *
+     * @param bufferSize
+     *            size of each buffer in bytes
+     * @param capacity
+     *            maximum number of idle buffers retained, 0 disables pooling
+     * @return a new pool
+     */
+    public static BufferPool heap(int bufferSize, int capacity) {
+        return new BufferPool(bufferSize, capacity, false);
+    }
+
+    /**
+     * Returns a pool of direct (off-heap) buffers. Direct buffers only pay off
+     * when the consumer is a channel, they have no backing array.
+     *
+     * @param bufferSize
+     *            size of each buffer in bytes
+     * @param capacity
+     *            maximum number of idle buffers retained, 0 disables pooling
+     * @return a new pool
+     */
+    public static BufferPool direct(int bufferSize, int capacity) {
+        return new BufferPool(bufferSize, capacity, true);
+    }
+
+    /**
+     * Borrows a cleared buffer from the pool, allocating a new one if none is
+     * idle.
+     *
+     * @return a buffer of {@link #getBufferSize()} bytes
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer b = free.poll();
+        if (b != null) {
+            freeCount.decrementAndGet();
+            hits.increment();
+            b.clear();
+            return b;
+        }
+        misses.increment();
+        return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not touch the buffer
+     * afterwards. Buffers that were not produced by this pool are ignored.
+     *
+     * @param buffer
+     *            buffer previously obtained from {@link #acquire()}
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+        if (freeCount.incrementAndGet() <= capacity) {
+            free.offer(buffer);
+        } else {
+            freeCount.decrementAndGet();
+            discards.increment();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /** @return the number of idle buffers currently held by the pool */
+    @Override
+    public int getIdleCount() {
+        return freeCount.get();
+    }
+
+    /** @return the number of {@link #acquire()} calls served from the pool */
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** @return the number of {@link #acquire()} calls that allocated */
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return the number of released buffers dropped because the pool was full */
+    @Override
+    public long getDiscards() {
+        return discards.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool[bufferSize=" + bufferSize + ", capacity=" + capacity + ", direct=" + direct
+                + ", idle=" + getIdleCount() + ", hits=" + getHits() + ", misses=" + getMisses() + "]";
+    }
+}
@@ -0,0 +1,95 @@
+package org.subethamail.smtp.internal.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the remaining bytes of a sequence of {@link ByteBuffer}s, heap or
+ * memory-mapped, without copying them first. The buffers themselves are left
+ * untouched, the stream reads through duplicates, so any number of streams
+ * may read the same buffers concurrently as long as nobody modifies them.
+ * <p>
+ * A single stream is not thread-safe.
+ */
+public final class ByteBuffersInputStream extends InputStream {
+
+    private final ByteBuffer[] buffers;
+
+    /** Index of the buffer after {@link #current} */
+    private int next;
+
+    private ByteBuffer current;
+
+    private long remaining;
+
+    public ByteBuffersInputStream(ByteBuffer... buffers) {
+        this.buffers = buffers;
+        long n = 0;
+        for (ByteBuffer b : buffers) {
+            n += b.remaining();
+        }
+        this.remaining = n;
+    }
+
+    /** @return the current buffer with bytes left, or null at the end */
+    private ByteBuffer current() {
+        while (current == null || !current.hasRemaining()) {
+            if (next == buffers.length) {
+                return null;
+            }
+            current = buffers[next++].duplicate();
+        }
+        return current;
+    }
+
+    @Override
+    public int read() {
+        ByteBuffer b = current();
+        if (b == null) {
+            return -1;
+        }
+        remaining--;
+        return b.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        } else if (len == 0) {
+            return 0;
+        }
+        int total = 0;
+        ByteBuffer buffer;
+        while (total < len && (buffer = current()) != null) {
+            int n = Math.min(len - total, buffer.remaining());
+            buffer.get(b, off + total, n);
+            total += n;
+        }
+        remaining -= total;
+        return total == 0 ? -1 : total;
+    }
+
+    @Override
+    public long skip(long n) {
+        long total = 0;
+        ByteBuffer buffer;
+        while (total < n && (buffer = current()) != null) {
+            int k = (int) Math.min(n - total, buffer.remaining());
+            buffer.position(buffer.position() + k);
+            total += k;
+        }
+        remaining -= total;
+        return total;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    /** @return the number of bytes left to read */
+    public long remaining() {
+        return remaining;
+    }
+}
@@ -30,22 +30,37 @@ import java.io.OutputStream;
  * RFC 2821 #2.3.7 mandates that line termination is CRLF, and that CR and LF
  * must not be transmitted except in that pairing. If we get a naked LF, convert
  * to CRLF.
- *
+ * <p>
+ * Output is collected in a buffer and written to the wrapped stream in blocks,
+ * when the buffer is full and on {@link #flush()}. Input is scanned for line
+ * breaks and the text between them copied in bulk. Instances are meant for a
+ * single thread and are not synchronized.
  */
-class CRLFOutputStream extends FilterOutputStream {
+public class CRLFOutputStream extends FilterOutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final static int LAST_WAS_OTHER = 0;
+
+    private final static int LAST_WAS_CR = 1;
+
+    private final static int LAST_WAS_LF = 2;
 
     /**
-     * Counter for number of last (0A or 0D).
+     * If true, a dot at the start of a line is doubled.
      */
-    protected int statusLast;
+    private final boolean stuffDots;
 
-    protected final static int LAST_WAS_OTHER = 0;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
 
-    protected final static int LAST_WAS_CR = 1;
+    private int count;
 
-    protected final static int LAST_WAS_LF = 2;
+    /**
+     * Counter for number of last (0A or 0D).
+     */
+    private int statusLast;
 
-    protected boolean startOfLine = true;
+    private boolean startOfLine = true;
 
     /**
      * Constructor that wraps an OutputStream.
@@ -53,8 +68,18 @@ class CRLFOutputStream extends FilterOutputStream {
      * @param out
      *            the OutputStream to be wrapped
      */
-    CRLFOutputStream(OutputStream out) {
+    public CRLFOutputStream(OutputStream out) {
+        this(out, false);
+    }
+
+    /**
+     * @param stuffDots
+     *            true to double a dot at the start of a line, see
+     *            {@link ExtraDotOutputStream}
+     */
+    CRLFOutputStream(OutputStream out, boolean stuffDots) {
         super(out);
+        this.stuffDots = stuffDots;
         this.statusLast = LAST_WAS_LF; // we already assume a CRLF at beginning
                                        // (otherwise TOP would not work
                                        // correctly
@@ -75,77 +100,109 @@ class CRLFOutputStream extends FilterOutputStream {
     public void write(int b) throws IOException {
         switch (b) {
         case '\r':
-            this.out.write('\r');
-            this.out.write('\n');
-            this.startOfLine = true;
+            lineBreak();
             this.statusLast = LAST_WAS_CR;
             break;
         case '\n':
             if (this.statusLast != LAST_WAS_CR) {
-                this.out.write('\r');
-                this.out.write('\n');
-                this.startOfLine = true;
+                lineBreak();
             }
             this.statusLast = LAST_WAS_LF;
             break;
         default:
+            if (count + 2 > buffer.length) {
+                flushBuffer();
+            }
+            if (b == '.' && this.stuffDots && this.startOfLine) {
+                // add extra dot (the first of the pair)
+                buffer[count++] = '.';
+            }
+            buffer[count++] = (byte) b;
             // we're no longer at the start of a line
-            this.out.write(b);
             this.startOfLine = false;
             this.statusLast = LAST_WAS_OTHER;
             break;
         }
     }
 
-    /**
-     * Provides an extension point for ExtraDotOutputStream to be able to add
-     * dots at the beginning of new lines.
-     *
-     * @see java.io.FilterOutputStream#write(byte[], int, int)
-     */
-    protected void writeChunk(byte buffer[], int offset, int length) throws IOException {
-        this.out.write(buffer, offset, length);
-    }
-
     /**
      * @see java.io.FilterOutputStream#write(byte[], int, int)
      */
     @Override
-    public synchronized void write(byte buffer[], int offset, int length) throws IOException {
-        /* optimized */
-        int lineStart = offset;
-        for (int i = offset; i < length + offset; i++) {
-            switch (buffer[i]) {
-            case '\r':
-                // CR case. Write down the last line
-                // and position the new lineStart at the next char
-                this.writeChunk(buffer, lineStart, i - lineStart);
-                this.out.write('\r');
-                this.out.write('\n');
-                this.startOfLine = true;
-                lineStart = i + 1;
-                this.statusLast = LAST_WAS_CR;
-                break;
-            case '\n':
-                if (this.statusLast != LAST_WAS_CR) {
-                    this.writeChunk(buffer, lineStart, i - lineStart);
-                    this.out.write('\r');
-                    this.out.write('\n');
-                    this.startOfLine = true;
+    public void write(byte[] b, int offset, int length) throws IOException {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            // the text up to the next line break is copied as a whole
+            int lineStart = i;
+            while (i < end && b[i] != '\r' && b[i] != '\n') {
+                i++;
+            }
+            if (i > lineStart) {
+                writeText(b, lineStart, i - lineStart);
+            }
+            if (i < end) {
+                if (b[i] == '\r') {
+                    lineBreak();
+                    this.statusLast = LAST_WAS_CR;
+                } else {
+                    if (this.statusLast != LAST_WAS_CR) {
+                        lineBreak();
+                    }
+                    this.statusLast = LAST_WAS_LF;
                 }
-                lineStart = i + 1;
-                this.statusLast = LAST_WAS_LF;
-                break;
-            default:
-                this.statusLast = LAST_WAS_OTHER;
+                i++;
             }
         }
-        if (length + offset > lineStart) {
-            this.writeChunk(buffer, lineStart, length + offset - lineStart);
-            this.startOfLine = false;
+    }
+
+    /** Writes text without line breaks */
+    private void writeText(byte[] b, int offset, int length) throws IOException {
+        if (this.stuffDots && this.startOfLine && b[offset] == '.') {
+            // add extra dot (the first of the pair)
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = '.';
+        }
+        if (length > buffer.length - count) {
+            flushBuffer();
+        }
+        if (length >= buffer.length) {
+            this.out.write(b, offset, length);
+        } else {
+            System.arraycopy(b, offset, buffer, count, length);
+            count += length;
+        }
+        this.startOfLine = false;
+        this.statusLast = LAST_WAS_OTHER;
+    }
+
+    private void lineBreak() throws IOException {
+        if (count + 2 > buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = '\r';
+        buffer[count++] = '\n';
+        this.startOfLine = true;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            this.out.write(buffer, 0, count);
+            count = 0;
         }
     }
 
+    /**
+     * Writes the buffered output to the wrapped stream and flushes it.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        this.out.flush();
+    }
+
     /**
      * Ensure that the stream is CRLF terminated.
      *
@@ -154,8 +211,7 @@ class CRLFOutputStream extends FilterOutputStream {
      */
     void checkCRLFTerminator() throws IOException {
         if (this.statusLast == LAST_WAS_OTHER) {
-            this.out.write('\r');
-            this.out.write('\n');
+            lineBreak();
             this.statusLast = LAST_WAS_CR;
         }
     }
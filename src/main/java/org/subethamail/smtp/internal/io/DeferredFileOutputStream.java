@@ -4,24 +4,29 @@
  */
 package org.subethamail.smtp.internal.io;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * This works like a ByteArrayOutputStream until a certain size is
- * reached, then creates a temp file and acts like a buffered
- * FileOutputStream.  The data can be retreived afterwards by
- * calling getInputStream().
+ * reached, then borrows a spill file from a {@link SpillFilePool} and
+ * writes to it.  The data can be retreived afterwards by calling
+ * getInputStream().
  *
- * When this object is closed, the temporary file is deleted.  You
- * can no longer call getInputStream().
+ * Data kept in memory is held in segments which are never copied
+ * into a larger array, and a spill file is memory-mapped when it is
+ * read back. Either way the streams returned by getInputStream()
+ * read the shared content in place, so once writing has finished
+ * several threads can read the same data at once.
+ *
+ * When this object is closed, the spill file is handed back to its
+ * pool.  You can no longer call getInputStream(), and streams over
+ * the spill file fail if read.  The file is only reused if all of
+ * them had been closed, otherwise it is discarded, so a stream kept
+ * by mistake can never read a later message.
  *
  * @author Jeff Schnitzer
  */
@@ -34,68 +39,176 @@ public final class DeferredFileOutputStream extends ThresholdingOutputStream
 	 */
 	static final int INITIAL_BUF_SIZE = 8192;
 
+	/**
+	 * Largest amount kept in memory whatever the transition size, a byte
+	 * array cannot grow much beyond this.
+	 */
+	static final int MAX_IN_MEMORY_SIZE = Integer.MAX_VALUE - 8;
+
 	public static final String TMPFILE_PREFIX = "subetha";
 	public static final String TMPFILE_SUFFIX = ".msg";
 
-	/** If we switch to file output, this is the file. */
-	File outFile;
+	/**
+	 * Largest region of the spill file mapped as one buffer.
+	 */
+	static final int MAX_MAPPED_SEGMENT_SIZE = 1 << 30;
+
+	/** Largest region mapped as one buffer, only smaller in tests */
+	private final int maxMappedRegionSize;
+
+	/** The content while it is kept in memory. */
+	final SegmentedByteArrayOutputStream memory;
 
-	/** If we switch to file output, this is the stream. */
-	FileOutputStream outFileStream;
+	final SpillFilePool pool;
+
+	/** If we switch to file output, this is the file. */
+	SpillFilePool.SpillFile spill;
 
 	/** When the output stream is closed, this becomes true */
 	boolean closed;
 
 	boolean thresholdReached = false;
 
+	/** The spill file mapped into memory, once it is read. */
+	ByteBuffer[] mapped;
+
+	/** Streams over {@link #mapped} not closed yet */
+	int openViews;
+
+	/** Set once the spill file has been handed back, views may no longer read */
+	volatile boolean released;
+
 	/**
+	 * Spills to the {@link SpillFilePool#defaultPool() default pool}.
+	 *
 	 * @param transitionSize is the number of bytes at which to convert
-	 *  from a byte array to a real file.
+	 *  from a byte array to a real file. Values above
+	 *  {@link #MAX_IN_MEMORY_SIZE} are capped.
 	 */
-	public DeferredFileOutputStream(int transitionSize)
+	public DeferredFileOutputStream(long transitionSize)
 	{
-		super(new BetterByteArrayOutputStream(INITIAL_BUF_SIZE), transitionSize);
+		this(transitionSize, SpillFilePool.defaultPool());
+	}
+
+	/**
+	 * @param transitionSize is the number of bytes at which to convert
+	 *  from a byte array to a real file. Values above
+	 *  {@link #MAX_IN_MEMORY_SIZE} are capped.
+	 * @param pool provides the file to spill to
+	 */
+	public DeferredFileOutputStream(long transitionSize, SpillFilePool pool)
+	{
+		this(transitionSize, pool, MAX_MAPPED_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param maxMappedRegionSize largest region of the spill file mapped as
+	 *  one buffer
+	 */
+	DeferredFileOutputStream(long transitionSize, SpillFilePool pool, int maxMappedRegionSize)
+	{
+		this(new SegmentedByteArrayOutputStream(INITIAL_BUF_SIZE), transitionSize, pool, maxMappedRegionSize);
+	}
+
+	private DeferredFileOutputStream(SegmentedByteArrayOutputStream memory, long transitionSize,
+			SpillFilePool pool, int maxMappedRegionSize)
+	{
+		super(memory, Math.min(transitionSize, MAX_IN_MEMORY_SIZE));
+		this.memory = memory;
+		this.pool = pool;
+		this.maxMappedRegionSize = maxMappedRegionSize;
+	}
+
+	/**
+	 * @return the number of bytes written so far, in memory or to the file
+	 */
+	public long size()
+	{
+		return this.written;
+	}
+
+	/**
+	 * Copies the stream to its end. While the data fits in memory it is
+	 * read straight into the segments, without an intermediate buffer.
+	 *
+	 * @return the number of bytes copied
+	 */
+	public long transferFrom(InputStream in) throws IOException
+	{
+		long total = 0;
+		while (this.spill == null && this.written < this.threshold)
+		{
+			int n = this.memory.readFrom(in, (int) Math.min(this.threshold - this.written, Integer.MAX_VALUE));
+			if (n < 0)
+				return total;
+
+			this.written += n;
+			total += n;
+		}
+
+		byte[] buf = new byte[INITIAL_BUF_SIZE];
+		int n;
+		while ((n = in.read(buf)) >= 0)
+		{
+			this.write(buf, 0, n);
+			total += n;
+		}
+		return total;
 	}
 
 	/*
 	 * (non-Javadoc)
-	 * @see org.subethamail.common.io.ThresholdingOutputStream#thresholdReached(int, int)
+	 * @see org.subethamail.common.io.ThresholdingOutputStream#thresholdReached(long, long)
 	 */
 	@Override
-	protected void thresholdReached(int current, int predicted) throws IOException
+	protected void thresholdReached(long current, long predicted) throws IOException
 	{
-		// Open a temp file, write the byte array version, and swap the
-		// output stream to the file version.
+		// Borrow a spill file, write the in-memory segments, and swap the
+		// output stream to the file version. Large writes go straight to
+		// the file channel, only small ones are buffered.
 
-		this.outFile = Files.createTempFile(TMPFILE_PREFIX, TMPFILE_SUFFIX).toFile();
-		this.outFileStream = new FileOutputStream(this.outFile);
+		this.spill = this.pool.acquire();
+		OutputStream fileStream = this.spill.newOutputStream();
 
-		((ByteArrayOutputStream)this.output).writeTo(this.outFileStream);
-		this.output = new BufferedOutputStream(this.outFileStream);
+		this.memory.writeTo(fileStream);
+		this.output = new BufferedOutputStream(fileStream, INITIAL_BUF_SIZE);
 	}
 
 	/**
 	 * Closes the output stream and creates an InputStream on the same data.
+	 * May be called more than once, each stream reads the data from the
+	 * start independently of the others.
 	 *
-	 * @return either a BetterByteArrayOutputStream or buffered FileInputStream,
-	 *  depending on what state we are in.
+	 * @return a stream over the in-memory segments or over the mapped
+	 *  spill file, depending on what state we are in.
 	 */
 	public InputStream getInputStream() throws IOException
 	{
-		if (this.output instanceof BetterByteArrayOutputStream)
+		if (this.released)
+		{
+			throw new IOException("Stream closed");
+		}
+		else if (this.spill == null)
 		{
-			return ((BetterByteArrayOutputStream)this.output).getInputStream();
+			return this.memory.getInputStream();
 		}
 		else
 		{
-			if (!this.closed)
+			if (this.mapped == null)
 			{
-				this.output.flush();
-				this.output.close();
-				this.closed = true;
+				if (!this.closed)
+				{
+					this.output.flush();
+					this.closed = true;
+				}
+				this.mapped = this.spill.map(this.maxMappedRegionSize);
 			}
 
-			return new BufferedInputStream(new FileInputStream(this.outFile));
+			synchronized (this)
+			{
+				this.openViews++;
+			}
+			return new View(new ByteBuffersInputStream(this.mapped));
 		}
 	}
 
@@ -108,12 +221,89 @@ public final class DeferredFileOutputStream extends ThresholdingOutputStream
 		if (!this.closed)
 		{
 			this.output.flush();
-			this.output.close();
 			this.closed = true;
 		}
 
-		if (this.outFile != null)
-			this.outFile.delete();
+		if (this.spill != null)
+		{
+			SpillFilePool.SpillFile f = this.spill;
+			this.spill = null;
+			this.mapped = null;
+			this.released = true;
+			boolean reusable;
+			synchronized (this)
+			{
+				reusable = this.openViews == 0;
+			}
+			if (reusable)
+				this.pool.release(f);
+			else
+				this.pool.discard(f);
+		}
+	}
+
+	private synchronized void viewClosed()
+	{
+		this.openViews--;
+	}
+
+	/**
+	 * A stream over the mapped spill file, which stops reading once the
+	 * file is handed back.
+	 */
+	private final class View extends InputStream
+	{
+		private final ByteBuffersInputStream in;
+		private boolean closed;
+
+		View(ByteBuffersInputStream in)
+		{
+			this.in = in;
+		}
+
+		private void checkOpen() throws IOException
+		{
+			if (this.closed || DeferredFileOutputStream.this.released)
+				throw new IOException("Stream closed");
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			this.checkOpen();
+			return this.in.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			this.checkOpen();
+			return this.in.read(b, off, len);
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			this.checkOpen();
+			return this.in.skip(n);
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			this.checkOpen();
+			return this.in.available();
+		}
+
+		@Override
+		public void close()
+		{
+			if (!this.closed)
+			{
+				this.closed = true;
+				viewClosed();
+			}
+		}
 	}
 
 }
@@ -77,4 +77,10 @@ public final class DotTerminatedOutputStream extends OutputStream
 			out.write(CRLF_DOT_CRLF);
 	}
 
+	@Override
+	public void flush() throws IOException
+	{
+		out.flush();
+	}
+
 }
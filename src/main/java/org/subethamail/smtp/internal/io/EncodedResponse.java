@@ -0,0 +1,50 @@
+package org.subethamail.smtp.internal.io;
+
+import java.nio.charset.StandardCharsets;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * A constant SMTP reply which is encoded, including the terminating CRLF, once
+ * when it is created rather than every time it is sent.
+ */
+public final class EncodedResponse {
+
+    public static final EncodedResponse OK = of("250 Ok");
+
+    private final String text;
+    private final byte[] bytes;
+
+    private EncodedResponse(String text) {
+        this.text = text;
+        this.bytes = (text + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes a reply.
+     *
+     * @param text
+     *            the complete reply without the trailing CRLF, for example
+     *            "250 Ok". Multi-line replies must separate lines with CRLF.
+     * @return the encoded reply
+     */
+    public static EncodedResponse of(String text) {
+        Preconditions.checkNotNull(text);
+        return new EncodedResponse(text);
+    }
+
+    /** @return the reply text without the trailing CRLF */
+    public String text() {
+        return text;
+    }
+
+    /** @return the encoded bytes, not to be modified */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
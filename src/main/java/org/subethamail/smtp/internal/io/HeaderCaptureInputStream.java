@@ -0,0 +1,170 @@
+package org.subethamail.smtp.internal.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.subethamail.smtp.MessageHeaders;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Reads the header section of a message ahead, up to a limit, so the headers
+ * are known before the message handler sees the data. The bytes read ahead
+ * are then replayed, so the handler still reads the message exactly as it
+ * was received.
+ */
+public final class HeaderCaptureInputStream extends FilterInputStream {
+
+    /** The most bytes captured, so the array holding them can be allocated */
+    static final int MAX_CAPTURE_SIZE = Integer.MAX_VALUE - 16;
+
+    private final byte[] ahead;
+    private final int aheadLength;
+    private int aheadPos;
+
+    private final MessageHeaders headers;
+
+    private HeaderCaptureInputStream(InputStream in, byte[] ahead, int aheadLength, MessageHeaders headers) {
+        super(in);
+        this.ahead = ahead;
+        this.aheadLength = aheadLength;
+        this.headers = headers;
+    }
+
+    /**
+     * Reads from the stream until the empty line ending the header section,
+     * the end of the stream or {@code maxHeaderSize} bytes, whichever comes
+     * first.
+     *
+     * @param maxHeaderSize
+     *            the most header bytes captured, positive, larger values are
+     *            capped to {@link #MAX_CAPTURE_SIZE}
+     * @return a stream which reads everything the given stream would have
+     */
+    public static HeaderCaptureInputStream capture(InputStream in, int maxHeaderSize) throws IOException {
+        Preconditions.checkArgument(maxHeaderSize > 0, "maxHeaderSize must be positive");
+        maxHeaderSize = Math.min(maxHeaderSize, MAX_CAPTURE_SIZE);
+        // a little extra so that the empty line after a full capture is seen
+        byte[] b = new byte[Math.min(maxHeaderSize, 8192) + 4];
+        int n = 0;
+        int scanned = 0;
+        int headerEnd = -1;
+        while (headerEnd < 0 && n < maxHeaderSize + 4L) {
+            if (n == b.length) {
+                b = Arrays.copyOf(b, (int) Math.min(b.length * 2L, maxHeaderSize + 4L));
+            }
+            int count = in.read(b, n, b.length - n);
+            if (count < 0) {
+                break;
+            }
+            n += count;
+            headerEnd = findEmptyLine(b, scanned, n);
+            // the terminator may straddle reads
+            scanned = Math.max(0, n - 3);
+        }
+        boolean truncated;
+        int headerLength;
+        if (headerEnd >= 0 && headerEnd <= maxHeaderSize) {
+            truncated = false;
+            headerLength = headerEnd;
+        } else if (headerEnd < 0 && n <= maxHeaderSize) {
+            // the message ended without a body
+            truncated = false;
+            headerLength = n;
+        } else {
+            truncated = true;
+            headerLength = lastLineEnd(b, Math.min(n, maxHeaderSize));
+        }
+        MessageHeaders headers = MessageHeaders.of(ByteBuffer.wrap(b, 0, headerLength), truncated);
+        return new HeaderCaptureInputStream(in, b, n, headers);
+    }
+
+    /**
+     * @return the offset just past the line break ending the header section
+     *         (the line break of the last field, not the empty line), or -1
+     */
+    private static int findEmptyLine(byte[] b, int from, int to) {
+        if (to > 0 && from == 0 && (b[0] == '\n' || b[0] == '\r')) {
+            // no headers at all
+            return 0;
+        }
+        for (int i = Math.max(from, 1); i < to; i++) {
+            if (b[i] == '\n') {
+                if (b[i - 1] == '\n') {
+                    return i;
+                }
+                if (b[i - 1] == '\r' && i >= 2 && b[i - 2] == '\n') {
+                    return i - 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /** @return the offset just past the last line break before to, or 0 */
+    private static int lastLineEnd(byte[] b, int to) {
+        for (int i = to - 1; i >= 0; i--) {
+            if (b[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /** @return the headers read ahead */
+    public MessageHeaders getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (aheadPos < aheadLength) {
+            return ahead[aheadPos++] & 0xff;
+        }
+        return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (aheadPos < aheadLength) {
+            int n = Math.min(len, aheadLength - aheadPos);
+            System.arraycopy(ahead, aheadPos, b, off, n);
+            aheadPos += n;
+            return n;
+        }
+        return super.read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return aheadLength - aheadPos + super.available();
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (aheadPos < aheadLength) {
+            int k = (int) Math.min(n, aheadLength - aheadPos);
+            aheadPos += k;
+            return k;
+        }
+        return super.skip(n);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        // not supported
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+}
@@ -0,0 +1,189 @@
+package org.subethamail.smtp.internal.io;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Writes SMTP replies as UTF-8 straight into a byte buffer borrowed from a
+ * {@link BufferPool}. Replies accumulate until {@link #flush()} is called, so
+ * the replies to pipelined commands leave in one write. The buffer is only
+ * written out early if it fills up.
+ * <p>
+ * Not thread-safe, a writer is owned by a single session thread.
+ */
+public final class ResponseWriter implements Flushable {
+
+    private static final int MAX_ENCODED_CHAR_LENGTH = 4;
+
+    private final BufferPool pool;
+    private ByteBuffer buffer;
+    private byte[] buf;
+    private OutputStream out;
+
+    /** Number of pending bytes in {@link #buf} */
+    private int count;
+
+    public ResponseWriter(OutputStream out, BufferPool pool) {
+        Preconditions.checkArgument(!pool.isDirect(), "response writer requires a heap buffer pool");
+        Preconditions.checkArgument(pool.getBufferSize() >= MAX_ENCODED_CHAR_LENGTH + 2,
+                "buffer too small for a reply");
+        this.out = out;
+        this.pool = pool;
+        this.buffer = pool.acquire();
+        this.buf = buffer.array();
+    }
+
+    /**
+     * Replaces the wrapped stream. Pending replies must have been flushed to the
+     * old stream first.
+     */
+    public void setOutput(OutputStream out) {
+        Preconditions.checkArgument(count == 0, "pending replies not flushed");
+        this.out = out;
+    }
+
+    /** Appends a pre-encoded reply. */
+    public void write(EncodedResponse response) throws IOException {
+        checkNotReleased();
+        byte[] b = response.bytes();
+        if (b.length > buf.length - count) {
+            drain();
+            if (b.length > buf.length) {
+                out.write(b);
+                return;
+            }
+        }
+        System.arraycopy(b, 0, buf, count, b.length);
+        count += b.length;
+    }
+
+    /**
+     * Appends a reply followed by CRLF. Multi-line replies must already contain
+     * CRLF between their lines.
+     */
+    public void writeLine(CharSequence response) throws IOException {
+        append(response);
+        appendCrLf();
+    }
+
+    /**
+     * Appends one line of a (possibly multi-line) reply, for example
+     * {@code 250-8BITMIME} or {@code 250 Ok}.
+     *
+     * @param code
+     *            the three digit reply code
+     * @param last
+     *            true for the last line of the reply
+     * @param text
+     *            the text of the line
+     */
+    public void writeLine(int code, boolean last, CharSequence text) throws IOException {
+        Preconditions.checkArgument(code > 99 && code < 1000, "Invalid SMTP response code " + code);
+        checkNotReleased();
+        ensure(4);
+        buf[count++] = (byte) ('0' + code / 100);
+        buf[count++] = (byte) ('0' + code / 10 % 10);
+        buf[count++] = (byte) ('0' + code % 10);
+        buf[count++] = (byte) (last ? ' ' : '-');
+        append(text);
+        appendCrLf();
+    }
+
+    private void append(CharSequence s) throws IOException {
+        checkNotReleased();
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (count == buf.length) {
+                    drain();
+                }
+                buf[count++] = (byte) c;
+            } else {
+                ensure(MAX_ENCODED_CHAR_LENGTH);
+                if (c < 0x800) {
+                    buf[count++] = (byte) (0xc0 | c >> 6);
+                    buf[count++] = (byte) (0x80 | c & 0x3f);
+                } else if (Character.isHighSurrogate(c) && i + 1 < len
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[count++] = (byte) (0xf0 | cp >> 18);
+                    buf[count++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                    buf[count++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                    buf[count++] = (byte) (0x80 | cp & 0x3f);
+                } else if (Character.isSurrogate(c)) {
+                    // unpaired surrogate, same replacement as String.getBytes
+                    buf[count++] = '?';
+                } else {
+                    buf[count++] = (byte) (0xe0 | c >> 12);
+                    buf[count++] = (byte) (0x80 | c >> 6 & 0x3f);
+                    buf[count++] = (byte) (0x80 | c & 0x3f);
+                }
+            }
+        }
+    }
+
+    private void appendCrLf() throws IOException {
+        ensure(2);
+        buf[count++] = '\r';
+        buf[count++] = '\n';
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buf.length - count < n) {
+            drain();
+        }
+    }
+
+    /** Writes out the buffered bytes without flushing the wrapped stream. */
+    private void drain() throws IOException {
+        checkNotReleased();
+        if (count > 0) {
+            int n = count;
+            count = 0;
+            out.write(buf, 0, n);
+        }
+    }
+
+    /** @return the number of bytes waiting to be written */
+    public int pending() {
+        return count;
+    }
+
+    /**
+     * Writes all pending replies to the wrapped stream and flushes it. Does
+     * nothing if no reply is pending.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            drain();
+            out.flush();
+        }
+    }
+
+    /**
+     * Hands the buffer back to the pool, discarding anything not yet flushed.
+     * The writer is unusable afterwards. Calling this more than once has no
+     * effect.
+     */
+    public void release() {
+        if (buffer != null) {
+            ByteBuffer b = buffer;
+            buffer = null;
+            buf = null;
+            count = 0;
+            pool.release(b);
+        }
+    }
+
+    private void checkNotReleased() throws IOException {
+        if (buf == null) {
+            throw new IOException("response buffer has been released");
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.subethamail.smtp.internal.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * An in-memory output stream which grows by appending segments rather than by
+ * copying everything into an array twice the size, so the peak footprint stays
+ * close to the amount written and nothing is ever copied twice. Segments start
+ * small and double up to {@link #MAX_SEGMENT_SIZE}, unless the first segment
+ * is sized for the expected content.
+ * <p>
+ * Not thread-safe while it is written to. Once writing has finished the
+ * content can be read through any number of concurrent
+ * {@link #getInputStream()}s.
+ */
+public final class SegmentedByteArrayOutputStream extends OutputStream {
+
+    public static final int DEFAULT_FIRST_SEGMENT_SIZE = 8192;
+
+    static final int MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    private final List<byte[]> segments = new ArrayList<>();
+    private int nextSegmentSize;
+
+    /** The last segment, null before the first write */
+    private byte[] current;
+
+    /** Number of bytes used in {@link #current} */
+    private int pos;
+
+    private long size;
+
+    public SegmentedByteArrayOutputStream() {
+        this(DEFAULT_FIRST_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param firstSegmentSize
+     *            size of the first segment, which may exceed
+     *            {@link #MAX_SEGMENT_SIZE}; when the final size is known in
+     *            advance the content ends up in a single segment
+     */
+    public SegmentedByteArrayOutputStream(int firstSegmentSize) {
+        Preconditions.checkArgument(firstSegmentSize > 0, "firstSegmentSize must be positive");
+        this.nextSegmentSize = firstSegmentSize;
+    }
+
+    private void addSegment() {
+        current = new byte[nextSegmentSize];
+        pos = 0;
+        segments.add(current);
+        nextSegmentSize = (int) Math.min(nextSegmentSize * 2L, MAX_SEGMENT_SIZE);
+    }
+
+    @Override
+    public void write(int b) {
+        if (current == null || pos == current.length) {
+            addSegment();
+        }
+        current[pos++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            if (current == null || pos == current.length) {
+                addSegment();
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(b, off, current, pos, n);
+            pos += n;
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    /**
+     * Reads once from the stream straight into the free space of the last
+     * segment, which saves copying through an intermediate buffer.
+     *
+     * @param max
+     *            maximum number of bytes to read, positive
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    public int readFrom(InputStream in, int max) throws IOException {
+        Preconditions.checkArgument(max > 0, "max must be positive");
+        int segmentSize = nextSegmentSize;
+        boolean added = false;
+        if (current == null || pos == current.length) {
+            addSegment();
+            added = true;
+        }
+        int n = in.read(current, pos, Math.min(max, current.length - pos));
+        if (n > 0) {
+            pos += n;
+            size += n;
+        } else if (added) {
+            // don't leave an empty segment behind at the end of the stream
+            segments.remove(segments.size() - 1);
+            current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            pos = current == null ? 0 : current.length;
+            nextSegmentSize = segmentSize;
+        }
+        return n;
+    }
+
+    /** @return the number of bytes written */
+    public long size() {
+        return size;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        for (byte[] segment : segments) {
+            out.write(segment, 0, segment == current ? pos : segment.length);
+        }
+    }
+
+    /**
+     * Returns the content as one array. If it fills exactly one segment that
+     * segment is returned rather than copied, so nothing must be written
+     * afterwards.
+     */
+    public byte[] toByteArray() {
+        if (segments.size() == 1 && pos == current.length) {
+            return current;
+        }
+        Preconditions.checkArgument(size <= Integer.MAX_VALUE - 8, "content too large for an array");
+        byte[] b = new byte[(int) size];
+        int offset = 0;
+        for (byte[] segment : segments) {
+            int n = segment == current ? pos : segment.length;
+            System.arraycopy(segment, 0, b, offset, n);
+            offset += n;
+        }
+        return b;
+    }
+
+    /**
+     * Returns read-only views of the segments holding the content. The views
+     * share the segments, later writes may show through.
+     */
+    public ByteBuffer[] toByteBuffers() {
+        ByteBuffer[] buffers = new ByteBuffer[segments.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            byte[] segment = segments.get(i);
+            buffers[i] = ByteBuffer.wrap(segment, 0, segment == current ? pos : segment.length).asReadOnlyBuffer();
+        }
+        return buffers;
+    }
+
+    /**
+     * Does not make a copy of the content.
+     */
+    public InputStream getInputStream() {
+        return new ByteBuffersInputStream(toByteBuffers());
+    }
+}
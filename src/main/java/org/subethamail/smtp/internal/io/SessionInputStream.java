@@ -0,0 +1,177 @@
+package org.subethamail.smtp.internal.io;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Buffered, unsynchronized input stream over a heap buffer borrowed from a
+ * {@link BufferPool}. Unlike {@link java.io.BufferedInputStream} the wrapped
+ * stream can be swapped with {@link #setInput(InputStream)} (after STARTTLS) so
+ * the same buffer, and every reader built on top of this stream, survive the
+ * switch.
+ * <p>
+ * An optional {@link Flushable} is flushed before every read that could block
+ * on the wrapped stream. Sessions use it to push out buffered replies exactly
+ * when there is nothing left to process, which is what lets pipelined commands
+ * be answered with a single write.
+ * <p>
+ * Not thread-safe, a stream is owned by a single session thread.
+ */
+public final class SessionInputStream extends InputStream {
+
+    private final BufferPool pool;
+    private ByteBuffer buffer;
+    private byte[] buf;
+    private InputStream in;
+    private Flushable beforeBlockingRead;
+
+    /** Index of the next byte to return from {@link #buf} */
+    private int pos;
+
+    /** Number of valid bytes in {@link #buf} */
+    private int count;
+
+    public SessionInputStream(InputStream in, BufferPool pool) {
+        Preconditions.checkArgument(!pool.isDirect(), "session input requires a heap buffer pool");
+        this.in = in;
+        this.pool = pool;
+        this.buffer = pool.acquire();
+        this.buf = buffer.array();
+    }
+
+    /**
+     * Replaces the wrapped stream. Bytes that were read ahead from the previous
+     * stream are discarded: after STARTTLS nothing the client sent in plaintext
+     * may be interpreted as part of the encrypted session (RFC 3207 section
+     * 4.2).
+     */
+    public void setInput(InputStream in) {
+        this.in = in;
+        this.pos = 0;
+        this.count = 0;
+    }
+
+    /**
+     * Sets what to flush before reading from the wrapped stream, may be null.
+     */
+    public void setBeforeBlockingRead(Flushable beforeBlockingRead) {
+        this.beforeBlockingRead = beforeBlockingRead;
+    }
+
+    private void beforeBlockingRead() throws IOException {
+        if (beforeBlockingRead != null) {
+            beforeBlockingRead.flush();
+        }
+    }
+
+    private boolean fill() throws IOException {
+        checkNotReleased();
+        beforeBlockingRead();
+        pos = 0;
+        count = 0;
+        int n = in.read(buf, 0, buf.length);
+        if (n > 0) {
+            count = n;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos >= count && !fill()) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        } else if (len == 0) {
+            return 0;
+        }
+        int avail = count - pos;
+        if (avail <= 0) {
+            if (len >= buf.length) {
+                // no point copying through our buffer
+                checkNotReleased();
+                beforeBlockingRead();
+                return in.read(b, off, len);
+            }
+            if (!fill()) {
+                return -1;
+            }
+            avail = count;
+        }
+        int n = Math.min(avail, len);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        int avail = count - pos;
+        if (avail <= 0) {
+            checkNotReleased();
+            return in.skip(n);
+        }
+        long skipped = Math.min(avail, n);
+        pos += (int) skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        int buffered = count - pos;
+        if (buf == null) {
+            return 0;
+        }
+        return buffered + in.available();
+    }
+
+    /**
+     * Returns the number of bytes already read from the wrapped stream which
+     * have not been consumed yet, without blocking or touching the wrapped
+     * stream.
+     */
+    public int buffered() {
+        return count - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Hands the buffer back to the pool. The stream is unusable afterwards.
+     * Calling this more than once has no effect.
+     */
+    public void release() {
+        if (buffer != null) {
+            ByteBuffer b = buffer;
+            buffer = null;
+            buf = null;
+            pos = 0;
+            count = 0;
+            pool.release(b);
+        }
+    }
+
+    private void checkNotReleased() throws IOException {
+        if (buf == null) {
+            throw new IOException("stream buffer has been released");
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package org.subethamail.smtp.internal.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.SpillStats;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * A bounded pool of temp files which {@link DeferredFileOutputStream} spills
+ * large messages to. A file is created in the spool directory on a miss and
+ * kept open for reuse once released, so a busy server does not create and
+ * delete a file for every large message. Files are written through their
+ * {@link FileChannel} and read back memory-mapped. A tmpfs directory keeps
+ * spilled messages off the disk entirely.
+ * <p>
+ * Files are opened with {@link StandardOpenOption#DELETE_ON_CLOSE}, so they
+ * disappear when discarded by the pool or, on a best effort basis, when the
+ * JVM exits (on Unix they are unlinked as soon as they are open, so nothing
+ * is left behind even if the JVM dies). Files which grew beyond
+ * {@link #MAX_RETAINED_SIZE} are discarded on release rather than kept
+ * around.
+ * <p>
+ * Instances are thread-safe.
+ */
+public final class SpillFilePool implements SpillStats {
+
+    private static final Logger log = LoggerFactory.getLogger(SpillFilePool.class);
+
+    /** Default maximum number of idle files kept by the pool. */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /** Largest file kept for reuse, in bytes. */
+    static final long MAX_RETAINED_SIZE = 64L * 1024 * 1024;
+
+    private static final String PREFIX = DeferredFileOutputStream.TMPFILE_PREFIX;
+    private static final String SUFFIX = DeferredFileOutputStream.TMPFILE_SUFFIX;
+
+    private final Path directory;
+    private final int capacity;
+
+    private final Queue<SpillFile> free = new ConcurrentLinkedQueue<>();
+
+    /** Number of files in {@link #free} */
+    private final AtomicInteger freeCount = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder discards = new LongAdder();
+    private final LongAdder spilledBytes = new LongAdder();
+
+    private SpillFilePool(Path directory, int capacity) {
+        Preconditions.checkNotNull(directory);
+        Preconditions.checkArgument(capacity >= 0, "capacity cannot be negative");
+        this.directory = directory;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns a pool of files in the given directory.
+     *
+     * @param directory
+     *            the spool directory, which must exist
+     * @param capacity
+     *            maximum number of idle files retained, 0 disables pooling
+     * @return a new pool
+     */
+    public static SpillFilePool create(Path directory, int capacity) {
+        return new SpillFilePool(directory, capacity);
+    }
+
+    /**
+     * Returns the pool shared by everything not configured with a pool of its
+     * own, in the {@code java.io.tmpdir} directory.
+     */
+    public static SpillFilePool defaultPool() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    private static final class DefaultHolder {
+        static final SpillFilePool INSTANCE = create(Paths.get(System.getProperty("java.io.tmpdir")),
+                DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Borrows an empty file from the pool, creating one if none is idle.
+     */
+    SpillFile acquire() throws IOException {
+        SpillFile f = free.poll();
+        if (f != null) {
+            freeCount.decrementAndGet();
+            hits.increment();
+            return f;
+        }
+        misses.increment();
+        Path path = Files.createTempFile(directory, PREFIX, SUFFIX);
+        try {
+            return new SpillFile(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE));
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a file to the pool. Its content must no longer be read.
+     */
+    void release(SpillFile f) {
+        spilledBytes.add(f.size);
+        f.size = 0;
+        boolean retain;
+        try {
+            retain = f.channel.isOpen() && f.channel.size() <= MAX_RETAINED_SIZE;
+        } catch (IOException e) {
+            retain = false;
+        }
+        if (retain && freeCount.incrementAndGet() <= capacity) {
+            free.offer(f);
+            return;
+        }
+        if (retain) {
+            freeCount.decrementAndGet();
+        }
+        close(f);
+    }
+
+    /**
+     * Closes a file instead of returning it to the pool, because its content
+     * may still be read through a mapping.
+     */
+    void discard(SpillFile f) {
+        spilledBytes.add(f.size);
+        close(f);
+    }
+
+    private void close(SpillFile f) {
+        discards.increment();
+        try {
+            f.channel.close();
+        } catch (IOException e) {
+            log.debug("Failed to close spill file", e);
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** @return the number of idle files currently held by the pool */
+    @Override
+    public int getIdleCount() {
+        return freeCount.get();
+    }
+
+    /** @return the number of spills served by an idle file */
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** @return the number of spills which created a file */
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return the number of released files closed instead of being kept */
+    @Override
+    public long getDiscards() {
+        return discards.sum();
+    }
+
+    /** @return the number of bytes written to released spill files */
+    @Override
+    public long getSpilledBytes() {
+        return spilledBytes.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "SpillFilePool[directory=" + directory + ", capacity=" + capacity + ", idle=" + getIdleCount()
+                + ", hits=" + getHits() + ", misses=" + getMisses() + ", spilledBytes=" + getSpilledBytes() + "]";
+    }
+
+    /**
+     * A pooled file. Its content is always written from the start, a reused
+     * file is overwritten rather than truncated, so {@link #size} and not the
+     * file length tells where the content ends.
+     */
+    static final class SpillFile {
+        final FileChannel channel;
+        long size;
+
+        SpillFile(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Returns a stream writing from the start of the file. Closing the
+         * stream does not close the file.
+         */
+        OutputStream newOutputStream() {
+            size = 0;
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+                    while (bb.hasRemaining()) {
+                        size += channel.write(bb, size);
+                    }
+                }
+            };
+        }
+
+        /**
+         * Maps the content read-only, in regions of at most
+         * {@code maxRegionSize} bytes.
+         */
+        ByteBuffer[] map(int maxRegionSize) throws IOException {
+            int count = (int) ((size + maxRegionSize - 1) / maxRegionSize);
+            ByteBuffer[] buffers = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long position = (long) i * maxRegionSize;
+                buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(maxRegionSize, size - position));
+            }
+            return buffers;
+        }
+    }
+}
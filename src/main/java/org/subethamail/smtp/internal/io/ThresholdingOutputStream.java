@@ -20,16 +20,16 @@ abstract class ThresholdingOutputStream extends OutputStream
 	protected OutputStream output;
 
 	/** When to trigger */
-	int threshold;
+	long threshold;
 
 	/** Number of bytes written so far */
-	int written = 0;
+	long written = 0;
 
 	boolean thresholdReached = false;
 
 	/**
 	 */
-	ThresholdingOutputStream(OutputStream base, int thresholdBytes)
+	ThresholdingOutputStream(OutputStream base, long thresholdBytes)
 	{
 		this.output = base;
 		this.threshold = thresholdBytes;
@@ -101,7 +101,7 @@ abstract class ThresholdingOutputStream extends OutputStream
 	 */
 	protected void checkThreshold(int count) throws IOException
 	{
-		int predicted = this.written + count;
+		long predicted = this.written + count;
 		if (!this.thresholdReached && predicted > this.threshold)
 		{
 			this.thresholdReached(this.written, predicted);
@@ -112,7 +112,7 @@ abstract class ThresholdingOutputStream extends OutputStream
 	/**
 	 * @return the current threshold value.
 	 */
-	int getThreshold()
+	long getThreshold()
 	{
 		return this.threshold;
 	}
@@ -125,5 +125,5 @@ abstract class ThresholdingOutputStream extends OutputStream
 	 * @param current is the current number of bytes that have been written
 	 * @param predicted is the total number after the write completes
 	 */
-	abstract protected void thresholdReached(int current, int predicted) throws IOException;
+	abstract protected void thresholdReached(long current, long predicted) throws IOException;
 }
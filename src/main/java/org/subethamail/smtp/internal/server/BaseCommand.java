@@ -65,6 +65,30 @@ public abstract class BaseCommand implements Command
 		return commandString.substring(4).trim();
 	}
 
+	/**
+	 * @return the index of the first character at or after {@code from} which
+	 *         is not whitespace, in the sense of {@link String#trim()}
+	 */
+	protected static int skipWhitespace(String commandString, int from)
+	{
+		int i = from;
+		while (i < commandString.length() && commandString.charAt(i) <= ' ')
+			i++;
+		return i;
+	}
+
+	/**
+	 * @return the length of {@code commandString} without trailing
+	 *         whitespace, in the sense of {@link String#trim()}
+	 */
+	protected static int trimmedLength(String commandString)
+	{
+		int end = commandString.length();
+		while (end > 0 && commandString.charAt(end - 1) <= ' ')
+			end--;
+		return end;
+	}
+
 	public static String[] getArgs(String commandString)
 	{
 		List<String> strings = new ArrayList<>();
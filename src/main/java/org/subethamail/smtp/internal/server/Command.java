@@ -17,6 +17,25 @@ public interface Command
 	void execute(String commandString, Session sess) throws IOException, 
 			DropConnectionException;
 
+	/**
+	 * Executes the command when the dispatcher has already located the verb.
+	 * Commands which parse their arguments override this to start at
+	 * {@code argumentOffset} instead of splitting the line again.
+	 *
+	 * @param commandString
+	 *            the complete command line
+	 * @param argumentOffset
+	 *            the index just after the verb, usually a space or the end of
+	 *            the line
+	 * @param sess
+	 *            the session
+	 */
+	default void execute(String commandString, int argumentOffset, Session sess) throws IOException,
+			DropConnectionException
+	{
+		execute(commandString, sess);
+	}
+
 	HelpMessage getHelp() throws CommandException;
 
 	/**
@@ -3,6 +3,7 @@ package org.subethamail.smtp.internal.server;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -16,6 +17,17 @@ import org.subethamail.smtp.server.Session;
 
 /**
  * This class manages execution of a SMTP command.
+ * <p>
+ * Commands are found without allocating: the first four characters of the
+ * line are folded to upper case into an {@code int} which indexes a small hash
+ * table sized so that the registered verbs do not collide. Verbs longer than
+ * four characters (STARTTLS) share the slot of their first four characters and
+ * are confirmed with a region match. The TLS and authentication requirements
+ * of each command are kept as flags on its table entry rather than as wrapper
+ * objects, and the command receives the offset of its arguments.
+ * <p>
+ * The table is immutable and replaced as a whole when a command is added, so
+ * sessions never need to lock.
  *
  * @author Jon Stevens
  * @author Scott Hernandez
@@ -23,17 +35,34 @@ import org.subethamail.smtp.server.Session;
 public final class CommandHandler {
     private final static Logger log = LoggerFactory.getLogger(CommandHandler.class);
 
+    /**
+     * The command is refused with 530 unless TLS is active, if the server
+     * requires TLS.
+     */
+    public static final int REQUIRE_TLS = 1;
+
+    /**
+     * The command is refused with 530 unless the client has authenticated, if
+     * the server requires authentication.
+     */
+    public static final int REQUIRE_AUTH = 2;
+
+    private static final int KEY_LENGTH = 4;
+
     /**
      * The map of known SMTP commands. Keys are upper case names of the
-     * commands.
+     * commands. Only changed while holding the lock on this object, the
+     * dispatch path uses {@link #table}.
      */
-    private final Map<String, Command> commandMap = new HashMap<>();
+    private final Map<String, Entry> commandMap = new HashMap<>();
+
+    private volatile Table table = Table.EMPTY;
 
     public CommandHandler() {
         // This solution should be more robust than the earlier "manual"
         // configuration.
         for (CommandRegistry registry : CommandRegistry.values()) {
-            this.addCommand(registry.getCommand());
+            this.addCommand(registry.getUnwrappedCommand(), registry.getFlags());
         }
     }
 
@@ -51,39 +80,87 @@ public final class CommandHandler {
     }
 
     /**
-     * Adds or replaces the specified command.
+     * Adds or replaces the specified command. {@link RequireTLSCommandWrapper}
+     * and {@link RequireAuthCommandWrapper} are unwrapped into the equivalent
+     * flags.
      */
     public void addCommand(Command command) {
+        int flags = 0;
+        while (true) {
+            if (command instanceof RequireTLSCommandWrapper) {
+                flags |= REQUIRE_TLS;
+                command = ((RequireTLSCommandWrapper) command).getWrapped();
+            } else if (command instanceof RequireAuthCommandWrapper) {
+                flags |= REQUIRE_AUTH;
+                command = ((RequireAuthCommandWrapper) command).getWrapped();
+            } else {
+                break;
+            }
+        }
+        addCommand(command, flags);
+    }
+
+    /**
+     * Adds or replaces the specified command.
+     *
+     * @param command
+     *            the command
+     * @param flags
+     *            a combination of {@link #REQUIRE_TLS} and
+     *            {@link #REQUIRE_AUTH}
+     */
+    public synchronized void addCommand(Command command, int flags) {
         log.debug("Added command: {}", command.getName());
 
-        this.commandMap.put(command.getName(), command);
+        this.commandMap.put(command.getName(), new Entry(command, flags));
+        this.table = Table.build(this.commandMap);
     }
 
     /**
      * Returns the command object corresponding to the specified command name.
-     * 
+     *
      * @param commandName
      *            case insensitive name of the command.
      * @return the command object, or null, if the command is unknown.
      */
     public Command getCommand(String commandName) {
         String upperCaseCommandName = commandName.toUpperCase(Locale.ENGLISH);
-        return this.commandMap.get(upperCaseCommandName);
+        Entry entry = this.table.byVerb.get(upperCaseCommandName);
+        return entry == null ? null : entry.command;
     }
 
     public boolean containsCommand(String command) {
-        return this.commandMap.containsKey(command);
+        return this.table.byVerb.containsKey(command);
     }
 
     public Set<String> getVerbs() {
-        return this.commandMap.keySet();
+        return this.table.byVerb.keySet();
     }
 
     public void handleCommand(Session context, String commandString)
             throws SocketTimeoutException, IOException, DropConnectionException {
         try {
-            Command command = getCommandFromString(commandString);
-            command.execute(commandString, context);
+            Entry entry = this.table.lookup(commandString);
+            int argumentOffset;
+            if (entry != null) {
+                argumentOffset = entry.verb.length();
+            } else {
+                entry = getEntryFromString(commandString);
+                argumentOffset = commandString.regionMatches(true, 0, entry.verb, 0, entry.verb.length())
+                        ? entry.verb.length()
+                        : verbEnd(commandString);
+            }
+            // the authentication check used to wrap the TLS check, keep its
+            // precedence
+            if ((entry.flags & REQUIRE_AUTH) != 0 && context.getServer().getRequireAuth()
+                    && !context.isAuthenticated()) {
+                context.sendResponse("530 5.7.0  Authentication required");
+            } else if ((entry.flags & REQUIRE_TLS) != 0 && context.getServer().getRequireTLS()
+                    && !context.isTLSStarted()) {
+                context.sendResponse("530 Must issue a STARTTLS command first");
+            } else {
+                entry.command.execute(commandString, argumentOffset, context);
+            }
         } catch (CommandException e) {
             context.sendResponse("500 " + e.getMessage());
         }
@@ -94,30 +171,38 @@ public final class CommandHandler {
      * @throws CommandException
      */
     public HelpMessage getHelp(String command) throws CommandException {
-        return getCommandFromString(command).getHelp();
+        Entry entry = this.table.lookup(command);
+        if (entry == null) {
+            entry = getEntryFromString(command);
+        }
+        return entry.command.getHelp();
     }
 
-    private Command getCommandFromString(String commandString)
+    /**
+     * The original lookup by string, for lines the table cannot resolve: verbs
+     * shorter than four characters, leading whitespace, non-ASCII input, and
+     * unknown commands.
+     */
+    private Entry getEntryFromString(String commandString)
             throws UnknownCommandException, InvalidCommandNameException {
-        Command command = null;
-        String key = toKey(commandString);
-        command = this.commandMap.get(key);
-        if (command == null) {
+        Map<String, Entry> byVerb = this.table.byVerb;
+        Entry entry = byVerb.get(toKey(commandString));
+        if (entry == null) {
             // some commands have a verb longer than 4 letters
             String verb = toVerb(commandString);
-            command = this.commandMap.get(verb);
+            entry = byVerb.get(verb);
         }
-        if (command == null) {
+        if (entry == null) {
             throw new UnknownCommandException("Error: command not implemented");
         }
-        return command;
+        return entry;
     }
 
     private static String toKey(String string) throws InvalidCommandNameException {
-        if (string == null || string.length() < 4)
+        if (string == null || string.length() < KEY_LENGTH)
             throw new InvalidCommandNameException("Error: bad syntax");
 
-        return string.substring(0, 4).toUpperCase(Locale.ENGLISH);
+        return string.substring(0, KEY_LENGTH).toUpperCase(Locale.ENGLISH);
     }
 
     private static String toVerb(String string) throws InvalidCommandNameException {
@@ -127,4 +212,185 @@ public final class CommandHandler {
 
         return stringTokenizer.nextToken().toUpperCase(Locale.ENGLISH);
     }
+
+    /** @return the index just after the first token of the line */
+    private static int verbEnd(String string) {
+        int i = 0;
+        int len = string.length();
+        while (i < len && isWhitespace(string.charAt(i))) {
+            i++;
+        }
+        while (i < len && !isWhitespace(string.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /** The default delimiters of {@link StringTokenizer} */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * Folds the first four characters of {@code s} into an int, upper casing
+     * ASCII letters.
+     *
+     * @return the key, or 0 if the string is too short or a character is not
+     *         ASCII
+     */
+    static int key(CharSequence s) {
+        if (s.length() < KEY_LENGTH) {
+            return 0;
+        }
+        int key = 0;
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            char c = s.charAt(i);
+            if (c == 0 || c > 0x7f) {
+                return 0;
+            }
+            if (c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            }
+            key = key << 8 | c;
+        }
+        return key;
+    }
+
+    private static final class Entry {
+        final Command command;
+        final String verb;
+        final int flags;
+
+        Entry(Command command, int flags) {
+            this.command = command;
+            this.verb = command.getName();
+            this.flags = flags;
+        }
+    }
+
+    /**
+     * An immutable open addressing table from {@link #key(CharSequence)} to
+     * the commands whose verb starts with those four characters. The table is
+     * grown until the keys do not collide, so a lookup normally inspects one
+     * slot; linear probing is only the fallback should no such size be found.
+     */
+    private static final class Table {
+
+        static final Table EMPTY = build(Collections.emptyMap());
+
+        /** Largest table tried when looking for a collision free size */
+        private static final int MAX_BITS = 12;
+
+        private static final int MULTIPLIER = 0x9E3779B9;
+
+        final Map<String, Entry> byVerb;
+        private final int[] keys;
+
+        /**
+         * Per slot, the command whose verb is exactly the four key characters
+         * (if any) followed by the commands with longer verbs.
+         */
+        private final Entry[][] slots;
+        private final int shift;
+        private final int mask;
+
+        private Table(Map<String, Entry> byVerb, int bits) {
+            this.byVerb = byVerb;
+            this.keys = new int[1 << bits];
+            this.slots = new Entry[1 << bits][];
+            this.shift = 32 - bits;
+            this.mask = (1 << bits) - 1;
+        }
+
+        static Table build(Map<String, Entry> commands) {
+            Map<String, Entry> byVerb = Collections.unmodifiableMap(new HashMap<>(commands));
+            Map<Integer, Entry[]> byKey = new HashMap<>();
+            for (Entry entry : byVerb.values()) {
+                int key = key(entry.verb);
+                if (key == 0) {
+                    // left to the fallback lookup
+                    continue;
+                }
+                Entry[] existing = byKey.get(key);
+                Entry[] list;
+                if (existing == null) {
+                    list = new Entry[] { entry };
+                } else {
+                    list = new Entry[existing.length + 1];
+                    if (entry.verb.length() == KEY_LENGTH) {
+                        list[0] = entry;
+                        System.arraycopy(existing, 0, list, 1, existing.length);
+                    } else {
+                        System.arraycopy(existing, 0, list, 0, existing.length);
+                        list[existing.length] = entry;
+                    }
+                }
+                byKey.put(key, list);
+            }
+            int bits = 1;
+            while (1 << bits < 2 * byKey.size()) {
+                bits++;
+            }
+            while (bits < MAX_BITS && !isCollisionFree(byKey.keySet(), bits)) {
+                bits++;
+            }
+            Table table = new Table(byVerb, bits);
+            for (Map.Entry<Integer, Entry[]> e : byKey.entrySet()) {
+                table.put(e.getKey(), e.getValue());
+            }
+            return table;
+        }
+
+        private static boolean isCollisionFree(Set<Integer> keys, int bits) {
+            boolean[] used = new boolean[1 << bits];
+            for (int key : keys) {
+                int i = (key * MULTIPLIER) >>> (32 - bits);
+                if (used[i]) {
+                    return false;
+                }
+                used[i] = true;
+            }
+            return true;
+        }
+
+        private void put(int key, Entry[] entries) {
+            int i = (key * MULTIPLIER) >>> shift;
+            while (slots[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            slots[i] = entries;
+        }
+
+        /**
+         * @return the command the line starts with, or null if the table cannot
+         *         tell (the fallback lookup decides)
+         */
+        Entry lookup(String line) {
+            int key = key(line);
+            if (key == 0) {
+                return null;
+            }
+            int i = (key * MULTIPLIER) >>> shift;
+            Entry[] entries;
+            while ((entries = slots[i]) != null) {
+                if (keys[i] == key) {
+                    for (Entry entry : entries) {
+                        int len = entry.verb.length();
+                        if (len == KEY_LENGTH) {
+                            // like the original lookup, four matching
+                            // characters are enough ("MAILFROM:" is MAIL)
+                            return entry;
+                        } else if (line.regionMatches(true, KEY_LENGTH, entry.verb, KEY_LENGTH, len - KEY_LENGTH)
+                                && (line.length() == len || isWhitespace(line.charAt(len)))) {
+                            return entry;
+                        }
+                    }
+                    return null;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+    }
 }
@@ -43,22 +43,54 @@ public enum CommandRegistry
 	BDAT(new BdatCommand(), true, true);
 
 	private final Command command;
+	private final Command unwrappedCommand;
+	private final int flags;
 
 	CommandRegistry(Command cmd, boolean checkForStartedTLSWhenRequired, boolean checkForAuthIfRequired)
 	{
-		final Command c;
-        if (checkForStartedTLSWhenRequired)
-			c = new RequireTLSCommandWrapper(cmd);
-		else
-			c= cmd;
-        if (checkForAuthIfRequired)
-            this.command = new RequireAuthCommandWrapper(c);
-        else 
-            this.command = c;
+		this.unwrappedCommand = cmd;
+		this.flags = (checkForStartedTLSWhenRequired ? CommandHandler.REQUIRE_TLS : 0)
+				| (checkForAuthIfRequired ? CommandHandler.REQUIRE_AUTH : 0);
+		this.command = wrap(cmd);
 	}
 
+	/**
+	 * Returns the command wrapped in {@link RequireTLSCommandWrapper} and
+	 * {@link RequireAuthCommandWrapper} as appropriate for this verb.
+	 */
 	public Command getCommand()
 	{
 		return this.command;
 	}
+
+	public Command getUnwrappedCommand()
+	{
+		return this.unwrappedCommand;
+	}
+
+	/**
+	 * @return the {@link CommandHandler#REQUIRE_TLS} and
+	 *         {@link CommandHandler#REQUIRE_AUTH} flags of this verb
+	 */
+	public int getFlags()
+	{
+		return this.flags;
+	}
+
+	/**
+	 * Applies the TLS and authentication requirements of this verb to a
+	 * replacement implementation of the command.
+	 */
+	public Command wrap(Command cmd)
+	{
+		final Command c;
+		if ((flags & CommandHandler.REQUIRE_TLS) != 0)
+			c = new RequireTLSCommandWrapper(cmd);
+		else
+			c = cmd;
+		if ((flags & CommandHandler.REQUIRE_AUTH) != 0)
+			return new RequireAuthCommandWrapper(c);
+		else
+			return c;
+	}
 }
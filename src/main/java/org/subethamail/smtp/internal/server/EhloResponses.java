@@ -0,0 +1,110 @@
+package org.subethamail.smtp.internal.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.subethamail.smtp.AuthenticationHandlerFactory;
+import org.subethamail.smtp.internal.command.AuthCommand;
+import org.subethamail.smtp.internal.io.EncodedResponse;
+import org.subethamail.smtp.internal.util.TextUtils;
+import org.subethamail.smtp.server.EhloExtension;
+import org.subethamail.smtp.server.SMTPServer;
+
+/**
+ * The replies to EHLO, assembled and encoded once per TLS state from an ordered
+ * list of {@link EhloExtension}s.
+ */
+public final class EhloResponses {
+
+    public static final EhloExtension EIGHT_BIT_MIME = EhloExtension.of("8BITMIME");
+
+    public static final EhloExtension SIZE = (server, tlsStarted) -> server.getMaxMessageSize() > 0
+            ? Optional.of("SIZE " + server.getMaxMessageSize())
+            : Optional.empty();
+
+    /** Enabling / Hiding TLS is a server setting */
+    public static final EhloExtension STARTTLS = (server, tlsStarted) -> server.getEnableTLS()
+            && !server.getHideTLS() ? Optional.of("STARTTLS") : Optional.empty();
+
+    public static final EhloExtension CHUNKING = EhloExtension.of("CHUNKING");
+
+    public static final EhloExtension SMTPUTF8 = EhloExtension.of("SMTPUTF8");
+
+    public static final EhloExtension AUTH = (server, tlsStarted) -> {
+        Optional<AuthenticationHandlerFactory> authFact = server.getAuthenticationHandlerFactory();
+        final boolean displayAuth;
+        if (tlsStarted) {
+            displayAuth = authFact.isPresent();
+        } else {
+            displayAuth = authFact.isPresent()
+                    && (!server.getRequireTLS() || server.getShowAuthCapabilitiesBeforeSTARTTLS());
+        }
+        if (displayAuth) {
+            List<String> supportedMechanisms = authFact.get().getAuthenticationMechanisms();
+            if (!supportedMechanisms.isEmpty()) {
+                return Optional.of(AuthCommand.VERB + " " + TextUtils.joinTogether(supportedMechanisms, " "));
+            }
+        }
+        return Optional.empty();
+    };
+
+    /** The extensions every server advertises (when applicable), in order */
+    public static final List<EhloExtension> DEFAULT_EXTENSIONS = Collections
+            .unmodifiableList(Arrays.asList(EIGHT_BIT_MIME, SIZE, STARTTLS, CHUNKING, SMTPUTF8, AUTH));
+
+    private final EncodedResponse beforeTls;
+    private final EncodedResponse afterTls;
+
+    private EhloResponses(EncodedResponse beforeTls, EncodedResponse afterTls) {
+        this.beforeTls = beforeTls;
+        this.afterTls = afterTls;
+    }
+
+    /**
+     * Builds the replies for {@code server}.
+     *
+     * @param server
+     *            the server, its host name and settings must already be set
+     * @param extensions
+     *            the extensions in the order they are advertised
+     * @return the replies
+     */
+    public static EhloResponses create(SMTPServer server, List<EhloExtension> extensions) {
+        return new EhloResponses(build(server, extensions, false), build(server, extensions, true));
+    }
+
+    private static EncodedResponse build(SMTPServer server, List<EhloExtension> extensions, boolean tlsStarted) {
+        // postfix returns...
+        // 250-server.host.name
+        // 250-PIPELINING
+        // 250-SIZE 10240000
+        // 250-ETRN
+        // 250 8BITMIME
+        List<String> lines = new ArrayList<>();
+        lines.add(server.getHostName());
+        for (EhloExtension extension : extensions) {
+            extension.keyword(server, tlsStarted).ifPresent(lines::add);
+        }
+        lines.add("Ok");
+        StringBuilder response = new StringBuilder();
+        for (int i = 0; i < lines.size(); i++) {
+            if (i > 0) {
+                response.append("\r\n");
+            }
+            response.append(i == lines.size() - 1 ? "250 " : "250-").append(lines.get(i));
+        }
+        return EncodedResponse.of(response.toString());
+    }
+
+    /**
+     * @param tlsStarted
+     *            whether the session has completed a TLS handshake
+     * @return the complete, encoded EHLO reply
+     */
+    public EncodedResponse get(boolean tlsStarted) {
+        return tlsStarted ? afterTls : beforeTls;
+    }
+}
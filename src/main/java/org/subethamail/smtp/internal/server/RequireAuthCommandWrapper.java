@@ -54,4 +54,12 @@ public  final class RequireAuthCommandWrapper implements Command
     {
         return wrapped.getName();
     }
+
+    /**
+     * @return the command this wrapper guards
+     */
+    public Command getWrapped()
+    {
+        return wrapped;
+    }
 }
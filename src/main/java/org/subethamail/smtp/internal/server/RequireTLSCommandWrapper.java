@@ -45,4 +45,12 @@ public final class RequireTLSCommandWrapper implements Command
 	{
 		return wrapped.getName();
 	}
+
+	/**
+	 * @return the command this wrapper guards
+	 */
+	public Command getWrapped()
+	{
+		return wrapped;
+	}
 }
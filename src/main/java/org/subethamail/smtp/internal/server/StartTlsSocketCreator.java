@@ -0,0 +1,95 @@
+package org.subethamail.smtp.internal.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.subethamail.smtp.server.SSLSocketCreator;
+
+/**
+ * Wraps a session's socket for STARTTLS in server mode, enabling the given
+ * protocols and cipher suites in the server's order of preference.
+ */
+public final class StartTlsSocketCreator implements SSLSocketCreator {
+
+    /** TLS 1.3 first, nothing older than TLS 1.2 */
+    public static final List<String> DEFAULT_PROTOCOLS = Arrays.asList("TLSv1.3", "TLSv1.2");
+
+    /**
+     * AEAD suites with forward secrecy, cheapest first, then the CBC ones some
+     * older TLS 1.2 clients are limited to.
+     */
+    public static final List<String> DEFAULT_CIPHER_SUITES = Arrays.asList( //
+            "TLS_AES_128_GCM_SHA256", //
+            "TLS_AES_256_GCM_SHA384", //
+            "TLS_CHACHA20_POLY1305_SHA256", //
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256", //
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", //
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384", //
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384", //
+            "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256", //
+            "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256", //
+            "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256", //
+            "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256", //
+            "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA", //
+            "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA");
+
+    /** The context to use, the JVM's default one if empty */
+    private final Optional<SSLContext> context;
+    private final boolean requireClientCertificate;
+    /** Those given to the builder, or empty for the supported defaults */
+    private final Optional<String[]> protocols;
+    private final Optional<String[]> cipherSuites;
+
+    public StartTlsSocketCreator(Optional<SSLContext> context, boolean requireClientCertificate,
+            Optional<String[]> protocols, Optional<String[]> cipherSuites) {
+        this.context = context;
+        this.requireClientCertificate = requireClientCertificate;
+        this.protocols = protocols;
+        this.cipherSuites = cipherSuites;
+    }
+
+    @Override
+    public SSLSocket createSSLSocket(Socket socket) throws IOException {
+        SSLSocketFactory sf = context.isPresent() ? context.get().getSocketFactory()
+                : (SSLSocketFactory) SSLSocketFactory.getDefault();
+        // the address as is, a reverse lookup here would stall every STARTTLS
+        InetSocketAddress remoteAddress = (InetSocketAddress) socket.getRemoteSocketAddress();
+        SSLSocket s = (SSLSocket) sf.createSocket(socket, remoteAddress.getHostString(), socket.getPort(), true);
+
+        // we are a server
+        s.setUseClientMode(false);
+
+        SSLParameters parameters = s.getSSLParameters();
+        parameters.setProtocols(protocols.orElseGet(() -> supported(DEFAULT_PROTOCOLS, s.getSupportedProtocols())));
+        parameters.setCipherSuites(
+                cipherSuites.orElseGet(() -> supported(DEFAULT_CIPHER_SUITES, s.getSupportedCipherSuites())));
+        parameters.setUseCipherSuitesOrder(true);
+        if (requireClientCertificate) {
+            parameters.setNeedClientAuth(true);
+        }
+        s.setSSLParameters(parameters);
+        return s;
+    }
+
+    /** The preferred names which are supported, in order of preference */
+    private static String[] supported(List<String> preferred, String[] supported) {
+        List<String> names = Arrays.asList(supported);
+        List<String> list = new ArrayList<>(preferred.size());
+        for (String name : preferred) {
+            if (names.contains(name)) {
+                list.add(name);
+            }
+        }
+        return list.toArray(new String[0]);
+    }
+}
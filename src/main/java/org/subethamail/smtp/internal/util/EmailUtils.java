@@ -44,7 +44,14 @@ public final class EmailUtils {
      * Extracts the email address within a <> after a specified offset.
      */
     public static String extractEmailAddress(String args, int offset) {
-        int len = args.length();
+        return extractEmailAddress(args, offset, args.length());
+    }
+
+    /**
+     * Extracts the email address within a <> between {@code offset} and
+     * {@code len} (exclusive) of {@code args}.
+     */
+    public static String extractEmailAddress(String args, int offset, int len) {
         StringBuilder builder = new StringBuilder(len - offset);
         int state = EXTRACT_STATE_SEARCHING;
         int brackets = 0;
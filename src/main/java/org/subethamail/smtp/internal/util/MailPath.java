@@ -0,0 +1,390 @@
+package org.subethamail.smtp.internal.util;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * The reverse-path or forward-path of a MAIL or RCPT command together with its
+ * ESMTP parameters, parsed in a single pass over the command line (RFC 5321
+ * section 4.1.2, with the UTF-8 local parts and domains of RFC 6531).
+ * <p>
+ * Only the mailbox is copied out of the line; parameters stay in the line and
+ * are looked up on demand. A source route ({@code <@a,@b:user@c>}) is accepted
+ * and ignored as RFC 5321 section 3.3 recommends. As a concession to existing
+ * clients a mailbox without angle brackets and spaces between the colon and
+ * the path are accepted too.
+ */
+public final class MailPath {
+
+    private final String line;
+    private final String mailbox;
+    private final boolean bracketed;
+
+    /** Bounds of the parameters in {@link #line}, empty if there are none */
+    private final int parametersStart;
+    private final int parametersEnd;
+
+    private MailPath(String line, String mailbox, boolean bracketed, int parametersStart, int parametersEnd) {
+        this.line = line;
+        this.mailbox = mailbox;
+        this.bracketed = bracketed;
+        this.parametersStart = parametersStart;
+        this.parametersEnd = parametersEnd;
+    }
+
+    /**
+     * Parses a path and its parameters.
+     *
+     * @param line
+     *            the command line
+     * @param from
+     *            index of the path, e.g. just after {@code FROM:}
+     * @param to
+     *            end of the arguments (exclusive), normally the line length
+     *            without trailing whitespace
+     * @return the parsed path, or null if the arguments are not well formed
+     */
+    public static MailPath parse(String line, int from, int to) {
+        Preconditions.checkArgument(0 <= from && from <= to && to <= line.length(), "invalid bounds");
+        int i = from;
+        while (i < to && line.charAt(i) == ' ') {
+            i++;
+        }
+        if (i == to) {
+            return null;
+        }
+        boolean bracketed = line.charAt(i) == '<';
+        String mailbox;
+        if (bracketed) {
+            i++;
+            if (i < to && line.charAt(i) == '>') {
+                // the null reverse-path <>
+                mailbox = "";
+                i++;
+            } else {
+                if (i < to && line.charAt(i) == '@') {
+                    i = skipSourceRoute(line, i, to);
+                    if (i < 0) {
+                        return null;
+                    }
+                }
+                int start = i;
+                i = parseMailbox(line, i, to);
+                if (i < 0 || i == to || line.charAt(i) != '>') {
+                    return null;
+                }
+                mailbox = line.substring(start, i);
+                i++;
+            }
+        } else {
+            int start = i;
+            i = parseMailbox(line, i, to);
+            if (i < 0) {
+                return null;
+            }
+            mailbox = line.substring(start, i);
+        }
+        if (i == to) {
+            return new MailPath(line, mailbox, bracketed, to, to);
+        }
+        if (line.charAt(i) != ' ') {
+            return null;
+        }
+        while (i < to && line.charAt(i) == ' ') {
+            i++;
+        }
+        if (!isValidParameters(line, i, to)) {
+            return null;
+        }
+        return new MailPath(line, mailbox, bracketed, i, to);
+    }
+
+    /**
+     * @return the mailbox without angle brackets and source route, empty for
+     *         the null reverse-path
+     */
+    public String getMailbox() {
+        return mailbox;
+    }
+
+    /** @return true for the null reverse-path {@code <>} */
+    public boolean isNullPath() {
+        return mailbox.isEmpty();
+    }
+
+    /** @return false if the client sent the mailbox without angle brackets */
+    public boolean isBracketed() {
+        return bracketed;
+    }
+
+    /**
+     * Returns the value of an ESMTP parameter.
+     *
+     * @param keyword
+     *            the case insensitive parameter keyword, e.g. "SIZE"
+     * @return the value, empty string for a parameter without a value, or empty
+     *         if the parameter is absent
+     */
+    public Optional<String> getParameter(String keyword) {
+        int i = parametersStart;
+        while (i < parametersEnd) {
+            int end = i;
+            while (end < parametersEnd && line.charAt(end) != ' ') {
+                end++;
+            }
+            int k = keyword.length();
+            if (end - i >= k && line.regionMatches(true, i, keyword, 0, k)) {
+                if (i + k == end) {
+                    return Optional.of("");
+                } else if (line.charAt(i + k) == '=') {
+                    return Optional.of(line.substring(i + k + 1, end));
+                }
+            }
+            i = end;
+            while (i < parametersEnd && line.charAt(i) == ' ') {
+                i++;
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return all parameters in order, keyed by upper case keyword, values are
+     *         empty for parameters without a value
+     */
+    public Map<String, String> getParameters() {
+        Map<String, String> map = new LinkedHashMap<>();
+        int i = parametersStart;
+        while (i < parametersEnd) {
+            int end = i;
+            int eq = -1;
+            while (end < parametersEnd && line.charAt(end) != ' ') {
+                if (eq < 0 && line.charAt(end) == '=') {
+                    eq = end;
+                }
+                end++;
+            }
+            if (eq < 0) {
+                map.put(line.substring(i, end).toUpperCase(Locale.ENGLISH), "");
+            } else {
+                map.put(line.substring(i, eq).toUpperCase(Locale.ENGLISH), line.substring(eq + 1, end));
+            }
+            i = end;
+            while (i < parametersEnd && line.charAt(i) == ' ') {
+                i++;
+            }
+        }
+        return map;
+    }
+
+    /** @return the parameters as sent, empty if there are none */
+    public String getParametersString() {
+        return line.substring(parametersStart, parametersEnd);
+    }
+
+    @Override
+    public String toString() {
+        return "<" + mailbox + ">" + (parametersStart < parametersEnd ? " " + getParametersString() : "");
+    }
+
+    /**
+     * Skips {@code A-d-l ":"}, a comma separated list of {@code "@" Domain}.
+     *
+     * @return the index after the colon or -1
+     */
+    private static int skipSourceRoute(String s, int i, int to) {
+        while (true) {
+            if (i == to || s.charAt(i) != '@') {
+                return -1;
+            }
+            i = parseDomain(s, i + 1, to);
+            if (i < 0 || i == to) {
+                return -1;
+            }
+            char c = s.charAt(i);
+            if (c == ':') {
+                return i + 1;
+            } else if (c != ',') {
+                return -1;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Parses {@code Local-part "@" ( Domain / address-literal )}.
+     *
+     * @return the index after the mailbox or -1
+     */
+    private static int parseMailbox(String s, int i, int to) {
+        if (i == to) {
+            return -1;
+        }
+        i = s.charAt(i) == '"' ? parseQuotedString(s, i + 1, to) : parseDotString(s, i, to);
+        if (i < 0 || i == to || s.charAt(i) != '@') {
+            return -1;
+        }
+        i++;
+        if (i < to && s.charAt(i) == '[') {
+            return parseAddressLiteral(s, i + 1, to);
+        }
+        return parseDomain(s, i, to);
+    }
+
+    /** @return the index after the closing quote or -1 */
+    private static int parseQuotedString(String s, int i, int to) {
+        while (i < to) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                return i + 1;
+            } else if (c == '\\') {
+                // quoted-pairSMTP
+                if (i + 1 == to || s.charAt(i + 1) < 32 || s.charAt(i + 1) > 126) {
+                    return -1;
+                }
+                i += 2;
+            } else if (c >= 32 && c != 127) {
+                // qtextSMTP and UTF8-non-ascii
+                i++;
+            } else {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /** @return the index after the last atom or -1 */
+    private static int parseDotString(String s, int i, int to) {
+        int atomStart = i;
+        while (i < to) {
+            char c = s.charAt(i);
+            if (isAtext(c)) {
+                i++;
+            } else if (c == '.' && i > atomStart) {
+                i++;
+                atomStart = i;
+            } else {
+                break;
+            }
+        }
+        return i > atomStart ? i : -1;
+    }
+
+    /** @return the index after the domain or -1 */
+    private static int parseDomain(String s, int i, int to) {
+        while (true) {
+            // sub-domain = Let-dig [Ldh-str]
+            if (i == to || !isLetDig(s.charAt(i))) {
+                return -1;
+            }
+            i++;
+            while (i < to && (isLetDig(s.charAt(i)) || s.charAt(i) == '-')) {
+                i++;
+            }
+            if (s.charAt(i - 1) == '-') {
+                return -1;
+            }
+            if (i < to && s.charAt(i) == '.') {
+                i++;
+            } else {
+                return i;
+            }
+        }
+    }
+
+    /** @return the index after the closing bracket or -1 */
+    private static int parseAddressLiteral(String s, int i, int to) {
+        int start = i;
+        while (i < to) {
+            char c = s.charAt(i);
+            if (c == ']') {
+                return i > start ? i + 1 : -1;
+            } else if (c < 33 || c > 126 || c == '[' || c == '\\') {
+                return -1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    private static boolean isValidParameters(String s, int i, int to) {
+        while (i < to) {
+            // esmtp-keyword = (ALPHA / DIGIT) *(ALPHA / DIGIT / "-")
+            if (!isAlphaDigit(s.charAt(i))) {
+                return false;
+            }
+            i++;
+            while (i < to && (isAlphaDigit(s.charAt(i)) || s.charAt(i) == '-')) {
+                i++;
+            }
+            if (i < to && s.charAt(i) == '=') {
+                // esmtp-value = 1*(%d33-60 / %d62-126 / UTF8-non-ascii)
+                i++;
+                int valueStart = i;
+                while (i < to && s.charAt(i) != ' ') {
+                    char c = s.charAt(i);
+                    if (c < 33 || c == '=' || c == 127) {
+                        return false;
+                    }
+                    i++;
+                }
+                if (i == valueStart) {
+                    return false;
+                }
+            }
+            if (i < to) {
+                if (s.charAt(i) != ' ') {
+                    return false;
+                }
+                while (i < to && s.charAt(i) == ' ') {
+                    i++;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAlphaDigit(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    /** Letters and digits, including the non-ASCII ones of U-labels */
+    private static boolean isLetDig(char c) {
+        return isAlphaDigit(c) || c >= 0x80;
+    }
+
+    /** RFC 5322 atext, extended with UTF8-non-ascii by RFC 6531 */
+    private static boolean isAtext(char c) {
+        if (isAlphaDigit(c) || c >= 0x80) {
+            return true;
+        }
+        switch (c) {
+        case '!':
+        case '#':
+        case '$':
+        case '%':
+        case '&':
+        case '\'':
+        case '*':
+        case '+':
+        case '-':
+        case '/':
+        case '=':
+        case '?':
+        case '^':
+        case '_':
+        case '`':
+        case '{':
+        case '|':
+        case '}':
+        case '~':
+            return true;
+        default:
+            return false;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.subethamail.smtp.server;
+
+import java.util.Optional;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * An SMTP service extension advertised in the reply to EHLO, for example
+ * {@code SIZE 10240000} or {@code ENHANCEDSTATUSCODES}.
+ * <p>
+ * The EHLO reply is assembled once per TLS state when the server is built and
+ * is sent as-is afterwards, so implementations are only consulted at build
+ * time and must not depend on anything else about the session.
+ */
+@FunctionalInterface
+public interface EhloExtension {
+
+    /**
+     * Returns the EHLO keyword followed by its parameters, if any, or empty if
+     * the extension is not advertised in the given state.
+     *
+     * @param server
+     *            the server being built
+     * @param tlsStarted
+     *            whether the reply is for a session which has completed a TLS
+     *            handshake
+     * @return the EHLO line without the {@code 250-} prefix
+     */
+    Optional<String> keyword(SMTPServer server, boolean tlsStarted);
+
+    /**
+     * Returns an extension which is always advertised with the given keyword
+     * (and parameters).
+     */
+    static EhloExtension of(String keyword) {
+        Preconditions.checkNotNull(keyword);
+        Preconditions.checkArgument(!keyword.isEmpty(), "keyword cannot be empty");
+        Optional<String> k = Optional.of(keyword);
+        return (server, tlsStarted) -> k;
+    }
+}
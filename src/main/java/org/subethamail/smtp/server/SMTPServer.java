@@ -7,6 +7,11 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -17,22 +22,32 @@ import java.util.function.Predicate;
 import javax.annotation.concurrent.GuardedBy;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.subethamail.smtp.AuthenticationHandlerFactory;
+import org.subethamail.smtp.HandshakeStats;
+import org.subethamail.smtp.MessageContext;
 import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.PoolStats;
+import org.subethamail.smtp.SpillStats;
 import org.subethamail.smtp.Version;
 import org.subethamail.smtp.helper.BasicMessageHandlerFactory;
 import org.subethamail.smtp.helper.BasicMessageListener;
 import org.subethamail.smtp.helper.SimpleMessageListener;
 import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
+import org.subethamail.smtp.helper.SmarterMessageListenerAdapter;
 import org.subethamail.smtp.internal.command.MailCommand;
+import org.subethamail.smtp.internal.io.BufferPool;
+import org.subethamail.smtp.internal.io.SpillFilePool;
 import org.subethamail.smtp.internal.server.AcceptAllSessionHandler;
 import org.subethamail.smtp.internal.server.CommandHandler;
+import org.subethamail.smtp.internal.server.CommandRegistry;
+import org.subethamail.smtp.internal.server.EhloResponses;
 import org.subethamail.smtp.internal.server.ServerThread;
+import org.subethamail.smtp.internal.server.StartTlsSocketCreator;
 
 import com.github.davidmoten.guavamini.Preconditions;
 import org.subethamail.smtp.internal.proxy.ProxyHandler;
@@ -64,7 +79,7 @@ public final class SMTPServer implements SSLSocketCreator {
     /** Hostname used if we can't find one */
     private final static String UNKNOWN_HOSTNAME = "localhost";
 
-    private final static int MAX_MESSAGE_SIZE_UNLIMITED = 0;
+    private final static long MAX_MESSAGE_SIZE_UNLIMITED = 0;
 
     private final Optional<InetAddress> bindAddress; // default to all
                                                      // interfaces
@@ -133,7 +148,7 @@ public final class SMTPServer implements SSLSocketCreator {
      * limits on the message being read; you must do that yourself when reading
      * data.
      */
-    private final int maxMessageSize;
+    private final long maxMessageSize;
 
     private final SessionIdFactory sessionIdFactory;
 
@@ -141,6 +156,18 @@ public final class SMTPServer implements SSLSocketCreator {
 
     private final ProxyHandler proxyHandler;
 
+    /**
+     * Pool of the input buffers borrowed by sessions for the lifetime of their
+     * connection.
+     */
+    private final BufferPool sessionBufferPool;
+
+    /** Most header bytes captured per message, 0 if capture is off */
+    private final int headerCaptureSize;
+
+    /** The replies to EHLO, built once in the constructor */
+    private final EhloResponses ehloResponses;
+
     // mutable state
 
     /** The thread listening on the server socket. */
@@ -162,6 +189,12 @@ public final class SMTPServer implements SSLSocketCreator {
 
     private final SSLSocketCreator startTlsSocketCreator;
 
+    private final HandshakeStats handshakeStats = new HandshakeStats();
+
+    private final int tlsHandshakeTimeoutMs;
+
+    private final List<TlsHandshakeLimiter> tlsHandshakeLimiters;
+
     private final ServerSocketCreator serverSocketCreator;
 
     public static final class Builder {
@@ -233,7 +266,7 @@ public final class SMTPServer implements SSLSocketCreator {
          * limits on the message being read; you must do that yourself when reading
          * data.
          */
-        private int maxMessageSize = MAX_MESSAGE_SIZE_UNLIMITED;
+        private long maxMessageSize = MAX_MESSAGE_SIZE_UNLIMITED;
 
         private SessionIdFactory sessionIdFactory = new TimeBasedSessionIdFactory();
 
@@ -244,10 +277,49 @@ public final class SMTPServer implements SSLSocketCreator {
         /* No proxy handling attempt by default */
         private ProxyHandler proxyHandler = ProxyHandler.NOP;
 
-        private SSLSocketCreator startTlsSocketCreator = SSL_SOCKET_CREATOR_DEFAULT;
+        private Optional<SSLSocketCreator> startTlsSocketCreator = Optional.empty();
+
+        /** The context STARTTLS sockets are created with, the default one if empty */
+        private Optional<SSLContext> startTlsContext = Optional.empty();
+
+        private boolean requireClientCertificate = false;
+
+        private Optional<String[]> tlsProtocols = Optional.empty();
+
+        private Optional<String[]> tlsCipherSuites = Optional.empty();
+
+        /** Size of the TLS session cache, negative to leave the context's as is */
+        private int tlsSessionCacheSize = -1;
+
+        private int tlsSessionTimeoutSeconds;
+
+        private int tlsHandshakeTimeoutMs = 1000 * 10;
+
+        /** Caps the handshakes of this server alone */
+        private Optional<TlsHandshakeLimiter> tlsHandshakeLimit = Optional.empty();
+
+        /** Caps the handshakes of this server and others sharing it */
+        private Optional<TlsHandshakeLimiter> sharedTlsHandshakeLimiter = Optional.empty();
 
         private ServerSocketCreator serverSocketCreator = SERVER_SOCKET_CREATOR_DEFAULT;
 
+        private int sessionBufferSize = BufferPool.DEFAULT_BUFFER_SIZE;
+
+        private int sessionBufferPoolCapacity = BufferPool.DEFAULT_CAPACITY;
+
+        private final List<EhloExtension> ehloExtensions = new ArrayList<>(EhloResponses.DEFAULT_EXTENSIONS);
+
+        private Optional<SimpleMessageListener> simpleMessageListener = Optional.empty();
+
+        private long dataDeferredSize = SimpleMessageListenerAdapter.DEFAULT_DATA_DEFERRED_SIZE;
+
+        private Optional<Path> spoolDirectory = Optional.empty();
+
+        private int spillFilePoolCapacity = SpillFilePool.DEFAULT_CAPACITY;
+
+        /** Most header bytes captured per message, 0 disables capture */
+        private int headerCaptureSize = 0;
+
         private Function<SMTPServer, String> serverThreadNameProvider = server ->
                 ServerThread.class.getName() + " " + server.getDisplayableLocalSocketAddress();
 
@@ -303,14 +375,60 @@ public final class SMTPServer implements SSLSocketCreator {
 
         public Builder messageHandlerFactory(MessageHandlerFactory factory) {
             Preconditions.checkNotNull(factory);
-            Preconditions.checkArgument(this.messageHandlerFactory == MESSAGE_HANDLER_FACTORY_DEFAULT,
-                    "can only set message handler factory once");
+            Preconditions.checkArgument(this.messageHandlerFactory == MESSAGE_HANDLER_FACTORY_DEFAULT
+                    && !this.simpleMessageListener.isPresent(), "can only set message handler factory once");
             this.messageHandlerFactory = factory;
             return this;
         }
 
         public Builder simpleMessageListener(SimpleMessageListener listener) {
-            this.messageHandlerFactory = new SimpleMessageListenerAdapter(listener);
+            Preconditions.checkNotNull(listener);
+            Preconditions.checkArgument(this.messageHandlerFactory == MESSAGE_HANDLER_FACTORY_DEFAULT,
+                    "can only set message handler factory once");
+            this.simpleMessageListener = Optional.of(listener);
+            return this;
+        }
+
+        /**
+         * Sets the size above which the listener adapter set with
+         * {@link #simpleMessageListener} spills a message accepted for several
+         * recipients to a file. Default is 5MB.
+         *
+         * @param bytes
+         *            the threshold in bytes, must not be negative
+         * @return this
+         */
+        public Builder dataDeferredSize(long bytes) {
+            Preconditions.checkArgument(bytes >= 0, "dataDeferredSize cannot be negative");
+            this.dataDeferredSize = bytes;
+            return this;
+        }
+
+        /**
+         * Sets the directory messages are spilled to, for instance a tmpfs
+         * mount. Default is {@code java.io.tmpdir}.
+         *
+         * @param directory
+         *            an existing directory
+         * @return this
+         */
+        public Builder spoolDirectory(Path directory) {
+            Preconditions.checkNotNull(directory, "spoolDirectory cannot be null");
+            this.spoolDirectory = Optional.of(directory);
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of idle spill files kept open for reuse by
+         * later messages. Default is 16, 0 disables pooling.
+         *
+         * @param capacity
+         *            maximum number of idle files, must not be negative
+         * @return this
+         */
+        public Builder spillFilePoolCapacity(int capacity) {
+            Preconditions.checkArgument(capacity >= 0, "spillFilePoolCapacity cannot be negative");
+            this.spillFilePoolCapacity = capacity;
             return this;
         }
 
@@ -366,7 +484,7 @@ public final class SMTPServer implements SSLSocketCreator {
          */
         public Builder fromAddressValidator(Predicate<String> fromAddressValidator) {
             Preconditions.checkNotNull(fromAddressValidator);
-            this.commandHandler.addCommand(new MailCommand(fromAddressValidator));
+            this.commandHandler.addCommand(new MailCommand(fromAddressValidator), CommandRegistry.MAIL.getFlags());
             return this;
         }
 
@@ -513,11 +631,74 @@ public final class SMTPServer implements SSLSocketCreator {
          *            being read; you must do that yourself when reading data.
          * @return this
          */
-        public Builder maxMessageSize(int maxMessageSize) {
+        public Builder maxMessageSize(long maxMessageSize) {
             this.maxMessageSize = maxMessageSize;
             return this;
         }
 
+        /**
+         * Captures the header section of every message during DATA and BDAT,
+         * so handlers can read it from
+         * {@link MessageContext#getMessageHeaders()} instead of parsing the
+         * message again. The data passed to the handler is unchanged. Off by
+         * default.
+         *
+         * @param maxHeaderBytes
+         *            the most header bytes captured per message, longer
+         *            header sections are truncated; 0 disables capture
+         * @return this
+         */
+        public Builder captureHeaders(int maxHeaderBytes) {
+            Preconditions.checkArgument(maxHeaderBytes >= 0, "maxHeaderBytes cannot be negative");
+            this.headerCaptureSize = maxHeaderBytes;
+            return this;
+        }
+
+        /**
+         * Sets the size of the input buffer each session borrows from the server's
+         * buffer pool. Default is 8192 bytes.
+         *
+         * @param bytes
+         *            buffer size in bytes, must be positive
+         * @return this
+         */
+        public Builder sessionBufferSize(int bytes) {
+            Preconditions.checkArgument(bytes > 0, "sessionBufferSize must be positive");
+            this.sessionBufferSize = bytes;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of idle session buffers retained for reuse by
+         * later connections. Buffers returned beyond this limit are discarded.
+         * Default is 256, 0 disables pooling.
+         *
+         * @param capacity
+         *            maximum number of idle buffers, must not be negative
+         * @return this
+         */
+        public Builder sessionBufferPoolCapacity(int capacity) {
+            Preconditions.checkArgument(capacity >= 0, "sessionBufferPoolCapacity cannot be negative");
+            this.sessionBufferPoolCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Adds an extension to the reply to EHLO, after the built-in ones
+         * (8BITMIME, SIZE, STARTTLS, CHUNKING, SMTPUTF8 and AUTH). Advertising an
+         * extension does not implement it; commands or parameters it introduces
+         * must be handled separately, e.g. with a custom {@link CommandHandler}.
+         *
+         * @param extension
+         *            the extension
+         * @return this
+         */
+        public Builder ehloExtension(EhloExtension extension) {
+            Preconditions.checkNotNull(extension);
+            this.ehloExtensions.add(extension);
+            return this;
+        }
+
         /**
          * Sets the {@link SessionIdFactory} which will allocate a unique identifier for
          * each mail sessions. If not set, a reasonable default will be used.
@@ -556,8 +737,14 @@ public final class SMTPServer implements SSLSocketCreator {
             return serverSocketFactory(context.getServerSocketFactory());
         }
 
+        /**
+         * Sets how sockets are wrapped for STARTTLS. The protocols and cipher
+         * suites set on this builder are not applied to them.
+         */
         public Builder startTlsSocketFactory(SSLSocketCreator creator) {
-            this.startTlsSocketCreator = creator;
+            Preconditions.checkNotNull(creator, "creator cannot be null");
+            this.startTlsSocketCreator = Optional.of(creator);
+            this.startTlsContext = Optional.empty();
             return this;
         }
 
@@ -566,27 +753,88 @@ public final class SMTPServer implements SSLSocketCreator {
         }
 
         public Builder startTlsSocketFactory(SSLContext context, boolean requireClientCertificate) {
-            return startTlsSocketFactory(socket -> {
-                InetSocketAddress remoteAddress = (InetSocketAddress) socket.getRemoteSocketAddress();
+            Preconditions.checkNotNull(context, "context cannot be null");
+            this.startTlsContext = Optional.of(context);
+            this.requireClientCertificate = requireClientCertificate;
+            this.startTlsSocketCreator = Optional.empty();
+            return this;
+        }
 
-                SSLSocketFactory sf = context.getSocketFactory();
-                SSLSocket s = (SSLSocket) (sf.createSocket(socket, remoteAddress.getHostName(), socket.getPort(),
-                        true));
+        /**
+         * Sets the protocols STARTTLS may negotiate. By default TLS 1.3 and 1.2,
+         * those of them which are supported.
+         */
+        public Builder tlsProtocols(String... protocols) {
+            Preconditions.checkArgument(protocols.length > 0, "protocols cannot be empty");
+            this.tlsProtocols = Optional.of(protocols.clone());
+            return this;
+        }
+
+        /**
+         * Sets the cipher suites STARTTLS may negotiate, in order of preference.
+         * By default those of the following which are supported: the TLS 1.3
+         * suites (AES-128-GCM, AES-256-GCM, ChaCha20-Poly1305), then the TLS 1.2
+         * ECDHE suites with ECDSA or RSA keys in the same order, then ECDHE
+         * AES-128-CBC with SHA-256 or SHA-1 for older clients.
+         */
+        public Builder tlsCipherSuites(String... cipherSuites) {
+            Preconditions.checkArgument(cipherSuites.length > 0, "cipherSuites cannot be empty");
+            this.tlsCipherSuites = Optional.of(cipherSuites.clone());
+            return this;
+        }
 
-                // we are a server
-                s.setUseClientMode(false);
+        /**
+         * Sets how many TLS sessions are kept for clients to resume and for how
+         * long, on the context set with
+         * {@link #startTlsSocketFactory(SSLContext)}. A resumed session skips
+         * the certificate exchange and key agreement, the bulk of a
+         * handshake's cost. Whether TLS 1.3 and RFC 5077 stateless session
+         * tickets are issued instead of cached sessions is decided for the
+         * whole JVM by the {@code jdk.tls.server.enableSessionTicketExtension}
+         * system property.
+         *
+         * @param size
+         *            the most sessions cached, 0 for no limit
+         */
+        public Builder tlsSessionCache(int size, long timeout, TimeUnit unit) {
+            Preconditions.checkArgument(size >= 0, "size cannot be negative");
+            Preconditions.checkArgument(timeout > 0, "timeout must be positive");
+            this.tlsSessionCacheSize = size;
+            this.tlsSessionTimeoutSeconds = (int) Math.min(Integer.MAX_VALUE, Math.max(1, unit.toSeconds(timeout)));
+            return this;
+        }
 
-                // select protocols and cipher suites
-                s.setEnabledProtocols(s.getSupportedProtocols());
-                s.setEnabledCipherSuites(s.getSupportedCipherSuites());
+        /**
+         * Sets how long a STARTTLS handshake may wait for the client at a
+         * time, instead of the connection timeout. Keeping it short stops
+         * clients which never complete their handshake from holding a
+         * {@link TlsHandshakeLimiter} permit for long. Default is 10 seconds.
+         */
+        public Builder tlsHandshakeTimeout(long timeout, TimeUnit unit) {
+            Preconditions.checkArgument(timeout > 0, "timeout must be positive");
+            this.tlsHandshakeTimeoutMs = (int) Math.min(Integer.MAX_VALUE, Math.max(1, unit.toMillis(timeout)));
+            return this;
+        }
 
-                //// Client must authenticate
-                if (requireClientCertificate) {
-                    s.setNeedClientAuth(true);
-                }
+        /**
+         * Caps the STARTTLS handshakes this server runs at once. A session over
+         * the cap waits up to {@code maxWait} for its turn and is then answered
+         * {@code 454 4.7.0}. Unlimited by default.
+         */
+        public Builder tlsHandshakeLimit(int maxConcurrent, long maxWait, TimeUnit unit) {
+            this.tlsHandshakeLimit = Optional.of(new TlsHandshakeLimiter(maxConcurrent, maxWait, unit));
+            return this;
+        }
 
-                return s;
-            });
+        /**
+         * Caps the STARTTLS handshakes of all the servers given the same
+         * limiter, on top of any {@link #tlsHandshakeLimit(int, long, TimeUnit)}
+         * of this one.
+         */
+        public Builder tlsHandshakeLimiter(TlsHandshakeLimiter limiter) {
+            Preconditions.checkNotNull(limiter, "limiter cannot be null");
+            this.sharedTlsHandshakeLimiter = Optional.of(limiter);
+            return this;
         }
 
         /**
@@ -610,12 +858,43 @@ public final class SMTPServer implements SSLSocketCreator {
             if (listener.isPresent()) {
                 messageHandlerFactory(new BasicMessageHandlerFactory(listener.get(), maxMessageSize));
             }
+            MessageHandlerFactory factory = messageHandlerFactory;
+            if (simpleMessageListener.isPresent()) {
+                // a new adapter for each server built, nothing is shared
+                SimpleMessageListenerAdapter adapter = new SimpleMessageListenerAdapter(
+                        Collections.singleton(simpleMessageListener.get()), dataDeferredSize);
+                adapter.setSpool(spoolDirectory.orElseGet(() -> Paths.get(System.getProperty("java.io.tmpdir"))),
+                        spillFilePoolCapacity);
+                factory = adapter;
+            }
 
-            return new SMTPServer(hostName, bindAddress, port, backlog, softwareName, messageHandlerFactory,
+            return new SMTPServer(hostName, bindAddress, port, backlog, softwareName, factory,
                     authenticationHandlerFactory, executorService, enableTLS, hideTLS, requireTLS, requireAuth,
                     showAuthCapabilitiesBeforeSTARTTLS, disableReceivedHeaders, maxConnections, connectionTimeoutMs,
-                    maxRecipients, maxMessageSize, sessionIdFactory, sessionHandler, proxyHandler, startTlsSocketCreator,
-                    serverSocketCreator, serverThreadNameProvider, commandHandler);
+                    maxRecipients, maxMessageSize, sessionIdFactory, sessionHandler, proxyHandler, startTlsSocketCreator(),
+                    serverSocketCreator, serverThreadNameProvider, commandHandler,
+                    BufferPool.heap(sessionBufferSize, sessionBufferPoolCapacity), new ArrayList<>(ehloExtensions),
+                    headerCaptureSize, tlsHandshakeTimeoutMs, tlsHandshakeLimiters());
+        }
+
+        /** This server's own first, so that every server acquires in the same order */
+        private List<TlsHandshakeLimiter> tlsHandshakeLimiters() {
+            List<TlsHandshakeLimiter> list = new ArrayList<>(2);
+            tlsHandshakeLimit.ifPresent(list::add);
+            sharedTlsHandshakeLimiter.ifPresent(list::add);
+            return Collections.unmodifiableList(list);
+        }
+
+        private SSLSocketCreator startTlsSocketCreator() {
+            if (tlsSessionCacheSize >= 0) {
+                Preconditions.checkArgument(startTlsContext.isPresent(),
+                        "tlsSessionCache can only be set with startTlsSocketFactory(SSLContext)");
+                SSLSessionContext sessions = startTlsContext.get().getServerSessionContext();
+                sessions.setSessionCacheSize(tlsSessionCacheSize);
+                sessions.setSessionTimeout(tlsSessionTimeoutSeconds);
+            }
+            return startTlsSocketCreator.orElseGet(() -> new StartTlsSocketCreator(startTlsContext,
+                    requireClientCertificate, tlsProtocols, tlsCipherSuites));
         }
 
     }
@@ -625,10 +904,12 @@ public final class SMTPServer implements SSLSocketCreator {
             Optional<AuthenticationHandlerFactory> authenticationHandlerFactory,
             Optional<ExecutorService> executorService, boolean enableTLS, boolean hideTLS, boolean requireTLS,
             boolean requireAuth, boolean showAuthCapabilitiesBeforeSTARTTLS, boolean disableReceivedHeaders,
-            int maxConnections, int connectionTimeoutMs, int maxRecipients, int maxMessageSize,
+            int maxConnections, int connectionTimeoutMs, int maxRecipients, long maxMessageSize,
             SessionIdFactory sessionIdFactory, SessionHandler sessionHandler, ProxyHandler proxyHandler,
             SSLSocketCreator startTlsSocketFactory, ServerSocketCreator serverSocketCreator,
-            Function<SMTPServer, String> serverThreadNameProvider, CommandHandler commandHandler) {
+            Function<SMTPServer, String> serverThreadNameProvider, CommandHandler commandHandler,
+            BufferPool sessionBufferPool, List<EhloExtension> ehloExtensions, int headerCaptureSize,
+            int tlsHandshakeTimeoutMs, List<TlsHandshakeLimiter> tlsHandshakeLimiters) {
         Preconditions.checkNotNull(messageHandlerFactory);
         Preconditions.checkNotNull(bindAddress);
         Preconditions.checkNotNull(executorService);
@@ -662,6 +943,10 @@ public final class SMTPServer implements SSLSocketCreator {
         this.commandHandler = commandHandler;
         this.serverSocketCreator = serverSocketCreator;
         this.startTlsSocketCreator = startTlsSocketFactory;
+        this.sessionBufferPool = sessionBufferPool;
+        this.headerCaptureSize = headerCaptureSize;
+        this.tlsHandshakeTimeoutMs = tlsHandshakeTimeoutMs;
+        this.tlsHandshakeLimiters = tlsHandshakeLimiters;
 
         if (executorService.isPresent()) {
             this.executorService = executorService.get();
@@ -681,22 +966,10 @@ public final class SMTPServer implements SSLSocketCreator {
         }
         this.allocatedPort = port;
         this.serverThreadName = serverThreadNameProvider;
+        // last, everything the extensions may look at is set by now
+        this.ehloResponses = EhloResponses.create(this, ehloExtensions);
     }
 
-    private static final SSLSocketCreator SSL_SOCKET_CREATOR_DEFAULT = socket -> {
-        SSLSocketFactory sf = ((SSLSocketFactory) SSLSocketFactory.getDefault());
-        InetSocketAddress remoteAddress = (InetSocketAddress) socket.getRemoteSocketAddress();
-        SSLSocket s = (SSLSocket) (sf.createSocket(socket, remoteAddress.getHostName(), socket.getPort(), true));
-
-        // we are a server
-        s.setUseClientMode(false);
-
-        // allow all supported cipher suites
-        s.setEnabledCipherSuites(s.getSupportedCipherSuites());
-
-        return s;
-    };
-
     private static final ServerSocketCreator SERVER_SOCKET_CREATOR_DEFAULT = ServerSocket::new;
 
     private static final MessageHandlerFactory MESSAGE_HANDLER_FACTORY_DEFAULT = new BasicMessageHandlerFactory(
@@ -835,6 +1108,42 @@ public final class SMTPServer implements SSLSocketCreator {
         return startTlsSocketCreator.createSSLSocket(socket);
     }
 
+    /**
+     * Returns the STARTTLS handshakes of this server's sessions, telling
+     * resumed sessions from full handshakes.
+     */
+    public HandshakeStats getHandshakeStats() {
+        return handshakeStats;
+    }
+
+    /**
+     * Returns the counters of the files messages are spilled to, if the
+     * message handler factory is one of the listener adapters.
+     *
+     * @see SimpleMessageListenerAdapter#getSpillStats()
+     */
+    public Optional<SpillStats> getSpillStats() {
+        if (messageHandlerFactory instanceof SimpleMessageListenerAdapter) {
+            return Optional.of(((SimpleMessageListenerAdapter) messageHandlerFactory).getSpillStats());
+        } else if (messageHandlerFactory instanceof SmarterMessageListenerAdapter) {
+            return Optional.of(((SmarterMessageListenerAdapter) messageHandlerFactory).getSpillStats());
+        }
+        return Optional.empty();
+    }
+
+    /** @return how long a STARTTLS handshake may wait for the client at a time, in milliseconds */
+    public int getTlsHandshakeTimeout() {
+        return tlsHandshakeTimeoutMs;
+    }
+
+    /**
+     * Returns the limiters a STARTTLS handshake must get past, in the order
+     * they are to be acquired; empty if handshakes are not limited.
+     */
+    public List<TlsHandshakeLimiter> getTlsHandshakeLimiters() {
+        return tlsHandshakeLimiters;
+    }
+
     public String getDisplayableLocalSocketAddress() {
         return this.bindAddress.map(InetAddress::toString).orElse("*") + ":" + this.port;
     }
@@ -894,7 +1203,7 @@ public final class SMTPServer implements SSLSocketCreator {
         return showAuthCapabilitiesBeforeSTARTTLS;
     }
 
-    public int getMaxMessageSize() {
+    public long getMaxMessageSize() {
         return maxMessageSize;
     }
 
@@ -902,6 +1211,14 @@ public final class SMTPServer implements SSLSocketCreator {
         return disableReceivedHeaders;
     }
 
+    /**
+     * @return the most header bytes captured per message, 0 if headers are
+     *         not captured
+     */
+    public int getHeaderCaptureSize() {
+        return headerCaptureSize;
+    }
+
     public SessionIdFactory getSessionIdFactory() {
         return sessionIdFactory;
     }
@@ -910,6 +1227,23 @@ public final class SMTPServer implements SSLSocketCreator {
         return sessionHandler;
     }
 
+    BufferPool getSessionBufferPool() {
+        return sessionBufferPool;
+    }
+
+    /**
+     * Returns the counters of the pool of session buffers, which show how well
+     * buffers are being reused across connections.
+     */
+    public PoolStats getSessionBufferStats() {
+        return sessionBufferPool;
+    }
+
+    /** @return the cached replies to EHLO */
+    EhloResponses getEhloResponses() {
+        return ehloResponses;
+    }
+
     public static Builder port(int port) {
         return new Builder().port(port);
     }
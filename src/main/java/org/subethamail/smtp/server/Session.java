@@ -1,10 +1,8 @@
 package org.subethamail.smtp.server;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -23,7 +21,11 @@ import org.subethamail.smtp.AuthenticationHandler;
 import org.subethamail.smtp.DropConnectionException;
 import org.subethamail.smtp.MessageContext;
 import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHeaders;
 import org.subethamail.smtp.internal.io.CRLFTerminatedReader;
+import org.subethamail.smtp.internal.io.EncodedResponse;
+import org.subethamail.smtp.internal.io.ResponseWriter;
+import org.subethamail.smtp.internal.io.SessionInputStream;
 import org.subethamail.smtp.internal.io.Utf8InputStreamReader;
 import org.subethamail.smtp.internal.proxy.ProxyHandler;
 import org.subethamail.smtp.internal.proxy.ProxyHandler.ProxyResult;
@@ -38,8 +40,6 @@ import org.subethamail.smtp.server.SessionHandler.SessionAcceptance;
  * @author Jeff Schnitzer
  */
 public final class Session implements Runnable, MessageContext {
-    private static final int BUFFER_SIZE = 8192;
-
     private final static Logger log = LoggerFactory.getLogger(Session.class);
 
     /** A link to our parent server */
@@ -67,12 +67,28 @@ public final class Session implements Runnable, MessageContext {
     /** Set this true when doing an ordered shutdown */
     private volatile boolean quitting = false;
 
+    /** True once the session handler has been told the session ended */
+    private boolean sessionEnded;
+
     /** I/O to the client */
     private Socket socket;
-    private InputStream input;
+
+    /**
+     * Buffered input from the client. The buffer is borrowed from the server's
+     * pool when the session is created and returned when the session ends; the
+     * stream (and the reader on top of it) are kept across STARTTLS.
+     */
+    private SessionInputStream input;
     private CRLFTerminatedReader reader;
     private OutputStream output;
-    private PrintWriter writer;
+
+    /**
+     * Buffered replies to the client. Replies are only written to the socket
+     * when the session is about to block waiting for client input (or on an
+     * explicit {@link #flush()}), so pipelined commands are answered with a
+     * single write.
+     */
+    private ResponseWriter writer;
     private final ProxyHandler proxyHandler;
 
     /* Advertised remote address, defaults to socket remote address */
@@ -103,7 +119,10 @@ public final class Session implements Runnable, MessageContext {
      * If the client told us the size of the message, this is the value. If they
      * didn't, the value will be 0.
      */
-    private int declaredMessageSize = 0;
+    private long declaredMessageSize = 0;
+
+    /** The headers captured from the message being received, if any */
+    private Optional<MessageHeaders> messageHeaders = Optional.empty();
 
     /** Some more state information */
     private boolean tlsStarted;
@@ -193,8 +212,11 @@ public final class Session implements Runnable, MessageContext {
             }
             rethrow(e);
         } finally {
+            this.flushQuietly();
             this.closeConnection();
             this.endMessageHandler();
+            this.input.release();
+            this.writer.release();
             serverThread.sessionEnded(this);
             Thread.currentThread().setName(originalName);
             MDC.clear();
@@ -296,18 +318,19 @@ public final class Session implements Runnable, MessageContext {
                 }
             }
         } finally {
-            this.server.getSessionHandler().onSessionEnd(this);
+            this.endSession();
         }
     }
 
     /**
-     * Close reader, writer, and socket, logging exceptions but otherwise
-     * ignoring them
+     * Close the streams and the socket, logging exceptions but otherwise
+     * ignoring them. Pending replies are not flushed, this may be called from a
+     * thread other than the session thread.
      */
     private void closeConnection() {
         try {
             try {
-                this.writer.close();
+                this.output.close();
                 this.input.close();
             } finally {
                 this.closeSocket();
@@ -324,10 +347,16 @@ public final class Session implements Runnable, MessageContext {
      */
     public void setSocket(Socket socket) throws IOException {
         this.socket = socket;
-        this.input = new BufferedInputStream(this.socket.getInputStream(), BUFFER_SIZE);
-        this.reader = new CRLFTerminatedReader(this.input);
         this.output = this.socket.getOutputStream();
-        this.writer = new PrintWriter(this.output);
+        if (this.input == null) {
+            this.input = new SessionInputStream(this.socket.getInputStream(), this.server.getSessionBufferPool());
+            this.reader = new CRLFTerminatedReader(this.input);
+            this.writer = new ResponseWriter(this.output, this.server.getSessionBufferPool());
+            this.input.setBeforeBlockingRead(this.writer);
+        } else {
+            this.input.setInput(this.socket.getInputStream());
+            this.writer.setOutput(this.output);
+        }
 
         this.socket.setSoTimeout(this.server.getConnectionTimeout());
     }
@@ -361,21 +390,67 @@ public final class Session implements Runnable, MessageContext {
         return this.reader;
     }
 
-    /** Sends the response to the client */
+    /**
+     * Queues the response to the client. It is written to the network before
+     * the session next waits for client input, or by {@link #flush()}.
+     */
     public void sendResponse(String response) throws IOException {
         log.debug("Server: {}", response);
+        this.writer.writeLine(response);
+    }
+
+    /**
+     * Queues a pre-encoded response to the client, see
+     * {@link #sendResponse(String)}.
+     */
+    public void sendResponse(EncodedResponse response) throws IOException {
+        log.debug("Server: {}", response);
+        this.writer.write(response);
+    }
 
-        this.writer.print(response + "\r\n");
+    /**
+     * Queues the reply to EHLO, which only depends on the server settings and
+     * whether TLS has started, see {@link #sendResponse(String)}.
+     */
+    public void sendEhloResponse() throws IOException {
+        sendResponse(this.server.getEhloResponses().get(this.tlsStarted));
+    }
+
+    /**
+     * Queues one line of a multi-line response without building the whole
+     * reply as a String first, see {@link #sendResponse(String)}.
+     *
+     * @param code
+     *            the reply code
+     * @param last
+     *            true for the final line of the reply
+     * @param text
+     *            the text following the code
+     */
+    public void sendResponseLine(int code, boolean last, String text) throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug("Server: {}{}{}", code, last ? " " : "-", text);
+        }
+        this.writer.writeLine(code, last, text);
+    }
 
-        /*
-         * Flush the response to the nework. We must flush every written data because:
-         * 1) depending from underlying implementations partial or no data could be received on the remote side
-         * 2) underlying OutPutStream can be used in a independent way without flush partial mixed data could be written
-         * on it.
-         */
+    /**
+     * Writes any queued responses to the network. Must be called before the
+     * underlying socket is handed to anything else, e.g. a TLS handshake, or
+     * before the session stops without waiting for more client input.
+     */
+    public void flush() throws IOException {
         this.writer.flush();
     }
 
+    private void flushQuietly() {
+        try {
+            this.writer.flush();
+        } catch (IOException e) {
+            log.debug("Could not flush final responses: {}", e.toString());
+        }
+    }
+
     /**
      * Returns an identifier of the session which is reasonably unique within an
      * extended time period.
@@ -457,10 +532,8 @@ public final class Session implements Runnable, MessageContext {
         this.authenticationHandler = Optional.of(handler);
     }
 
-    /**
-     * @return the maxMessageSize
-     */
-    public int getDeclaredMessageSize() {
+    @Override
+    public long getDeclaredMessageSize() {
         return this.declaredMessageSize;
     }
 
@@ -468,10 +541,23 @@ public final class Session implements Runnable, MessageContext {
      * @param declaredMessageSize
      *            the size that the client says the message will be
      */
-    public void setDeclaredMessageSize(int declaredMessageSize) {
+    public void setDeclaredMessageSize(long declaredMessageSize) {
         this.declaredMessageSize = declaredMessageSize;
     }
 
+    @Override
+    public Optional<MessageHeaders> getMessageHeaders() {
+        return this.messageHeaders;
+    }
+
+    /**
+     * @param messageHeaders
+     *            the headers captured from the message being received
+     */
+    public void setMessageHeaders(Optional<MessageHeaders> messageHeaders) {
+        this.messageHeaders = messageHeaders;
+    }
+
     /**
      * Starts a mail transaction by creating a new message handler.
      *
@@ -509,6 +595,7 @@ public final class Session implements Runnable, MessageContext {
         this.recipientCount = 0;
         this.singleRecipient = Optional.empty();
         this.declaredMessageSize = 0;
+        this.messageHeaders = Optional.empty();
     }
 
     /** Safely calls done() on a message hander, if one exists */
@@ -531,8 +618,23 @@ public final class Session implements Runnable, MessageContext {
         this.helo = Optional.empty();
     }
 
+    /**
+     * Tells the session handler that the session is over, unless it was told
+     * already. QUIT calls this before its reply goes out, so that a client
+     * reconnecting as soon as it has the reply is not turned away by a
+     * handler that still counts the old session.
+     */
+    public void endSession() {
+        if (!this.sessionEnded) {
+            this.sessionEnded = true;
+            this.server.getSessionHandler().onSessionEnd(this);
+        }
+    }
+
     /**
      * Triggers the shutdown of the thread and the closing of the connection.
+     * Responses queued but not yet flushed are dropped, commands that reply
+     * before quitting must call {@link #flush()} first.
      */
     public void quit() {
         this.quitting = true;
@@ -0,0 +1,104 @@
+package org.subethamail.smtp.server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Caps the STARTTLS handshakes in progress at once, so that a burst of them
+ * cannot take the CPU from every other session. A session over the cap waits,
+ * in arrival order, for a handshake to finish and is answered
+ * {@code 454 4.7.0} if none does in time; the client may carry on without TLS
+ * or come back later.
+ * <p>
+ * Give one instance to several servers with
+ * {@link SMTPServer.Builder#tlsHandshakeLimiter(TlsHandshakeLimiter)} to cap
+ * them together. Instances are thread-safe.
+ */
+public final class TlsHandshakeLimiter {
+
+    private final int maxConcurrent;
+    private final Semaphore permits;
+    private final long maxWaitNanos;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param maxConcurrent
+     *            the most handshakes in progress at once
+     * @param maxWait
+     *            how long a session waits to start its handshake before it is
+     *            turned away
+     */
+    public TlsHandshakeLimiter(int maxConcurrent, long maxWait, TimeUnit unit) {
+        Preconditions.checkArgument(maxConcurrent > 0, "maxConcurrent must be positive");
+        Preconditions.checkArgument(maxWait >= 0, "maxWait cannot be negative");
+        Preconditions.checkNotNull(unit, "unit cannot be null");
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.maxWaitNanos = unit.toNanos(maxWait);
+    }
+
+    /**
+     * Waits for a handshake to be allowed to start. Each successful call must
+     * be followed by {@link #release()} once the handshake is over.
+     *
+     * @return false if the wait ran out, or the thread was interrupted
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(maxWaitNanos);
+    }
+
+    /**
+     * As {@link #tryAcquire()}, but gives up at the given deadline if it comes
+     * first, so that a session acquiring several limiters waits no longer in
+     * all than for one.
+     *
+     * @param deadline
+     *            a {@link System#nanoTime()} value
+     */
+    public boolean tryAcquireBefore(long deadline) {
+        return tryAcquire(Math.max(0, Math.min(maxWaitNanos, deadline - System.nanoTime())));
+    }
+
+    private boolean tryAcquire(long waitNanos) {
+        try {
+            if (permits.tryAcquire(waitNanos, TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rejected.increment();
+        return false;
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    /** @return how long a session waits to start its handshake */
+    public long getMaxWait(TimeUnit unit) {
+        return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /** @return the number of handshakes in progress */
+    public int getInProgress() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /** @return the number of sessions waiting to start a handshake, an estimate */
+    public int getWaiting() {
+        return permits.getQueueLength();
+    }
+
+    /** @return the number of sessions turned away so far */
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,426 @@
+package org.subethamail.wiser;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import jakarta.mail.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.internal.io.SegmentedByteArrayOutputStream;
+
+/**
+ * The messages received by a {@link Wiser}, kept according to a
+ * {@link Retention}. Unless the retention is bounded, messages are appended to
+ * fixed size blocks which never move, so an append costs O(1) however many
+ * messages are held, and a snapshot of the messages received so far is taken
+ * without copying or locking. A bounded retention keeps the messages in a ring
+ * and evicts the oldest ones. Messages are also indexed by envelope sender,
+ * envelope recipient and Message-ID, and threads can wait for messages to
+ * arrive.
+ * <p>
+ * Instances are thread-safe.
+ */
+final class MessageStore {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageStore.class);
+
+    private static final int BLOCK_SHIFT = 10;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+    private final Retention retention;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when a message is received */
+    private final Condition received = lock.newCondition();
+
+    /** Replaced as a whole by {@link #clear()}, so snapshots stay valid */
+    private volatile Generation current;
+
+    MessageStore(Retention retention) {
+        this.retention = retention;
+        this.current = new Generation(retention);
+    }
+
+    Retention getRetention() {
+        return retention;
+    }
+
+    /**
+     * Keeps a message, or only counts it if the retention keeps no data.
+     */
+    void add(Session session, String from, String recipient, SegmentedByteArrayOutputStream data)
+            throws IOException {
+        // copy outside the lock
+        byte[] bytes = retention.mode == Retention.Mode.MEMORY ? data.toByteArray() : null;
+        lock.lock();
+        try {
+            Generation g = current;
+            switch (retention.mode) {
+            case MEMORY:
+                g.add(new WiserMessage(session, from, recipient, bytes));
+                break;
+            case DISK:
+                g.add(new WiserMessage(session, from, recipient, g.log().append(data)));
+                break;
+            default:
+                break;
+            }
+            g.count(from, recipient, data.size());
+            received.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts a message whose data was not kept.
+     */
+    void count(String from, String recipient, long size) {
+        lock.lock();
+        try {
+            current.count(from, recipient, size);
+            received.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        Generation old;
+        lock.lock();
+        try {
+            old = current;
+            current = new Generation(retention);
+        } finally {
+            lock.unlock();
+        }
+        old.close();
+    }
+
+    /** @return the number of messages received, kept or not */
+    long receivedCount() {
+        return current.receivedCount;
+    }
+
+    /** @return the total size of the messages received, kept or not */
+    long receivedBytes() {
+        return current.receivedBytes;
+    }
+
+    long receivedCountTo(String recipient) {
+        return count(g -> g.countByRecipient, addressKey(recipient));
+    }
+
+    long receivedCountFrom(String sender) {
+        return count(g -> g.countBySender, addressKey(sender));
+    }
+
+    private long count(Function<Generation, Map<String, Long>> counts, String key) {
+        lock.lock();
+        try {
+            return counts.apply(current).getOrDefault(key, 0L);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return an unmodifiable view of the messages kept so far */
+    List<WiserMessage> snapshot() {
+        Generation g = current;
+        if (g.ring == null) {
+            return g.snapshot();
+        }
+        lock.lock();
+        try {
+            return g.snapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    List<WiserMessage> byRecipient(String recipient) {
+        return lookup(g -> g.byRecipient, addressKey(recipient));
+    }
+
+    List<WiserMessage> bySender(String sender) {
+        return lookup(g -> g.bySender, addressKey(sender));
+    }
+
+    List<WiserMessage> byMessageId(String messageId) {
+        return lookup(g -> g.byMessageId, messageIdKey(messageId));
+    }
+
+    private List<WiserMessage> lookup(Function<Generation, Map<String, Deque<WiserMessage>>> index, String key) {
+        lock.lock();
+        try {
+            Deque<WiserMessage> list = index.apply(current).get(key);
+            return list == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(list));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until at least {@code count} messages have been received.
+     *
+     * @return a snapshot of the messages kept
+     * @throws TimeoutException
+     *             if fewer messages arrived within the timeout
+     */
+    List<WiserMessage> await(int count, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (current.receivedCount < count) {
+                if (nanos <= 0) {
+                    throw new TimeoutException("Received " + current.receivedCount + " of " + count
+                            + " messages within " + timeout + " " + unit);
+                }
+                nanos = received.awaitNanos(nanos);
+            }
+            return current.snapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a message matching the predicate has been kept, or returns
+     * straight away if one is kept already. The predicate is evaluated once
+     * per message, outside the lock. Messages evicted before they were looked
+     * at are missed.
+     *
+     * @return the first matching message
+     * @throws TimeoutException
+     *             if no matching message arrived within the timeout
+     */
+    WiserMessage await(Predicate<? super WiserMessage> predicate, long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Generation g = current;
+        // sequence number of the next message to look at
+        long checked = 0;
+        while (true) {
+            List<WiserMessage> messages;
+            long first;
+            lock.lockInterruptibly();
+            try {
+                while (current == g && g.keptCount == checked) {
+                    long nanos = deadline - System.nanoTime();
+                    if (nanos <= 0) {
+                        throw new TimeoutException("No matching message received within " + timeout + " " + unit);
+                    }
+                    received.awaitNanos(nanos);
+                }
+                if (current != g) {
+                    // cleared, start over on the new messages
+                    g = current;
+                    checked = 0;
+                }
+                messages = g.snapshot();
+                first = g.keptCount - messages.size();
+            } finally {
+                lock.unlock();
+            }
+            for (int i = (int) Math.max(0, checked - first); i < messages.size(); i++) {
+                WiserMessage m = messages.get(i);
+                if (predicate.test(m)) {
+                    return m;
+                }
+            }
+            checked = first + messages.size();
+        }
+    }
+
+    private static String addressKey(String address) {
+        return address == null ? "" : address.toLowerCase(Locale.ROOT);
+    }
+
+    /** Message-IDs are looked up with or without their angle brackets. */
+    private static String messageIdKey(String messageId) {
+        String s = messageId.trim();
+        if (s.length() >= 2 && s.charAt(0) == '<' && s.charAt(s.length() - 1) == '>') {
+            s = s.substring(1, s.length() - 1);
+        }
+        return s;
+    }
+
+    /**
+     * The messages received since the store was created or last cleared. Only
+     * modified under the store lock. Without a ring, a message is stored, and
+     * {@link #blocks} replaced if it had to grow, before {@link #keptCount} is
+     * published, so reading it first makes the messages below it visible
+     * without locking.
+     */
+    private static final class Generation {
+        private final Retention retention;
+
+        /** Volatile as it is replaced on growth and read without the lock */
+        private volatile WiserMessage[][] blocks;
+
+        /** The messages kept if the retention is bounded, otherwise null */
+        final Deque<WiserMessage> ring;
+        private long ringBytes;
+
+        /** Number of messages kept since the start, including evicted ones */
+        volatile long keptCount;
+
+        volatile long receivedCount;
+        volatile long receivedBytes;
+
+        final Map<String, Long> countByRecipient = new HashMap<>();
+        final Map<String, Long> countBySender = new HashMap<>();
+
+        final Map<String, Deque<WiserMessage>> byRecipient = new HashMap<>();
+        final Map<String, Deque<WiserMessage>> bySender = new HashMap<>();
+        final Map<String, Deque<WiserMessage>> byMessageId = new HashMap<>();
+
+        private SegmentLog segmentLog;
+
+        Generation(Retention retention) {
+            this.retention = retention;
+            this.ring = retention.isBounded() ? new ArrayDeque<>() : null;
+            this.blocks = retention.isBounded() ? null : new WiserMessage[16][];
+        }
+
+        SegmentLog log() {
+            if (segmentLog == null) {
+                segmentLog = new SegmentLog(retention.directory, retention.segmentSize);
+            }
+            return segmentLog;
+        }
+
+        void count(String from, String recipient, long size) {
+            countByRecipient.merge(addressKey(recipient), 1L, Long::sum);
+            countBySender.merge(addressKey(from), 1L, Long::sum);
+            receivedBytes += size;
+            receivedCount++;
+        }
+
+        void add(WiserMessage m) {
+            if (ring == null) {
+                append(m);
+            } else {
+                ring.addLast(m);
+                ringBytes += m.getSize();
+                while (ring.size() > 1 && (ring.size() > retention.maxMessages || ringBytes > retention.maxBytes)) {
+                    evict(ring.removeFirst());
+                }
+            }
+            index(m);
+            keptCount++;
+        }
+
+        /** Stores m at keptCount, which the caller increments after */
+        private void append(WiserMessage m) {
+            int n = (int) keptCount;
+            int block = n >>> BLOCK_SHIFT;
+            WiserMessage[][] b = blocks;
+            if (block == b.length) {
+                b = Arrays.copyOf(b, b.length * 2);
+                blocks = b;
+            }
+            if (b[block] == null) {
+                b[block] = new WiserMessage[BLOCK_SIZE];
+            }
+            b[block][n & BLOCK_MASK] = m;
+        }
+
+        private void index(WiserMessage m) {
+            index(byRecipient, addressKey(m.getEnvelopeReceiver()), m);
+            index(bySender, addressKey(m.getEnvelopeSender()), m);
+            String messageId = m.getHeader("Message-ID");
+            if (messageId != null) {
+                index(byMessageId, messageIdKey(messageId), m);
+            }
+        }
+
+        private static void index(Map<String, Deque<WiserMessage>> index, String key, WiserMessage m) {
+            index.computeIfAbsent(key, k -> new ArrayDeque<>(2)).addLast(m);
+        }
+
+        private void evict(WiserMessage m) {
+            ringBytes -= m.getSize();
+            unindex(byRecipient, addressKey(m.getEnvelopeReceiver()), m);
+            unindex(bySender, addressKey(m.getEnvelopeSender()), m);
+            String messageId = m.getHeader("Message-ID");
+            if (messageId != null) {
+                unindex(byMessageId, messageIdKey(messageId), m);
+            }
+        }
+
+        /** The oldest message is evicted first, so it is first in its lists */
+        private static void unindex(Map<String, Deque<WiserMessage>> index, String key, WiserMessage m) {
+            Deque<WiserMessage> list = index.get(key);
+            if (list != null && list.peekFirst() == m) {
+                list.removeFirst();
+                if (list.isEmpty()) {
+                    index.remove(key);
+                }
+            }
+        }
+
+        /** Called under the store lock if there is a ring */
+        List<WiserMessage> snapshot() {
+            if (ring != null) {
+                return Collections.unmodifiableList(new ArrayList<>(ring));
+            }
+            // read keptCount before blocks, see the class comment; a newer
+            // blocks holds the same messages below n
+            int n = (int) keptCount;
+            return new Snapshot(blocks, n);
+        }
+
+        void close() {
+            if (segmentLog != null) {
+                try {
+                    segmentLog.close();
+                } catch (IOException e) {
+                    log.debug("Failed to close the message log", e);
+                }
+            }
+        }
+    }
+
+    private static final class Snapshot extends AbstractList<WiserMessage> implements RandomAccess {
+        private final WiserMessage[][] blocks;
+        private final int size;
+
+        Snapshot(WiserMessage[][] blocks, int size) {
+            this.blocks = blocks;
+            this.size = size;
+        }
+
+        @Override
+        public WiserMessage get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return blocks[index >>> BLOCK_SHIFT][index & BLOCK_MASK];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.subethamail.wiser;
+
+import java.nio.file.Path;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Decides which received messages a {@link Wiser} keeps. Whatever the
+ * policy, Wiser counts every message received, in total and by envelope
+ * sender and recipient.
+ * <p>
+ * By default every message is kept in memory, which is what unit tests want.
+ * When Wiser is used as a long running mail sink the other policies keep its
+ * footprint bounded.
+ */
+public final class Retention {
+
+    enum Mode {
+        MEMORY, COUNT_ONLY, DISK
+    }
+
+    private static final Retention ALL = new Retention(Mode.MEMORY, Integer.MAX_VALUE, Long.MAX_VALUE, null, 0);
+
+    private static final Retention COUNT_ONLY = new Retention(Mode.COUNT_ONLY, Integer.MAX_VALUE, Long.MAX_VALUE, null,
+            0);
+
+    /** Default size of a segment of the disk log, in bytes. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    final Mode mode;
+    final int maxMessages;
+    final long maxBytes;
+    final Path directory;
+    final int segmentSize;
+
+    private Retention(Mode mode, int maxMessages, long maxBytes, Path directory, int segmentSize) {
+        this.mode = mode;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /** Keeps every message in memory. This is the default. */
+    public static Retention all() {
+        return ALL;
+    }
+
+    /**
+     * Keeps the most recent messages in memory, discarding the oldest message
+     * when a new one would exceed the limit.
+     *
+     * @param maxMessages
+     *            maximum number of messages kept, positive
+     */
+    public static Retention lastMessages(int maxMessages) {
+        Preconditions.checkArgument(maxMessages > 0, "maxMessages must be positive");
+        return new Retention(Mode.MEMORY, maxMessages, Long.MAX_VALUE, null, 0);
+    }
+
+    /**
+     * Keeps the most recent messages in memory, discarding the oldest messages
+     * while the data kept exceeds the limit. The most recent message is always
+     * kept, even if it is larger than the limit on its own.
+     *
+     * @param maxBytes
+     *            maximum total size of the messages kept, positive
+     */
+    public static Retention lastBytes(long maxBytes) {
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+        return new Retention(Mode.MEMORY, Integer.MAX_VALUE, maxBytes, null, 0);
+    }
+
+    /**
+     * Keeps no messages at all, the message data is read and discarded. Only
+     * the counts are kept.
+     */
+    public static Retention countOnly() {
+        return COUNT_ONLY;
+    }
+
+    /**
+     * Keeps every message, appending the data to a log of memory-mapped files
+     * in the given directory, so the data of millions of messages is kept off
+     * the heap. {@link WiserMessage#getData()} reads the data back from the
+     * log when it is called. The files are deleted when the messages are
+     * {@link Wiser#clear() cleared}, or otherwise when the JVM exits.
+     *
+     * @param directory
+     *            the directory holding the log, which must exist
+     */
+    public static Retention disk(Path directory) {
+        return disk(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Like {@link #disk(Path)}.
+     *
+     * @param segmentSize
+     *            size of each file of the log, a larger message gets a file of
+     *            its own
+     */
+    public static Retention disk(Path directory, int segmentSize) {
+        Preconditions.checkNotNull(directory);
+        Preconditions.checkArgument(segmentSize > 0, "segmentSize must be positive");
+        return new Retention(Mode.DISK, Integer.MAX_VALUE, Long.MAX_VALUE, directory, segmentSize);
+    }
+
+    /** @return true if messages may be discarded to keep within a limit */
+    boolean isBounded() {
+        return maxMessages != Integer.MAX_VALUE || maxBytes != Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+        case COUNT_ONLY:
+            return "Retention[countOnly]";
+        case DISK:
+            return "Retention[disk=" + directory + ", segmentSize=" + segmentSize + "]";
+        default:
+            return "Retention[maxMessages=" + maxMessages + ", maxBytes=" + maxBytes + "]";
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.subethamail.wiser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.subethamail.smtp.internal.io.SegmentedByteArrayOutputStream;
+
+/**
+ * An append-only log of message data in memory-mapped files. Each message is
+ * written once and read back in place through the read-only view returned by
+ * {@link #append}, which records the segment, offset and length of the
+ * message, so the data never lives on the heap.
+ * <p>
+ * The files are opened with {@link StandardOpenOption#DELETE_ON_CLOSE}. Views
+ * stay readable after {@link #close()} on platforms which allow a mapped file
+ * to be deleted.
+ * <p>
+ * Not thread-safe, {@link MessageStore} appends under its lock. Views can be
+ * read concurrently.
+ */
+final class SegmentLog implements Closeable {
+
+    private final Path directory;
+    private final int segmentSize;
+    private final List<FileChannel> channels = new ArrayList<>();
+
+    /** The segment appended to, its position is where the next message goes */
+    private MappedByteBuffer current;
+
+    SegmentLog(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Writes the data to the log.
+     *
+     * @return a read-only view of the data in the log
+     */
+    ByteBuffer append(SegmentedByteArrayOutputStream data) throws IOException {
+        if (data.size() > Integer.MAX_VALUE - 8) {
+            throw new IOException("Message too large for the log: " + data.size() + " bytes");
+        }
+        int size = (int) data.size();
+        if (current == null || current.remaining() < size) {
+            current = newSegment(Math.max(segmentSize, size));
+        }
+        int offset = current.position();
+        for (ByteBuffer b : data.toByteBuffers()) {
+            current.put(b);
+        }
+        ByteBuffer view = current.duplicate();
+        view.position(offset);
+        view.limit(offset + size);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    private MappedByteBuffer newSegment(int size) throws IOException {
+        Path path = Files.createTempFile(directory, "wiser", ".log");
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        channels.add(channel);
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /** @return the number of files in the log */
+    int segmentCount() {
+        return channels.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (FileChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        channels.clear();
+        current = null;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -5,14 +5,14 @@
 
 package org.subethamail.wiser;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.List;
 import java.util.Properties;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
 
 import jakarta.mail.MessagingException;
 import jakarta.mail.Session;
@@ -21,6 +21,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.subethamail.smtp.TooMuchDataException;
 import org.subethamail.smtp.helper.SimpleMessageListener;
+import org.subethamail.smtp.internal.io.SegmentedByteArrayOutputStream;
 import org.subethamail.smtp.server.SMTPServer;
 import org.subethamail.smtp.server.SMTPServer.Builder;
 
@@ -34,6 +35,9 @@ import org.subethamail.smtp.server.SMTPServer.Builder;
  * interface (optionally with the SimpleMessageListenerAdapter) of SubEthaSMTP
  * instead.
  *
+ * {@link #getMessages()} returns an unmodifiable snapshot, so messages can no
+ * longer be removed through it; call {@link #clear()} between tests instead.
+ *
  * @author Jon Stevens
  * @author Jeff Schnitzer
  */
@@ -43,7 +47,9 @@ public final class Wiser implements SimpleMessageListener {
 
     private final SMTPServer server;
 
-    private final List<WiserMessage> messages = new CopyOnWriteArrayList<>();
+    private final MessageStore messages;
+
+    private final Session session = Session.getDefaultInstance(new Properties());
 
     private final Accepter accepter;
 
@@ -52,17 +58,21 @@ public final class Wiser implements SimpleMessageListener {
     }
 
     public static Wiser create(Builder builder) {
-        return new Wiser(builder, ACCEPTER_DEFAULT);
+        return new Wiser(builder, ACCEPTER_DEFAULT, Retention.all());
     }
 
     public static Wiser create() {
-        return new Wiser(SMTPServer.port(25), ACCEPTER_DEFAULT);
+        return new Wiser(SMTPServer.port(25), ACCEPTER_DEFAULT, Retention.all());
     }
 
     public static WiserBuilder accepter(Accepter accepter) {
         return new WiserBuilder().accepter(accepter);
     }
 
+    public static WiserBuilder retention(Retention retention) {
+        return new WiserBuilder().retention(retention);
+    }
+
     private static final Accepter ACCEPTER_DEFAULT = (from, recipient) -> {
         log.debug("Accepting mail from {} to {}", from, recipient);
         return true;
@@ -70,6 +80,7 @@ public final class Wiser implements SimpleMessageListener {
 
     public static final class WiserBuilder {
         private Accepter accepter = ACCEPTER_DEFAULT;
+        private Retention retention = Retention.all();
         private Builder server;
 
         private WiserBuilder() {
@@ -81,14 +92,19 @@ public final class Wiser implements SimpleMessageListener {
             return this;
         }
 
+        public WiserBuilder retention(Retention retention) {
+            this.retention = retention;
+            return this;
+        }
+
         public Wiser server(SMTPServer.Builder server) {
             this.server = server;
-            return new Wiser(server, accepter);
+            return new Wiser(server, accepter, retention);
         }
 
         public Wiser port(int port) {
             this.server = SMTPServer.port(port);
-            return new Wiser(server, accepter);
+            return new Wiser(server, accepter, retention);
         }
 
     }
@@ -97,7 +113,7 @@ public final class Wiser implements SimpleMessageListener {
         boolean accept(String from, String recipient);
     }
 
-    private Wiser(Builder builder, Accepter accepter) {
+    private Wiser(Builder builder, Accepter accepter, Retention retention) {
         SimpleMessageListener s = new SimpleMessageListener() {
 
             @Override
@@ -113,6 +129,7 @@ public final class Wiser implements SimpleMessageListener {
         };
         this.server = builder.simpleMessageListener(s).build();
         this.accepter = accepter;
+        this.messages = new MessageStore(retention);
     }
 
     /** Starts the SMTP Server */
@@ -131,28 +148,35 @@ public final class Wiser implements SimpleMessageListener {
         return accepter.accept(from, recipient);
     }
 
-    /** Cache the messages in memory */
+    /** Keep the messages as the retention says */
     @Override
     public void deliver(String from, String recipient, InputStream data)
             throws TooMuchDataException, IOException {
         log.debug("Delivering mail from {} to {}", from, recipient);
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        data = new BufferedInputStream(data);
+        if (this.messages.getRetention().mode == Retention.Mode.COUNT_ONLY) {
+            this.messages.count(from, recipient, discard(data));
+            return;
+        }
 
-        // read the data from the stream
-        int current;
-        while ((current = data.read()) >= 0) {
-            out.write(current);
+        SegmentedByteArrayOutputStream out = new SegmentedByteArrayOutputStream();
+        while (out.readFrom(data, Integer.MAX_VALUE) >= 0) {
+            // read straight into the segments
         }
 
-        byte[] bytes = out.toByteArray();
+        log.debug("Creating message from data with {} bytes", out.size());
 
-        log.debug("Creating message from data with {} bytes", bytes.length);
+        this.messages.add(this.session, from, recipient, out);
+    }
 
-        Session session = Session.getDefaultInstance(new Properties());
-        // create a new WiserMessage.
-        this.messages.add(new WiserMessage(session, from, recipient, bytes));
+    private static long discard(InputStream data) throws IOException {
+        byte[] buf = new byte[SegmentedByteArrayOutputStream.DEFAULT_FIRST_SEGMENT_SIZE];
+        long total = 0;
+        int n;
+        while ((n = data.read(buf)) >= 0) {
+            total += n;
+        }
+        return total;
     }
 
     /**
@@ -162,9 +186,111 @@ public final class Wiser implements SimpleMessageListener {
      * If a message is received with multiple recipients in a single mail
      * transaction, then the list will contain more WiserMessage instances, one
      * for each recipient.
+     * <p>
+     * The list is an unmodifiable snapshot of the messages received so far,
+     * taken without copying. Call again to see messages received since, and
+     * {@link #clear()} to discard them. Only the messages kept by the
+     * {@link Retention} are included.
      */
     public List<WiserMessage> getMessages() {
-        return this.messages;
+        return this.messages.snapshot();
+    }
+
+    /**
+     * Returns the messages delivered to the given envelope recipient, compared
+     * case-insensitively, in the order they were received.
+     */
+    public List<WiserMessage> getMessagesTo(String recipient) {
+        return this.messages.byRecipient(recipient);
+    }
+
+    /**
+     * Returns the messages with the given envelope sender, compared
+     * case-insensitively, in the order they were received.
+     */
+    public List<WiserMessage> getMessagesFrom(String sender) {
+        return this.messages.bySender(sender);
+    }
+
+    /**
+     * Returns the messages with the given Message-ID header, one for each
+     * recipient. The angle brackets around the id are optional.
+     */
+    public List<WiserMessage> getMessagesByMessageId(String messageId) {
+        return this.messages.byMessageId(messageId);
+    }
+
+    /**
+     * Blocks until at least {@code count} messages have been received since
+     * the start or the last {@link #clear()}, whether the retention kept them
+     * or not.
+     *
+     * @return the messages kept so far
+     * @throws TimeoutException
+     *             if fewer messages were received before the timeout
+     */
+    public List<WiserMessage> awaitMessages(int count, long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        return this.messages.await(count, timeout, unit);
+    }
+
+    /**
+     * Blocks until a message matching the predicate has been received, or
+     * returns at once if one was received already.
+     *
+     * @return the first matching message
+     * @throws TimeoutException
+     *             if no matching message was received before the timeout
+     */
+    public WiserMessage awaitMessage(Predicate<? super WiserMessage> predicate, long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        return this.messages.await(predicate, timeout, unit);
+    }
+
+    /**
+     * @return the number of messages received since the start or the last
+     *         {@link #clear()}, including those the retention did not keep
+     */
+    public long getReceivedCount() {
+        return this.messages.receivedCount();
+    }
+
+    /**
+     * @return the total size in bytes of the messages received since the
+     *         start or the last {@link #clear()}
+     */
+    public long getReceivedBytes() {
+        return this.messages.receivedBytes();
+    }
+
+    /**
+     * @return the number of messages received for the envelope recipient,
+     *         compared case-insensitively
+     */
+    public long getReceivedCountTo(String recipient) {
+        return this.messages.receivedCountTo(recipient);
+    }
+
+    /**
+     * @return the number of messages received from the envelope sender,
+     *         compared case-insensitively
+     */
+    public long getReceivedCountFrom(String sender) {
+        return this.messages.receivedCountFrom(sender);
+    }
+
+    /** @return how received messages are kept */
+    public Retention getRetention() {
+        return this.messages.getRetention();
+    }
+
+    /**
+     * Discards all messages received so far and resets the counts, so the
+     * server can be reused by another test. Lists returned earlier are not
+     * affected, except that messages kept on disk may no longer be readable.
+     */
+    public void clear() {
+        this.messages.clear();
     }
 
     /**
@@ -176,7 +302,8 @@ public final class Wiser implements SimpleMessageListener {
 
     /**
      * For debugging purposes, dumps a rough outline of the messages to the
-     * output stream.
+     * output stream. The message data is streamed as it is, so large numbers
+     * of messages can be dumped without building a String for each.
      */
     public void dumpMessages(PrintStream out) throws MessagingException {
         out.println("----- Start printing messages -----");
@@ -1,13 +1,19 @@
 package org.subethamail.wiser;
 
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
 
 import jakarta.mail.MessagingException;
 import jakarta.mail.Session;
 import jakarta.mail.internet.MimeMessage;
 
+import org.subethamail.smtp.MessageHeaders;
 import org.subethamail.smtp.internal.Constants;
+import org.subethamail.smtp.internal.io.ByteBuffersInputStream;
 
 /**
  * This class wraps a received message and provides a way to generate a JavaMail
@@ -16,32 +22,113 @@ import org.subethamail.smtp.internal.Constants;
  * @author Jon Stevens
  */
 public final class WiserMessage {
-    private final byte[] messageData;
+    /** The data, wrapping an array or a view of the disk log */
+    private final ByteBuffer messageData;
     private final Session session;
     private final String envelopeSender;
     private final String envelopeReceiver;
 
+    /** Parsed on first use */
+    private volatile MimeMessage mimeMessage;
+
+    private final MessageHeaders headers;
+
     WiserMessage(Session session, String envelopeSender, String envelopeReceiver, byte[] messageData) {
+        this(session, envelopeSender, envelopeReceiver, ByteBuffer.wrap(messageData));
+    }
+
+    WiserMessage(Session session, String envelopeSender, String envelopeReceiver, ByteBuffer messageData) {
         this.session = session;
         this.envelopeSender = envelopeSender;
         this.envelopeReceiver = envelopeReceiver;
         this.messageData = messageData;
+        this.headers = MessageHeaders.of(messageData);
     }
 
     /**
-     * Generate a JavaMail MimeMessage.
+     * Generate a JavaMail MimeMessage. The message is parsed on the first call
+     * and the same instance is returned afterwards, so changes made to it are
+     * seen by later callers.
      * 
      * @throws MessagingException
      */
     public MimeMessage getMimeMessage() throws MessagingException {
-        return new MimeMessage(session, new ByteArrayInputStream(this.messageData));
+        MimeMessage m = this.mimeMessage;
+        if (m == null) {
+            m = new MimeMessage(session, new ByteBuffersInputStream(this.messageData));
+            this.mimeMessage = m;
+        }
+        return m;
+    }
+
+    /**
+     * Returns the value of the first header field with the given name,
+     * compared case-insensitively, or null if there is none. Only the header
+     * section is read and JavaMail is not involved, values are unfolded but
+     * not decoded.
+     */
+    public String getHeader(String name) {
+        return this.headers.get(name);
+    }
+
+    /**
+     * Returns the values of every header field with the given name, compared
+     * case-insensitively, in order. Like {@link #getHeader(String)}.
+     */
+    public List<String> getHeaders(String name) {
+        return this.headers.getAll(name);
+    }
+
+    /**
+     * Returns all header fields as an unmodifiable map whose keys are compared
+     * case-insensitively, see {@link #getHeader(String)}.
+     */
+    public Map<String, List<String>> getHeaders() {
+        return this.headers.asMap();
+    }
+
+    /**
+     * Writes the raw message DATA to the stream without copying it into a new
+     * array.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        ByteBuffer b = this.messageData.duplicate();
+        if (b.hasArray()) {
+            out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+            return;
+        }
+        byte[] buf = new byte[Math.min(b.remaining(), 8192)];
+        while (b.hasRemaining()) {
+            int n = Math.min(buf.length, b.remaining());
+            b.get(buf, 0, n);
+            out.write(buf, 0, n);
+        }
     }
 
     /**
-     * Get's the raw message DATA.
+     * Get's the raw message DATA. Data kept on disk is read into a new array
+     * on each call.
      */
     public byte[] getData() {
-        return this.messageData;
+        ByteBuffer b = this.messageData;
+        if (b.hasArray() && b.arrayOffset() == 0 && b.array().length == b.remaining()) {
+            return b.array();
+        }
+        byte[] data = new byte[b.remaining()];
+        b.duplicate().get(data);
+        return data;
+    }
+
+    /**
+     * @return the size of the raw message DATA in bytes
+     */
+    public int getSize() {
+        return this.messageData.remaining();
+    }
+
+    /** @return a view of the data which can be read without copying it */
+    ByteBuffer content() {
+        return this.messageData.duplicate();
     }
 
     /**
@@ -59,7 +146,8 @@ public final class WiserMessage {
     }
 
     /**
-     * Dumps the rough contents of the message for debugging purposes
+     * Dumps the rough contents of the message for debugging purposes. The raw
+     * data is written as it is rather than decoded into a String.
      */
     public void dumpMessage(PrintStream out) throws MessagingException {
         out.println("===== Dumping message =====");
@@ -67,9 +155,13 @@ public final class WiserMessage {
         out.println("Envelope sender: " + this.getEnvelopeSender());
         out.println("Envelope recipient: " + this.getEnvelopeReceiver());
 
-        // It should all be convertible with ascii or utf8
-        String content = new String(this.getData(), Constants.SMTP_CHARSET);
-        out.println(content);
+        try {
+            this.writeTo(out);
+        } catch (IOException e) {
+            // PrintStream never throws
+            throw new MessagingException("Failed to dump message", e);
+        }
+        out.println();
 
         out.println("===== End message dump =====");
     }
@@ -1,11 +1,17 @@
 package org.subethamail.smtp;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 
 import org.junit.Assert;
 import org.junit.Ignore;
@@ -13,6 +19,7 @@ import org.junit.Test;
 import org.subethamail.smtp.client.SMTPException;
 import org.subethamail.smtp.client.SmartClient;
 import org.subethamail.smtp.helper.BasicMessageListener;
+import org.subethamail.smtp.server.EhloExtension;
 import org.subethamail.smtp.server.SMTPServer;
 
 public class BdatTest {
@@ -36,6 +43,24 @@ public class BdatTest {
         }
     }
 
+    @Test
+    public void testBdatChunksAreSentVerbatim() throws UnknownHostException, SMTPException, IOException {
+        MyListener listener = new MyListener();
+        SMTPServer server = SMTPServer.port(25000).messageHandler(listener).build();
+        try {
+            server.start();
+            SmartClient client = SmartClient.createAndConnect("localhost", 25000, "clientHeloHost");
+            client.from("me@oz.com");
+            client.to("dave@oz.com");
+            // neither dot-stuffed nor counted in chars, or the size would be wrong
+            client.bdat(".starts with a dot\n");
+            client.bdatLast("ñandú\r\n.\r\n");
+            assertEquals(".starts with a dot\nñandú\r\n.\r\n", listener.dataAsText());
+        } finally {
+            server.stop();
+        }
+    }
+
     @Test
     public void testBadBdatCommand() throws UnknownHostException, SMTPException, IOException {
         MyListener listener = new MyListener();
@@ -181,6 +206,88 @@ public class BdatTest {
         }
     }
 
+    private static byte[] message(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            // binary, with dots and line breaks which must not be touched
+            bytes[i] = (byte) (i * 31 + i / 7);
+        }
+        return bytes;
+    }
+
+    private void testStreamedBdat(SMTPServer.Builder builder, int size) throws IOException {
+        MyListener listener = new MyListener();
+        SMTPServer server = builder.messageHandler(listener).build();
+        try {
+            server.start();
+            SmartClient client = SmartClient.createAndConnect("localhost", 25000, "clientHeloHost");
+            client.from("me@oz.com");
+            client.to("dave@oz.com");
+            byte[] message = message(size);
+            assertEquals(250, client.bdat(new ByteArrayInputStream(message)).getCode());
+            assertArrayEquals(message, listener.data);
+            client.quit();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testStreamedBdat() throws IOException {
+        testStreamedBdat(SMTPServer.port(25000), 3_000_017);
+    }
+
+    @Test
+    public void testStreamedBdatPipelined() throws IOException {
+        testStreamedBdat(SMTPServer.port(25000).ehloExtension(EhloExtension.of("PIPELINING")), 3_000_017);
+    }
+
+    @Test
+    public void testStreamedBdatEndingWithFullChunk() throws IOException {
+        // 16k and 32k chunks, the second one full and the last
+        testStreamedBdat(SMTPServer.port(25000).ehloExtension(EhloExtension.of("PIPELINING")), 48 * 1024);
+    }
+
+    @Test
+    public void testBdatFromFile() throws IOException {
+        MyListener listener = new MyListener();
+        SMTPServer server = SMTPServer.port(25000).messageHandler(listener)
+                .ehloExtension(EhloExtension.of("PIPELINING")).build();
+        Path file = Files.createTempFile("bdat", ".eml");
+        try {
+            server.start();
+            byte[] message = message(1_500_000);
+            Files.write(file, message);
+            SmartClient client = SmartClient.createAndConnect("localhost", 25000, "clientHeloHost");
+            client.from("me@oz.com");
+            client.to("dave@oz.com");
+            // CHUNKING is advertised, so no DATA
+            assertEquals(250, client.sendData(file).getCode());
+            assertArrayEquals(message, listener.data);
+            client.quit();
+        } finally {
+            server.stop();
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testSendDataContinuesStartedData() throws IOException {
+        MyListener listener = new MyListener();
+        SMTPServer server = SMTPServer.port(25000).messageHandler(listener).insertReceivedHeaders(false).build();
+        try {
+            server.start();
+            SmartClient client = SmartClient.createAndConnect("localhost", 25000, "clientHeloHost");
+            assertTrue(client.sendEnvelope("me@oz.com", Arrays.asList("dave@oz.com")).isDataStarted());
+            byte[] message = "hello\r\n.dotted\r\n".getBytes(StandardCharsets.US_ASCII);
+            assertEquals(250, client.sendData(Channels.newChannel(new ByteArrayInputStream(message))).getCode());
+            assertEquals("hello\r\n.dotted\r\n", listener.dataAsText());
+            client.quit();
+        } finally {
+            server.stop();
+        }
+    }
+
     static final class MyListener implements BasicMessageListener {
 
         String from;
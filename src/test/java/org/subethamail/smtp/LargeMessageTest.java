@@ -0,0 +1,144 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.subethamail.smtp.client.SMTPException;
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.smtp.server.Session;
+
+/**
+ * Sends messages whose size does not fit in an int. The data is generated
+ * while it is sent and counted while it is received, nothing holds a whole
+ * message, so the transfer only succeeds if every stage streams.
+ * <p>
+ * The transfer of more than 4 GB takes minutes and is only run with
+ * {@code -Dsubethasmtp.largeMessageTest=true}. The split of a spill file into
+ * mapped regions is covered with small regions by
+ * {@code DeferredFileOutputStreamTest}.
+ */
+public class LargeMessageTest {
+
+    private static final long FOUR_GB = 4L * 1024 * 1024 * 1024;
+
+    @Test
+    public void testDeclaredSizeAbove4GbIsAcceptedAndEnforced() throws Exception {
+        AtomicLong declared = new AtomicLong(-1);
+        SMTPServer server = server(6 * FOUR_GB / 4, declared, new AtomicLong());
+        server.start();
+        try {
+            SmartClient client = SmartClient.createAndConnect("localhost", server.getPortAllocated(), "localhost");
+            assertEquals(6 * FOUR_GB / 4, client.getMaxMessageSize());
+            client.from("a@example.com", FOUR_GB + 1);
+            client.to("b@example.com");
+            client.dataStart();
+            client.dataWrite("Subject: small\r\n\r\nbody\r\n".getBytes(StandardCharsets.US_ASCII));
+            client.dataEnd();
+            assertEquals(FOUR_GB + 1, declared.get());
+            try {
+                client.from("a@example.com", 2 * FOUR_GB);
+                fail();
+            } catch (SMTPException e) {
+                assertEquals(552, e.getResponse().getCode());
+            }
+            client.quit();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testStreamsMessage() throws Exception {
+        transfer(32L * 1024 * 1024);
+    }
+
+    @Test
+    public void testStreamsMessageLargerThan4Gb() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("subethasmtp.largeMessageTest"));
+        transfer(FOUR_GB + 512L * 1024 * 1024);
+    }
+
+    private static void transfer(long size) throws IOException {
+        AtomicLong received = new AtomicLong();
+        SMTPServer server = server(0, new AtomicLong(), received);
+        server.start();
+        try {
+            SmartClient client = SmartClient.createAndConnect("localhost", server.getPortAllocated(), "localhost");
+            client.from("a@example.com", size);
+            client.to("b@example.com");
+            client.dataStart();
+            long sent = writeGenerated(client, size);
+            client.dataEnd();
+            client.quit();
+            assertEquals(sent, received.get());
+            assertTrue(sent >= size);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Writes 100 byte lines until at least {@code size} bytes are sent.
+     *
+     * @return the number of bytes sent
+     */
+    private static long writeGenerated(SmartClient client, long size) throws IOException {
+        byte[] chunk = new byte[100 * 655];
+        for (int line = 0; line < 655; line++) {
+            int start = line * 100;
+            Arrays.fill(chunk, start, start + 98, (byte) ('a' + line % 26));
+            chunk[start + 98] = '\r';
+            chunk[start + 99] = '\n';
+        }
+        long sent = 0;
+        while (sent < size) {
+            client.dataWrite(chunk);
+            sent += chunk.length;
+        }
+        return sent;
+    }
+
+    private static SMTPServer server(long maxMessageSize, AtomicLong declared, AtomicLong received) {
+        return SMTPServer.port(0) //
+                .maxMessageSize(maxMessageSize) //
+                .insertReceivedHeaders(false) //
+                .messageHandlerFactory(context -> new MessageHandler() {
+
+                    @Override
+                    public void from(String from) {
+                        declared.set(((Session) context).getDeclaredMessageSize());
+                    }
+
+                    @Override
+                    public void recipient(String recipient) {
+                    }
+
+                    @Override
+                    public String data(InputStream data) throws IOException {
+                        byte[] buffer = new byte[65536];
+                        long count = 0;
+                        int n;
+                        while ((n = data.read(buffer)) != -1) {
+                            count += n;
+                        }
+                        received.set(count);
+                        return null;
+                    }
+
+                    @Override
+                    public void done() {
+                    }
+                }) //
+                .build();
+    }
+}
@@ -1,5 +1,6 @@
 package org.subethamail.smtp;
 
+import static org.junit.Assert.assertEquals;
 import static org.subethamail.smtp.TestUtil.EMAIL_FROM;
 import static org.subethamail.smtp.TestUtil.EMAIL_TO;
 import static org.subethamail.smtp.TestUtil.PORT;
@@ -9,7 +10,9 @@ import static org.subethamail.smtp.TestUtil.getTrustManagers;
 import static org.subethamail.smtp.TestUtil.send;
 
 import java.io.InputStream;
+import java.util.Optional;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
@@ -22,6 +25,7 @@ import org.mockito.Mockito;
 import org.subethamail.smtp.TestUtil.ConnectionType;
 import org.subethamail.smtp.auth.LoginFailedException;
 import org.subethamail.smtp.auth.PlainAuthenticationHandlerFactory;
+import org.subethamail.smtp.client.SmartClient;
 import org.subethamail.smtp.server.SMTPServer;
 
 public class StartTLSFullTest {
@@ -110,6 +114,38 @@ public class StartTLSFullTest {
         o.verifyNoMoreInteractions();
     }
 
+    @Test
+    public void testSessionIsResumed() throws Exception {
+        SMTPServer server = SMTPServer //
+                .port(PORT) //
+                .enableTLS() //
+                .messageHandler((context, from, to, data) -> {
+                }) //
+                .startTlsSocketFactory(createTlsSslContext(getKeyManagers(), getTrustManagers())) //
+                .tlsSessionCache(100, 1, TimeUnit.HOURS) //
+                .build();
+        try {
+            server.start();
+            SSLContext clientContext = createTlsSslContext(null, getTrustManagers());
+            for (int i = 0; i < 3; i++) {
+                SmartClient client = SmartClient.createAndConnect("localhost", PORT, Optional.empty(), "localhost",
+                        Optional.empty(), Optional.of(clientContext.getSocketFactory()));
+                client.startTLS();
+                client.quit();
+            }
+            HandshakeStats stats = server.getHandshakeStats();
+            assertEquals(1, stats.getFullHandshakes());
+            assertEquals(2, stats.getResumedHandshakes());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSessionCacheNeedsContext() {
+        SMTPServer.port(PORT).enableTLS().tlsSessionCache(100, 1, TimeUnit.HOURS).build();
+    }
+
     private static AuthenticationHandlerFactory createAuthenticationHandlerFactory() {
         return new PlainAuthenticationHandlerFactory((username, password, context) -> {
             if (!username.equals("me"))
@@ -0,0 +1,376 @@
+package org.subethamail.smtp.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.auth.EasyAuthenticationHandlerFactory;
+import org.subethamail.smtp.auth.LoginFailedException;
+import org.subethamail.smtp.server.EhloExtension;
+import org.subethamail.smtp.server.SMTPServer;
+
+public class AsyncSMTPClientTest {
+
+    private static final int PORT = 25000;
+
+    private final List<String> messages = new CopyOnWriteArrayList<>();
+    private final List<String> contents = new CopyOnWriteArrayList<>();
+
+    private SMTPServer.Builder server() {
+        return SMTPServer.port(PORT).messageHandlerFactory(this::handler);
+    }
+
+    private MessageHandler handler(MessageContext context) {
+        return new MessageHandler() {
+
+            @Override
+            public void from(String from) throws RejectException {
+                if (from.startsWith("spammer@")) {
+                    throw new RejectException(550, "<" + from + "> rejected");
+                }
+            }
+
+            @Override
+            public void recipient(String recipient) throws RejectException {
+                if (recipient.startsWith("reject@")) {
+                    throw new RejectException(553, "<" + recipient + "> rejected");
+                }
+            }
+
+            @Override
+            public String data(InputStream data) throws IOException {
+                String s = new String(readAll(data), StandardCharsets.UTF_8).trim();
+                contents.add(s);
+                // the text sent, after the Received header the server adds
+                messages.add(s.substring(s.lastIndexOf('\n') + 1));
+                return null;
+            }
+
+            @Override
+            public void done() {
+            }
+        };
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static <T> T get(CompletionStage<T> stage) throws Exception {
+        return stage.toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    private static CompletionStage<Void> send(AsyncSMTPClient client, String text) {
+        return client.connect("localhost", PORT)
+                .thenCompose(session -> session.envelope("me@example.com", Arrays.asList("you@example.com"))
+                        .thenCompose(envelope -> session.data(text.getBytes(StandardCharsets.US_ASCII)))
+                        .thenCompose(reply -> session.quit()));
+    }
+
+    private void testMessage(SMTPServer server, boolean pipelining) throws Exception {
+        server.start();
+        try (AsyncSMTPClient client = AsyncSMTPClient.heloHost("localhost").build()) {
+            AsyncSMTPSession session = get(client.connect("localhost", PORT));
+            assertEquals(pipelining, session.isPipelining());
+            EnvelopeResponse envelope = get(session.envelope("me@example.com",
+                    Arrays.asList("a@example.com", "reject@example.com", "b@example.com")));
+            assertEquals(Arrays.asList("a@example.com", "b@example.com"), envelope.getAcceptedRecipients());
+            assertEquals(Arrays.asList("reject@example.com"), envelope.getRejectedRecipients());
+            assertTrue(envelope.isDataStarted());
+            assertEquals(250, get(session.data("hello\r\n.dotted".getBytes(StandardCharsets.US_ASCII))).getCode());
+            get(session.quit());
+            assertFalse(session.isOpen());
+            assertEquals(Arrays.asList(".dotted"), messages);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testPipelinedMessage() throws Exception {
+        testMessage(server().ehloExtension(EhloExtension.of("PIPELINING")).build(), true);
+    }
+
+    @Test
+    public void testLockstepMessage() throws Exception {
+        testMessage(server().build(), false);
+    }
+
+    @Test
+    public void testMessageLargerThanDataBuffer() throws Exception {
+        SMTPServer server = server().build();
+        server.start();
+        try (AsyncSMTPClient client = AsyncSMTPClient.heloHost("localhost").build()) {
+            StringBuilder lines = new StringBuilder("Subject: big\n");
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 20000; i++) {
+                lines.append(".line ").append(i).append('\n');
+                expected.append("\r\n.line ").append(i);
+            }
+            byte[] bytes = lines.toString().getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+            direct.put(bytes).flip();
+            AsyncSMTPSession session = get(client.connect("localhost", PORT));
+            get(session.envelope("me@example.com", Arrays.asList("you@example.com")));
+            assertEquals(250, get(session.data(bytes)).getCode());
+            get(session.envelope("me@example.com", Arrays.asList("you@example.com")));
+            assertEquals(250, get(session.data(direct)).getCode());
+            assertEquals(bytes.length, direct.remaining());
+            get(session.quit());
+            assertEquals(2, contents.size());
+            for (String content : contents) {
+                assertTrue(content.endsWith(expected.toString()));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testNoRecipientAccepted() throws Exception {
+        SMTPServer server = server().ehloExtension(EhloExtension.of("PIPELINING")).build();
+        server.start();
+        try (AsyncSMTPClient client = AsyncSMTPClient.heloHost("localhost").build()) {
+            AsyncSMTPSession session = get(client.connect("localhost", PORT));
+            EnvelopeResponse envelope = get(session.envelope("me@example.com", Arrays.asList("reject@example.com")));
+            assertFalse(envelope.isDataStarted());
+            // the session is still usable
+            assertEquals(250, get(session.command("RSET")).getCode());
+            get(session.quit());
+            assertTrue(messages.isEmpty());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testRejectedSenderFails() throws Exception {
+        SMTPServer server = server().build();
+        server.start();
+        try (AsyncSMTPClient client = AsyncSMTPClient.heloHost("localhost").build()) {
+            AsyncSMTPSession session = get(client.connect("localhost", PORT));
+            try {
+                get(session.envelope("spammer@example.com", Arrays.asList("you@example.com")));
+                fail();
+            } catch (ExecutionException e) {
+                assertEquals(550, ((SMTPException) e.getCause()).getResponse().getCode());
+            }
+            get(session.quit());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testManySessionsOnOneThread() throws Exception {
+        SMTPServer server = server().build();
+        server.start();
+        try (AsyncSMTPClient client = AsyncSMTPClient.heloHost("localhost").selectorThreads(1).build()) {
+            List<CompletableFuture<Void>> sent = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                sent.add(send(client, "message " + i).toCompletableFuture());
+            }
+            CompletableFuture.allOf(sent.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+            assertEquals(50, messages.size());
+            List<String> sorted = new ArrayList<>(messages);
+            Collections.sort(sorted);
+            assertEquals("message 0", sorted.get(0));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testAuthPlain() throws Exception {
+        SMTPServer server = server().authenticationHandlerFactory(
+                new EasyAuthenticationHandlerFactory((username, password, context) -> {
+                    if (!password.equals("secret")) {
+                        throw new LoginFailedException();
+                    }
+                })).build();
+        server.start();
+        try (AsyncSMTPClient client = AsyncSMTPClient.heloHost("localhost").build()) {
+            AsyncSMTPSession session = get(client.connect("localhost", PORT));
+            try {
+                get(session.authPlain("me", "wrong"));
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof SMTPException);
+            }
+            assertEquals(235, get(session.authPlain("me", "secret")).getCode());
+            get(session.quit());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testConnectionRefused() throws Exception {
+        try (AsyncSMTPClient client = AsyncSMTPClient.heloHost("localhost").build()) {
+            try {
+                get(client.connect("localhost", PORT));
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    @Test
+    public void testReplyTimeout() throws Exception {
+        try (ServerSocket ss = new ServerSocket(PORT)) {
+            Thread t = new Thread(() -> {
+                try (Socket socket = ss.accept()) {
+                    OutputStream out = socket.getOutputStream();
+                    out.write("220 hello\r\n".getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    // never answer EHLO, wait for the client to give up
+                    while (socket.getInputStream().read() != -1) {
+                    }
+                } catch (IOException e) {
+                    // ignore
+                }
+            });
+            t.start();
+            try (AsyncSMTPClient client = AsyncSMTPClient.heloHost("localhost")
+                    .replyTimeout(300, TimeUnit.MILLISECONDS).build()) {
+                try {
+                    get(client.connect("localhost", PORT));
+                    fail();
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof SocketTimeoutException);
+                }
+            }
+            t.join(5000);
+        }
+    }
+
+    @Test
+    public void testSlowlyReadMessageDoesNotTimeOut() throws Exception {
+        try (ServerSocket ss = new ServerSocket()) {
+            // so that the client cannot hand the message to the kernel at once
+            ss.setReceiveBufferSize(8192);
+            ss.bind(new InetSocketAddress("localhost", PORT));
+            Thread t = new Thread(() -> {
+                try (Socket socket = ss.accept()) {
+                    BufferedReader in = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                    Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+                    out.write("220 hello\r\n");
+                    out.flush();
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        if (line.startsWith("DATA")) {
+                            out.write("354 go ahead\r\n");
+                            out.flush();
+                            // pauses while reading the first half, which is more
+                            // than the socket buffers hold: in total longer than
+                            // the reply timeout, each time shorter
+                            long read = 0;
+                            long paused = 0;
+                            while (!(line = in.readLine()).equals(".")) {
+                                read += line.length() + 2;
+                                if (read < 6_000_000 && read - paused >= 512 * 1024) {
+                                    Thread.sleep(100);
+                                    paused = read;
+                                }
+                            }
+                            out.write("250 ok\r\n");
+                        } else if (line.startsWith("QUIT")) {
+                            out.write("221 bye\r\n");
+                            out.flush();
+                            return;
+                        } else {
+                            out.write("250 ok\r\n");
+                        }
+                        out.flush();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // ignore
+                }
+            });
+            t.start();
+            try (AsyncSMTPClient client = AsyncSMTPClient.heloHost("localhost")
+                    .replyTimeout(300, TimeUnit.MILLISECONDS).build()) {
+                AsyncSMTPSession session = get(client.connect("localhost", PORT));
+                assertTrue(get(session.envelope("me@example.com", Arrays.asList("you@example.com"))).isDataStarted());
+                StringBuilder b = new StringBuilder();
+                while (b.length() < 12_000_000) {
+                    b.append("a line of the message which takes a while to read\r\n");
+                }
+                long start = System.nanoTime();
+                assertEquals(250, get(session.data(b.toString().getBytes(StandardCharsets.US_ASCII))).getCode());
+                // longer than the reply timeout
+                assertTrue(System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(600));
+                get(session.quit());
+            }
+            t.join(5000);
+        }
+    }
+
+    @Test
+    public void testStagesFailOnceClientIsClosed() throws Exception {
+        SMTPServer server = server().build();
+        server.start();
+        try {
+            AsyncSMTPClient client = AsyncSMTPClient.heloHost("localhost").selectorThreads(1).build();
+            AsyncSMTPSession session = get(client.connect("localhost", PORT));
+            CompletionStage<AsyncSMTPSession> connecting = client.connect("localhost", PORT);
+            client.close();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (session.isOpen() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertFalse(session.isOpen());
+            // the loop is gone, yet the stage completes
+            try {
+                get(session.command("NOOP"));
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            try {
+                get(connecting).close();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
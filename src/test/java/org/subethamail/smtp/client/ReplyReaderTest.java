@@ -0,0 +1,78 @@
+package org.subethamail.smtp.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.subethamail.smtp.client.SMTPClient.Response;
+
+public class ReplyReaderTest {
+
+    @Test
+    public void testMultiLineReplyReadByteByByte() throws IOException {
+        ReplyReader r = new ReplyReader(trickle("250-example.com\r\n250-SIZE 1000\r\n250 CHUNKING\r\n"));
+        Response resp = r.read();
+        assertEquals(250, resp.getCode());
+        assertEquals("example.com\nSIZE 1000\nCHUNKING", resp.getMessage());
+    }
+
+    @Test
+    public void testRepliesArrivingTogetherAreKeptApart() throws IOException {
+        ReplyReader r = new ReplyReader(stream("250 OK\r\n354 go ahead\n550 ñ\r\n221"));
+        assertEquals("250 OK", r.read().toString());
+        assertEquals("354 go ahead", r.read().toString());
+        assertEquals("550 ñ", r.read().toString());
+    }
+
+    @Test
+    public void testCodeOnly() throws IOException {
+        Response resp = new ReplyReader(stream("250\r\n")).read();
+        assertEquals(250, resp.getCode());
+        assertEquals("", resp.getMessage());
+    }
+
+    @Test
+    public void testLongLineGrowsTheBuffer() throws IOException {
+        StringBuilder s = new StringBuilder("250 ");
+        for (int i = 0; i < 5000; i++) {
+            s.append('x');
+        }
+        ReplyReader r = new ReplyReader(trickle("220 hi\r\n" + s + "\r\n"));
+        r.read();
+        assertEquals(5000, r.read().getMessage().length());
+    }
+
+    @Test(expected = EOFException.class)
+    public void testNoReply() throws IOException {
+        new ReplyReader(stream("")).read();
+    }
+
+    @Test(expected = IOException.class)
+    public void testReplyCutShort() throws IOException {
+        new ReplyReader(stream("250-first\r\n250 sec")).read();
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedCode() throws IOException {
+        new ReplyReader(stream("2x0 OK\r\n")).read();
+    }
+
+    private static InputStream stream(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Hands out one byte per read, as a slow network might */
+    private static InputStream trickle(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+    }
+}
@@ -0,0 +1,256 @@
+package org.subethamail.smtp.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.subethamail.smtp.TestUtil.createTlsSslContext;
+import static org.subethamail.smtp.TestUtil.getKeyManagers;
+import static org.subethamail.smtp.TestUtil.getTrustManagers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.Test;
+import org.subethamail.smtp.HandshakeStats;
+import org.subethamail.smtp.client.SmartClientPool.Destination;
+import org.subethamail.smtp.client.SmartClientPool.Lease;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.smtp.server.Session;
+import org.subethamail.smtp.server.SessionHandler;
+
+public class SmartClientPoolTest {
+
+    private static final int PORT = 25000;
+    private static final Destination DESTINATION = Destination.of("localhost", PORT);
+
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final List<String> messages = new CopyOnWriteArrayList<>();
+
+    private SMTPServer server() {
+        SMTPServer server = SMTPServer.port(PORT) //
+                .messageHandler((context, from, to, data) -> messages.add(lastLine(data))) //
+                .sessionHandler(new SessionHandler() {
+                    @Override
+                    public SessionAcceptance accept(Session session) {
+                        sessions.incrementAndGet();
+                        return SessionAcceptance.success();
+                    }
+
+                    @Override
+                    public void onSessionEnd(Session session) {
+                    }
+                }).build();
+        server.start();
+        return server;
+    }
+
+    /** The text sent, after the Received header the server adds */
+    private static String lastLine(byte[] data) {
+        String s = new String(data, StandardCharsets.UTF_8).trim();
+        return s.substring(s.lastIndexOf('\n') + 1);
+    }
+
+    private static void send(SmartClientPool pool, String text) throws Exception {
+        send(pool, DESTINATION, text);
+    }
+
+    private static void send(SmartClientPool pool, Destination destination, String text) throws Exception {
+        try (Lease lease = pool.acquire(destination)) {
+            SmartClient client = lease.getClient();
+            assertTrue(client.sendEnvelope("me@example.com", Arrays.asList("you@example.com")).isDataStarted());
+            client.dataWrite(text.getBytes(StandardCharsets.US_ASCII));
+            client.dataEnd();
+        }
+    }
+
+    @Test
+    public void testSessionIsReused() throws Exception {
+        SMTPServer server = server();
+        try (SmartClientPool pool = SmartClientPool.heloHost("localhost").build()) {
+            send(pool, "one");
+            send(pool, "two");
+            send(pool, "three");
+            assertEquals(1, sessions.get());
+            assertEquals(Arrays.asList("one", "two", "three"), messages);
+            assertEquals(1, pool.getIdleCount(DESTINATION));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testLeadingDotAfterMessageWithoutLineBreak() throws Exception {
+        SMTPServer server = server();
+        try (SmartClientPool pool = SmartClientPool.heloHost("localhost").build()) {
+            send(pool, "one");
+            // unstuffed by a stale line state, this dot line would end DATA
+            send(pool, ".\r\ntwo");
+            assertEquals(1, sessions.get());
+            assertEquals(Arrays.asList("one", "two"), messages);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMaxMessagesPerConnection() throws Exception {
+        SMTPServer server = server();
+        try (SmartClientPool pool = SmartClientPool.heloHost("localhost").maxMessagesPerConnection(2).build()) {
+            send(pool, "one");
+            send(pool, "two");
+            assertEquals(0, pool.getOpenCount(DESTINATION));
+            send(pool, "three");
+            assertEquals(2, sessions.get());
+            assertEquals(3, messages.size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testLeaseWithoutMessageDoesNotCount() throws Exception {
+        SMTPServer server = server();
+        try (SmartClientPool pool = SmartClientPool.heloHost("localhost").maxMessagesPerConnection(2).build()) {
+            send(pool, "one");
+            for (int i = 0; i < 3; i++) {
+                try (Lease lease = pool.acquire(DESTINATION)) {
+                    // a sender only, which RSET drops
+                    lease.getClient().from("me@example.com");
+                }
+            }
+            assertEquals(1, pool.getOpenCount(DESTINATION));
+            send(pool, "two");
+            assertEquals(0, pool.getOpenCount(DESTINATION));
+            assertEquals(1, sessions.get());
+            assertEquals(Arrays.asList("one", "two"), messages);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testUnfinishedDataIsNotReused() throws Exception {
+        SMTPServer server = server();
+        try (SmartClientPool pool = SmartClientPool.heloHost("localhost").build()) {
+            try (Lease lease = pool.acquire(DESTINATION)) {
+                lease.getClient().sendEnvelope("me@example.com", Arrays.asList("you@example.com"));
+                lease.getClient().dataWrite("partial".getBytes(StandardCharsets.US_ASCII));
+            }
+            assertEquals(0, pool.getOpenCount(DESTINATION));
+            send(pool, "complete");
+            assertEquals(Arrays.asList("complete"), messages);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMaxConnectionsPerDestination() throws Exception {
+        SMTPServer server = server();
+        try (SmartClientPool pool = SmartClientPool.heloHost("localhost") //
+                .maxConnectionsPerDestination(1) //
+                .acquireTimeout(100, TimeUnit.MILLISECONDS) //
+                .build()) {
+            try (Lease lease = pool.acquire(DESTINATION)) {
+                try {
+                    pool.acquire(DESTINATION);
+                    fail();
+                } catch (TimeoutException e) {
+                    // expected
+                }
+            }
+            pool.acquire(DESTINATION).close();
+            assertEquals(1, sessions.get());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testIdleSessionsAreEvicted() throws Exception {
+        SMTPServer server = server();
+        try (SmartClientPool pool = SmartClientPool.heloHost("localhost") //
+                .maxIdleTime(1, TimeUnit.MILLISECONDS) //
+                .build()) {
+            send(pool, "one");
+            Thread.sleep(10);
+            pool.evictIdle();
+            assertEquals(0, pool.getOpenCount(DESTINATION));
+            send(pool, "two");
+            assertEquals(2, sessions.get());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testBrokenSessionFailsHealthCheck() throws Exception {
+        SMTPServer server = server();
+        try (SmartClientPool pool = SmartClientPool.heloHost("localhost") //
+                .healthCheckAfterIdle(0, TimeUnit.MILLISECONDS) //
+                .build()) {
+            SmartClient first;
+            try (Lease lease = pool.acquire(DESTINATION)) {
+                first = lease.getClient();
+            }
+            try (Lease lease = pool.acquire(DESTINATION)) {
+                assertSame(first, lease.getClient());
+            }
+            // the server goes away under the idle session
+            server.stop();
+            server = server();
+            try (Lease lease = pool.acquire(DESTINATION)) {
+                assertNotSame(first, lease.getClient());
+            }
+            send(pool, "after restart");
+            assertEquals(Arrays.asList("after restart"), messages);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testTlsSessionIsResumed() throws Exception {
+        SSLContext serverContext = createTlsSslContext(getKeyManagers(), getTrustManagers());
+        SMTPServer server = SMTPServer.port(PORT) //
+                .enableTLS(true) //
+                .startTlsSocketFactory(serverContext) //
+                .messageHandler((context, from, to, data) -> messages.add(lastLine(data))) //
+                .build();
+        server.start();
+        try (SmartClientPool pool = SmartClientPool.heloHost("localhost") //
+                .sslContext(createTlsSslContext(null, getTrustManagers())) //
+                .tlsSessionCache(10, 1, TimeUnit.MINUTES) //
+                // a new connection, and handshake, for each message
+                .maxMessagesPerConnection(1) //
+                .build()) {
+            Destination destination = DESTINATION.withStartTls();
+            send(pool, destination, "one");
+            send(pool, destination, "two");
+            send(pool, destination, "three");
+            assertEquals(Arrays.asList("one", "two", "three"), messages);
+            HandshakeStats stats = pool.getHandshakeStats();
+            assertEquals(1, stats.getFullHandshakes());
+            assertEquals(2, stats.getResumedHandshakes());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSessionCacheOfSocketFactoryCannotBeConfigured() throws Exception {
+        SmartClientPool.heloHost("localhost") //
+                .sslSocketFactory(createTlsSslContext(null, getTrustManagers()).getSocketFactory()) //
+                .tlsSessionCache(10, 1, TimeUnit.MINUTES) //
+                .build();
+    }
+}
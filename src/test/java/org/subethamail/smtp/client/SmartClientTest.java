@@ -7,16 +7,31 @@ import static org.subethamail.smtp.TestUtil.createTlsSslContext;
 import static org.subethamail.smtp.TestUtil.getKeyManagers;
 import static org.subethamail.smtp.TestUtil.getTrustManagers;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyStoreException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
 import javax.net.ssl.SSLContext;
 
 import org.junit.Assert;
@@ -26,6 +41,7 @@ import org.subethamail.smtp.MessageHandler;
 import org.subethamail.smtp.MessageHandlerFactory;
 import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.server.EhloExtension;
 import org.subethamail.smtp.server.SMTPServer;
 
 public class SmartClientTest {
@@ -86,6 +102,135 @@ public class SmartClientTest {
         }
     }
 
+    @Test
+    public void testPipelinedEnvelope() throws Exception {
+        SMTPServer server = SMTPServer.port(25000) //
+                .ehloExtension(EhloExtension.of("PIPELINING")) //
+                .messageHandlerFactory(createMessageHandlerFactory()) //
+                .build();
+        try {
+            server.start();
+            SmartClient client = SmartClient.createAndConnect("localhost", 25000, "clientHeloHost");
+            assertTrue(client.isPipelining());
+            EnvelopeResponse resp = client.sendEnvelope("me@example.com",
+                    Arrays.asList("a@example.com", "reject@example.com", "b@example.com"));
+            assertEquals(Arrays.asList("a@example.com", "b@example.com"), resp.getAcceptedRecipients());
+            assertEquals(Arrays.asList("reject@example.com"), resp.getRejectedRecipients());
+            assertEquals(553, resp.getRecipientResponses().get(1).getCode());
+            assertTrue(resp.isDataStarted());
+            assertEquals(2, client.getRecipientCount());
+            client.dataWrite("hello".getBytes(StandardCharsets.US_ASCII));
+            client.dataEnd();
+            client.quit();
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static MimeMessage mimeMessage() throws MessagingException {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setFrom("me@example.com");
+        message.setSubject("streamed");
+        // bare line breaks, and a line which DATA must dot-stuff
+        message.setText("first\n.dotted\nlast\n");
+        return message;
+    }
+
+    private static void testSendMimeMessage(boolean chunking) throws Exception {
+        List<byte[]> received = new CopyOnWriteArrayList<>();
+        SMTPServer server = SMTPServer.port(25000) //
+                .ehloExtension(EhloExtension.of("PIPELINING")) //
+                .insertReceivedHeaders(false) //
+                .messageHandler((context, from, to, data) -> received.add(data)) //
+                .build();
+        try {
+            server.start();
+            SmartClient client = SmartClient.createAndConnect("localhost", 25000, "clientHeloHost");
+            if (!chunking) {
+                client.getExtensions().remove("CHUNKING");
+            }
+            EnvelopeResponse resp = client.send("me@example.com", Arrays.asList("you@example.com"), mimeMessage());
+            assertEquals(chunking, !resp.getDataResponse().isPresent());
+            assertEquals(250, resp.getMessageResponse().get().getCode());
+            client.quit();
+
+            String data = new String(received.get(0), StandardCharsets.US_ASCII);
+            assertTrue(data, data.contains("Subject: streamed\r\n"));
+            assertTrue(data, data.endsWith("\r\n\r\nfirst\r\n.dotted\r\nlast\r\n"));
+            assertFalse(data, data.replace("\r\n", "").contains("\n"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testSendMimeMessageWithBdat() throws Exception {
+        testSendMimeMessage(true);
+    }
+
+    @Test
+    public void testSendMimeMessageWithData() throws Exception {
+        testSendMimeMessage(false);
+    }
+
+    @Test
+    public void testEnvelopeWithoutPipeliningAndNoRecipientAccepted() throws Exception {
+        SMTPServer server = SMTPServer.port(25000).messageHandlerFactory(createMessageHandlerFactory()).build();
+        try {
+            server.start();
+            SmartClient client = SmartClient.createAndConnect("localhost", 25000, "clientHeloHost");
+            assertFalse(client.isPipelining());
+            EnvelopeResponse resp = client.sendEnvelope("me@example.com", Arrays.asList("reject@example.com"));
+            assertEquals(Arrays.asList("reject@example.com"), resp.getRejectedRecipients());
+            assertFalse(resp.getDataResponse().isPresent());
+            assertFalse(resp.isDataStarted());
+            client.sendAndCheck("RSET");
+            resp = client.sendEnvelope("me@example.com", Arrays.asList("a@example.com"));
+            assertTrue(resp.isDataStarted());
+            client.dataWrite("hello".getBytes(StandardCharsets.US_ASCII));
+            client.dataEnd();
+            client.quit();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testPipelinedEnvelopeIsSentBeforeAnyReply() throws Exception {
+        // a server which only answers once it has read the whole envelope,
+        // the client would wait forever if it waited for each reply
+        try (ServerSocket ss = new ServerSocket(0)) {
+            Thread t = new Thread(() -> {
+                try (Socket s = ss.accept()) {
+                    BufferedReader in = new BufferedReader(
+                            new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+                    Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.US_ASCII);
+                    out.write("220 hi\r\n");
+                    out.flush();
+                    in.readLine();
+                    out.write("250-hi\r\n250 PIPELINING\r\n");
+                    out.flush();
+                    while (!in.readLine().equals("DATA")) {
+                        // read MAIL and the RCPTs
+                    }
+                    out.write("250 sender ok\r\n250 ok\r\n550 no\r\n354 go ahead\r\n");
+                    out.flush();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            t.start();
+            SmartClient client = SmartClient.createAndConnect("localhost", ss.getLocalPort(), "clientHeloHost");
+            EnvelopeResponse resp = client.sendEnvelope("me@example.com",
+                    Arrays.asList("a@example.com", "b@example.com"));
+            assertEquals("250 sender ok", resp.getMailResponse().toString());
+            assertEquals(Arrays.asList("a@example.com"), resp.getAcceptedRecipients());
+            assertEquals(Arrays.asList("b@example.com"), resp.getRejectedRecipients());
+            assertTrue(resp.isDataStarted());
+            t.join();
+        }
+    }
+
     private MessageHandlerFactory createMessageHandlerFactory() {
         return new MessageHandlerFactory() {
 
@@ -99,6 +244,9 @@ public class SmartClientTest {
 
                     @Override
                     public void recipient(String recipient) throws RejectException {
+                        if (recipient.startsWith("reject@")) {
+                            throw new RejectException(553, "<" + recipient + "> rejected");
+                        }
                     }
 
                     @Override
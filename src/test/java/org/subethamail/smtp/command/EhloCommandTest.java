@@ -1,5 +1,6 @@
 package org.subethamail.smtp.command;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -11,6 +12,7 @@ import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -19,6 +21,7 @@ import org.subethamail.smtp.AuthenticationHandlerFactory;
 import org.subethamail.smtp.internal.command.EhloCommand;
 import org.subethamail.smtp.internal.proxy.ProxyHandler;
 import org.subethamail.smtp.internal.server.ServerThread;
+import org.subethamail.smtp.server.EhloExtension;
 import org.subethamail.smtp.server.SMTPServer;
 import org.subethamail.smtp.server.Session;
 
@@ -58,14 +61,23 @@ public class EhloCommandTest {
     }
 
 
+    @Test
+    public void testEhloListsExtensionsInOrderWithCustomExtensionsLast() throws IOException {
+        SMTPServer server = SMTPServer.port(2020) //
+                .hostName("mx.example.com") //
+                .maxMessageSize(1000) //
+                .ehloExtension(EhloExtension.of("ENHANCEDSTATUSCODES")) //
+                .ehloExtension((s, tlsStarted) -> tlsStarted ? Optional.of("DSN") : Optional.empty()) //
+                .build();
+        try (ServerSocket ss = new ServerSocket(0)) {
+            assertEquals("250-mx.example.com\r\n250-8BITMIME\r\n250-SIZE 1000\r\n250-CHUNKING\r\n"
+                    + "250-SMTPUTF8\r\n250-ENHANCEDSTATUSCODES\r\n250 Ok\r\n", ehlo(server, ss, false));
+            assertTrue(ehlo(server, ss, true).endsWith("250-DSN\r\n250 Ok\r\n"));
+        }
+    }
+
     private String getOutput(boolean isTlsStarted, boolean showAuthBeforeSTARTTLS) throws IOException {
-        EhloCommand ec = new EhloCommand();
         try (ServerSocket ss = new ServerSocket(0)) {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            Socket socket = Mockito.mock(Socket.class);
-            Mockito.when(socket.getOutputStream()).thenReturn(out);
-            InputStream in = Mockito.mock(InputStream.class);
-            Mockito.when(socket.getInputStream()).thenReturn(in);
             SMTPServer server = SMTPServer //
                     .port(ss.getLocalPort()) //
                     .serverSocketFactory(() -> ss) //
@@ -85,11 +97,21 @@ public class EhloCommandTest {
                         }
                     }) //
                     .build();
-            Session session = new Session(server, new ServerThread(server, ss, ProxyHandler.NOP), socket, ProxyHandler.NOP);
-            session.setTlsStarted(isTlsStarted);
-            ec.execute("EHLO me.com", session);
-            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            return ehlo(server, ss, isTlsStarted);
         }
     }
 
+    private static String ehlo(SMTPServer server, ServerSocket ss, boolean isTlsStarted) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Socket socket = Mockito.mock(Socket.class);
+        Mockito.when(socket.getOutputStream()).thenReturn(out);
+        InputStream in = Mockito.mock(InputStream.class);
+        Mockito.when(socket.getInputStream()).thenReturn(in);
+        Session session = new Session(server, new ServerThread(server, ss, ProxyHandler.NOP), socket, ProxyHandler.NOP);
+        session.setTlsStarted(isTlsStarted);
+        new EhloCommand().execute("EHLO me.com", session);
+        session.flush();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
 }
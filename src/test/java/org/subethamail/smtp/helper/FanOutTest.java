@@ -0,0 +1,232 @@
+package org.subethamail.smtp.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.SpillStats;
+import org.subethamail.smtp.TooMuchDataException;
+
+public class FanOutTest {
+
+    private static final String MESSAGE = "Subject: test\r\n\r\nbody\r\n";
+
+    @Test
+    public void testDeliversInParallel() throws Exception {
+        int recipients = 4;
+        // every delivery waits until all of them have started
+        CountDownLatch started = new CountDownLatch(recipients);
+        Map<String, String> received = new ConcurrentHashMap<>();
+        SimpleMessageListener listener = new SimpleMessageListener() {
+            @Override
+            public boolean accept(String from, String recipient) {
+                return true;
+            }
+
+            @Override
+            public void deliver(String from, String recipient, InputStream data) throws IOException {
+                started.countDown();
+                try {
+                    assertTrue(started.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                received.put(recipient, read(data));
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(recipients);
+        try {
+            SimpleMessageListenerAdapter adapter = new SimpleMessageListenerAdapter(listener);
+            adapter.setDeliveryExecutor(executor);
+            MessageHandler handler = adapter.create(null);
+            handler.from("sender@example.com");
+            for (int i = 0; i < recipients; i++) {
+                handler.recipient("r" + i + "@example.com");
+            }
+            assertNull(handler.data(stream(MESSAGE)));
+            assertEquals(recipients, received.size());
+            for (String body : received.values()) {
+                assertEquals(MESSAGE, body);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeferredSizeAboveIntRange() throws Exception {
+        List<String> received = new ArrayList<>();
+        SimpleMessageListener listener = new SimpleMessageListener() {
+            @Override
+            public boolean accept(String from, String recipient) {
+                return true;
+            }
+
+            @Override
+            public void deliver(String from, String recipient, InputStream data) throws IOException {
+                received.add(read(data));
+            }
+        };
+        SimpleMessageListenerAdapter adapter = new SimpleMessageListenerAdapter(listener);
+        adapter.setDataDeferredSize(3L * Integer.MAX_VALUE);
+        adapter.setSpool(Paths.get(System.getProperty("java.io.tmpdir")), 4);
+        assertEquals(3L * Integer.MAX_VALUE, adapter.getDataDeferredSize());
+        MessageHandler handler = adapter.create(null);
+        handler.from("sender@example.com");
+        handler.recipient("a@example.com");
+        handler.recipient("b@example.com");
+        assertNull(handler.data(stream(MESSAGE)));
+        assertEquals(Arrays.asList(MESSAGE, MESSAGE), received);
+        // kept in memory
+        assertEquals(0, adapter.getSpillStats().getMisses());
+    }
+
+    @Test
+    public void testSpillStats() throws Exception {
+        SimpleMessageListener listener = new SimpleMessageListener() {
+            @Override
+            public boolean accept(String from, String recipient) {
+                return true;
+            }
+
+            @Override
+            public void deliver(String from, String recipient, InputStream data) throws IOException {
+                assertEquals(MESSAGE, read(data));
+            }
+        };
+        SimpleMessageListenerAdapter adapter = new SimpleMessageListenerAdapter(listener);
+        adapter.setDataDeferredSize(4);
+        adapter.setSpool(Paths.get(System.getProperty("java.io.tmpdir")), 4);
+        for (int i = 0; i < 2; i++) {
+            MessageHandler handler = adapter.create(null);
+            handler.from("sender@example.com");
+            handler.recipient("a@example.com");
+            handler.recipient("b@example.com");
+            assertNull(handler.data(stream(MESSAGE)));
+        }
+        SpillStats stats = adapter.getSpillStats();
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getIdleCount());
+        assertEquals(2 * MESSAGE.length(), stats.getSpilledBytes());
+    }
+
+    @Test
+    public void testFailureIsReportedAfterEveryDelivery() throws Exception {
+        List<String> delivered = new ArrayList<>();
+        SmarterMessageListenerAdapter adapter = new SmarterMessageListenerAdapter(failingFirst(delivered));
+        MessageHandler handler = adapter.create(null);
+        handler.from("sender@example.com");
+        handler.recipient("bad@example.com");
+        handler.recipient("good@example.com");
+        try {
+            handler.data(stream(MESSAGE));
+            fail();
+        } catch (TooMuchDataException e) {
+            // expected
+        }
+        assertEquals(Arrays.asList("good@example.com"), delivered);
+    }
+
+    @Test
+    public void testPerRecipientResponses() throws Exception {
+        List<String> delivered = new ArrayList<>();
+        SmarterMessageListenerAdapter adapter = new SmarterMessageListenerAdapter(failingFirst(delivered));
+        adapter.setPerRecipientResponses(true);
+        MessageHandler handler = adapter.create(null);
+        handler.from("sender@example.com");
+        handler.recipient("bad@example.com");
+        handler.recipient("good@example.com");
+        try {
+            handler.data(stream(MESSAGE));
+            fail();
+        } catch (RejectException e) {
+            // never a 250, which would lose the message for bad@example.com
+            assertEquals(552, e.getCode());
+            assertEquals("552-Delivery failed for 1 of 2 recipients\r\n552 <bad@example.com> 552 Too much mail data",
+                    e.getErrorResponse());
+        }
+        assertEquals(Arrays.asList("good@example.com"), delivered);
+    }
+
+    @Test
+    public void testPerRecipientResponsesReportMostSevereFailure() throws Exception {
+        SmarterMessageListenerAdapter adapter = new SmarterMessageListenerAdapter(
+                (from, recipient) -> new SmarterMessageListener.Receiver() {
+                    @Override
+                    public void deliver(InputStream data) throws IOException {
+                        read(data);
+                        if (recipient.startsWith("busy")) {
+                            throw new IOException("disk full");
+                        }
+                    }
+
+                    @Override
+                    public void done() {
+                    }
+                });
+        adapter.setPerRecipientResponses(true);
+        MessageHandler handler = adapter.create(null);
+        handler.from("sender@example.com");
+        handler.recipient("busy@example.com");
+        handler.recipient("good@example.com");
+        try {
+            handler.data(stream(MESSAGE));
+            fail();
+        } catch (RejectException e) {
+            // transient, the client retries
+            assertEquals(451, e.getCode());
+        }
+    }
+
+    private static SmarterMessageListener failingFirst(List<String> delivered) {
+        return (from, recipient) -> new SmarterMessageListener.Receiver() {
+            @Override
+            public void deliver(InputStream data) throws IOException {
+                if (recipient.startsWith("bad")) {
+                    throw new TooMuchDataException();
+                }
+                read(data);
+                delivered.add(recipient);
+            }
+
+            @Override
+            public void done() {
+            }
+        };
+    }
+
+    private static InputStream stream(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
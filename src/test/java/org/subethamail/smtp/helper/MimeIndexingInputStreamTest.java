@@ -0,0 +1,185 @@
+package org.subethamail.smtp.helper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import jakarta.activation.DataHandler;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.internet.MimeUtility;
+import jakarta.mail.util.ByteArrayDataSource;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.subethamail.smtp.MessageHeaders;
+
+public class MimeIndexingInputStreamTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final byte[] ATTACHMENT = new byte[100_000];
+
+    static {
+        new Random(1).nextBytes(ATTACHMENT);
+    }
+
+    private static byte[] message() throws Exception {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setSubject("indexed");
+
+        MimeMultipart alternative = new MimeMultipart("alternative");
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("plain body");
+        alternative.addBodyPart(text);
+        MimeBodyPart html = new MimeBodyPart();
+        html.setContent("<p>html body</p>", "text/html");
+        alternative.addBodyPart(html);
+
+        MimeBodyPart body = new MimeBodyPart();
+        body.setContent(alternative);
+
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(ATTACHMENT, "application/octet-stream")));
+        attachment.setFileName("data.bin");
+
+        MimeMultipart mixed = new MimeMultipart("mixed");
+        mixed.addBodyPart(body);
+        mixed.addBodyPart(attachment);
+        message.setContent(mixed);
+        message.saveChanges();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testIndexesNestedMultiparts() throws Exception {
+        byte[] data = message();
+        MimeIndexingInputStream in = new MimeIndexingInputStream(new ByteArrayInputStream(data));
+        assertArrayEquals(data, readAll(in));
+        MimeIndex index = in.getIndex();
+        assertFalse(index.isTruncated());
+
+        List<MimeIndex.Part> parts = index.getParts();
+        assertEquals(5, parts.size());
+        assertEquals("multipart/mixed", parts.get(0).getMediaType());
+        assertEquals("indexed", parts.get(0).getHeaders().get("Subject"));
+        assertEquals(data.length, parts.get(0).getEndOffset());
+        assertEquals("multipart/alternative", parts.get(1).getMediaType());
+        assertEquals(0, parts.get(1).getParent());
+        assertEquals("text/plain", parts.get(2).getMediaType());
+        assertEquals(1, parts.get(2).getParent());
+        assertEquals(2, parts.get(2).getDepth());
+        assertEquals("text/html", parts.get(3).getMediaType());
+        MimeIndex.Part attachment = parts.get(4);
+        assertEquals("application/octet-stream", attachment.getMediaType());
+        assertEquals("base64", attachment.getTransferEncoding());
+        assertEquals("data.bin", attachment.getFilename());
+        assertEquals(3, index.getLeaves().size());
+
+        ByteBuffer message = ByteBuffer.wrap(data);
+        assertEquals("plain body", string(parts.get(2).slice(message)));
+        assertEquals("<p>html body</p>", string(parts.get(3).slice(message)));
+        assertArrayEquals(ATTACHMENT, decode(attachment.slice(message), attachment.getTransferEncoding()));
+    }
+
+    @Test
+    public void testMapsPartsFromFile() throws Exception {
+        byte[] data = message();
+        Path file = folder.newFile().toPath();
+        MimeIndexingInputStream in = new MimeIndexingInputStream(new ByteArrayInputStream(data));
+        Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        MimeIndex.Part attachment = in.getIndex().getParts().get(4);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertArrayEquals(ATTACHMENT, decode(attachment.map(channel), "base64"));
+        }
+    }
+
+    @Test
+    public void testSinglePartAndLfLineBreaks() throws IOException {
+        String s = "Subject: hi\nContent-Type: text/plain; charset=utf-8\n\nline 1\n--not a boundary\n";
+        MimeIndexingInputStream in = new MimeIndexingInputStream(
+                new ByteArrayInputStream(s.getBytes(StandardCharsets.US_ASCII)));
+        readAll(in);
+        List<MimeIndex.Part> parts = in.getIndex().getParts();
+        assertEquals(1, parts.size());
+        assertEquals("text/plain", parts.get(0).getMediaType());
+        assertEquals("7bit", parts.get(0).getTransferEncoding());
+        assertNull(parts.get(0).getFilename());
+        assertEquals(s.indexOf("line 1"), parts.get(0).getBodyOffset());
+        assertEquals(s.length(), parts.get(0).getEndOffset());
+    }
+
+    @Test
+    public void testPreambleAndEpilogue() throws IOException {
+        String s = "Content-Type: multipart/mixed; boundary=\"b 1\"\r\n\r\npreamble\r\n--b 1\r\n\r\none\r\n"
+                + "--b 1  \r\nContent-Type: text/html\r\n\r\ntwo\r\n--b 1--\r\nepilogue\r\n";
+        MimeIndexingInputStream in = new MimeIndexingInputStream(
+                new ByteArrayInputStream(s.getBytes(StandardCharsets.US_ASCII)));
+        readAll(in);
+        List<MimeIndex.Part> parts = in.getIndex().getParts();
+        assertEquals(3, parts.size());
+        ByteBuffer message = ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+        assertEquals("one", string(parts.get(1).slice(message)));
+        assertEquals("text/plain", parts.get(1).getMediaType());
+        assertEquals("two", string(parts.get(2).slice(message)));
+        assertEquals("text/html", parts.get(2).getMediaType());
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testSliceRejectsPartBeyondBufferRange() {
+        long bodyOffset = Integer.MAX_VALUE + 10L;
+        MimeIndex.Part part = new MimeIndex.Part(0, -1, 0, MessageHeaders.empty(), 0, bodyOffset,
+                bodyOffset + 4, "text/plain");
+        part.slice(ByteBuffer.allocate(16));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testIndexNeedsTheWholeStream() {
+        new MimeIndexingInputStream(new ByteArrayInputStream(new byte[1])).getIndex();
+    }
+
+    private static String string(ByteBuffer b) {
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] decode(ByteBuffer b, String encoding) throws Exception {
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+        return readAll(MimeUtility.decode(new ByteArrayInputStream(bytes), encoding));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,122 @@
+package org.subethamail.smtp.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
+
+public class RecipientRoutesTest {
+
+    @Test
+    public void testDomainRoutes() {
+        RecipientRoutes<String> routes = RecipientRoutes.<String> builder() //
+                .domain("example.com", "example") //
+                .domain("*.example.com", "subdomains") //
+                .domain("other.org", "other") //
+                .fallback("fallback") //
+                .build();
+        assertEquals(Arrays.asList("example", "fallback"), routes.candidates("john@example.com"));
+        assertEquals(Arrays.asList("example", "fallback"), routes.candidates("john@EXAMPLE.Com."));
+        assertEquals(Arrays.asList("subdomains", "fallback"), routes.candidates("john@mail.example.com"));
+        assertEquals(Arrays.asList("subdomains", "fallback"), routes.candidates("john@a.b.example.com"));
+        assertEquals(Arrays.asList("other", "fallback"), routes.candidates("john@other.org"));
+        assertEquals(Collections.singletonList("fallback"), routes.candidates("john@example.org"));
+        assertEquals(Collections.singletonList("fallback"), routes.candidates("john@com"));
+        assertEquals(Collections.singletonList("fallback"), routes.candidates("postmaster"));
+    }
+
+    @Test
+    public void testWildcardsMostSpecificFirst() {
+        RecipientRoutes<String> routes = RecipientRoutes.<String> builder() //
+                .domain("*", "any") //
+                .domain("*.com", "com") //
+                .domain("*.example.com", "example") //
+                .domain("mail.example.com", "mail") //
+                .build();
+        assertEquals(Arrays.asList("mail", "example", "com", "any"), routes.candidates("a@mail.example.com"));
+        assertEquals(Arrays.asList("example", "com", "any"), routes.candidates("a@www.example.com"));
+        assertEquals(Arrays.asList("com", "any"), routes.candidates("a@example.com"));
+        assertEquals(Collections.singletonList("any"), routes.candidates("a@example.org"));
+    }
+
+    @Test
+    public void testAddressRoutes() {
+        RecipientRoutes<String> routes = RecipientRoutes.<String> builder() //
+                .address("postmaster@Example.com", "postmaster") //
+                .domain("example.com", "example") //
+                .domain("example.com", "postmaster") //
+                .build();
+        assertEquals(Arrays.asList("postmaster", "example"), routes.candidates("postmaster@example.COM"));
+        assertEquals(Arrays.asList("example", "postmaster"), routes.candidates("Postmaster@example.com"));
+        assertEquals(Arrays.asList("example", "postmaster"), routes.candidates("john@example.com"));
+        assertTrue(routes.candidates("john@example.org").isEmpty());
+    }
+
+    @Test
+    public void testLookupDoesNotCopy() {
+        RecipientRoutes<String> routes = RecipientRoutes.<String> builder().domain("example.com", "example").build();
+        assertSame(routes.candidates("a@example.com"), routes.candidates("b@EXAMPLE.COM"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyLabelIsRejected() {
+        RecipientRoutes.<String> builder().domain("example..com", "x");
+    }
+
+    @Test
+    public void testAdapterOnlyAsksCandidates() throws Exception {
+        List<String> asked = new ArrayList<>();
+        Listener example = new Listener("example", asked);
+        Listener other = new Listener("other", asked);
+        SimpleMessageListenerAdapter adapter = new SimpleMessageListenerAdapter(
+                RecipientRoutes.<SimpleMessageListener> builder() //
+                        .domain("example.com", example) //
+                        .domain("other.org", other) //
+                        .build());
+        MessageHandler handler = adapter.create(null);
+        handler.from("sender@example.net");
+        handler.recipient("john@example.com");
+        assertEquals(Collections.singletonList("example"), asked);
+        try {
+            handler.recipient("john@example.net");
+            fail();
+        } catch (RejectException e) {
+            assertEquals(553, e.getCode());
+        }
+
+        adapter.setRoutes(RecipientRoutes.of(Arrays.asList(other, example)));
+        asked.clear();
+        adapter.create(null).recipient("john@example.com");
+        assertEquals(Arrays.asList("other", "example"), asked);
+    }
+
+    private static final class Listener implements SimpleMessageListener {
+        private final String name;
+        private final List<String> asked;
+
+        Listener(String name, List<String> asked) {
+            this.name = name;
+            this.asked = asked;
+        }
+
+        @Override
+        public boolean accept(String from, String recipient) {
+            asked.add(name);
+            return true;
+        }
+
+        @Override
+        public void deliver(String from, String recipient, InputStream data) {
+        }
+    }
+}
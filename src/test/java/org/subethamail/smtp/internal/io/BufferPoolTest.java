@@ -0,0 +1,65 @@
+package org.subethamail.smtp.internal.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testReleasedBufferIsReused() {
+        BufferPool pool = BufferPool.heap(16, 2);
+        ByteBuffer a = pool.acquire();
+        assertEquals(16, a.capacity());
+        assertTrue(a.hasArray());
+        a.put((byte) 1);
+        pool.release(a);
+        ByteBuffer b = pool.acquire();
+        assertSame(a, b);
+        assertEquals(0, b.position());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void testPoolIsBounded() {
+        BufferPool pool = BufferPool.heap(16, 1);
+        ByteBuffer a = pool.acquire();
+        ByteBuffer b = pool.acquire();
+        pool.release(a);
+        pool.release(b);
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(1, pool.getDiscards());
+    }
+
+    @Test
+    public void testForeignBufferIgnored() {
+        BufferPool pool = BufferPool.heap(16, 1);
+        pool.release(ByteBuffer.allocate(32));
+        pool.release(ByteBuffer.allocateDirect(16));
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void testDirect() {
+        BufferPool pool = BufferPool.direct(16, 1);
+        ByteBuffer a = pool.acquire();
+        assertTrue(a.isDirect());
+        pool.release(a);
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void testZeroCapacityDisablesPooling() {
+        BufferPool pool = BufferPool.heap(16, 0);
+        pool.release(pool.acquire());
+        assertEquals(0, pool.getIdleCount());
+        assertFalse(pool.acquire() == pool.acquire());
+        assertEquals(3, pool.getMisses());
+    }
+}
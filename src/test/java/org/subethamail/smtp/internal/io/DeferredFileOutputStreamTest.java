@@ -0,0 +1,204 @@
+package org.subethamail.smtp.internal.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeferredFileOutputStreamTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStaysInMemoryBelowThreshold() throws IOException {
+        byte[] data = randomBytes(100_000);
+        try (DeferredFileOutputStream out = new DeferredFileOutputStream(data.length)) {
+            assertEquals(data.length, out.transferFrom(new ByteArrayInputStream(data)));
+            assertNull(out.spill);
+            assertArrayEquals(data, readAll(out.getInputStream()));
+            assertArrayEquals(data, readAll(out.getInputStream()));
+        }
+    }
+
+    @Test
+    public void testSpillsAboveThreshold() throws IOException {
+        byte[] data = randomBytes(100_000);
+        DeferredFileOutputStream out = new DeferredFileOutputStream(30_000);
+        try {
+            assertEquals(data.length, out.transferFrom(new ByteArrayInputStream(data)));
+            assertNotNull(out.spill);
+            InputStream first = out.getInputStream();
+            InputStream second = out.getInputStream();
+            // the views are independent
+            assertEquals(data[0] & 0xff, first.read());
+            assertArrayEquals(data, readAll(second));
+            assertEquals(data[1] & 0xff, first.read());
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testSingleByteWritesSpill() throws IOException {
+        byte[] data = randomBytes(10_000);
+        try (DeferredFileOutputStream out = new DeferredFileOutputStream(1000)) {
+            for (byte b : data) {
+                out.write(b);
+            }
+            assertNotNull(out.spill);
+            assertArrayEquals(data, readAll(out.getInputStream()));
+        }
+    }
+
+    @Test
+    public void testSpillFilesAreReused() throws IOException {
+        SpillFilePool pool = SpillFilePool.create(folder.getRoot().toPath(), 1);
+        byte[] large = randomBytes(50_000);
+        byte[] small = randomBytes(20_000);
+        for (byte[] data : new byte[][] { large, small }) {
+            try (DeferredFileOutputStream out = new DeferredFileOutputStream(10_000, pool)) {
+                out.transferFrom(new ByteArrayInputStream(data));
+                // a reused file is longer than the content, which must not show
+                try (InputStream in = out.getInputStream()) {
+                    assertArrayEquals(data, readAll(in));
+                }
+            }
+        }
+        assertEquals(1, pool.getMisses());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(large.length + small.length, pool.getSpilledBytes());
+        // on Unix the files are unlinked as soon as they are open
+        assertTrue(folder.getRoot().list().length <= 1);
+    }
+
+    @Test
+    public void testStreamKeptAfterCloseCannotReadNextMessage() throws IOException {
+        SpillFilePool pool = SpillFilePool.create(folder.getRoot().toPath(), 1);
+        byte[] first = randomBytes(50_000);
+        InputStream kept;
+        try (DeferredFileOutputStream out = new DeferredFileOutputStream(10_000, pool)) {
+            out.transferFrom(new ByteArrayInputStream(first));
+            kept = out.getInputStream();
+            assertEquals(first[0] & 0xff, kept.read());
+        }
+        // the file is still mapped by a stream, so it is not reused
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(1, pool.getDiscards());
+        try {
+            kept.read();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testClosedStreamCannotReadReusedFile() throws IOException {
+        SpillFilePool pool = SpillFilePool.create(folder.getRoot().toPath(), 1);
+        InputStream kept;
+        try (DeferredFileOutputStream out = new DeferredFileOutputStream(10_000, pool)) {
+            out.transferFrom(new ByteArrayInputStream(randomBytes(50_000)));
+            kept = out.getInputStream();
+            kept.close();
+        }
+        assertEquals(1, pool.getIdleCount());
+        try (DeferredFileOutputStream out = new DeferredFileOutputStream(10_000, pool)) {
+            out.transferFrom(new ByteArrayInputStream(randomBytes(20_000)));
+            assertEquals(1, pool.getHits());
+            try {
+                kept.read(new byte[100]);
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testReadsAcrossMappedRegions() throws IOException {
+        SpillFilePool pool = SpillFilePool.create(folder.getRoot().toPath(), 1);
+        int region = 4096;
+        long size = 5L * region + 123;
+        try (DeferredFileOutputStream out = new DeferredFileOutputStream(1000, pool, region)) {
+            assertEquals(size, out.transferFrom(generated(size)));
+            assertEquals(size, out.size());
+            try (InputStream in = out.getInputStream()) {
+                assertEquals(6, out.mapped.length);
+                // reads of an odd size straddle every region boundary
+                byte[] buf = new byte[1000];
+                long position = 0;
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    for (int i = 0; i < n; i++) {
+                        assertEquals(pattern(position + i), buf[i]);
+                    }
+                    position += n;
+                }
+                assertEquals(size, position);
+            }
+            try (InputStream in = out.getInputStream()) {
+                assertEquals(3L * region - 1, in.skip(3L * region - 1));
+                assertEquals(pattern(3L * region - 1) & 0xff, in.read());
+                assertEquals(pattern(3L * region) & 0xff, in.read());
+            }
+        }
+    }
+
+    /** The bytes of {@link #generated}, without holding them */
+    private static byte pattern(long position) {
+        return (byte) (position % 251);
+    }
+
+    private static InputStream generated(long size) {
+        return new InputStream() {
+            long position;
+
+            @Override
+            public int read() {
+                return position < size ? pattern(position++) & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (position == size) {
+                    return -1;
+                }
+                int n = (int) Math.min(len, size - position);
+                for (int i = 0; i < n; i++) {
+                    b[off + i] = pattern(position++);
+                }
+                return n;
+            }
+        };
+    }
+
+    private static byte[] randomBytes(int n) {
+        byte[] b = new byte[n];
+        new Random(n).nextBytes(b);
+        return b;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,79 @@
+package org.subethamail.smtp.internal.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ExtraDotOutputStreamTest {
+
+    private static String encode(String... writes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ExtraDotOutputStream out = new ExtraDotOutputStream(bytes)) {
+            for (String s : writes) {
+                out.write(s.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testDotsAtLineStartAreDoubled() throws IOException {
+        assertEquals("..one\r\ntwo.\r\n..three\r\n", encode(".one\r\ntwo.\r\n.three\r\n"));
+    }
+
+    @Test
+    public void testNakedLineBreaksBecomeCrlf() throws IOException {
+        assertEquals("a\r\nb\r\nc\r\n\r\n..d", encode("a\nb\rc\r\n\n.d"));
+    }
+
+    @Test
+    public void testStateCarriesAcrossWrites() throws IOException {
+        assertEquals("a\r\n..b\r\nc", encode("a\r", "\n", ".b", "\n", "c"));
+    }
+
+    @Test
+    public void testNothingIsWrittenBeforeFlush() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ExtraDotOutputStream out = new ExtraDotOutputStream(bytes);
+        out.write("hello\n".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(0, bytes.size());
+        out.flush();
+        assertEquals("hello\r\n", new String(bytes.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testBulkWritesMatchSingleBytes() throws IOException {
+        Random random = new Random(42);
+        byte[] alphabet = { 'a', '.', '\r', '\n', ' ' };
+        byte[] data = new byte[100_000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        // a long line too, larger than the buffer
+        for (int i = 50_000; i < 70_000; i++) {
+            data[i] = 'x';
+        }
+
+        ByteArrayOutputStream single = new ByteArrayOutputStream();
+        try (ExtraDotOutputStream out = new ExtraDotOutputStream(single)) {
+            for (byte b : data) {
+                out.write(b);
+            }
+        }
+        ByteArrayOutputStream bulk = new ByteArrayOutputStream();
+        try (ExtraDotOutputStream out = new ExtraDotOutputStream(bulk)) {
+            for (int off = 0; off < data.length;) {
+                int n = Math.min(1 + random.nextInt(20_000), data.length - off);
+                out.write(data, off, n);
+                off += n;
+            }
+        }
+        assertArrayEquals(single.toByteArray(), bulk.toByteArray());
+    }
+}
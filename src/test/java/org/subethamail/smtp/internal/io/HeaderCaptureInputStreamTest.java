@@ -0,0 +1,99 @@
+package org.subethamail.smtp.internal.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.subethamail.smtp.MessageHeaders;
+
+public class HeaderCaptureInputStreamTest {
+
+    private static final String MESSAGE = "Received: from a\r\nReceived: from b\r\n by c\r\nSubject: hi\r\n"
+            + "Message-ID: <1@example.com>\r\n\r\nSubject: not a header\r\n";
+
+    @Test
+    public void testCapturesHeadersAndReplaysEverything() throws IOException {
+        byte[] data = MESSAGE.getBytes(StandardCharsets.US_ASCII);
+        HeaderCaptureInputStream in = HeaderCaptureInputStream.capture(new ByteArrayInputStream(data), 1000);
+        MessageHeaders headers = in.getHeaders();
+        assertFalse(headers.isTruncated());
+        assertEquals("hi", headers.get("SUBJECT"));
+        assertEquals(Arrays.asList("from a", "from b by c"), headers.getAll("received"));
+        assertEquals(2, headers.count("Received"));
+        assertEquals("<1@example.com>", headers.asMap().get("message-id").get(0));
+        assertEquals(3, headers.asMap().size());
+        assertArrayEquals(data, readAll(in));
+    }
+
+    @Test
+    public void testCapturesAcrossSmallReads() throws IOException {
+        byte[] data = MESSAGE.replace("\r\n", "\n").getBytes(StandardCharsets.US_ASCII);
+        HeaderCaptureInputStream in = HeaderCaptureInputStream.capture(trickle(data), 1000);
+        assertEquals("hi", in.getHeaders().get("Subject"));
+        assertEquals(1, in.getHeaders().count("Subject"));
+        assertArrayEquals(data, readAll(in));
+    }
+
+    @Test
+    public void testTruncatesAtLimit() throws IOException {
+        byte[] data = MESSAGE.getBytes(StandardCharsets.US_ASCII);
+        HeaderCaptureInputStream in = HeaderCaptureInputStream.capture(new ByteArrayInputStream(data), 40);
+        MessageHeaders headers = in.getHeaders();
+        assertTrue(headers.isTruncated());
+        // only complete lines are kept, so the last field misses its continuation
+        assertEquals(36, headers.getRaw().remaining());
+        assertEquals(Arrays.asList("from a", "from b"), headers.getAll("Received"));
+        assertNull(headers.get("Subject"));
+        assertArrayEquals(data, readAll(in));
+    }
+
+    @Test
+    public void testLargestLimit() throws IOException {
+        byte[] data = MESSAGE.getBytes(StandardCharsets.US_ASCII);
+        HeaderCaptureInputStream in = HeaderCaptureInputStream.capture(new ByteArrayInputStream(data),
+                Integer.MAX_VALUE);
+        assertFalse(in.getHeaders().isTruncated());
+        assertEquals("hi", in.getHeaders().get("Subject"));
+        assertArrayEquals(data, readAll(in));
+    }
+
+    @Test
+    public void testMessageWithoutBody() throws IOException {
+        byte[] data = "Subject: hi\r\n".getBytes(StandardCharsets.US_ASCII);
+        HeaderCaptureInputStream in = HeaderCaptureInputStream.capture(new ByteArrayInputStream(data), 1000);
+        assertFalse(in.getHeaders().isTruncated());
+        assertEquals("hi", in.getHeaders().get("Subject"));
+        assertArrayEquals(data, readAll(in));
+    }
+
+    /** Returns one byte per read */
+    private static InputStream trickle(byte[] data) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[7];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
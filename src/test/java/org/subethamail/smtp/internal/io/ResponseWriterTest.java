@@ -0,0 +1,85 @@
+package org.subethamail.smtp.internal.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class ResponseWriterTest {
+
+    @Test
+    public void testRepliesAreCoalescedUntilFlush() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        ResponseWriter w = new ResponseWriter(out, BufferPool.heap(64, 1));
+        w.write(EncodedResponse.OK);
+        w.writeLine("354 End data");
+        w.writeLine(250, false, "8BITMIME");
+        w.writeLine(250, true, "Ok");
+        assertEquals(0, out.size());
+        w.flush();
+        assertEquals("250 Ok\r\n354 End data\r\n250-8BITMIME\r\n250 Ok\r\n", out.text());
+        assertEquals(1, out.writes);
+        assertEquals(1, out.flushes);
+        w.flush();
+        assertEquals(1, out.flushes);
+    }
+
+    @Test
+    public void testEncodesUtf8LikeString() throws IOException {
+        String text = "250 ñ € 😀 \ud83d";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResponseWriter w = new ResponseWriter(out, BufferPool.heap(8, 1));
+        w.writeLine(text);
+        w.flush();
+        assertEquals(text.replace('\ud83d', '?').replace("?\ude00", "😀") + "\r\n",
+                new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLongReplyDrainsBuffer() throws IOException {
+        StringBuilder b = new StringBuilder("250 ");
+        for (int i = 0; i < 100; i++) {
+            b.append('x');
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResponseWriter w = new ResponseWriter(out, BufferPool.heap(16, 1));
+        w.writeLine(b);
+        w.write(EncodedResponse.of(b.toString()));
+        w.flush();
+        assertEquals(b + "\r\n" + b + "\r\n", new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testReleaseReturnsBufferOnce() throws IOException {
+        BufferPool pool = BufferPool.heap(16, 4);
+        ResponseWriter w = new ResponseWriter(new ByteArrayOutputStream(), pool);
+        w.release();
+        w.release();
+        assertEquals(1, pool.getIdleCount());
+        assertThrows(IOException.class, () -> w.writeLine("250 Ok"));
+    }
+
+    private static final class CountingOutputStream extends ByteArrayOutputStream {
+        int writes;
+        int flushes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+        String text() {
+            return new String(toByteArray(), StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.subethamail.smtp.internal.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SessionInputStreamTest {
+
+    @Test
+    public void testReadsThroughSmallBuffer() throws IOException {
+        BufferPool pool = BufferPool.heap(4, 1);
+        SessionInputStream in = new SessionInputStream(stream("hello world"), pool);
+        byte[] b = new byte[3];
+        assertEquals('h', in.read());
+        assertEquals(3, in.read(b, 0, 3));
+        assertEquals("ell", new String(b, StandardCharsets.US_ASCII));
+        StringBuilder rest = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            rest.append((char) c);
+        }
+        assertEquals("o world", rest.toString());
+    }
+
+    @Test
+    public void testSetInputDiscardsReadAhead() throws IOException {
+        BufferPool pool = BufferPool.heap(16, 1);
+        SessionInputStream in = new SessionInputStream(stream("STARTTLS\r\nINJECTED"), pool);
+        CRLFTerminatedReader reader = new CRLFTerminatedReader(in);
+        assertEquals("STARTTLS", reader.readLine());
+        in.setInput(stream("EHLO me\r\n"));
+        assertEquals("EHLO me", reader.readLine());
+    }
+
+    @Test
+    public void testFlushesBeforeReadingFromWrappedStreamOnly() throws IOException {
+        BufferPool pool = BufferPool.heap(16, 1);
+        SessionInputStream in = new SessionInputStream(stream("ab"), pool);
+        AtomicInteger flushes = new AtomicInteger();
+        in.setBeforeBlockingRead(flushes::incrementAndGet);
+        assertEquals('a', in.read());
+        assertEquals(1, flushes.get());
+        assertEquals('b', in.read());
+        assertEquals(1, flushes.get());
+        assertEquals(-1, in.read());
+        assertEquals(2, flushes.get());
+    }
+
+    @Test
+    public void testReleaseReturnsBufferOnce() throws IOException {
+        BufferPool pool = BufferPool.heap(16, 4);
+        SessionInputStream in = new SessionInputStream(stream("abc"), pool);
+        in.release();
+        in.release();
+        assertEquals(1, pool.getIdleCount());
+        assertThrows(IOException.class, () -> in.read());
+    }
+
+    private static ByteArrayInputStream stream(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.US_ASCII));
+    }
+}
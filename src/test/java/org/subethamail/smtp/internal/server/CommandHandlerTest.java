@@ -0,0 +1,112 @@
+package org.subethamail.smtp.internal.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.subethamail.smtp.internal.proxy.ProxyHandler;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.smtp.server.Session;
+
+public class CommandHandlerTest {
+
+    @Test
+    public void testDispatchIsCaseInsensitiveAndPassesArgumentOffset() throws Exception {
+        Recorder mail = new Recorder("MAIL");
+        Recorder starttls = new Recorder("STARTTLS");
+        Recorder start = new Recorder("STAR");
+        CommandHandler h = new CommandHandler(Arrays.asList(mail, starttls, new Recorder("X")));
+        Output out = new Output();
+        Session session = session(SMTPServer.port(2020).build(), out);
+
+        h.handleCommand(session, "mail FROM:<a@b.c>");
+        h.handleCommand(session, "MAILFROM:<a@b.c>");
+        h.handleCommand(session, "StartTls");
+        assertEquals(Arrays.asList("mail FROM:<a@b.c>@4", "MAILFROM:<a@b.c>@4"), mail.calls);
+        assertEquals(Arrays.asList("StartTls@8"), starttls.calls);
+
+        h.handleCommand(session, "STARTTLSX");
+        h.handleCommand(session, "ST");
+        session.flush();
+        assertEquals("500 Error: command not implemented\r\n500 Error: bad syntax\r\n", out.text());
+
+        // a four letter verb wins over a longer one sharing its prefix
+        h.addCommand(start);
+        h.handleCommand(session, "STARTTLS");
+        assertEquals(1, starttls.calls.size());
+        assertEquals(Arrays.asList("STARTTLS@4"), start.calls);
+    }
+
+    @Test
+    public void testWrappersBecomeFlags() throws Exception {
+        Recorder data = new Recorder("DATA");
+        CommandHandler h = new CommandHandler(
+                Arrays.asList(new RequireAuthCommandWrapper(new RequireTLSCommandWrapper(data))));
+        assertSame(data, h.getCommand("data"));
+        Output out = new Output();
+        SMTPServer server = SMTPServer.port(2020).requireTLS().build();
+        Session session = session(server, out);
+        h.handleCommand(session, "DATA");
+        session.flush();
+        assertEquals("530 Must issue a STARTTLS command first\r\n", out.text());
+        session.setTlsStarted(true);
+        h.handleCommand(session, "DATA");
+        assertEquals(Arrays.asList("DATA@4"), data.calls);
+        assertNull(h.getCommand("RCPT"));
+    }
+
+    @Test
+    public void testFromAddressValidatorKeepsMailRequirements() throws Exception {
+        SMTPServer server = SMTPServer.port(2020).requireTLS().fromAddressValidator(s -> true).build();
+        Output out = new Output();
+        Session session = session(server, out);
+        server.getCommandHandler().handleCommand(session, "MAIL FROM:<a@b.c>");
+        session.flush();
+        assertEquals("530 Must issue a STARTTLS command first\r\n", out.text());
+    }
+
+    private static Session session(SMTPServer server, Output out) throws IOException {
+        try (ServerSocket ss = new ServerSocket(0)) {
+            Socket socket = Mockito.mock(Socket.class);
+            Mockito.when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+            Mockito.when(socket.getOutputStream()).thenReturn(out);
+            return new Session(server, new ServerThread(server, ss, ProxyHandler.NOP), socket, ProxyHandler.NOP);
+        }
+    }
+
+    private static final class Output extends ByteArrayOutputStream {
+        String text() {
+            return new String(toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class Recorder extends BaseCommand {
+        final List<String> calls = new ArrayList<>();
+
+        Recorder(String name) {
+            super(name, "test");
+        }
+
+        @Override
+        public void execute(String commandString, Session sess) {
+            calls.add(commandString);
+        }
+
+        @Override
+        public void execute(String commandString, int argumentOffset, Session sess) {
+            calls.add(commandString + "@" + argumentOffset);
+        }
+    }
+}
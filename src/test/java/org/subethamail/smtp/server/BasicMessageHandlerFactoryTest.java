@@ -1,14 +1,20 @@
 package org.subethamail.smtp.server;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -28,10 +34,14 @@ import jakarta.mail.internet.MimeMultipart;
 import org.junit.Test;
 import org.subethamail.smtp.MessageContext;
 import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHeaders;
+import org.subethamail.smtp.PoolStats;
 import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.client.SmartClient;
 import org.subethamail.smtp.helper.BasicMessageHandlerFactory;
 import org.subethamail.smtp.helper.BasicMessageListener;
+import org.subethamail.smtp.helper.ChunkedMessageListener;
 
 public class BasicMessageHandlerFactoryTest {
 
@@ -73,6 +83,53 @@ public class BasicMessageHandlerFactoryTest {
         }
     }
     
+    @Test
+    public void testCapturedHeaders() throws Exception {
+        AtomicReference<MessageHeaders> headers = new AtomicReference<>();
+        SMTPServer server = SMTPServer //
+                .port(PORT) //
+                .captureHeaders(4096) //
+                .messageHandler((context, from, to, data) -> headers.set(context.getMessageHeaders().get()))
+                .build();
+        try {
+            server.start();
+            send();
+            assertEquals("me@here.com", headers.get().get("From"));
+            // the Received header the server adds is included
+            assertEquals(1, headers.get().count("Received"));
+            assertTrue(headers.get().get("Subject").startsWith("=?"));
+            assertFalse(headers.get().isTruncated());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testCapturedHeadersOfBdat() throws Exception {
+        AtomicReference<MessageHeaders> headers = new AtomicReference<>();
+        SMTPServer server = SMTPServer //
+                .port(PORT) //
+                .captureHeaders(Integer.MAX_VALUE) //
+                .messageHandler((context, from, to, data) -> headers.set(context.getMessageHeaders().get()))
+                .build();
+        try {
+            server.start();
+            SmartClient client = SmartClient.createAndConnect("localhost", PORT, "localhost");
+            client.from("me@here.com");
+            client.to("someone@domain.com");
+            // the header section spans the chunks
+            client.bdat("From: me@here.com\r\nSubj");
+            client.bdat("ect: chunked\r\n");
+            client.bdatLast("\r\nbody\r\n");
+            client.quit();
+            assertEquals("me@here.com", headers.get().get("From"));
+            assertEquals("chunked", headers.get().get("Subject"));
+            assertFalse(headers.get().isTruncated());
+        } finally {
+            server.stop();
+        }
+    }
+
     static void send() throws Exception {
         String to = "someone@domain.com";
         String from = "me@here.com";
@@ -147,4 +204,78 @@ public class BasicMessageHandlerFactoryTest {
         mh.data(new ByteArrayInputStream("abcdef".getBytes()));
     }
 
+    @Test
+    public void testChunkedBufferIsPresizedFromDeclaredSize() throws Exception {
+        byte[] message = new byte[100_000];
+        List<Integer> chunkSizes = new ArrayList<>();
+        ChunkedMessageListener listener = (context, from, to, data) -> {
+            for (ByteBuffer b : data) {
+                assertTrue(b.isReadOnly());
+                chunkSizes.add(b.remaining());
+            }
+        };
+        MessageContext context = mock(MessageContext.class);
+        when(context.getDeclaredMessageSize()).thenReturn((long) message.length);
+        MessageHandler mh = BasicMessageHandlerFactory.chunked(listener, 1_000_000).create(context);
+        mh.from("fred@thing.com");
+        mh.recipient("anne@place.com");
+        mh.data(new ByteArrayInputStream(message));
+        assertEquals(Collections.singletonList(message.length), chunkSizes);
+    }
+
+    @Test
+    public void testDeclaredSizeIsNotTrustedWithoutLimit() throws Exception {
+        byte[] message = new byte[100_000];
+        List<Integer> chunkSizes = new ArrayList<>();
+        ChunkedMessageListener listener = (context, from, to, data) -> {
+            for (ByteBuffer b : data) {
+                chunkSizes.add(b.remaining());
+            }
+        };
+        MessageContext context = mock(MessageContext.class);
+        when(context.getDeclaredMessageSize()).thenReturn((long) message.length);
+        MessageHandler mh = BasicMessageHandlerFactory.chunked(listener, 0).create(context);
+        mh.from("fred@thing.com");
+        mh.recipient("anne@place.com");
+        mh.data(new ByteArrayInputStream(message));
+        // the segments grew with the data instead
+        assertTrue(chunkSizes.size() > 1);
+        assertEquals(8192, (int) chunkSizes.get(0));
+    }
+
+    @Test
+    public void testPooledChunksAreReleased() throws Exception {
+        byte[] message = "abcdefghij".getBytes(StandardCharsets.US_ASCII);
+        StringBuilder received = new StringBuilder();
+        ChunkedMessageListener listener = (context, from, to, data) -> {
+            for (ByteBuffer b : data) {
+                while (b.hasRemaining()) {
+                    received.append((char) b.get());
+                }
+            }
+        };
+        BasicMessageHandlerFactory f = BasicMessageHandlerFactory.pooled(listener, 0, 4, 10);
+        for (int i = 0; i < 2; i++) {
+            MessageHandler mh = f.create(mock(MessageContext.class));
+            mh.from("fred@thing.com");
+            mh.recipient("anne@place.com");
+            mh.data(new ByteArrayInputStream(message));
+        }
+        assertEquals("abcdefghijabcdefghij", received.toString());
+        PoolStats pool = f.getChunkStats().get();
+        assertEquals(3, pool.getIdleCount());
+        assertEquals(3, pool.getMisses());
+        assertEquals(3, pool.getHits());
+    }
+
+    @Test(expected = TooMuchDataException.class)
+    public void testPooledWhenTooMuchData() throws Exception {
+        BasicMessageHandlerFactory f = BasicMessageHandlerFactory.pooled(mock(ChunkedMessageListener.class), 5, 4,
+                10);
+        MessageHandler mh = f.create(mock(MessageContext.class));
+        mh.from("fred@thing.com");
+        mh.recipient("anne@place.com");
+        mh.data(new ByteArrayInputStream("abcdef".getBytes()));
+    }
+
 }
@@ -1,8 +1,14 @@
 package org.subethamail.smtp.server;
 
+import java.io.InputStream;
+
 import org.junit.Test;
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.helper.SimpleMessageListener;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class SMTPServerTest {
 
@@ -49,4 +55,42 @@ public class SMTPServerTest {
         assertEquals("org.subethamail.smtp.internal.server.ServerThread *:1234", serverThreadName);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testSessionBuffersAreReusedAcrossConnections() throws Exception {
+        SMTPServer server = SMTPServer.port(0).sessionBufferPoolCapacity(4).build();
+        server.start();
+        try {
+            for (int i = 0; i < 3; i++) {
+                SmartClient client = SmartClient.createAndConnect("localhost", server.getPortAllocated(), "localhost");
+                client.quit();
+                // the session hands its input and reply buffers back after the
+                // connection has closed
+                long deadline = System.currentTimeMillis() + 5000;
+                while (server.getSessionBufferStats().getIdleCount() < 2 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+            }
+        } finally {
+            server.stop();
+        }
+        assertEquals(4, server.getSessionBufferStats().getHits());
+        assertEquals(2, server.getSessionBufferStats().getMisses());
+    }
+
+    @Test
+    public void testSpillStatsOfListenerAdapter() {
+        SMTPServer server = SMTPServer.port(ANY_PORT).simpleMessageListener(new SimpleMessageListener() {
+            @Override
+            public boolean accept(String from, String recipient) {
+                return true;
+            }
+
+            @Override
+            public void deliver(String from, String recipient, InputStream data) {
+            }
+        }).build();
+        assertTrue(server.getSpillStats().isPresent());
+        assertFalse(SMTPServer.port(ANY_PORT).build().getSpillStats().isPresent());
+    }
+
+}
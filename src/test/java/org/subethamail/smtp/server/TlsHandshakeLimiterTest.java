@@ -0,0 +1,184 @@
+package org.subethamail.smtp.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.subethamail.smtp.TestUtil.createTlsSslContext;
+import static org.subethamail.smtp.TestUtil.getKeyManagers;
+import static org.subethamail.smtp.TestUtil.getTrustManagers;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.Test;
+import org.subethamail.smtp.client.SMTPException;
+import org.subethamail.smtp.client.SmartClient;
+
+public class TlsHandshakeLimiterTest {
+
+    private static final int PORT = 25000;
+
+    private static SMTPServer.Builder server() throws Exception {
+        return SMTPServer.port(PORT) //
+                .enableTLS() //
+                .messageHandler((context, from, to, data) -> {
+                }) //
+                .startTlsSocketFactory(createTlsSslContext(getKeyManagers(), getTrustManagers()));
+    }
+
+    private static SmartClient connect(SSLContext context) throws Exception {
+        return SmartClient.createAndConnect("localhost", PORT, Optional.empty(), "localhost", Optional.empty(),
+                Optional.of(context.getSocketFactory()));
+    }
+
+    @Test
+    public void testHandshakeOverLimitIsTurnedAway() throws Exception {
+        TlsHandshakeLimiter limiter = new TlsHandshakeLimiter(1, 100, TimeUnit.MILLISECONDS);
+        SMTPServer server = server().tlsHandshakeLimiter(limiter).build();
+        server.start();
+        try {
+            SSLContext context = createTlsSslContext(null, getTrustManagers());
+            // another server sharing the limiter is mid-handshake
+            assertTrue(limiter.tryAcquire());
+            SmartClient client = connect(context);
+            try {
+                client.startTLS();
+                fail();
+            } catch (SMTPException e) {
+                assertEquals(454, e.getResponse().getCode());
+                assertTrue(e.getResponse().getMessage().startsWith("4.7.0"));
+            }
+            assertEquals(1, limiter.getRejected());
+            // still usable in the clear
+            client.quit();
+
+            limiter.release();
+            client = connect(context);
+            client.startTLS();
+            client.quit();
+            assertEquals(0, limiter.getInProgress());
+            assertEquals(1, server.getHandshakeStats().getFullHandshakes());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testStalledHandshakeReleasesPermit() throws Exception {
+        SMTPServer server = server() //
+                .tlsHandshakeLimit(1, 100, TimeUnit.MILLISECONDS) //
+                .tlsHandshakeTimeout(300, TimeUnit.MILLISECONDS) //
+                .build();
+        server.start();
+        TlsHandshakeLimiter limiter = server.getTlsHandshakeLimiters().get(0);
+        try (Socket stalled = new Socket("localhost", PORT)) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(stalled.getInputStream(), StandardCharsets.US_ASCII));
+            Writer out = new OutputStreamWriter(stalled.getOutputStream(), StandardCharsets.US_ASCII);
+            in.readLine();
+            out.write("EHLO localhost\r\n");
+            out.flush();
+            while (in.readLine().startsWith("250-")) {
+            }
+            out.write("STARTTLS\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("220"));
+            // and never sends a ClientHello
+            assertEquals(1, limiter.getInProgress());
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (limiter.getInProgress() > 0) {
+                assertTrue("permit held past the handshake timeout", System.nanoTime() < deadline);
+                Thread.sleep(20);
+            }
+            // and the connection, halfway through a handshake, is dropped
+            stalled.setSoTimeout(5000);
+            assertEquals(-1, stalled.getInputStream().read());
+            SmartClient client = connect(createTlsSslContext(null, getTrustManagers()));
+            client.startTLS();
+            client.quit();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testLimitersShareOneWait() throws Exception {
+        TlsHandshakeLimiter shared = new TlsHandshakeLimiter(1, 1000, TimeUnit.MILLISECONDS);
+        SMTPServer server = server() //
+                .tlsHandshakeLimit(1, 1000, TimeUnit.MILLISECONDS) //
+                .tlsHandshakeLimiter(shared) //
+                .build();
+        server.start();
+        TlsHandshakeLimiter own = server.getTlsHandshakeLimiters().get(0);
+        // the own limiter frees up after a while, the shared one never does
+        assertTrue(own.tryAcquire());
+        assertTrue(shared.tryAcquire());
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(600);
+            } catch (InterruptedException e) {
+                // release at once
+            }
+            own.release();
+        });
+        releaser.start();
+        try {
+            SmartClient client = connect(createTlsSslContext(null, getTrustManagers()));
+            long start = System.nanoTime();
+            try {
+                client.startTLS();
+                fail();
+            } catch (SMTPException e) {
+                assertEquals(454, e.getResponse().getCode());
+            }
+            // not 600 ms and then a full second
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1400));
+            assertEquals(1, shared.getRejected());
+            assertEquals(0, own.getInProgress());
+            client.quit();
+        } finally {
+            releaser.join();
+            shared.release();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testOwnLimitComesFirst() throws Exception {
+        TlsHandshakeLimiter shared = new TlsHandshakeLimiter(5, 0, TimeUnit.MILLISECONDS);
+        SMTPServer server = server() //
+                .tlsHandshakeLimit(2, 0, TimeUnit.MILLISECONDS) //
+                .tlsHandshakeLimiter(shared) //
+                .build();
+        assertEquals(2, server.getTlsHandshakeLimiters().size());
+        assertEquals(2, server.getTlsHandshakeLimiters().get(0).getMaxConcurrent());
+        assertEquals(shared, server.getTlsHandshakeLimiters().get(1));
+    }
+
+    @Test
+    public void testNoLimitByDefault() throws Exception {
+        assertTrue(server().build().getTlsHandshakeLimiters().isEmpty());
+    }
+
+    @Test
+    public void testLimiterCounts() {
+        TlsHandshakeLimiter limiter = new TlsHandshakeLimiter(2, 0, TimeUnit.MILLISECONDS);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertEquals(2, limiter.getInProgress());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(1, limiter.getRejected());
+        limiter.release();
+        assertTrue(limiter.tryAcquire());
+    }
+}
@@ -0,0 +1,71 @@
+package org.subethamail.smtp.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import org.subethamail.smtp.client.AsyncSMTPClient;
+import org.subethamail.smtp.server.EhloExtension;
+import org.subethamail.smtp.server.SMTPServer;
+
+/**
+ * Drives a local server with many concurrent sessions from the few selector
+ * threads of an {@link AsyncSMTPClient}: each session sends
+ * {@value #MESSAGES_PER_SESSION} messages, pipelining the envelope, and quits.
+ * Run the main method, there is no assertion.
+ */
+public final class AsyncClientLoadBenchmark {
+
+    private static final int PORT = 25126;
+    private static final int CONCURRENT_SESSIONS = 500;
+    private static final int MESSAGES_PER_SESSION = 10;
+    private static final int ROUNDS = 5;
+
+    private static final byte[] BODY = "Subject: load\r\n\r\nhello\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        SMTPServer server = SMTPServer.port(PORT) //
+                .ehloExtension(EhloExtension.of("PIPELINING")) //
+                .maxConnections(CONCURRENT_SESSIONS) //
+                // all sessions connect at once
+                .backlog(CONCURRENT_SESSIONS) //
+                .messageHandler((context, from, to, data) -> {
+                }).build();
+        server.start();
+        try (AsyncSMTPClient client = AsyncSMTPClient.heloHost("localhost").build()) {
+            // warm up
+            run(client);
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                run(client);
+            }
+            long ns = System.nanoTime() - start;
+            long messages = (long) ROUNDS * CONCURRENT_SESSIONS * MESSAGES_PER_SESSION;
+            System.out.printf("%d messages over %d concurrent sessions, %.0f messages/s%n", messages,
+                    CONCURRENT_SESSIONS, messages / (ns / 1e9));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void run(AsyncSMTPClient client) throws Exception {
+        List<CompletableFuture<Void>> sessions = new ArrayList<>();
+        for (int i = 0; i < CONCURRENT_SESSIONS; i++) {
+            sessions.add(client.connect("localhost", PORT).thenCompose(session -> {
+                CompletionStage<?> stage = CompletableFuture.completedFuture(null);
+                for (int j = 0; j < MESSAGES_PER_SESSION; j++) {
+                    stage = stage
+                            .thenCompose(x -> session.envelope("sender@example.com",
+                                    Arrays.asList("rcpt@example.com")))
+                            .thenCompose(envelope -> session.data(BODY));
+                }
+                return stage.thenCompose(x -> session.quit());
+            }).toCompletableFuture());
+        }
+        CompletableFuture.allOf(sessions.toArray(new CompletableFuture[0])).get(10, TimeUnit.MINUTES);
+    }
+}
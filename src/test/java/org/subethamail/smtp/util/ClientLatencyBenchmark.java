@@ -0,0 +1,51 @@
+package org.subethamail.smtp.util;
+
+import java.nio.charset.StandardCharsets;
+
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.server.SMTPServer;
+
+/**
+ * Measures the wall clock time of complete client sessions against a local
+ * server: connect and EHLO, MAIL, 10 RCPT, DATA and QUIT. Every command waits
+ * for its reply, so the figure is the round trip latency of the client and
+ * server together. Run the main method, there is no assertion.
+ */
+public final class ClientLatencyBenchmark {
+
+    private static final int PORT = 25125;
+    private static final int RECIPIENTS = 10;
+    private static final int WARMUP = 200;
+    private static final int SESSIONS = 1000;
+
+    private static final byte[] BODY = "Subject: latency\r\n\r\nhello\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        SMTPServer server = SMTPServer.port(PORT).messageHandler((context, from, to, data) -> {
+        }).build();
+        server.start();
+        try {
+            run(WARMUP);
+            long start = System.nanoTime();
+            run(SESSIONS);
+            long ns = System.nanoTime() - start;
+            System.out.printf("%d sessions, %.3f ms/session%n", SESSIONS, ns / 1e6 / SESSIONS);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void run(int sessions) throws Exception {
+        for (int i = 0; i < sessions; i++) {
+            SmartClient client = SmartClient.createAndConnect("localhost", PORT, "localhost");
+            client.from("sender@example.com");
+            for (int j = 0; j < RECIPIENTS; j++) {
+                client.to("rcpt" + j + "@example.com");
+            }
+            client.dataStart();
+            client.dataWrite(BODY);
+            client.dataEnd();
+            client.quit();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.subethamail.smtp.util;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.subethamail.smtp.internal.io.DotTerminatedOutputStream;
+import org.subethamail.smtp.internal.io.ExtraDotOutputStream;
+
+/**
+ * Measures the throughput of the client's DATA encoding: message text written
+ * in 8 KB blocks through {@link ExtraDotOutputStream},
+ * {@link DotTerminatedOutputStream} and the buffered socket stream, as
+ * {@code SmartClient.sendData} does, into a stream which discards it. Run the
+ * main method, there is no assertion.
+ */
+public final class DotStuffingBenchmark {
+
+    private static final int MESSAGE_SIZE = 4 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 8192;
+    private static final int WARMUP = 20;
+    private static final int ITERATIONS = 100;
+
+    private static volatile long sink;
+
+    public static void main(String[] args) throws IOException {
+        byte[] crlf = text("\r\n");
+        byte[] lf = text("\n");
+        for (int i = 0; i < WARMUP; i++) {
+            run(crlf);
+            run(lf);
+        }
+        report("CRLF text", crlf);
+        report("LF text", lf);
+    }
+
+    /** Lines of 72 characters, every tenth one starting with a dot */
+    private static byte[] text(String lineBreak) {
+        StringBuilder b = new StringBuilder(MESSAGE_SIZE + 100);
+        int line = 0;
+        while (b.length() < MESSAGE_SIZE) {
+            if (line++ % 10 == 0) {
+                b.append('.');
+            }
+            b.append("The quick brown fox jumps over the lazy dog, again and again and again.");
+            b.append(lineBreak);
+        }
+        return b.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void report(String name, byte[] message) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            run(message);
+        }
+        long ns = System.nanoTime() - start;
+        double mb = (double) message.length * ITERATIONS / (1024 * 1024);
+        System.out.printf("%-10s %8.1f MB/s%n", name, mb / (ns / 1e9));
+    }
+
+    private static void run(byte[] message) throws IOException {
+        Discard discard = new Discard();
+        DotTerminatedOutputStream dotTerminated = new DotTerminatedOutputStream(
+                new BufferedOutputStream(discard, 8192));
+        ExtraDotOutputStream out = new ExtraDotOutputStream(dotTerminated);
+        for (int off = 0; off < message.length; off += BLOCK_SIZE) {
+            out.write(message, off, Math.min(BLOCK_SIZE, message.length - off));
+        }
+        out.flush();
+        dotTerminated.writeTerminatingSequence();
+        dotTerminated.flush();
+        sink = discard.count;
+    }
+
+    private static final class Discard extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.subethamail.smtp.util;
+
+import java.util.function.Function;
+
+import org.subethamail.smtp.internal.util.EmailUtils;
+import org.subethamail.smtp.internal.util.MailPath;
+
+/**
+ * Compares the cost of handling the arguments of a MAIL command with
+ * {@link MailPath} against the previous extract and
+ * {@code InternetAddress.parse} validation. Run the main method, there is no
+ * assertion.
+ */
+public final class MailPathBenchmark {
+
+    private static final String[] LINES = { //
+            "MAIL FROM:<someone@example.com>", //
+            "MAIL FROM:<first.last+tag@mail.example.org> SIZE=123456 BODY=8BITMIME", //
+            "MAIL FROM:<ñandú@bücher.example> SMTPUTF8", //
+            "MAIL FROM:<>" };
+
+    private static final int WARMUP = 200_000;
+    private static final int ITERATIONS = 2_000_000;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        for (int round = 0; round < 3; round++) {
+            run("InternetAddress", WARMUP, MailPathBenchmark::legacy);
+            run("MailPath", WARMUP, MailPathBenchmark::fast);
+        }
+        run("InternetAddress", ITERATIONS, MailPathBenchmark::legacy);
+        run("MailPath", ITERATIONS, MailPathBenchmark::fast);
+    }
+
+    private static Object legacy(String line) {
+        String address = EmailUtils.extractEmailAddress(line, 10);
+        return EmailUtils.isValidEmailAddress(address, true) ? address : null;
+    }
+
+    private static Object fast(String line) {
+        return MailPath.parse(line, 10, line.length());
+    }
+
+    private static void run(String name, int iterations, Function<String, Object> parser) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = parser.apply(LINES[i & 3]);
+        }
+        long ns = System.nanoTime() - start;
+        if (iterations == ITERATIONS) {
+            System.out.printf("%-16s %8.1f ns/op%n", name, (double) ns / iterations);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.subethamail.smtp.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.Test;
+import org.subethamail.smtp.internal.util.MailPath;
+
+public class MailPathTest {
+
+    @Test
+    public void testBracketedMailbox() {
+        MailPath p = parse("FROM:<test@example.com>");
+        assertEquals("test@example.com", p.getMailbox());
+        assertTrue(p.isBracketed());
+        assertEquals("", p.getParametersString());
+    }
+
+    @Test
+    public void testBareMailboxAndLeadingSpace() {
+        MailPath p = parse("FROM: test@example.com");
+        assertEquals("test@example.com", p.getMailbox());
+        assertFalse(p.isBracketed());
+    }
+
+    @Test
+    public void testNullPath() {
+        assertTrue(parse("FROM:<>").isNullPath());
+        assertTrue(parse("FROM: <> AUTH=<>").isNullPath());
+    }
+
+    @Test
+    public void testParameters() {
+        MailPath p = parse("FROM:<a@b.com> SIZE=1000  BODY=8BITMIME SMTPUTF8");
+        assertEquals(Optional.of("1000"), p.getParameter("size"));
+        assertEquals(Optional.of(""), p.getParameter("SMTPUTF8"));
+        assertEquals(Optional.empty(), p.getParameter("SIZ"));
+        assertEquals(Optional.empty(), p.getParameter("RET"));
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("SIZE", "1000");
+        expected.put("BODY", "8BITMIME");
+        expected.put("SMTPUTF8", "");
+        assertEquals(expected, p.getParameters());
+    }
+
+    @Test
+    public void testSourceRouteIsIgnored() {
+        assertEquals("user@c.org", parse("TO:<@a.org,@b.org:user@c.org>").getMailbox());
+    }
+
+    @Test
+    public void testQuotedLocalPartAndAddressLiteral() {
+        assertEquals("\"john \\\"q\\\" doe\"@[192.168.0.1]",
+                parse("TO:<\"john \\\"q\\\" doe\"@[192.168.0.1]>").getMailbox());
+    }
+
+    @Test
+    public void testUtf8LocalPartAndDomain() {
+        assertEquals("ñandú@bücher.example", parse("FROM:<ñandú@bücher.example> SMTPUTF8").getMailbox());
+    }
+
+    @Test
+    public void testMalformed() {
+        assertNull(parse("FROM:"));
+        assertNull(parse("FROM:<test@lkjsd lkjk>"));
+        assertNull(parse("FROM:< test@example.com >"));
+        assertNull(parse("FROM:<Foo Bar <foobar@example.com>>"));
+        assertNull(parse("FROM:<a..b@example.com>"));
+        assertNull(parse("FROM:<a@-example.com>"));
+        assertNull(parse("FROM:<a@example-.com>"));
+        assertNull(parse("FROM:<a@example..com>"));
+        assertNull(parse("FROM:<postmaster>"));
+        assertNull(parse("FROM:<a@b.com>SIZE=1"));
+        assertNull(parse("FROM:<a@b.com> SIZE="));
+        assertNull(parse("FROM:<a@b.com> =1"));
+    }
+
+    private static MailPath parse(String args) {
+        return MailPath.parse(args, args.indexOf(':') + 1, args.length());
+    }
+}
@@ -0,0 +1,78 @@
+package org.subethamail.smtp.util;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.net.ssl.SSLContext;
+
+import org.subethamail.smtp.HandshakeStats;
+import org.subethamail.smtp.TestUtil;
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.server.SMTPServer;
+
+/**
+ * Measures the latency of a STARTTLS session to a local server, connect to
+ * QUIT, when every connection builds its own {@link SSLContext} and so makes a
+ * full handshake, and when all connections share one whose session cache lets
+ * them resume, followed by the server's view of all of them. Run the main
+ * method, there is no assertion.
+ */
+public final class TlsReconnectBenchmark {
+
+    private static final int PORT = 25127;
+    private static final int WARMUP = 200;
+    private static final int CONNECTIONS = 500;
+
+    public static void main(String[] args) throws Exception {
+        SSLContext serverContext = TestUtil.createTlsSslContext(TestUtil.getKeyManagers(),
+                TestUtil.getTrustManagers());
+        SMTPServer server = SMTPServer.port(PORT) //
+                .enableTLS(true) //
+                .startTlsSocketFactory(serverContext) //
+                .messageHandler((context, from, to, data) -> {
+                }).build();
+        server.start();
+        try {
+            SSLContext shared = clientContext();
+            Supplier<SSLContext> fresh = TlsReconnectBenchmark::clientContext;
+            run(fresh, WARMUP, new HandshakeStats());
+            run(() -> shared, WARMUP, new HandshakeStats());
+            report("new context", fresh);
+            report("shared context", () -> shared);
+            System.out.println("server " + server.getHandshakeStats());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static SSLContext clientContext() {
+        try {
+            return TestUtil.createTlsSslContext(null, TestUtil.getTrustManagers());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void report(String name, Supplier<SSLContext> contexts) throws Exception {
+        HandshakeStats stats = new HandshakeStats();
+        long start = System.nanoTime();
+        run(contexts, CONNECTIONS, stats);
+        long ns = System.nanoTime() - start;
+        System.out.printf("%-15s %8.0f us/connection, %.0f%% resumed, handshake %d us full, %d us resumed%n",
+                name, ns / 1e3 / CONNECTIONS, stats.getResumedRatio() * 100,
+                stats.getAverageFullHandshakeTime(TimeUnit.MICROSECONDS),
+                stats.getAverageResumedHandshakeTime(TimeUnit.MICROSECONDS));
+    }
+
+    private static void run(Supplier<SSLContext> contexts, int connections, HandshakeStats stats)
+            throws Exception {
+        for (int i = 0; i < connections; i++) {
+            SmartClient client = SmartClient.createAndConnect("localhost", PORT, Optional.empty(), "localhost",
+                    Optional.empty(), Optional.of(contexts.get().getSocketFactory()));
+            client.setHandshakeStats(stats);
+            client.startTLS();
+            client.quit();
+        }
+    }
+}
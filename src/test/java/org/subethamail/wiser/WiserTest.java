@@ -0,0 +1,241 @@
+package org.subethamail.wiser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.subethamail.smtp.MessageHeaders;
+
+public class WiserTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // the server is never started, messages are delivered directly
+    private Wiser wiser = Wiser.port(0);
+
+    private void deliver(String from, String to, String messageId) throws IOException {
+        String data = "Message-ID: " + messageId + "\r\nSubject: test\r\n\r\nbody of " + messageId + "\r\n";
+        wiser.deliver(from, to, new ByteArrayInputStream(data.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void testManyMessagesAreKeptInOrder() throws IOException {
+        int n = 5000;
+        for (int i = 0; i < n; i++) {
+            deliver("from@example.com", "to" + i + "@example.com", "<" + i + "@example.com>");
+        }
+        List<WiserMessage> messages = wiser.getMessages();
+        assertEquals(n, messages.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals("to" + i + "@example.com", messages.get(i).getEnvelopeReceiver());
+        }
+        // a snapshot does not change
+        deliver("from@example.com", "late@example.com", "<late@example.com>");
+        assertEquals(n, messages.size());
+        assertEquals(n + 1, wiser.getMessages().size());
+    }
+
+    @Test
+    public void testIndexes() throws IOException {
+        deliver("alice@example.com", "bob@example.com", "<1@example.com>");
+        deliver("alice@example.com", "carol@example.com", "<1@example.com>");
+        deliver("dave@example.com", "Bob@Example.com", "<2@example.com>");
+
+        assertEquals(2, wiser.getMessagesTo("bob@example.com").size());
+        assertEquals(1, wiser.getMessagesTo("carol@example.com").size());
+        assertEquals(0, wiser.getMessagesTo("nobody@example.com").size());
+        assertEquals(2, wiser.getMessagesFrom("ALICE@example.com").size());
+        assertEquals(2, wiser.getMessagesByMessageId("<1@example.com>").size());
+        assertEquals("Bob@Example.com", wiser.getMessagesByMessageId("2@example.com").get(0).getEnvelopeReceiver());
+    }
+
+    @Test
+    public void testFoldedMessageId() {
+        byte[] data = "Subject: x\r\nMessage-Id:\r\n <folded@example.com>\r\n\r\nMessage-ID: <body>\r\n"
+                .getBytes(StandardCharsets.US_ASCII);
+        assertEquals("<folded@example.com>", MessageHeaders.of(ByteBuffer.wrap(data)).get("Message-ID"));
+        assertEquals(null, MessageHeaders
+                .of(ByteBuffer.wrap("Subject: x\n\nMessage-ID: <body>\n".getBytes(StandardCharsets.US_ASCII)))
+                .get("Message-ID"));
+    }
+
+    @Test
+    public void testClear() throws IOException {
+        deliver("alice@example.com", "bob@example.com", "<1@example.com>");
+        List<WiserMessage> before = wiser.getMessages();
+        wiser.clear();
+        assertEquals(0, wiser.getMessages().size());
+        assertEquals(0, wiser.getMessagesTo("bob@example.com").size());
+        assertEquals(1, before.size());
+    }
+
+    @Test
+    public void testAwaitMessages() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<WiserMessage>> f = executor.submit(() -> wiser.awaitMessages(3, 10, TimeUnit.SECONDS));
+            for (int i = 0; i < 3; i++) {
+                deliver("from@example.com", "to@example.com", "<" + i + "@example.com>");
+            }
+            assertTrue(f.get().size() >= 3);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAwaitMessage() throws Exception {
+        deliver("from@example.com", "early@example.com", "<early@example.com>");
+        WiserMessage early = wiser.awaitMessage(m -> m.getEnvelopeReceiver().startsWith("early"), 0,
+                TimeUnit.SECONDS);
+        assertEquals("early@example.com", early.getEnvelopeReceiver());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<WiserMessage> f = executor
+                    .submit(() -> wiser.awaitMessage(m -> m.getEnvelopeReceiver().equals("b@example.com"), 10,
+                            TimeUnit.SECONDS));
+            deliver("from@example.com", "a@example.com", "<a@example.com>");
+            deliver("from@example.com", "b@example.com", "<b@example.com>");
+            assertSame(wiser.getMessagesTo("b@example.com").get(0), f.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAwaitTimesOut() throws Exception {
+        deliver("from@example.com", "to@example.com", "<1@example.com>");
+        try {
+            wiser.awaitMessages(2, 50, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException e) {
+            // expected
+        }
+        try {
+            wiser.awaitMessage(m -> false, 50, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLastMessages() throws IOException {
+        wiser = Wiser.retention(Retention.lastMessages(3)).port(0);
+        for (int i = 0; i < 10; i++) {
+            deliver("from@example.com", "to" + (i % 2) + "@example.com", "<" + i + "@example.com>");
+        }
+        List<WiserMessage> messages = wiser.getMessages();
+        assertEquals(3, messages.size());
+        assertEquals("to1@example.com", messages.get(0).getEnvelopeReceiver());
+        assertEquals(1, wiser.getMessagesByMessageId("<9@example.com>").size());
+        assertEquals(0, wiser.getMessagesByMessageId("<6@example.com>").size());
+        assertEquals(2, wiser.getMessagesTo("to1@example.com").size());
+        assertEquals(1, wiser.getMessagesTo("to0@example.com").size());
+        assertEquals(10, wiser.getReceivedCount());
+        assertEquals(5, wiser.getReceivedCountTo("to0@example.com"));
+    }
+
+    @Test
+    public void testLastBytes() throws IOException {
+        wiser = Wiser.retention(Retention.lastBytes(150)).port(0);
+        for (int i = 0; i < 10; i++) {
+            // 71 bytes each
+            deliver("from@example.com", "to@example.com", "<" + i + "@example.com>");
+        }
+        assertEquals(2, wiser.getMessages().size());
+        assertEquals(710, wiser.getReceivedBytes());
+
+        wiser = Wiser.retention(Retention.lastBytes(10)).port(0);
+        deliver("from@example.com", "to@example.com", "<big@example.com>");
+        // the most recent message is kept anyway
+        assertEquals(1, wiser.getMessages().size());
+    }
+
+    @Test
+    public void testCountOnly() throws Exception {
+        wiser = Wiser.retention(Retention.countOnly()).port(0);
+        deliver("from@example.com", "to@example.com", "<1@example.com>");
+        deliver("from@example.com", "other@example.com", "<2@example.com>");
+        assertEquals(0, wiser.getMessages().size());
+        assertEquals(0, wiser.getMessagesTo("to@example.com").size());
+        assertEquals(2, wiser.getReceivedCount());
+        assertEquals(2, wiser.getReceivedCountFrom("FROM@example.com"));
+        assertEquals(1, wiser.getReceivedCountTo("other@example.com"));
+        assertEquals(0, wiser.awaitMessages(2, 0, TimeUnit.SECONDS).size());
+        wiser.clear();
+        assertEquals(0, wiser.getReceivedCount());
+    }
+
+    @Test
+    public void testDisk() throws Exception {
+        wiser = Wiser.retention(Retention.disk(folder.getRoot().toPath(), 1000)).port(0);
+        int n = 100;
+        for (int i = 0; i < n; i++) {
+            deliver("from@example.com", "to@example.com", "<" + i + "@example.com>");
+        }
+        List<WiserMessage> messages = wiser.getMessages();
+        assertEquals(n, messages.size());
+        for (int i = 0; i < n; i++) {
+            String expected = "Message-ID: <" + i + "@example.com>\r\nSubject: test\r\n\r\nbody of <" + i
+                    + "@example.com>\r\n";
+            assertEquals(expected, new String(messages.get(i).getData(), StandardCharsets.US_ASCII));
+        }
+        assertEquals("test", messages.get(42).getMimeMessage().getSubject());
+        assertEquals(1, wiser.getMessagesByMessageId("42@example.com").size());
+        wiser.clear();
+        assertEquals(0, wiser.getMessages().size());
+    }
+
+    @Test
+    public void testHeaders() throws Exception {
+        String data = "Received: from a\r\nReceived: from b\r\n\tby c\r\nSubject: hello\r\n\r\nSubject: body\r\n";
+        wiser.deliver("from@example.com", "to@example.com",
+                new ByteArrayInputStream(data.getBytes(StandardCharsets.US_ASCII)));
+        WiserMessage m = wiser.getMessages().get(0);
+        assertEquals("hello", m.getHeader("subject"));
+        assertEquals(Arrays.asList("from a", "from b\tby c"), m.getHeaders("RECEIVED"));
+        assertEquals(null, m.getHeader("Message-ID"));
+        assertTrue(m.getHeaders("Message-ID").isEmpty());
+        assertEquals(2, m.getHeaders().size());
+    }
+
+    @Test
+    public void testMimeMessageIsParsedOnce() throws Exception {
+        deliver("from@example.com", "to@example.com", "<1@example.com>");
+        WiserMessage m = wiser.getMessages().get(0);
+        assertSame(m.getMimeMessage(), m.getMimeMessage());
+        assertEquals("test", m.getMimeMessage().getSubject());
+    }
+
+    @Test
+    public void testDumpMessages() throws Exception {
+        wiser = Wiser.retention(Retention.disk(folder.getRoot().toPath())).port(0);
+        deliver("from@example.com", "to@example.com", "<1@example.com>");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        wiser.dumpMessages(new PrintStream(bytes, true, "US-ASCII"));
+        String dump = bytes.toString("US-ASCII");
+        assertTrue(dump.contains("Envelope recipient: to@example.com"));
+        assertTrue(dump.contains("Message-ID: <1@example.com>\r\nSubject: test\r\n\r\nbody of <1@example.com>\r\n"));
+    }
+}